@@ -0,0 +1,140 @@
+package io.magnum.awscommons;
+
+import io.magnum.awscommons.concurrent.Futures;
+import io.magnum.awscommons.concurrent.ListenableFuture;
+import io.magnum.awscommons.retry.AbortException;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.amazonaws.services.autoscaling.model.AutoScalingGroup;
+import com.amazonaws.services.autoscaling.model.LaunchConfiguration;
+import com.amazonaws.services.cloudformation.model.DescribeStacksResult;
+import com.amazonaws.services.cloudformation.model.Parameter;
+import com.amazonaws.services.cloudformation.model.Stack;
+import com.amazonaws.services.cloudformation.model.StackResource;
+import com.amazonaws.services.ec2.model.DescribeInstancesResult;
+import com.amazonaws.services.ec2.model.Instance;
+import com.amazonaws.services.elasticloadbalancing.model.LoadBalancerDescription;
+
+/**
+ * The non-blocking counterpart of {@link GeneralAwsHelper}: each method
+ * starts its request and returns at once with a future of the result that
+ * the corresponding {@link GeneralAwsHelper} method would return.
+ * <p>
+ * Failures are reported through the futures rather than thrown: where the
+ * blocking method would throw an {@link AbortException} or an SDK exception,
+ * the future fails with it. Use {@link Futures} to chain dependent calls
+ * without blocking a thread; cancelling a future cancels its request where
+ * possible.
+ * <p>
+ * Non-blocking here means that the caller's thread does not wait; an
+ * implementation may still hold a thread of its own for each request in
+ * flight, as {@link DefaultAsyncGeneralAwsHelper} does.
+ *
+ * @author Yu Sun
+ */
+public interface AsyncGeneralAwsHelper {
+
+    /** See {@link GeneralAwsHelper#getAutoScalingGroups()} */
+    ListenableFuture<List<AutoScalingGroup>> getAutoScalingGroups();
+
+    /** See {@link GeneralAwsHelper#createInstance(String, String, List, String)} */
+    ListenableFuture<Instance> createInstance(final String imageId, final String instanceType,
+            final List<String> securityGroups, final String keyName);
+
+    /** See {@link GeneralAwsHelper#getInstanceById(String)} */
+    ListenableFuture<Instance> getInstanceById(final String instanceId);
+
+    /** See {@link GeneralAwsHelper#getInstancesById(Collection)} */
+    ListenableFuture<Map<String, Instance>> getInstancesById(final Collection<String> instanceIds);
+
+    /** See {@link GeneralAwsHelper#getInstances()} */
+    ListenableFuture<List<Instance>> getInstances();
+
+    /** See {@link GeneralAwsHelper#getInstancesPage(String)} */
+    ListenableFuture<DescribeInstancesResult> getInstancesPage(final String nextToken);
+
+    /** See {@link GeneralAwsHelper#createImage(String, String)} */
+    ListenableFuture<String> createImage(final String instanceId, final String name);
+
+    /** See {@link GeneralAwsHelper#deleteStack(String)} */
+    ListenableFuture<Void> deleteStack(final String stackName);
+
+    /** See {@link GeneralAwsHelper#isImageAvailable(String)} */
+    ListenableFuture<Boolean> isImageAvailable(final String imageId);
+
+    /** See {@link GeneralAwsHelper#getImageStates(Collection)} */
+    ListenableFuture<Map<String, String>> getImageStates(final Collection<String> imageIds);
+
+    /** See {@link GeneralAwsHelper#createStack(String, String, List)} */
+    ListenableFuture<String> createStack(final String stackName, final String template,
+            final List<Parameter> parameters);
+
+    /** See {@link GeneralAwsHelper#updateStack(String, String, List)} */
+    ListenableFuture<String> updateStack(final String stackName, final String template,
+            final List<Parameter> parameters);
+
+    /** See {@link GeneralAwsHelper#getCloudFormationStacks()} */
+    ListenableFuture<List<Stack>> getCloudFormationStacks();
+
+    /** See {@link GeneralAwsHelper#getCloudFormationStacksPage(String)} */
+    ListenableFuture<DescribeStacksResult> getCloudFormationStacksPage(final String nextToken);
+
+    /** See {@link GeneralAwsHelper#getCloudFormationStack(String)} */
+    ListenableFuture<Stack> getCloudFormationStack(final String stackName);
+
+    /** See {@link GeneralAwsHelper#getCloudFormationStackTemplate(String)} */
+    ListenableFuture<String> getCloudFormationStackTemplate(final String stackName);
+
+    /** See {@link GeneralAwsHelper#getCloudFormationStackAutoScalingGroup(String)} */
+    ListenableFuture<AutoScalingGroup> getCloudFormationStackAutoScalingGroup(final String stackName);
+
+    /** See {@link GeneralAwsHelper#getCloudFormationStackLoadBalancer(String)} */
+    ListenableFuture<LoadBalancerDescription> getCloudFormationStackLoadBalancer(final String stackName);
+
+    /** See {@link GeneralAwsHelper#getCloudFormationStackResources(String)} */
+    ListenableFuture<List<StackResource>> getCloudFormationStackResources(final String stackName);
+
+    /** See {@link GeneralAwsHelper#getAutoScalingGroup(String)} */
+    ListenableFuture<AutoScalingGroup> getAutoScalingGroup(final String autoScalingGroupName);
+
+    /** See {@link GeneralAwsHelper#getAutoScalingGroupsByName(Collection)} */
+    ListenableFuture<Map<String, AutoScalingGroup>> getAutoScalingGroupsByName(
+            final Collection<String> autoScalingGroupNames);
+
+    /** See {@link GeneralAwsHelper#getElasticLoadBalancer(String)} */
+    ListenableFuture<LoadBalancerDescription> getElasticLoadBalancer(final String loadBalancerName);
+
+    /** See {@link GeneralAwsHelper#getElasticLoadBalancersByName(Collection)} */
+    ListenableFuture<Map<String, LoadBalancerDescription>> getElasticLoadBalancersByName(
+            final Collection<String> loadBalancerNames);
+
+    /** See {@link GeneralAwsHelper#terminateViaAutoScaling(String)} */
+    ListenableFuture<Void> terminateViaAutoScaling(final String instanceId);
+
+    /** See {@link GeneralAwsHelper#terminateViaEc2(String)} */
+    ListenableFuture<Void> terminateViaEc2(final String instanceId);
+
+    /** See {@link GeneralAwsHelper#terminateInstancesViaEc2(Collection)} */
+    ListenableFuture<Map<String, Ec2InstanceState>> terminateInstancesViaEc2(final Collection<String> instanceIds);
+
+    /** See {@link GeneralAwsHelper#registerImage(String, String)} */
+    ListenableFuture<String> registerImage(final String manifest, final String desc);
+
+    /** See {@link GeneralAwsHelper#removeInstancesFromLoadBalancer(String, Set)} */
+    ListenableFuture<Void> removeInstancesFromLoadBalancer(final String loadBalancerName,
+            final Set<String> instanceIds);
+
+    /** See {@link GeneralAwsHelper#getLoadBalancerInstanceHealth(String, Collection)} */
+    ListenableFuture<Map<String, ElasticLoadBalancingInstanceState>> getLoadBalancerInstanceHealth(
+            final String loadBalancerName, final Collection<String> instanceIds);
+
+    /** See {@link GeneralAwsHelper#putTags(Collection, Map)} */
+    ListenableFuture<Void> putTags(final Collection<String> resourceIds, final Map<String, String> tags);
+
+    /** See {@link GeneralAwsHelper#getAutoScalingLaunchConfiguration(String)} */
+    ListenableFuture<LaunchConfiguration> getAutoScalingLaunchConfiguration(final String autoScalingGroupName);
+}
@@ -26,12 +26,17 @@ public class AutoScalingTerminationArbiter implements ExceptionArbiter {
         return arbiter.isRetryable(e) && ! isInstanceIDNotFoundException(e);
     }
     
-    private boolean isInstanceIDNotFoundException(Throwable e) {
+    /**
+     * Returns whether the exception is Auto Scaling's answer to terminating
+     * an instance it does not manage, e.g. because it is already gone.
+     */
+    static boolean isInstanceIDNotFoundException(Throwable e) {
         if(e instanceof AmazonServiceException) {
             AmazonServiceException amznEx = (AmazonServiceException) e;
             
+            // getMessage() puts the status code and request ID before AWS's message
             if(INSTANCE_NOT_FOUND_ERROR_CODE.equals(amznEx.getErrorCode()) && e.getMessage() != null 
-                    && e.getMessage().startsWith(INSTANCE_NOT_FOUND_MESSAGE_PREFIX)) {
+                    && e.getMessage().contains(INSTANCE_NOT_FOUND_MESSAGE_PREFIX)) {
                 return true;
             }
         }
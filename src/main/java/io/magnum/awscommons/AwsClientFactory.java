@@ -1,17 +1,28 @@
 package io.magnum.awscommons;
 
+import java.util.concurrent.ExecutorService;
+
+import com.amazonaws.ClientConfiguration;
 import com.amazonaws.auth.AWSCredentialsProvider;
 import com.amazonaws.services.autoscaling.AmazonAutoScaling;
+import com.amazonaws.services.autoscaling.AmazonAutoScalingAsync;
+import com.amazonaws.services.autoscaling.AmazonAutoScalingAsyncClient;
 import com.amazonaws.services.autoscaling.AmazonAutoScalingClient;
 import com.amazonaws.services.cloudformation.AmazonCloudFormation;
+import com.amazonaws.services.cloudformation.AmazonCloudFormationAsync;
+import com.amazonaws.services.cloudformation.AmazonCloudFormationAsyncClient;
 import com.amazonaws.services.cloudformation.AmazonCloudFormationClient;
 import com.amazonaws.services.cloudwatch.AmazonCloudWatch;
 import com.amazonaws.services.cloudwatch.AmazonCloudWatchClient;
 import com.amazonaws.services.dynamodbv2.AmazonDynamoDB;
 import com.amazonaws.services.dynamodbv2.AmazonDynamoDBClient;
 import com.amazonaws.services.ec2.AmazonEC2;
+import com.amazonaws.services.ec2.AmazonEC2Async;
+import com.amazonaws.services.ec2.AmazonEC2AsyncClient;
 import com.amazonaws.services.ec2.AmazonEC2Client;
 import com.amazonaws.services.elasticloadbalancing.AmazonElasticLoadBalancing;
+import com.amazonaws.services.elasticloadbalancing.AmazonElasticLoadBalancingAsync;
+import com.amazonaws.services.elasticloadbalancing.AmazonElasticLoadBalancingAsyncClient;
 import com.amazonaws.services.elasticloadbalancing.AmazonElasticLoadBalancingClient;
 import com.amazonaws.services.s3.AmazonS3;
 import com.amazonaws.services.s3.AmazonS3Client;
@@ -22,6 +33,20 @@ import com.amazonaws.services.simpleworkflow.AmazonSimpleWorkflowClient;
 /**
  * A factory class that returns AWS service clients we will use.
  * <p>
+ * The EC2, Auto Scaling, CloudFormation and Elastic Load Balancing clients,
+ * whose calls all answer promptly, share one {@link ClientConfiguration}. By
+ * default it bounds how long a request may wait to connect, and to read each
+ * response packet, to {@value #DEFAULT_CONNECTION_TIMEOUT_MILLIS} and
+ * {@value #DEFAULT_SOCKET_TIMEOUT_MILLIS} ms, rather than the SDK's 50 s, so
+ * that a stuck request fails and can be retried. Unlike interrupting the
+ * calling thread, which blocking socket reads ignore, these timeouts do end
+ * the request.
+ * <p>
+ * The other clients keep the SDK's defaults, as their calls may legitimately
+ * take longer: S3 transfers, for one. The Simple Workflow client reads for
+ * up to {@value #SIMPLE_WORKFLOW_SOCKET_TIMEOUT_MILLIS} ms, so that its long
+ * polls, which are held open for 60 s, are not cut short.
+ * <p>
  * This class is NOT thread-safe.
  *
  * @author Yu Sun
@@ -34,20 +59,58 @@ public class AwsClientFactory {
     /** Configured region */
     private final AwsRegion region;
 
+    /** The configuration of the EC2, Auto Scaling, CloudFormation and ELB clients */
+    private final ClientConfiguration configuration;
+
+    /** How long a request may wait for a connection to be established by default */
+    public static final int DEFAULT_CONNECTION_TIMEOUT_MILLIS = 10000;
+
+    /** How long a request may wait for each packet of the response by default */
+    public static final int DEFAULT_SOCKET_TIMEOUT_MILLIS = 10000;
+
+    /** How long a Simple Workflow request may wait for each packet of the response */
+    public static final int SIMPLE_WORKFLOW_SOCKET_TIMEOUT_MILLIS = 70000;
+
     /** Creates a new client factory for the specified region with the given credentials */
     public AwsClientFactory(final AwsRegion region, final AWSCredentialsProvider provider) {
+        this(region, provider, newDefaultConfiguration());
+    }
+
+    /**
+     * Creates a new client factory for the specified region with the given
+     * credentials, whose EC2, Auto Scaling, CloudFormation and ELB clients
+     * use the given configuration. The other clients are configured as by
+     * default.
+     */
+    public AwsClientFactory(final AwsRegion region, final AWSCredentialsProvider provider,
+            final ClientConfiguration configuration) {
         if (region == null) {
             throw new IllegalArgumentException("AWS region must not be null");
         }
         if (provider == null) {
             throw new IllegalArgumentException("AWS credentail provider must not be null");
         }
+        if (configuration == null) {
+            throw new IllegalArgumentException("client configuration must not be null");
+        }
         this.provider = provider;
         this.region = region;
+        this.configuration = configuration;
+    }
+
+    /**
+     * Returns the SDK's default configuration with this factory's default
+     * timeouts, for callers to adjust before passing it to
+     * {@link #AwsClientFactory(AwsRegion, AWSCredentialsProvider, ClientConfiguration)}.
+     */
+    public static ClientConfiguration newDefaultConfiguration() {
+        return new ClientConfiguration()
+                .withConnectionTimeout(DEFAULT_CONNECTION_TIMEOUT_MILLIS)
+                .withSocketTimeout(DEFAULT_SOCKET_TIMEOUT_MILLIS);
     }
 
     public AmazonEC2 newEc2Client() {
-        final AmazonEC2 client = new AmazonEC2Client(provider);
+        final AmazonEC2 client = new AmazonEC2Client(provider, configuration);
         client.setEndpoint(AwsEndpointBinding.ELASTIC_COMPUTE_CLOUD.getEndpointAddress(region));
         return client;
     }
@@ -64,7 +127,7 @@ public class AwsClientFactory {
     }
 
     public AmazonCloudFormation newCloudFormationClient() {
-        final AmazonCloudFormation client = new AmazonCloudFormationClient(provider);
+        final AmazonCloudFormation client = new AmazonCloudFormationClient(provider, configuration);
         client.setEndpoint(AwsEndpointBinding.CLOUD_FORMATION.getEndpointAddress(region));
         return client;
     }
@@ -82,19 +145,44 @@ public class AwsClientFactory {
     }
     
     public AmazonSimpleWorkflow newSimpleWorkflowClient() {
-        final AmazonSimpleWorkflow client = new AmazonSimpleWorkflowClient(provider);
+        final AmazonSimpleWorkflow client = new AmazonSimpleWorkflowClient(provider,
+                new ClientConfiguration().withSocketTimeout(SIMPLE_WORKFLOW_SOCKET_TIMEOUT_MILLIS));
         client.setEndpoint(AwsEndpointBinding.SIMPLE_WORKFLOW.getEndpointAddress(region));
         return client;
     }
     
     public AmazonElasticLoadBalancing newElasticLoadBalancingClient() {
-        final AmazonElasticLoadBalancing client = new AmazonElasticLoadBalancingClient(provider);
+        final AmazonElasticLoadBalancing client = new AmazonElasticLoadBalancingClient(provider, configuration);
         client.setEndpoint(AwsEndpointBinding.ELASTIC_LOAD_BALANCING.getEndpointAddress(region));
         return client;
     }
     
     public AmazonAutoScaling newAutoScalingClient() {
-        final AmazonAutoScaling client = new AmazonAutoScalingClient(provider);
+        final AmazonAutoScaling client = new AmazonAutoScalingClient(provider, configuration);
+        client.setEndpoint(AwsEndpointBinding.AUTO_SCALING.getEndpointAddress(region));
+        return client;
+    }
+
+    public AmazonEC2Async newEc2AsyncClient(final ExecutorService executor) {
+        final AmazonEC2Async client = new AmazonEC2AsyncClient(provider, configuration, executor);
+        client.setEndpoint(AwsEndpointBinding.ELASTIC_COMPUTE_CLOUD.getEndpointAddress(region));
+        return client;
+    }
+
+    public AmazonCloudFormationAsync newCloudFormationAsyncClient(final ExecutorService executor) {
+        final AmazonCloudFormationAsync client = new AmazonCloudFormationAsyncClient(provider, configuration, executor);
+        client.setEndpoint(AwsEndpointBinding.CLOUD_FORMATION.getEndpointAddress(region));
+        return client;
+    }
+
+    public AmazonElasticLoadBalancingAsync newElasticLoadBalancingAsyncClient(final ExecutorService executor) {
+        final AmazonElasticLoadBalancingAsync client = new AmazonElasticLoadBalancingAsyncClient(provider, configuration, executor);
+        client.setEndpoint(AwsEndpointBinding.ELASTIC_LOAD_BALANCING.getEndpointAddress(region));
+        return client;
+    }
+
+    public AmazonAutoScalingAsync newAutoScalingAsyncClient(final ExecutorService executor) {
+        final AmazonAutoScalingAsync client = new AmazonAutoScalingAsyncClient(provider, configuration, executor);
         client.setEndpoint(AwsEndpointBinding.AUTO_SCALING.getEndpointAddress(region));
         return client;
     }
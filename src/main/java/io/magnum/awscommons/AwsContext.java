@@ -1,19 +1,30 @@
 package io.magnum.awscommons;
 
+import io.magnum.awscommons.concurrent.DaemonThreads;
+
 import java.io.File;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicReference;
 
+import com.amazonaws.ClientConfiguration;
 import com.amazonaws.auth.AWSCredentials;
 import com.amazonaws.auth.AWSCredentialsProvider;
 import com.amazonaws.auth.BasicAWSCredentials;
 import com.amazonaws.auth.PropertiesCredentials;
 import com.amazonaws.internal.StaticCredentialsProvider;
 import com.amazonaws.services.autoscaling.AmazonAutoScaling;
+import com.amazonaws.services.autoscaling.AmazonAutoScalingAsync;
 import com.amazonaws.services.cloudformation.AmazonCloudFormation;
+import com.amazonaws.services.cloudformation.AmazonCloudFormationAsync;
 import com.amazonaws.services.cloudwatch.AmazonCloudWatch;
 import com.amazonaws.services.dynamodbv2.AmazonDynamoDB;
 import com.amazonaws.services.ec2.AmazonEC2;
+import com.amazonaws.services.ec2.AmazonEC2Async;
 import com.amazonaws.services.elasticloadbalancing.AmazonElasticLoadBalancing;
+import com.amazonaws.services.elasticloadbalancing.AmazonElasticLoadBalancingAsync;
 import com.amazonaws.services.s3.AmazonS3;
 import com.amazonaws.services.simpleemail.AmazonSimpleEmailServiceClient;
 import com.amazonaws.services.simpleworkflow.AmazonSimpleWorkflow;
@@ -48,18 +59,42 @@ public class AwsContext {
     private final AtomicReference<AmazonAutoScaling> autoScalingClient;
     private final AtomicReference<AmazonElasticLoadBalancing> elasticLoadBalancingClient;
 
+    /**
+     * The most requests in flight at once across all of this context's async
+     * clients, each of which holds a thread for its whole request; more
+     * requests queue without bound
+     */
+    private static final int ASYNC_CLIENT_THREADS = 50;
+
+    /** Runs the requests of the async clients, which share it; created with the first of them */
+    private final AtomicReference<ExecutorService> asyncExecutor;
+    private final AtomicReference<AmazonEC2Async> ec2AsyncClient;
+    private final AtomicReference<AmazonCloudFormationAsync> cloudFormationAsyncClient;
+    private final AtomicReference<AmazonAutoScalingAsync> autoScalingAsyncClient;
+    private final AtomicReference<AmazonElasticLoadBalancingAsync> elasticLoadBalancingAsyncClient;
+
     /**
      * The factory method to create an AWS context from a static properties
      * file that contains the accessKey and secretKey.
      */
     public static AwsContext createAwsContextFromFile(String region, String awsCredentialsPath) {
+        return createAwsContextFromFile(region, awsCredentialsPath, AwsClientFactory.newDefaultConfiguration());
+    }
+
+    /**
+     * Like {@link #createAwsContextFromFile(String, String)}, with the EC2,
+     * Auto Scaling, CloudFormation and ELB clients using the given
+     * configuration; see {@link AwsClientFactory}.
+     */
+    public static AwsContext createAwsContextFromFile(String region, String awsCredentialsPath,
+            ClientConfiguration configuration) {
         AWSCredentials creds;
         try {
             creds = new PropertiesCredentials(new File(awsCredentialsPath));
         } catch (Exception e) {
             throw new RuntimeException("Unable to initialize AWS credentials: " + e.getMessage(), e);
         }
-        return new AwsContext(AwsRegion.parse(region), creds);
+        return new AwsContext(AwsRegion.parse(region), creds, configuration);
     }
     
     /**
@@ -67,23 +102,42 @@ public class AwsContext {
      * accesskey and secretkey
      */
     public static AwsContext createAwsContext(String region, String accesskey, String secretkey) {
+        return createAwsContext(region, accesskey, secretkey, AwsClientFactory.newDefaultConfiguration());
+    }
+
+    /**
+     * Like {@link #createAwsContext(String, String, String)}, with the EC2,
+     * Auto Scaling, CloudFormation and ELB clients using the given
+     * configuration; see {@link AwsClientFactory}.
+     */
+    public static AwsContext createAwsContext(String region, String accesskey, String secretkey,
+            ClientConfiguration configuration) {
         AWSCredentials creds;
         try {
             creds = new BasicAWSCredentials(accesskey, secretkey);
         } catch (Exception e) {
             throw new RuntimeException("Unable to initialize AWS credentials: " + e.getMessage(), e);
         }
-        return new AwsContext(AwsRegion.parse(region), creds);
+        return new AwsContext(AwsRegion.parse(region), creds, configuration);
+    }
+
+    private AwsContext(AwsRegion region, AWSCredentials credentials, ClientConfiguration configuration) {
+        this(region, new StaticCredentialsProvider(credentials), configuration);
     }
 
-    private AwsContext(AwsRegion region, AWSCredentials credentials) {
-        this(region, new StaticCredentialsProvider(credentials));
+    private AwsContext(final AwsRegion region, final AWSCredentialsProvider provider,
+            final ClientConfiguration configuration) {
+        this(region, provider, new AwsClientFactory(region, provider, configuration));
     }
 
-    private AwsContext(final AwsRegion region, final AWSCredentialsProvider provider) {
+    /**
+     * Creates a context whose clients all come from the given factory, so
+     * that tests can supply stub clients.
+     */
+    AwsContext(final AwsRegion region, final AWSCredentialsProvider provider, final AwsClientFactory clientFactory) {
         this.region = region;
         this.provider = provider;
-        this.clientFactory = new AwsClientFactory(region, provider);
+        this.clientFactory = clientFactory;
         this.cloudFormationClient = new AtomicReference<AmazonCloudFormation>();
         this.ec2Client = new AtomicReference<AmazonEC2>();
         this.s3Client = new AtomicReference<AmazonS3>();
@@ -93,6 +147,11 @@ public class AwsContext {
         this.simpleEmailClient = new AtomicReference<AmazonSimpleEmailServiceClient>();
         this.autoScalingClient = new AtomicReference<AmazonAutoScaling>();
         this.elasticLoadBalancingClient = new AtomicReference<AmazonElasticLoadBalancing>();
+        this.asyncExecutor = new AtomicReference<ExecutorService>();
+        this.ec2AsyncClient = new AtomicReference<AmazonEC2Async>();
+        this.cloudFormationAsyncClient = new AtomicReference<AmazonCloudFormationAsync>();
+        this.autoScalingAsyncClient = new AtomicReference<AmazonAutoScalingAsync>();
+        this.elasticLoadBalancingAsyncClient = new AtomicReference<AmazonElasticLoadBalancingAsync>();
     }
 
     public AmazonEC2 getEc2Client() {
@@ -166,4 +225,56 @@ public class AwsContext {
         }
         return autoScalingClient.get();
     }
+
+    public AmazonEC2Async getEc2AsyncClient() {
+        AmazonEC2Async client = ec2AsyncClient.get();
+        if (client == null) {
+            ec2AsyncClient.compareAndSet(null, clientFactory.newEc2AsyncClient(getAsyncExecutor()));
+        }
+        return ec2AsyncClient.get();
+    }
+
+    public AmazonCloudFormationAsync getCloudFormationAsyncClient() {
+        AmazonCloudFormationAsync client = cloudFormationAsyncClient.get();
+        if (client == null) {
+            cloudFormationAsyncClient.compareAndSet(null,
+                    clientFactory.newCloudFormationAsyncClient(getAsyncExecutor()));
+        }
+        return cloudFormationAsyncClient.get();
+    }
+
+    public AmazonElasticLoadBalancingAsync getElasticLoadBalancingAsyncClient() {
+        AmazonElasticLoadBalancingAsync client = elasticLoadBalancingAsyncClient.get();
+        if (client == null) {
+            elasticLoadBalancingAsyncClient.compareAndSet(null,
+                    clientFactory.newElasticLoadBalancingAsyncClient(getAsyncExecutor()));
+        }
+        return elasticLoadBalancingAsyncClient.get();
+    }
+
+    public AmazonAutoScalingAsync getAutoScalingAsyncClient() {
+        AmazonAutoScalingAsync client = autoScalingAsyncClient.get();
+        if (client == null) {
+            autoScalingAsyncClient.compareAndSet(null, clientFactory.newAutoScalingAsyncClient(getAsyncExecutor()));
+        }
+        return autoScalingAsyncClient.get();
+    }
+
+    /**
+     * Returns the pool of daemon threads shared by the async clients, so that
+     * they neither multiply threads nor keep the JVM alive.
+     */
+    private ExecutorService getAsyncExecutor() {
+        ExecutorService executor = asyncExecutor.get();
+        if (executor == null) {
+            ThreadPoolExecutor newExecutor = new ThreadPoolExecutor(ASYNC_CLIENT_THREADS, ASYNC_CLIENT_THREADS,
+                    60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                    DaemonThreads.newThreadFactory("aws-async"));
+            newExecutor.allowCoreThreadTimeOut(true);
+            if (!asyncExecutor.compareAndSet(null, newExecutor)) {
+                newExecutor.shutdown();
+            }
+        }
+        return asyncExecutor.get();
+    }
 }
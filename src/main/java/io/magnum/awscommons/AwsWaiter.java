@@ -0,0 +1,406 @@
+package io.magnum.awscommons;
+
+import io.magnum.awscommons.concurrent.DaemonThreads;
+import io.magnum.awscommons.concurrent.ListenableFuture;
+import io.magnum.awscommons.concurrent.SettableFuture;
+import io.magnum.awscommons.retry.AbortException;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.amazonaws.services.cloudformation.model.Stack;
+import com.amazonaws.services.ec2.model.Instance;
+
+/**
+ * Waits for images, stacks and instances to reach a state, without a
+ * sleep-and-poll loop per caller.
+ * <p>
+ * Each wait returns a future at once. All pending waits of the same kind are
+ * polled together: one {@link GeneralAwsHelper#getImageStates(Collection)}
+ * call for the images, one {@link GeneralAwsHelper#getInstancesById(Collection)}
+ * call for the instances, and one listing of the stacks, a
+ * {@link GeneralAwsHelper#getCloudFormationStacksPage(String)} call per page, so
+ * that hundreds of concurrent waits cost a few requests per poll. Polls start
+ * at the minimum interval and back off towards the maximum while nothing they
+ * wait for changes; a new wait, or a wait that completes, brings them back
+ * to the minimum.
+ * <p>
+ * A failed poll is logged and tried again later; a wait fails only when what
+ * it waits for reaches a state it cannot leave, or when it times out.
+ * Cancelling a future abandons its wait. This class is thread-safe.
+ *
+ * @author Yu Sun
+ */
+public class AwsWaiter {
+
+    private final static Logger logger = LoggerFactory.getLogger(AwsWaiter.class);
+
+    private final GeneralAwsHelper awsHelper;
+    private final long minIntervalNanos;
+    private final long maxIntervalNanos;
+    private final long timeoutNanos;
+
+    private final Poller<String> imagePoller = new Poller<String>("image") {
+        @Override
+        Map<String, String> describe(final Set<String> imageIds) throws AbortException {
+            return awsHelper.getImageStates(imageIds);
+        }
+    };
+
+    private final Poller<Stack> stackPoller = new Poller<Stack>("stack") {
+        @Override
+        Map<String, Stack> describe(final Set<String> stackNames) throws AbortException {
+            Map<String, Stack> stacks = new HashMap<String, Stack>();
+            if (stackNames.size() == 1) {
+                // cheaper than listing every stack for the sake of one
+                String stackName = stackNames.iterator().next();
+                Stack stack = awsHelper.getCloudFormationStack(stackName);
+                if (stack != null) {
+                    stacks.put(stackName, stack);
+                }
+            } else {
+                for (Stack stack : CloudFormationStackIterator.listStacks(awsHelper)) {
+                    if (stackNames.contains(stack.getStackName())) {
+                        stacks.put(stack.getStackName(), stack);
+                    }
+                }
+            }
+            return stacks;
+        }
+    };
+
+    private final Poller<Instance> instancePoller = new Poller<Instance>("instance") {
+        @Override
+        Map<String, Instance> describe(final Set<String> instanceIds) throws AbortException {
+            return awsHelper.getInstancesById(instanceIds);
+        }
+    };
+
+    public final static class Builder {
+        private final GeneralAwsHelper awsHelper;
+        private long minIntervalNanos = TimeUnit.SECONDS.toNanos(2);
+        private long maxIntervalNanos = TimeUnit.SECONDS.toNanos(30);
+        private long timeoutNanos = TimeUnit.MINUTES.toNanos(30);
+
+        public Builder(final GeneralAwsHelper awsHelper) {
+            if (awsHelper == null) {
+                throw new IllegalArgumentException("awsHelper cannot be null");
+            }
+            this.awsHelper = awsHelper;
+        }
+
+        public AwsWaiter build() {
+            if (minIntervalNanos > maxIntervalNanos) {
+                throw new IllegalArgumentException("minInterval cannot exceed maxInterval");
+            }
+            return new AwsWaiter(this);
+        }
+
+        /**
+         * Sets the interval between polls while what is waited for is
+         * changing. Defaults to 2 seconds.
+         */
+        public Builder withMinInterval(final long interval, final TimeUnit unit) {
+            if (interval <= 0) {
+                throw new IllegalArgumentException("interval must be > 0: " + interval);
+            }
+            this.minIntervalNanos = unit.toNanos(interval);
+            return this;
+        }
+
+        /**
+         * Sets the interval that polls back off to while nothing waited for
+         * changes. Defaults to 30 seconds.
+         */
+        public Builder withMaxInterval(final long interval, final TimeUnit unit) {
+            if (interval <= 0) {
+                throw new IllegalArgumentException("interval must be > 0: " + interval);
+            }
+            this.maxIntervalNanos = unit.toNanos(interval);
+            return this;
+        }
+
+        /**
+         * Sets how long a wait may take before its future fails with an
+         * {@link AbortException}. Defaults to 30 minutes.
+         */
+        public Builder withTimeout(final long timeout, final TimeUnit unit) {
+            if (timeout <= 0) {
+                throw new IllegalArgumentException("timeout must be > 0: " + timeout);
+            }
+            this.timeoutNanos = unit.toNanos(timeout);
+            return this;
+        }
+    }
+
+    private AwsWaiter(final Builder builder) {
+        this.awsHelper = builder.awsHelper;
+        this.minIntervalNanos = builder.minIntervalNanos;
+        this.maxIntervalNanos = builder.maxIntervalNanos;
+        this.timeoutNanos = builder.timeoutNanos;
+    }
+
+    /**
+     * Waits for an image, e.g. one just created by
+     * {@link GeneralAwsHelper#createImage(String, String)}, to become
+     * available. An image not found yet is waited for, since a new image may
+     * not be visible at once.
+     *
+     * @return a future which completes when the image is available, or fails
+     * if the image fails or is deregistered
+     */
+    public ListenableFuture<Void> waitForImageAvailable(final String imageId) {
+        return imagePoller.add(new Waiter<String, Void>(imageId) {
+            @Override
+            boolean offer(final String state) {
+                if ("available".equalsIgnoreCase(state)) {
+                    future.set(null);
+                } else if ("failed".equalsIgnoreCase(state) || "deregistered".equalsIgnoreCase(state)
+                        || "invalid".equalsIgnoreCase(state) || "error".equalsIgnoreCase(state)) {
+                    future.setException(new AbortException("Image " + imageId + " is " + state));
+                }
+                return future.isDone();
+            }
+        });
+    }
+
+    /**
+     * Waits for a stack to reach one of the given statuses, e.g.
+     * "CREATE_COMPLETE" after {@link GeneralAwsHelper#createStack(String, String, List)}.
+     * A stack which cannot be found is taken to be "DELETE_COMPLETE".
+     *
+     * @return a future of the stack once it has one of the statuses, or
+     * <code>null</code> if it was awaited as deleted; the future fails if the
+     * stack reaches another status ending in "FAILED" or "ROLLBACK_COMPLETE"
+     */
+    public ListenableFuture<Stack> waitForStackStatus(final String stackName, final String... statuses) {
+        final Set<String> targets = new LinkedHashSet<String>(Arrays.asList(statuses));
+        if (targets.isEmpty()) {
+            throw new IllegalArgumentException("statuses cannot be empty");
+        }
+        return stackPoller.add(new Waiter<Stack, Stack>(stackName) {
+            @Override
+            boolean offer(final Stack stack) {
+                String status = stack == null ? "DELETE_COMPLETE" : stack.getStackStatus();
+                if (targets.contains(status)) {
+                    future.set(stack);
+                } else if (stack != null && (status.endsWith("FAILED") || status.endsWith("ROLLBACK_COMPLETE"))) {
+                    future.setException(new AbortException("Stack " + stackName + " is " + status
+                            + " while waiting for " + targets + ": " + stack.getStackStatusReason()));
+                }
+                return future.isDone();
+            }
+        });
+    }
+
+    /**
+     * Waits for an instance to reach the given state, e.g.
+     * {@link Ec2InstanceState#RUNNING} after
+     * {@link GeneralAwsHelper#createInstance(String, String, List, String)}.
+     * An instance not found yet is waited for, since a new instance may not
+     * be visible at once.
+     *
+     * @return a future of the instance once it is in the state; the future
+     * fails if the instance is shutting down or terminated instead
+     */
+    public ListenableFuture<Instance> waitForInstanceState(final String instanceId, final Ec2InstanceState state) {
+        if (state == null) {
+            throw new IllegalArgumentException("state cannot be null");
+        }
+        return instancePoller.add(new Waiter<Instance, Instance>(instanceId) {
+            @Override
+            boolean offer(final Instance instance) {
+                if (instance == null) {
+                    return false;
+                }
+                Ec2InstanceState current = Ec2InstanceState.parse(instance.getState().getName());
+                if (current == state) {
+                    future.set(instance);
+                } else if ((current == Ec2InstanceState.SHUTTING_DOWN || current == Ec2InstanceState.TERMINATED)
+                        && state != Ec2InstanceState.TERMINATED) {
+                    future.setException(new AbortException("Instance " + instanceId + " is "
+                            + current.getStateString() + " while waiting for it to be " + state.getStateString()));
+                }
+                return future.isDone();
+            }
+        });
+    }
+
+    /**
+     * Returns the number of describe calls made by the pollers.
+     */
+    public long getPolls() {
+        return imagePoller.polls.get() + stackPoller.polls.get() + instancePoller.polls.get();
+    }
+
+    /**
+     * Returns the number of waits not yet completed.
+     */
+    public int getPendingCount() {
+        return imagePoller.size() + stackPoller.size() + instancePoller.size();
+    }
+
+    /**
+     * A caller waiting for one resource to reach a state. T is what is
+     * observed of the resource; V is the result of the wait.
+     */
+    private abstract class Waiter<T, V> {
+        final String id;
+        final long deadline = System.nanoTime() + timeoutNanos;
+        final SettableFuture<V> future = new SettableFuture<V>();
+
+        Waiter(final String id) {
+            if (id == null) {
+                throw new IllegalArgumentException("id cannot be null");
+            }
+            this.id = id;
+        }
+
+        /**
+         * Completes the future if the observed resource, or
+         * <code>null</code> if it was not found, is in a final state for this
+         * wait; returns whether the future is done.
+         */
+        abstract boolean offer(T observed);
+    }
+
+    /**
+     * Polls every pending wait of one kind with one describe call, and
+     * reschedules itself while any remain.
+     */
+    private abstract class Poller<T> {
+        private final String kind;
+        final AtomicLong polls = new AtomicLong();
+
+        /** The fields below are guarded by this */
+        private final List<Waiter<T, ?>> waiters = new ArrayList<Waiter<T, ?>>();
+        private ScheduledFuture<?> scheduled;
+        private long scheduledAt;
+        /** Identifies the latest scheduled poll; an earlier one that was too late to cancel does nothing */
+        private long generation;
+        private boolean polling;
+        /** Set when a wait is added during a poll, so that the poll reschedules at the minimum interval */
+        private boolean addedWhilePolling;
+        private long intervalNanos = minIntervalNanos;
+
+        Poller(final String kind) {
+            this.kind = kind;
+        }
+
+        /**
+         * Describes the resources with the given IDs; those which do not
+         * exist are left out.
+         */
+        abstract Map<String, T> describe(Set<String> ids) throws AbortException;
+
+        synchronized <V> ListenableFuture<V> add(final Waiter<T, V> waiter) {
+            waiters.add(waiter);
+            intervalNanos = minIntervalNanos;
+            if (polling) {
+                addedWhilePolling = true;
+            } else if (scheduled == null || scheduledAt - System.nanoTime() > minIntervalNanos) {
+                schedule(minIntervalNanos);
+            }
+            return waiter.future;
+        }
+
+        synchronized int size() {
+            int size = 0;
+            for (Waiter<T, ?> waiter : waiters) {
+                if (!waiter.future.isDone()) {
+                    size++;
+                }
+            }
+            return size;
+        }
+
+        /** Must be called holding this */
+        private void schedule(final long delayNanos) {
+            if (scheduled != null) {
+                scheduled.cancel(false);
+            }
+            scheduledAt = System.nanoTime() + delayNanos;
+            final long scheduledGeneration = ++generation;
+            scheduled = DaemonThreads.sharedScheduler().schedule(DaemonThreads.onSharedExecutor(new Runnable() {
+                @Override
+                public void run() {
+                    poll(scheduledGeneration);
+                }
+            }), delayNanos, TimeUnit.NANOSECONDS);
+        }
+
+        private void poll(final long pollGeneration) {
+            List<Waiter<T, ?>> batch;
+            synchronized (this) {
+                if (pollGeneration != generation) {
+                    return;
+                }
+                scheduled = null;
+                removeDone();
+                if (waiters.isEmpty()) {
+                    return;
+                }
+                polling = true;
+                batch = new ArrayList<Waiter<T, ?>>(waiters);
+            }
+
+            boolean progress = false;
+            try {
+                Set<String> ids = new LinkedHashSet<String>();
+                for (Waiter<T, ?> waiter : batch) {
+                    ids.add(waiter.id);
+                }
+                polls.incrementAndGet();
+                Map<String, T> observed = describe(Collections.unmodifiableSet(ids));
+                for (Waiter<T, ?> waiter : batch) {
+                    if (!waiter.future.isDone()) {
+                        progress |= waiter.offer(observed.get(waiter.id));
+                    }
+                }
+            } catch (AbortException | RuntimeException e) {
+                logger.warn("Unable to poll " + batch.size() + " " + kind + " waits; will retry", e);
+            } finally {
+                long now = System.nanoTime();
+                for (Waiter<T, ?> waiter : batch) {
+                    if (!waiter.future.isDone() && now - waiter.deadline >= 0) {
+                        waiter.future.setException(new AbortException("Timed out waiting for " + kind + " "
+                                + waiter.id));
+                    }
+                }
+                synchronized (this) {
+                    polling = false;
+                    boolean reset = progress || addedWhilePolling;
+                    addedWhilePolling = false;
+                    removeDone();
+                    if (!waiters.isEmpty()) {
+                        intervalNanos = reset ? minIntervalNanos : Math.min(intervalNanos * 2, maxIntervalNanos);
+                        schedule(intervalNanos);
+                    }
+                }
+            }
+        }
+
+        /** Must be called holding this */
+        private void removeDone() {
+            for (Iterator<Waiter<T, ?>> i = waiters.iterator(); i.hasNext();) {
+                if (i.next().future.isDone()) {
+                    i.remove();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,203 @@
+package io.magnum.awscommons;
+
+import io.magnum.awscommons.concurrent.DaemonThreads;
+import io.magnum.awscommons.retry.AbortException;
+import io.magnum.awscommons.retry.AdaptiveRateLimiter;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import com.amazonaws.AmazonServiceException;
+
+/**
+ * Terminates many instances via Auto Scaling, which has no bulk call, by
+ * making {@link GeneralAwsHelper#terminateViaAutoScaling(String)} calls in
+ * parallel under an {@link AdaptiveRateLimiter}, and reports the outcome for
+ * each instance rather than stopping at the first failure.
+ * <p>
+ * An instance Auto Scaling does not know, as recognized by
+ * {@link AutoScalingTerminationArbiter}, is usually one already terminated,
+ * so it counts as a success. To terminate instances directly in EC2, use
+ * {@link GeneralAwsHelper#terminateInstancesViaEc2(Collection)}, which
+ * batches them instead. This class is thread-safe.
+ *
+ * @author Yu Sun
+ */
+public class BulkTerminator {
+
+    /**
+     * What became of one instance.
+     */
+    public static final class Outcome {
+        public static enum Status {
+            /** Auto Scaling accepted the termination */
+            TERMINATING,
+
+            /** Auto Scaling does not know the instance; it is probably gone already */
+            NOT_FOUND,
+
+            /** The termination failed; see {@link Outcome#getException()} */
+            FAILED
+        }
+
+        private static final Outcome TERMINATING = new Outcome(Status.TERMINATING, null);
+
+        private final Status status;
+        private final Throwable exception;
+
+        private Outcome(final Status status, final Throwable exception) {
+            this.status = status;
+            this.exception = exception;
+        }
+
+        public Status getStatus() {
+            return status;
+        }
+
+        /**
+         * Returns whether the instance is terminating or already gone.
+         */
+        public boolean isSuccess() {
+            return status != Status.FAILED;
+        }
+
+        /**
+         * Returns why the termination failed or the instance was not found,
+         * or <code>null</code> if it is terminating.
+         */
+        public Throwable getException() {
+            return exception;
+        }
+
+        @Override
+        public String toString() {
+            return exception == null ? status.toString() : status + ": " + exception;
+        }
+    }
+
+    private final GeneralAwsHelper awsHelper;
+    private final ExecutorService executor;
+    private final AdaptiveRateLimiter rateLimiter;
+
+    public final static class Builder {
+        private final GeneralAwsHelper awsHelper;
+        private ExecutorService executor;
+        private AdaptiveRateLimiter rateLimiter;
+
+        public Builder(final GeneralAwsHelper awsHelper) {
+            if (awsHelper == null) {
+                throw new IllegalArgumentException("awsHelper cannot be null");
+            }
+            this.awsHelper = awsHelper;
+        }
+
+        public BulkTerminator build() {
+            return new BulkTerminator(this);
+        }
+
+        /**
+         * Sets the executor which runs the calls, and so bounds how many are
+         * in flight. Defaults to {@link DaemonThreads#sharedExecutor()}.
+         */
+        public Builder withExecutor(final ExecutorService executor) {
+            this.executor = executor;
+            return this;
+        }
+
+        /**
+         * Sets the rate limiter each call acquires a permit from. Pass the
+         * Auto Scaling limiter of a retrying helper to share its rate.
+         * Defaults to a limiter of this terminator's own, starting at 10
+         * calls per second and allowed up to 20.
+         */
+        public Builder withRateLimiter(final AdaptiveRateLimiter rateLimiter) {
+            this.rateLimiter = rateLimiter;
+            return this;
+        }
+    }
+
+    private BulkTerminator(final Builder builder) {
+        this.awsHelper = builder.awsHelper;
+        this.executor = builder.executor != null ? builder.executor : DaemonThreads.sharedExecutor();
+        this.rateLimiter = builder.rateLimiter != null ? builder.rateLimiter
+                : new AdaptiveRateLimiter.Builder("bulk-terminate").withRates(10, 1, 20).build();
+    }
+
+    /**
+     * Terminates the instances via Auto Scaling, without decrementing the
+     * desired capacity of their groups.
+     *
+     * @return a map from each instance ID to its outcome, in the order given
+     * @throws AbortException if interrupted; calls not yet made are then
+     * abandoned
+     */
+    public Map<String, Outcome> terminateViaAutoScaling(final Collection<String> instanceIds) throws AbortException {
+        List<String> ids = new ArrayList<String>(new LinkedHashSet<String>(instanceIds));
+        List<Future<Outcome>> futures = new ArrayList<Future<Outcome>>(ids.size());
+        try {
+            for (final String instanceId : ids) {
+                futures.add(executor.submit(new Callable<Outcome>() {
+                    @Override
+                    public Outcome call() throws InterruptedException {
+                        return terminate(instanceId);
+                    }
+                }));
+            }
+            Map<String, Outcome> outcomes = new LinkedHashMap<String, Outcome>();
+            for (int i = 0; i < ids.size(); i++) {
+                outcomes.put(ids.get(i), futures.get(i).get());
+            }
+            return outcomes;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new AbortException("Interrupted while terminating " + ids.size() + " instances", e);
+        } catch (ExecutionException e) {
+            // terminate() reports failures as outcomes, so only an interrupt gets here
+            throw new AbortException("Interrupted while terminating " + ids.size() + " instances", e.getCause());
+        } finally {
+            // a no-op once every call is done
+            for (Future<Outcome> future : futures) {
+                future.cancel(true);
+            }
+        }
+    }
+
+    private Outcome terminate(final String instanceId) throws InterruptedException {
+        rateLimiter.acquire();
+        try {
+            awsHelper.terminateViaAutoScaling(instanceId);
+            rateLimiter.onSuccess();
+            return Outcome.TERMINATING;
+        } catch (AbortException | RuntimeException e) {
+            // the helper may be a retrying one, which wraps what AWS threw
+            Throwable cause = serviceException(e);
+            if (AutoScalingTerminationArbiter.isInstanceIDNotFoundException(cause)) {
+                rateLimiter.onSuccess();
+                return new Outcome(Outcome.Status.NOT_FOUND, cause);
+            }
+            rateLimiter.onFailure(cause);
+            return new Outcome(Outcome.Status.FAILED, e);
+        }
+    }
+
+    /**
+     * Returns the first {@link AmazonServiceException} among the exception
+     * and its causes, or the exception itself if there is none.
+     */
+    private static Throwable serviceException(final Throwable e) {
+        for (Throwable t = e; t != null; t = t.getCause()) {
+            if (t instanceof AmazonServiceException) {
+                return t;
+            }
+        }
+        return e;
+    }
+}
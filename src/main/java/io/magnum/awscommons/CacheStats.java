@@ -0,0 +1,73 @@
+package io.magnum.awscommons;
+
+/**
+ * A point-in-time copy of the counters of one cache of a
+ * {@link CachingGeneralAwsHelper}.
+ *
+ * @author Yu Sun
+ */
+public class CacheStats {
+
+    private final String name;
+    private final long hits;
+    private final long misses;
+    private final long evictions;
+    private final long invalidations;
+    private final int size;
+
+    CacheStats(String name, long hits, long misses, long evictions, long invalidations, int size) {
+        this.name = name;
+        this.hits = hits;
+        this.misses = misses;
+        this.evictions = evictions;
+        this.invalidations = invalidations;
+        this.size = size;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public long getHits() {
+        return hits;
+    }
+
+    public long getMisses() {
+        return misses;
+    }
+
+    /**
+     * Returns the fraction of lookups answered from the cache, or 0 if there
+     * have been none.
+     */
+    public double getHitRate() {
+        long lookups = hits + misses;
+        return lookups == 0 ? 0.0 : (double) hits / lookups;
+    }
+
+    /** Returns the number of entries dropped to keep the cache within its size bound */
+    public long getEvictions() {
+        return evictions;
+    }
+
+    /** Returns the number of entries dropped because a mutating call touched them */
+    public long getInvalidations() {
+        return invalidations;
+    }
+
+    public int getSize() {
+        return size;
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + " [name=" + name
+                + ", hits=" + hits
+                + ", misses=" + misses
+                + ", hitRate=" + getHitRate()
+                + ", evictions=" + evictions
+                + ", invalidations=" + invalidations
+                + ", size=" + size
+                + "]";
+    }
+}
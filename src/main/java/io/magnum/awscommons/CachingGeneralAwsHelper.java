@@ -0,0 +1,482 @@
+package io.magnum.awscommons;
+
+import io.magnum.awscommons.retry.AbortException;
+
+import java.util.Collection;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import com.amazonaws.services.autoscaling.model.AutoScalingGroup;
+import com.amazonaws.services.autoscaling.model.LaunchConfiguration;
+import com.amazonaws.services.cloudformation.model.DescribeStacksResult;
+import com.amazonaws.services.cloudformation.model.Parameter;
+import com.amazonaws.services.cloudformation.model.Stack;
+import com.amazonaws.services.cloudformation.model.StackResource;
+import com.amazonaws.services.ec2.model.DescribeInstancesResult;
+import com.amazonaws.services.ec2.model.Instance;
+import com.amazonaws.services.elasticloadbalancing.model.LoadBalancerDescription;
+
+/**
+ * A {@link GeneralAwsHelper} which caches the results of the describe calls
+ * of another helper.
+ * <p>
+ * Each {@link CachedType} has its own time-to-live and size bound. Mutating
+ * calls made through this helper drop the entries they may have changed:
+ * <ul>
+ * <li>{@link #createStack}, {@link #updateStack} and {@link #deleteStack}
+ * drop the stack, its resources and template, and the auto-scaling group,
+ * launch configuration and load balancer among its cached resources;</li>
+ * <li>{@link #terminateViaAutoScaling}, {@link #terminateViaEc2} and
+ * {@link #terminateInstancesViaEc2} drop the instances and every
+ * auto-scaling group, since any of them may hold them;</li>
+ * <li>{@link #putTags} drops the tagged instances;</li>
+ * <li>{@link #removeInstancesFromLoadBalancer} drops the load balancer.</li>
+ * </ul>
+ * Changes made by anyone else are seen once the entry expires. Listings
+ * ({@link #getInstances()} and its pages, {@link #getAutoScalingGroups()},
+ * {@link #getCloudFormationStacks()} and its pages) and load balancer health are not cached.
+ * <p>
+ * The SDK model objects returned are shared with the cache, so callers must
+ * not modify them. This class is thread-safe.
+ *
+ * @author Yu Sun
+ */
+public class CachingGeneralAwsHelper implements GeneralAwsHelper {
+
+    /**
+     * The kinds of results cached, each in its own cache.
+     */
+    public static enum CachedType {
+        /** {@link #getAutoScalingGroup(String)} and {@link #getAutoScalingGroupsByName(Collection)} */
+        AUTO_SCALING_GROUP(10, 1000),
+        /** {@link #getAutoScalingLaunchConfiguration(String)}, keyed by group name */
+        LAUNCH_CONFIGURATION(60, 1000),
+        /** {@link #getElasticLoadBalancer(String)} and {@link #getElasticLoadBalancersByName(Collection)} */
+        LOAD_BALANCER(10, 1000),
+        /** {@link #getCloudFormationStack(String)}, keyed by stack name */
+        STACK(10, 1000),
+        /** {@link #getCloudFormationStackResources(String)}, keyed by stack name */
+        STACK_RESOURCES(10, 1000),
+        /** {@link #getCloudFormationStackTemplate(String)}, keyed by stack name */
+        STACK_TEMPLATE(300, 200),
+        /** {@link #getInstanceById(String)} and {@link #getInstancesById(Collection)} */
+        INSTANCE(10, 10000);
+
+        private final long defaultTtlSeconds;
+        private final int defaultMaxEntries;
+
+        private CachedType(long defaultTtlSeconds, int defaultMaxEntries) {
+            this.defaultTtlSeconds = defaultTtlSeconds;
+            this.defaultMaxEntries = defaultMaxEntries;
+        }
+    }
+
+    private final GeneralAwsHelper delegate;
+    private final ExpiringCache<String, AutoScalingGroup> autoScalingGroups;
+    private final ExpiringCache<String, LaunchConfiguration> launchConfigurations;
+    private final ExpiringCache<String, LoadBalancerDescription> loadBalancers;
+    private final ExpiringCache<String, Stack> stacks;
+    private final ExpiringCache<String, List<StackResource>> stackResources;
+    private final ExpiringCache<String, String> stackTemplates;
+    private final ExpiringCache<String, Instance> instances;
+    private final Map<CachedType, ExpiringCache<String, ?>> cachesByType =
+            new EnumMap<CachedType, ExpiringCache<String, ?>>(CachedType.class);
+
+    public final static class Builder {
+        private final GeneralAwsHelper delegate;
+        private final Map<CachedType, Long> ttlNanos = new EnumMap<CachedType, Long>(CachedType.class);
+        private final Map<CachedType, Integer> maxEntries = new EnumMap<CachedType, Integer>(CachedType.class);
+
+        public Builder(final GeneralAwsHelper delegate) {
+            if (delegate == null) {
+                throw new IllegalArgumentException("delegate cannot be null");
+            }
+            this.delegate = delegate;
+            for (CachedType type : CachedType.values()) {
+                ttlNanos.put(type, TimeUnit.SECONDS.toNanos(type.defaultTtlSeconds));
+                maxEntries.put(type, type.defaultMaxEntries);
+            }
+        }
+
+        public CachingGeneralAwsHelper build() {
+            return new CachingGeneralAwsHelper(this);
+        }
+
+        /**
+         * Sets how long results of the given type are cached; 0 disables
+         * caching them. Defaults to 5 minutes for templates, 1 minute for
+         * launch configurations and 10 seconds for everything else.
+         */
+        public Builder withTtl(final CachedType type, final long ttl, final TimeUnit unit) {
+            if (ttl < 0) {
+                throw new IllegalArgumentException("ttl must be >= 0: " + ttl);
+            }
+            ttlNanos.put(type, unit.toNanos(ttl));
+            return this;
+        }
+
+        /**
+         * Sets the most results of the given type that are cached; the least
+         * recently used are evicted to make room. Defaults to 10000 instances,
+         * 200 templates and 1000 of everything else.
+         */
+        public Builder withMaxEntries(final CachedType type, final int maxEntries) {
+            if (maxEntries < 1) {
+                throw new IllegalArgumentException("maxEntries must be >= 1: " + maxEntries);
+            }
+            this.maxEntries.put(type, maxEntries);
+            return this;
+        }
+    }
+
+    private CachingGeneralAwsHelper(final Builder builder) {
+        this.delegate = builder.delegate;
+        this.autoScalingGroups = newCache(builder, CachedType.AUTO_SCALING_GROUP);
+        this.launchConfigurations = newCache(builder, CachedType.LAUNCH_CONFIGURATION);
+        this.loadBalancers = newCache(builder, CachedType.LOAD_BALANCER);
+        this.stacks = newCache(builder, CachedType.STACK);
+        this.stackResources = newCache(builder, CachedType.STACK_RESOURCES);
+        this.stackTemplates = newCache(builder, CachedType.STACK_TEMPLATE);
+        this.instances = newCache(builder, CachedType.INSTANCE);
+    }
+
+    private <V> ExpiringCache<String, V> newCache(final Builder builder, final CachedType type) {
+        ExpiringCache<String, V> cache = new ExpiringCache<String, V>(type.name(), builder.ttlNanos.get(type),
+                builder.maxEntries.get(type));
+        cachesByType.put(type, cache);
+        return cache;
+    }
+
+    /**
+     * Returns the hit, miss, eviction and invalidation counts of the cache of
+     * the given type.
+     */
+    public CacheStats getCacheStats(final CachedType type) {
+        return cachesByType.get(type).getStats();
+    }
+
+    /**
+     * Returns the stats of every cache.
+     */
+    public Map<CachedType, CacheStats> getCacheStats() {
+        Map<CachedType, CacheStats> stats = new EnumMap<CachedType, CacheStats>(CachedType.class);
+        for (Map.Entry<CachedType, ExpiringCache<String, ?>> entry : cachesByType.entrySet()) {
+            stats.put(entry.getKey(), entry.getValue().getStats());
+        }
+        return stats;
+    }
+
+    /**
+     * Drops every cached result.
+     */
+    public void invalidateAll() {
+        for (ExpiringCache<String, ?> cache : cachesByType.values()) {
+            cache.invalidateAll();
+        }
+    }
+
+    @Override
+    public List<AutoScalingGroup> getAutoScalingGroups() throws AbortException {
+        return delegate.getAutoScalingGroups();
+    }
+
+    @Override
+    public Instance createInstance(final String imageId, final String instanceType,
+            final List<String> securityGroups, final String keyName) throws AbortException {
+        return delegate.createInstance(imageId, instanceType, securityGroups, keyName);
+    }
+
+    @Override
+    public Instance getInstanceById(final String instanceId) throws AbortException {
+        return instances.get(instanceId, new ExpiringCache.Loader<String, Instance>() {
+            @Override
+            public Instance load(String key) throws AbortException {
+                return delegate.getInstanceById(key);
+            }
+        });
+    }
+
+    /**
+     * Answers what it can from the cache and looks up the rest with a single
+     * call to the underlying helper.
+     */
+    @Override
+    public Map<String, Instance> getInstancesById(final Collection<String> instanceIds) throws AbortException {
+        return instances.getAll(instanceIds, new ExpiringCache.BulkLoader<String, Instance>() {
+            @Override
+            public Map<String, Instance> loadAll(Collection<String> keys) throws AbortException {
+                return delegate.getInstancesById(keys);
+            }
+        });
+    }
+
+    @Override
+    public List<Instance> getInstances() throws AbortException {
+        return delegate.getInstances();
+    }
+
+    @Override
+    public DescribeInstancesResult getInstancesPage(final String nextToken) throws AbortException {
+        return delegate.getInstancesPage(nextToken);
+    }
+
+    @Override
+    public String createImage(final String instanceId, final String name) throws AbortException {
+        return delegate.createImage(instanceId, name);
+    }
+
+    @Override
+    public void deleteStack(final String stackName) {
+        try {
+            delegate.deleteStack(stackName);
+        } finally {
+            invalidateStack(stackName);
+        }
+    }
+
+    @Override
+    public boolean isImageAvailable(final String imageId) throws AbortException {
+        return delegate.isImageAvailable(imageId);
+    }
+
+    @Override
+    public Map<String, String> getImageStates(final Collection<String> imageIds) throws AbortException {
+        return delegate.getImageStates(imageIds);
+    }
+
+    @Override
+    public String createStack(final String stackName, final String template, final List<Parameter> parameters)
+            throws AbortException {
+        try {
+            return delegate.createStack(stackName, template, parameters);
+        } finally {
+            invalidateStack(stackName);
+        }
+    }
+
+    @Override
+    public String updateStack(final String stackName, final String template, final List<Parameter> parameters)
+            throws AbortException {
+        try {
+            return delegate.updateStack(stackName, template, parameters);
+        } finally {
+            invalidateStack(stackName);
+        }
+    }
+
+    @Override
+    public List<Stack> getCloudFormationStacks() throws AbortException {
+        return delegate.getCloudFormationStacks();
+    }
+
+    @Override
+    public DescribeStacksResult getCloudFormationStacksPage(final String nextToken) throws AbortException {
+        return delegate.getCloudFormationStacksPage(nextToken);
+    }
+
+    @Override
+    public Stack getCloudFormationStack(final String stackName) throws AbortException {
+        return stacks.get(stackName, new ExpiringCache.Loader<String, Stack>() {
+            @Override
+            public Stack load(String key) throws AbortException {
+                return delegate.getCloudFormationStack(key);
+            }
+        });
+    }
+
+    @Override
+    public String getCloudFormationStackTemplate(final String stackName) throws AbortException {
+        return stackTemplates.get(stackName, new ExpiringCache.Loader<String, String>() {
+            @Override
+            public String load(String key) throws AbortException {
+                return delegate.getCloudFormationStackTemplate(key);
+            }
+        });
+    }
+
+    @Override
+    public AutoScalingGroup getCloudFormationStackAutoScalingGroup(final String stackName) throws AbortException {
+        String resourceName = getSinglePhysicalResourceId(stackName, AwsResourceType.AUTOSCALING_GROUP);
+        return resourceName == null ? null : getAutoScalingGroup(resourceName);
+    }
+
+    @Override
+    public LoadBalancerDescription getCloudFormationStackLoadBalancer(final String stackName) throws AbortException {
+        String resourceName = getSinglePhysicalResourceId(stackName, AwsResourceType.ELASTIC_LOAD_BALANCER);
+        return resourceName == null ? null : getElasticLoadBalancer(resourceName);
+    }
+
+    private String getSinglePhysicalResourceId(final String stackName, final AwsResourceType desiredType)
+            throws AbortException {
+        String physicalResourceId = null;
+        for (StackResource resource : getCloudFormationStackResources(stackName)) {
+            if (desiredType.equals(AwsResourceType.parse(resource.getResourceType()))) {
+                if (physicalResourceId != null) {
+                    throw new AbortException("Unexpected number of " + desiredType.getTypeString()
+                            + " resources in stack " + stackName);
+                }
+                physicalResourceId = resource.getPhysicalResourceId();
+            }
+        }
+        return physicalResourceId;
+    }
+
+    @Override
+    public List<StackResource> getCloudFormationStackResources(final String stackName) throws AbortException {
+        return stackResources.get(stackName, new ExpiringCache.Loader<String, List<StackResource>>() {
+            @Override
+            public List<StackResource> load(String key) throws AbortException {
+                return delegate.getCloudFormationStackResources(key);
+            }
+        });
+    }
+
+    @Override
+    public AutoScalingGroup getAutoScalingGroup(final String autoScalingGroupName) throws AbortException {
+        return autoScalingGroups.get(autoScalingGroupName, new ExpiringCache.Loader<String, AutoScalingGroup>() {
+            @Override
+            public AutoScalingGroup load(String key) throws AbortException {
+                return delegate.getAutoScalingGroup(key);
+            }
+        });
+    }
+
+    /**
+     * Answers what it can from the cache and looks up the rest with a single
+     * call to the underlying helper.
+     */
+    @Override
+    public Map<String, AutoScalingGroup> getAutoScalingGroupsByName(final Collection<String> autoScalingGroupNames)
+            throws AbortException {
+        return autoScalingGroups.getAll(autoScalingGroupNames, new ExpiringCache.BulkLoader<String, AutoScalingGroup>() {
+            @Override
+            public Map<String, AutoScalingGroup> loadAll(Collection<String> keys) throws AbortException {
+                return delegate.getAutoScalingGroupsByName(keys);
+            }
+        });
+    }
+
+    /**
+     * Answers what it can from the cache and looks up the rest with a single
+     * call to the underlying helper.
+     */
+    @Override
+    public Map<String, LoadBalancerDescription> getElasticLoadBalancersByName(
+            final Collection<String> loadBalancerNames) throws AbortException {
+        return loadBalancers.getAll(loadBalancerNames, new ExpiringCache.BulkLoader<String, LoadBalancerDescription>() {
+            @Override
+            public Map<String, LoadBalancerDescription> loadAll(Collection<String> keys) throws AbortException {
+                return delegate.getElasticLoadBalancersByName(keys);
+            }
+        });
+    }
+
+    @Override
+    public LoadBalancerDescription getElasticLoadBalancer(final String loadBalancerName) throws AbortException {
+        return loadBalancers.get(loadBalancerName, new ExpiringCache.Loader<String, LoadBalancerDescription>() {
+            @Override
+            public LoadBalancerDescription load(String key) throws AbortException {
+                return delegate.getElasticLoadBalancer(key);
+            }
+        });
+    }
+
+    @Override
+    public void terminateViaAutoScaling(final String instanceId) throws AbortException {
+        try {
+            delegate.terminateViaAutoScaling(instanceId);
+        } finally {
+            invalidateTerminatedInstance(instanceId);
+        }
+    }
+
+    @Override
+    public void terminateViaEc2(final String instanceId) throws AbortException {
+        try {
+            delegate.terminateViaEc2(instanceId);
+        } finally {
+            invalidateTerminatedInstance(instanceId);
+        }
+    }
+
+    @Override
+    public Map<String, Ec2InstanceState> terminateInstancesViaEc2(final Collection<String> instanceIds)
+            throws AbortException {
+        try {
+            return delegate.terminateInstancesViaEc2(instanceIds);
+        } finally {
+            for (String instanceId : instanceIds) {
+                invalidateTerminatedInstance(instanceId);
+            }
+        }
+    }
+
+    @Override
+    public String registerImage(final String manifest, final String desc) throws AbortException {
+        return delegate.registerImage(manifest, desc);
+    }
+
+    @Override
+    public void removeInstancesFromLoadBalancer(final String loadBalancerName, final Set<String> instanceIds)
+            throws AbortException {
+        try {
+            delegate.removeInstancesFromLoadBalancer(loadBalancerName, instanceIds);
+        } finally {
+            loadBalancers.invalidate(loadBalancerName);
+        }
+    }
+
+    @Override
+    public Map<String, ElasticLoadBalancingInstanceState> getLoadBalancerInstanceHealth(
+            final String loadBalancerName, final Collection<String> instanceIds) throws AbortException {
+        return delegate.getLoadBalancerInstanceHealth(loadBalancerName, instanceIds);
+    }
+
+    @Override
+    public void putTags(final Collection<String> resourceIds, final Map<String, String> tags) throws AbortException {
+        try {
+            delegate.putTags(resourceIds, tags);
+        } finally {
+            for (String resourceId : resourceIds) {
+                instances.invalidate(resourceId);
+            }
+        }
+    }
+
+    @Override
+    public LaunchConfiguration getAutoScalingLaunchConfiguration(final String autoScalingGroupName)
+            throws AbortException {
+        return launchConfigurations.get(autoScalingGroupName, new ExpiringCache.Loader<String, LaunchConfiguration>() {
+            @Override
+            public LaunchConfiguration load(String key) throws AbortException {
+                return delegate.getAutoScalingLaunchConfiguration(key);
+            }
+        });
+    }
+
+    private void invalidateStack(final String stackName) {
+        ExpiringCache.CacheEntry<List<StackResource>> resources = stackResources.peek(stackName);
+        if (resources != null && resources.value != null) {
+            for (StackResource resource : resources.value) {
+                AwsResourceType type = AwsResourceType.parse(resource.getResourceType());
+                if (AwsResourceType.AUTOSCALING_GROUP.equals(type)) {
+                    autoScalingGroups.invalidate(resource.getPhysicalResourceId());
+                    launchConfigurations.invalidate(resource.getPhysicalResourceId());
+                } else if (AwsResourceType.ELASTIC_LOAD_BALANCER.equals(type)) {
+                    loadBalancers.invalidate(resource.getPhysicalResourceId());
+                }
+            }
+        }
+        stacks.invalidate(stackName);
+        stackResources.invalidate(stackName);
+        stackTemplates.invalidate(stackName);
+    }
+
+    private void invalidateTerminatedInstance(final String instanceId) {
+        instances.invalidate(instanceId);
+        autoScalingGroups.invalidateAll();
+    }
+}
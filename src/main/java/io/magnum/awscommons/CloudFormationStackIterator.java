@@ -0,0 +1,172 @@
+package io.magnum.awscommons;
+
+import io.magnum.awscommons.concurrent.DaemonThreads;
+import io.magnum.awscommons.retry.AbortException;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.cloudformation.model.DescribeStacksResult;
+import com.amazonaws.services.cloudformation.model.Stack;
+
+/**
+ * Iterates over the Cloud Formation stacks in our account page by page,
+ * rather than holding them all at once as
+ * {@link GeneralAwsHelper#getCloudFormationStacks()} does.
+ * <p>
+ * As soon as a page arrives, the next one is requested in the background, so
+ * that it is usually ready by the time the caller has processed the current
+ * one. Stacks may be limited to some statuses; DescribeStacks cannot filter
+ * by status, so the others are still fetched, but are dropped a page at a
+ * time instead of being kept.
+ * <p>
+ * Since {@link Iterator} methods cannot throw checked exceptions, a page that
+ * cannot be fetched makes {@link #hasNext()} throw an
+ * {@link AmazonClientException} whose cause is the {@link AbortException}.
+ * Call {@link #close()} when abandoning the iteration early, to cancel the
+ * prefetch. This class is not thread-safe.
+ *
+ * @author Yu Sun
+ */
+public class CloudFormationStackIterator implements Iterator<Stack> {
+
+    private final GeneralAwsHelper awsHelper;
+    private final ExecutorService executor;
+    /** The statuses to keep; null to keep every stack */
+    private final Set<String> statuses;
+
+    private Iterator<Stack> page = Collections.<Stack>emptyList().iterator();
+    /** The page being fetched; null once the last page has arrived */
+    private Future<DescribeStacksResult> nextPage;
+    private Stack next;
+
+    /**
+     * @param statuses the stack statuses to keep, e.g. "CREATE_COMPLETE";
+     * none to keep every stack
+     */
+    public CloudFormationStackIterator(final GeneralAwsHelper awsHelper, final String... statuses) {
+        this(awsHelper, null, statuses);
+    }
+
+    /**
+     * @param executor fetches the pages; if <code>null</code>,
+     * {@link DaemonThreads#sharedExecutor()} is used
+     * @param statuses the stack statuses to keep, e.g. "CREATE_COMPLETE";
+     * none to keep every stack
+     */
+    public CloudFormationStackIterator(final GeneralAwsHelper awsHelper, final ExecutorService executor,
+            final String... statuses) {
+        if (awsHelper == null) {
+            throw new IllegalArgumentException("awsHelper cannot be null");
+        }
+        this.awsHelper = awsHelper;
+        this.executor = executor != null ? executor : DaemonThreads.sharedExecutor();
+        this.statuses = statuses.length == 0 ? null : new HashSet<String>(Arrays.asList(statuses));
+        this.nextPage = fetch(null);
+    }
+
+    /**
+     * Returns every stack, as {@link GeneralAwsHelper#getCloudFormationStacks()}
+     * does, but with one {@link GeneralAwsHelper#getCloudFormationStacksPage(String)}
+     * call per page, so that a helper from
+     * {@link RetryingGeneralAwsHelperFactory} retries a failed page rather than
+     * the whole listing.
+     *
+     * @throws AbortException if a page could not be fetched
+     */
+    public static List<Stack> listStacks(final GeneralAwsHelper awsHelper) throws AbortException {
+        List<Stack> stacks = new ArrayList<Stack>();
+        String nextToken = null;
+        do {
+            DescribeStacksResult page = awsHelper.getCloudFormationStacksPage(nextToken);
+            stacks.addAll(page.getStacks());
+            nextToken = page.getNextToken();
+        } while (nextToken != null);
+        return stacks;
+    }
+
+    @Override
+    public boolean hasNext() {
+        while (next == null) {
+            if (page.hasNext()) {
+                Stack stack = page.next();
+                if (statuses == null || statuses.contains(stack.getStackStatus())) {
+                    next = stack;
+                }
+            } else if (nextPage != null) {
+                DescribeStacksResult result = await(nextPage);
+                nextPage = result.getNextToken() == null ? null : fetch(result.getNextToken());
+                page = result.getStacks().iterator();
+            } else {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public Stack next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        Stack stack = next;
+        next = null;
+        return stack;
+    }
+
+    @Override
+    public void remove() {
+        throw new UnsupportedOperationException();
+    }
+
+    /**
+     * Abandons the iteration, cancelling the fetch of the next page.
+     */
+    public void close() {
+        if (nextPage != null) {
+            nextPage.cancel(true);
+            nextPage = null;
+        }
+        page = Collections.<Stack>emptyList().iterator();
+        next = null;
+    }
+
+    private Future<DescribeStacksResult> fetch(final String nextToken) {
+        return executor.submit(new Callable<DescribeStacksResult>() {
+            @Override
+            public DescribeStacksResult call() throws AbortException {
+                return awsHelper.getCloudFormationStacksPage(nextToken);
+            }
+        });
+    }
+
+    private DescribeStacksResult await(final Future<DescribeStacksResult> future) {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            close();
+            throw new AmazonClientException("Interrupted while fetching a page of stacks", e);
+        } catch (ExecutionException e) {
+            close();
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new AmazonClientException("Unable to fetch a page of stacks", cause);
+        }
+    }
+}
@@ -0,0 +1,106 @@
+package io.magnum.awscommons;
+
+import io.magnum.awscommons.concurrent.SingleFlight;
+import io.magnum.awscommons.retry.AbortException;
+import io.magnum.awscommons.retry.Idempotent;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.lang.reflect.UndeclaredThrowableException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * A factory for producing {@link GeneralAwsHelper} implementations which
+ * coalesce concurrent identical describe calls.
+ * <p>
+ * While a call to an {@link Idempotent} method is in flight, further calls
+ * to that method with equal arguments wait for it and share its result or
+ * exception instead of making their own request. Nothing is cached once the
+ * call completes, so no staleness is added. Other methods pass straight
+ * through.
+ * <p>
+ * Coalesced callers share the SDK objects returned, and so must not modify
+ * them. Wrap a retrying helper, so that a whole retried call is shared:
+ * <pre>
+ * CoalescingGeneralAwsHelperFactory.newInstance(new RetryingGeneralAwsHelperFactory.Builder(context).build())
+ * </pre>
+ */
+public class CoalescingGeneralAwsHelperFactory {
+
+    public static GeneralAwsHelper newInstance(final GeneralAwsHelper awsHelper) {
+        return newInstance(awsHelper, new SingleFlight<List<Object>, Object>());
+    }
+
+    /**
+     * Creates a helper whose calls are coalesced through the given
+     * {@link SingleFlight}, whose counters then describe this helper's calls.
+     */
+    public static GeneralAwsHelper newInstance(final GeneralAwsHelper awsHelper,
+            final SingleFlight<List<Object>, Object> singleFlight) {
+        if (awsHelper == null) {
+            throw new IllegalArgumentException("awsHelper cannot be null");
+        }
+        return (GeneralAwsHelper) Proxy.newProxyInstance(GeneralAwsHelper.class.getClassLoader(),
+                new Class<?>[] { GeneralAwsHelper.class }, new CoalescingInvocationHandler(awsHelper, singleFlight));
+    }
+
+    private static class CoalescingInvocationHandler implements InvocationHandler {
+        private final GeneralAwsHelper delegate;
+        private final SingleFlight<List<Object>, Object> singleFlight;
+
+        CoalescingInvocationHandler(final GeneralAwsHelper delegate,
+                final SingleFlight<List<Object>, Object> singleFlight) {
+            this.delegate = delegate;
+            this.singleFlight = singleFlight;
+        }
+
+        @Override
+        public Object invoke(final Object proxy, final Method method, final Object[] args) throws Throwable {
+            if (!method.isAnnotationPresent(Idempotent.class)) {
+                return invokeDelegate(method, args);
+            }
+            // the method itself is part of the key, so equal arguments to
+            // different methods are never confused
+            List<Object> key = new ArrayList<Object>(1 + (args == null ? 0 : args.length));
+            key.add(method);
+            if (args != null) {
+                key.addAll(Arrays.asList(args));
+            }
+            try {
+                return singleFlight.call(key, new Callable<Object>() {
+                    @Override
+                    public Object call() throws Exception {
+                        try {
+                            return invokeDelegate(method, args);
+                        } catch (Exception | Error e) {
+                            throw e;
+                        } catch (Throwable t) {
+                            // neither checked exception nor error; cannot happen in practice
+                            throw new UndeclaredThrowableException(t);
+                        }
+                    }
+                });
+            } catch (ExecutionException e) {
+                // another caller's failure; rethrow it as our own
+                throw e.getCause();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new AbortException("Interrupted while waiting for a concurrent " + method.getName(), e);
+            }
+        }
+
+        private Object invokeDelegate(final Method method, final Object[] args) throws Throwable {
+            try {
+                return method.invoke(delegate, args);
+            } catch (InvocationTargetException e) {
+                throw e.getCause();
+            }
+        }
+    }
+}
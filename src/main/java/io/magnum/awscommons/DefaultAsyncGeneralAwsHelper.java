@@ -0,0 +1,843 @@
+package io.magnum.awscommons;
+
+import io.magnum.awscommons.concurrent.AsyncFunction;
+import io.magnum.awscommons.concurrent.Function;
+import io.magnum.awscommons.concurrent.Futures;
+import io.magnum.awscommons.concurrent.ListenableFuture;
+import io.magnum.awscommons.concurrent.SettableFuture;
+import io.magnum.awscommons.retry.AbortException;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Future;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.amazonaws.AmazonWebServiceRequest;
+import com.amazonaws.handlers.AsyncHandler;
+import com.amazonaws.services.autoscaling.model.AutoScalingGroup;
+import com.amazonaws.services.autoscaling.model.DescribeAutoScalingGroupsRequest;
+import com.amazonaws.services.autoscaling.model.DescribeAutoScalingGroupsResult;
+import com.amazonaws.services.autoscaling.model.DescribeLaunchConfigurationsRequest;
+import com.amazonaws.services.autoscaling.model.DescribeLaunchConfigurationsResult;
+import com.amazonaws.services.autoscaling.model.LaunchConfiguration;
+import com.amazonaws.services.autoscaling.model.TerminateInstanceInAutoScalingGroupRequest;
+import com.amazonaws.services.autoscaling.model.TerminateInstanceInAutoScalingGroupResult;
+import com.amazonaws.services.cloudformation.model.CreateStackRequest;
+import com.amazonaws.services.cloudformation.model.CreateStackResult;
+import com.amazonaws.services.cloudformation.model.DeleteStackRequest;
+import com.amazonaws.services.cloudformation.model.DescribeStackResourcesRequest;
+import com.amazonaws.services.cloudformation.model.DescribeStackResourcesResult;
+import com.amazonaws.services.cloudformation.model.DescribeStacksRequest;
+import com.amazonaws.services.cloudformation.model.DescribeStacksResult;
+import com.amazonaws.services.cloudformation.model.GetTemplateRequest;
+import com.amazonaws.services.cloudformation.model.GetTemplateResult;
+import com.amazonaws.services.cloudformation.model.Parameter;
+import com.amazonaws.services.cloudformation.model.Stack;
+import com.amazonaws.services.cloudformation.model.StackResource;
+import com.amazonaws.services.cloudformation.model.UpdateStackRequest;
+import com.amazonaws.services.cloudformation.model.UpdateStackResult;
+import com.amazonaws.services.ec2.model.CreateImageRequest;
+import com.amazonaws.services.ec2.model.CreateImageResult;
+import com.amazonaws.services.ec2.model.CreateTagsRequest;
+import com.amazonaws.services.ec2.model.DescribeImagesRequest;
+import com.amazonaws.services.ec2.model.DescribeImagesResult;
+import com.amazonaws.services.ec2.model.DescribeInstancesRequest;
+import com.amazonaws.services.ec2.model.DescribeInstancesResult;
+import com.amazonaws.services.ec2.model.Filter;
+import com.amazonaws.services.ec2.model.Image;
+import com.amazonaws.services.ec2.model.Instance;
+import com.amazonaws.services.ec2.model.InstanceStateChange;
+import com.amazonaws.services.ec2.model.RegisterImageRequest;
+import com.amazonaws.services.ec2.model.RegisterImageResult;
+import com.amazonaws.services.ec2.model.Reservation;
+import com.amazonaws.services.ec2.model.RunInstancesRequest;
+import com.amazonaws.services.ec2.model.RunInstancesResult;
+import com.amazonaws.services.ec2.model.Tag;
+import com.amazonaws.services.ec2.model.TerminateInstancesRequest;
+import com.amazonaws.services.ec2.model.TerminateInstancesResult;
+import com.amazonaws.services.elasticloadbalancing.model.DeregisterInstancesFromLoadBalancerRequest;
+import com.amazonaws.services.elasticloadbalancing.model.DeregisterInstancesFromLoadBalancerResult;
+import com.amazonaws.services.elasticloadbalancing.model.DescribeInstanceHealthRequest;
+import com.amazonaws.services.elasticloadbalancing.model.DescribeInstanceHealthResult;
+import com.amazonaws.services.elasticloadbalancing.model.DescribeLoadBalancersRequest;
+import com.amazonaws.services.elasticloadbalancing.model.DescribeLoadBalancersResult;
+import com.amazonaws.services.elasticloadbalancing.model.InstanceState;
+import com.amazonaws.services.elasticloadbalancing.model.LoadBalancerDescription;
+
+/**
+ * An {@link AsyncGeneralAwsHelper} built on the SDK's async clients, as
+ * provided by {@link AwsContext}. Each request completes its future from the
+ * SDK's callback, and multi-step operations are chained with
+ * {@link Futures}, so the caller's thread never waits.
+ * <p>
+ * The requests themselves still block threads: the SDK's async clients run
+ * the blocking client call on their executor, so each request in flight
+ * holds one of the context's async client threads until it completes, and
+ * requests beyond that many wait in the executor's unbounded queue.
+ * <p>
+ * Unlike the helpers from {@link RetryingGeneralAwsHelperFactory}, this
+ * helper has no retries, retry budget, circuit breaker or throttling: a
+ * failed or throttled request fails its future at once.
+ *
+ * @author Yu Sun
+ */
+public class DefaultAsyncGeneralAwsHelper implements AsyncGeneralAwsHelper {
+
+    private final static Logger logger = LoggerFactory.getLogger(DefaultAsyncGeneralAwsHelper.class);
+
+    private final static Function<Object, Void> TO_VOID = new Function<Object, Void>() {
+        @Override
+        public Void apply(Object input) {
+            return null;
+        }
+    };
+
+    private final AwsContext context;
+
+    public DefaultAsyncGeneralAwsHelper(final AwsContext context) {
+        this.context = context;
+    }
+
+    /**
+     * A future completed by the SDK's callback for one request.
+     */
+    private static class AwsCall<REQUEST extends AmazonWebServiceRequest, RESULT> extends SettableFuture<RESULT>
+            implements AsyncHandler<REQUEST, RESULT> {
+
+        @Override
+        public void onError(Exception exception) {
+            setException(exception);
+        }
+
+        @Override
+        public void onSuccess(REQUEST request, RESULT result) {
+            set(result);
+        }
+
+        /**
+         * Ties the SDK's future for the request to this one, so that
+         * cancelling this cancels the request.
+         */
+        ListenableFuture<RESULT> bind(final Future<RESULT> request) {
+            addListener(new Runnable() {
+                @Override
+                public void run() {
+                    if (isCancelled()) {
+                        request.cancel(true);
+                    }
+                }
+            });
+            return this;
+        }
+    }
+
+    /**
+     * Terminates one chunk of instances. EC2 fails the whole request if it
+     * names an unknown instance, so such a request is sent again without the
+     * instances EC2 names, which are taken to be already gone. Only one
+     * request is in flight at a time.
+     */
+    private class TerminateCall extends SettableFuture<Map<String, Ec2InstanceState>>
+            implements AsyncHandler<TerminateInstancesRequest, TerminateInstancesResult> {
+        private final List<String> instanceIds;
+        private final Map<String, Ec2InstanceState> states = new HashMap<String, Ec2InstanceState>();
+
+        TerminateCall(final List<String> instanceIds) {
+            this.instanceIds = instanceIds;
+        }
+
+        ListenableFuture<Map<String, Ec2InstanceState>> send() {
+            logger.info("terminating " + instanceIds.size() + " instances");
+            TerminateInstancesRequest request = new TerminateInstancesRequest(new ArrayList<String>(instanceIds));
+            final Future<TerminateInstancesResult> sent = context.getEc2AsyncClient().terminateInstancesAsync(request,
+                    this);
+            addListener(new Runnable() {
+                @Override
+                public void run() {
+                    if (isCancelled()) {
+                        sent.cancel(true);
+                    }
+                }
+            });
+            return this;
+        }
+
+        @Override
+        public void onError(Exception exception) {
+            List<String> gone = DefaultGeneralAwsHelper.getInstanceIdsNotFound(exception, instanceIds);
+            if (gone.isEmpty()) {
+                setException(exception);
+                return;
+            }
+            logger.info("instances " + gone + " are already gone");
+            for (String id : gone) {
+                states.put(id, Ec2InstanceState.TERMINATED);
+            }
+            instanceIds.removeAll(gone);
+            if (instanceIds.isEmpty()) {
+                set(states);
+            } else if (!isDone()) {
+                send();
+            }
+        }
+
+        @Override
+        public void onSuccess(TerminateInstancesRequest request, TerminateInstancesResult result) {
+            for (InstanceStateChange change : result.getTerminatingInstances()) {
+                states.put(change.getInstanceId(), Ec2InstanceState.parse(change.getCurrentState().getName()));
+            }
+            set(states);
+        }
+    }
+
+    /**
+     * Merges the maps fetched for each chunk of a lookup.
+     */
+    private static class MergeFunction<V> implements Function<List<Map<String, V>>, Map<String, V>> {
+        @Override
+        public Map<String, V> apply(List<Map<String, V>> maps) {
+            Map<String, V> merged = new HashMap<String, V>();
+            for (Map<String, V> map : maps) {
+                merged.putAll(map);
+            }
+            return merged;
+        }
+    }
+
+    @Override
+    public ListenableFuture<List<AutoScalingGroup>> getAutoScalingGroups() {
+        return getAutoScalingGroups(null, new ArrayList<AutoScalingGroup>());
+    }
+
+    private ListenableFuture<List<AutoScalingGroup>> getAutoScalingGroups(final String nextToken,
+            final List<AutoScalingGroup> groups) {
+        DescribeAutoScalingGroupsRequest request = new DescribeAutoScalingGroupsRequest();
+        request.setNextToken(nextToken);
+        AwsCall<DescribeAutoScalingGroupsRequest, DescribeAutoScalingGroupsResult> call =
+                new AwsCall<DescribeAutoScalingGroupsRequest, DescribeAutoScalingGroupsResult>();
+        return Futures.transformAsync(
+                call.bind(context.getAutoScalingAsyncClient().describeAutoScalingGroupsAsync(request, call)),
+                new AsyncFunction<DescribeAutoScalingGroupsResult, List<AutoScalingGroup>>() {
+                    @Override
+                    public ListenableFuture<List<AutoScalingGroup>> apply(DescribeAutoScalingGroupsResult result) {
+                        groups.addAll(result.getAutoScalingGroups());
+                        if (result.getNextToken() == null) {
+                            return Futures.immediateFuture(groups);
+                        }
+                        return getAutoScalingGroups(result.getNextToken(), groups);
+                    }
+                });
+    }
+
+    @Override
+    public ListenableFuture<Instance> createInstance(final String imageId, final String instanceType,
+            final List<String> securityGroups, final String keyName) {
+        RunInstancesRequest request = new RunInstancesRequest();
+        request.setImageId(imageId);
+        request.setInstanceType(instanceType);
+        request.setSecurityGroups(securityGroups);
+        request.setKeyName(keyName);
+        request.setMinCount(1);
+        request.setMaxCount(1);
+
+        AwsCall<RunInstancesRequest, RunInstancesResult> call = new AwsCall<RunInstancesRequest, RunInstancesResult>();
+        return Futures.transform(call.bind(context.getEc2AsyncClient().runInstancesAsync(request, call)),
+                new Function<RunInstancesResult, Instance>() {
+                    @Override
+                    public Instance apply(RunInstancesResult result) {
+                        return result.getReservation().getInstances().get(0);
+                    }
+                });
+    }
+
+    @Override
+    public ListenableFuture<Instance> getInstanceById(final String instanceId) {
+        return Futures.transform(getInstancesById(Collections.singleton(instanceId)),
+                new Function<Map<String, Instance>, Instance>() {
+                    @Override
+                    public Instance apply(Map<String, Instance> instances) {
+                        return instances.get(instanceId);
+                    }
+                });
+    }
+
+    /**
+     * Sends one request per chunk of at most
+     * {@value DefaultGeneralAwsHelper#MAX_INSTANCE_IDS_PER_REQUEST} IDs, all
+     * at once, and follows each chunk's pages. As for
+     * {@link DefaultGeneralAwsHelper#getInstancesById(Collection)}, unknown
+     * instances are left out rather than failing the lookup.
+     */
+    @Override
+    public ListenableFuture<Map<String, Instance>> getInstancesById(final Collection<String> instanceIds) {
+        List<String> ids = new ArrayList<String>(new LinkedHashSet<String>(instanceIds));
+        if (ids.isEmpty()) {
+            // an empty request would describe every instance in the account
+            return Futures.<Map<String, Instance>>immediateFuture(new HashMap<String, Instance>());
+        }
+        List<ListenableFuture<Map<String, Instance>>> chunks = new ArrayList<ListenableFuture<Map<String, Instance>>>();
+        int chunkSize = DefaultGeneralAwsHelper.MAX_INSTANCE_IDS_PER_REQUEST;
+        for (int from = 0; from < ids.size(); from += chunkSize) {
+            List<String> chunk = new ArrayList<String>(ids.subList(from, Math.min(from + chunkSize, ids.size())));
+            chunks.add(describeInstances(chunk, null, new HashMap<String, Instance>()));
+        }
+        if (chunks.size() == 1) {
+            return chunks.get(0);
+        }
+        return Futures.transform(Futures.allAsList(chunks), new MergeFunction<Instance>());
+    }
+
+    @Override
+    public ListenableFuture<List<Instance>> getInstances() {
+        // naming no instances describes them all
+        return Futures.transform(
+                describeInstances(Collections.<String>emptyList(), null, new HashMap<String, Instance>()),
+                new Function<Map<String, Instance>, List<Instance>>() {
+                    @Override
+                    public List<Instance> apply(Map<String, Instance> instances) {
+                        return new ArrayList<Instance>(instances.values());
+                    }
+                });
+    }
+
+    @Override
+    public ListenableFuture<DescribeInstancesResult> getInstancesPage(final String nextToken) {
+        DescribeInstancesRequest request = new DescribeInstancesRequest()
+                .withNextToken(nextToken)
+                .withMaxResults(DefaultGeneralAwsHelper.MAX_INSTANCES_PER_PAGE);
+        AwsCall<DescribeInstancesRequest, DescribeInstancesResult> call =
+                new AwsCall<DescribeInstancesRequest, DescribeInstancesResult>();
+        return call.bind(context.getEc2AsyncClient().describeInstancesAsync(request, call));
+    }
+
+    private ListenableFuture<Map<String, Instance>> describeInstances(final List<String> instanceIds,
+            final String nextToken, final Map<String, Instance> map) {
+        DescribeInstancesRequest request = new DescribeInstancesRequest().withNextToken(nextToken);
+        if (!instanceIds.isEmpty()) {
+            // unlike instance IDs, a filter does not fail on unknown instances
+            request.withFilters(new Filter("instance-id", instanceIds));
+        }
+        AwsCall<DescribeInstancesRequest, DescribeInstancesResult> call =
+                new AwsCall<DescribeInstancesRequest, DescribeInstancesResult>();
+        return Futures.transformAsync(call.bind(context.getEc2AsyncClient().describeInstancesAsync(request, call)),
+                new AsyncFunction<DescribeInstancesResult, Map<String, Instance>>() {
+                    @Override
+                    public ListenableFuture<Map<String, Instance>> apply(DescribeInstancesResult result) {
+                        for (Reservation reservation : result.getReservations()) {
+                            for (Instance instance : reservation.getInstances()) {
+                                map.put(instance.getInstanceId(), instance);
+                            }
+                        }
+                        if (result.getNextToken() == null) {
+                            return Futures.immediateFuture(map);
+                        }
+                        return describeInstances(instanceIds, result.getNextToken(), map);
+                    }
+                });
+    }
+
+    @Override
+    public ListenableFuture<String> createImage(final String instanceId, final String name) {
+        CreateImageRequest request = new CreateImageRequest(instanceId, name);
+        AwsCall<CreateImageRequest, CreateImageResult> call = new AwsCall<CreateImageRequest, CreateImageResult>();
+        return Futures.transform(call.bind(context.getEc2AsyncClient().createImageAsync(request, call)),
+                new Function<CreateImageResult, String>() {
+                    @Override
+                    public String apply(CreateImageResult result) {
+                        return result.getImageId();
+                    }
+                });
+    }
+
+    @Override
+    public ListenableFuture<Void> deleteStack(final String stackName) {
+        DeleteStackRequest request = new DeleteStackRequest();
+        request.setStackName(stackName);
+        AwsCall<DeleteStackRequest, Void> call = new AwsCall<DeleteStackRequest, Void>();
+        return call.bind(context.getCloudFormationAsyncClient().deleteStackAsync(request, call));
+    }
+
+    @Override
+    public ListenableFuture<Boolean> isImageAvailable(final String imageId) {
+        DescribeImagesRequest request = new DescribeImagesRequest();
+        request.setImageIds(Collections.singletonList(imageId));
+        AwsCall<DescribeImagesRequest, DescribeImagesResult> call =
+                new AwsCall<DescribeImagesRequest, DescribeImagesResult>();
+        return Futures.transform(call.bind(context.getEc2AsyncClient().describeImagesAsync(request, call)),
+                new Function<DescribeImagesResult, Boolean>() {
+                    @Override
+                    public Boolean apply(DescribeImagesResult result) {
+                        List<Image> images = result.getImages();
+                        return !images.isEmpty() && "available".equalsIgnoreCase(images.get(0).getState());
+                    }
+                });
+    }
+
+    /**
+     * Sends one request per chunk of at most
+     * {@value DefaultGeneralAwsHelper#MAX_IMAGE_IDS_PER_REQUEST} IDs, all at
+     * once. As for {@link DefaultGeneralAwsHelper#getImageStates(Collection)},
+     * unknown images are left out rather than failing the lookup.
+     */
+    @Override
+    public ListenableFuture<Map<String, String>> getImageStates(final Collection<String> imageIds) {
+        List<String> ids = new ArrayList<String>(new LinkedHashSet<String>(imageIds));
+        List<ListenableFuture<Map<String, String>>> chunks = new ArrayList<ListenableFuture<Map<String, String>>>();
+        int chunkSize = DefaultGeneralAwsHelper.MAX_IMAGE_IDS_PER_REQUEST;
+        // an empty request would describe every image we can see
+        for (int from = 0; from < ids.size(); from += chunkSize) {
+            chunks.add(describeImageStates(new ArrayList<String>(ids.subList(from,
+                    Math.min(from + chunkSize, ids.size())))));
+        }
+        return Futures.transform(Futures.allAsList(chunks), new MergeFunction<String>());
+    }
+
+    private ListenableFuture<Map<String, String>> describeImageStates(final List<String> imageIds) {
+        DescribeImagesRequest request = new DescribeImagesRequest().withFilters(new Filter("image-id", imageIds));
+        AwsCall<DescribeImagesRequest, DescribeImagesResult> call =
+                new AwsCall<DescribeImagesRequest, DescribeImagesResult>();
+        return Futures.transform(call.bind(context.getEc2AsyncClient().describeImagesAsync(request, call)),
+                new Function<DescribeImagesResult, Map<String, String>>() {
+                    @Override
+                    public Map<String, String> apply(DescribeImagesResult result) {
+                        Map<String, String> states = new HashMap<String, String>();
+                        for (Image image : result.getImages()) {
+                            states.put(image.getImageId(), image.getState());
+                        }
+                        return states;
+                    }
+                });
+    }
+
+    @Override
+    public ListenableFuture<String> createStack(final String stackName, final String template,
+            final List<Parameter> parameters) {
+        CreateStackRequest request = new CreateStackRequest();
+        request.setStackName(stackName);
+        request.setTemplateBody(template);
+        request.setParameters(parameters);
+        request.setCapabilities(Arrays.asList(new String[]{"CAPABILITY_IAM"}));
+        AwsCall<CreateStackRequest, CreateStackResult> call = new AwsCall<CreateStackRequest, CreateStackResult>();
+        return Futures.transform(call.bind(context.getCloudFormationAsyncClient().createStackAsync(request, call)),
+                new Function<CreateStackResult, String>() {
+                    @Override
+                    public String apply(CreateStackResult result) {
+                        return result.getStackId();
+                    }
+                });
+    }
+
+    @Override
+    public ListenableFuture<String> updateStack(final String stackName, final String template,
+            final List<Parameter> parameters) {
+        UpdateStackRequest request = new UpdateStackRequest();
+        request.setStackName(stackName);
+        request.setTemplateBody(template);
+        request.setParameters(parameters);
+        request.setCapabilities(Arrays.asList(new String[]{"CAPABILITY_IAM"}));
+        AwsCall<UpdateStackRequest, UpdateStackResult> call = new AwsCall<UpdateStackRequest, UpdateStackResult>();
+        return Futures.transform(call.bind(context.getCloudFormationAsyncClient().updateStackAsync(request, call)),
+                new Function<UpdateStackResult, String>() {
+                    @Override
+                    public String apply(UpdateStackResult result) {
+                        return result.getStackId();
+                    }
+                });
+    }
+
+    @Override
+    public ListenableFuture<List<Stack>> getCloudFormationStacks() {
+        return getCloudFormationStacks(null, new ArrayList<Stack>());
+    }
+
+    private ListenableFuture<List<Stack>> getCloudFormationStacks(final String nextToken, final List<Stack> stacks) {
+        return Futures.transformAsync(getCloudFormationStacksPage(nextToken),
+                new AsyncFunction<DescribeStacksResult, List<Stack>>() {
+                    @Override
+                    public ListenableFuture<List<Stack>> apply(DescribeStacksResult result) {
+                        stacks.addAll(result.getStacks());
+                        if (result.getNextToken() == null) {
+                            return Futures.immediateFuture(stacks);
+                        }
+                        return getCloudFormationStacks(result.getNextToken(), stacks);
+                    }
+                });
+    }
+
+    @Override
+    public ListenableFuture<DescribeStacksResult> getCloudFormationStacksPage(final String nextToken) {
+        DescribeStacksRequest request = new DescribeStacksRequest().withNextToken(nextToken);
+        AwsCall<DescribeStacksRequest, DescribeStacksResult> call =
+                new AwsCall<DescribeStacksRequest, DescribeStacksResult>();
+        return call.bind(context.getCloudFormationAsyncClient().describeStacksAsync(request, call));
+    }
+
+    @Override
+    public ListenableFuture<Stack> getCloudFormationStack(final String stackName) {
+        if (stackName == null || stackName.isEmpty()) {
+            return Futures.immediateFailedFuture(new AbortException("Stack name provided is empty!"));
+        }
+        DescribeStacksRequest request = new DescribeStacksRequest();
+        request.setStackName(stackName);
+        AwsCall<DescribeStacksRequest, DescribeStacksResult> call =
+                new AwsCall<DescribeStacksRequest, DescribeStacksResult>() {
+                    @Override
+                    public void onError(Exception exception) {
+                        if (DefaultGeneralAwsHelper.isStackNotFound(exception)) {
+                            set(new DescribeStacksResult());
+                        } else {
+                            super.onError(exception);
+                        }
+                    }
+                };
+        return Futures.transform(call.bind(context.getCloudFormationAsyncClient().describeStacksAsync(request, call)),
+                new Function<DescribeStacksResult, Stack>() {
+                    @Override
+                    public Stack apply(DescribeStacksResult result) {
+                        List<Stack> stacks = result.getStacks();
+                        return stacks != null && stacks.size() == 1 ? stacks.get(0) : null;
+                    }
+                });
+    }
+
+    @Override
+    public ListenableFuture<String> getCloudFormationStackTemplate(final String stackName) {
+        GetTemplateRequest request = new GetTemplateRequest();
+        request.setStackName(stackName);
+        AwsCall<GetTemplateRequest, GetTemplateResult> call = new AwsCall<GetTemplateRequest, GetTemplateResult>();
+        return Futures.transform(call.bind(context.getCloudFormationAsyncClient().getTemplateAsync(request, call)),
+                new Function<GetTemplateResult, String>() {
+                    @Override
+                    public String apply(GetTemplateResult result) {
+                        return result.getTemplateBody();
+                    }
+                });
+    }
+
+    @Override
+    public ListenableFuture<AutoScalingGroup> getCloudFormationStackAutoScalingGroup(final String stackName) {
+        return Futures.transformAsync(getSinglePhysicalResourceId(stackName, AwsResourceType.AUTOSCALING_GROUP),
+                new AsyncFunction<String, AutoScalingGroup>() {
+                    @Override
+                    public ListenableFuture<AutoScalingGroup> apply(String resourceName) {
+                        return resourceName == null ? Futures.<AutoScalingGroup>immediateFuture(null)
+                                : getAutoScalingGroup(resourceName);
+                    }
+                });
+    }
+
+    @Override
+    public ListenableFuture<LoadBalancerDescription> getCloudFormationStackLoadBalancer(final String stackName) {
+        return Futures.transformAsync(getSinglePhysicalResourceId(stackName, AwsResourceType.ELASTIC_LOAD_BALANCER),
+                new AsyncFunction<String, LoadBalancerDescription>() {
+                    @Override
+                    public ListenableFuture<LoadBalancerDescription> apply(String resourceName) {
+                        return resourceName == null ? Futures.<LoadBalancerDescription>immediateFuture(null)
+                                : getElasticLoadBalancer(resourceName);
+                    }
+                });
+    }
+
+    /**
+     * Returns a future of the physical ID of the stack's only resource of the
+     * given type, or of <code>null</code> if it has none; it fails with an
+     * {@link AbortException} if the stack has several.
+     */
+    private ListenableFuture<String> getSinglePhysicalResourceId(final String stackName,
+            final AwsResourceType desiredType) {
+        return Futures.transform(getCloudFormationStackResources(stackName),
+                new Function<List<StackResource>, String>() {
+                    @Override
+                    public String apply(List<StackResource> resources) throws AbortException {
+                        String physicalResourceId = null;
+                        for (StackResource resource : resources) {
+                            if (desiredType.equals(AwsResourceType.parse(resource.getResourceType()))) {
+                                if (physicalResourceId != null) {
+                                    throw new AbortException("Unexpected number of " + desiredType.getTypeString()
+                                            + " resources in stack " + stackName);
+                                }
+                                physicalResourceId = resource.getPhysicalResourceId();
+                            }
+                        }
+                        return physicalResourceId;
+                    }
+                });
+    }
+
+    @Override
+    public ListenableFuture<List<StackResource>> getCloudFormationStackResources(final String stackName) {
+        DescribeStackResourcesRequest request = new DescribeStackResourcesRequest();
+        request.setStackName(stackName);
+        AwsCall<DescribeStackResourcesRequest, DescribeStackResourcesResult> call =
+                new AwsCall<DescribeStackResourcesRequest, DescribeStackResourcesResult>();
+        return Futures.transform(
+                call.bind(context.getCloudFormationAsyncClient().describeStackResourcesAsync(request, call)),
+                new Function<DescribeStackResourcesResult, List<StackResource>>() {
+                    @Override
+                    public List<StackResource> apply(DescribeStackResourcesResult result) {
+                        return result.getStackResources() != null ? result.getStackResources()
+                                : Collections.<StackResource>emptyList();
+                    }
+                });
+    }
+
+    @Override
+    public ListenableFuture<AutoScalingGroup> getAutoScalingGroup(final String autoScalingGroupName) {
+        DescribeAutoScalingGroupsRequest request = new DescribeAutoScalingGroupsRequest();
+        request.setAutoScalingGroupNames(Collections.singleton(autoScalingGroupName));
+        AwsCall<DescribeAutoScalingGroupsRequest, DescribeAutoScalingGroupsResult> call =
+                new AwsCall<DescribeAutoScalingGroupsRequest, DescribeAutoScalingGroupsResult>();
+        return Futures.transform(
+                call.bind(context.getAutoScalingAsyncClient().describeAutoScalingGroupsAsync(request, call)),
+                new Function<DescribeAutoScalingGroupsResult, AutoScalingGroup>() {
+                    @Override
+                    public AutoScalingGroup apply(DescribeAutoScalingGroupsResult result) {
+                        List<AutoScalingGroup> groups = result.getAutoScalingGroups();
+                        return groups == null || groups.size() != 1 ? null : groups.get(0);
+                    }
+                });
+    }
+
+    @Override
+    public ListenableFuture<Map<String, AutoScalingGroup>> getAutoScalingGroupsByName(
+            final Collection<String> autoScalingGroupNames) {
+        List<String> names = new ArrayList<String>(new LinkedHashSet<String>(autoScalingGroupNames));
+        List<ListenableFuture<Map<String, AutoScalingGroup>>> chunks =
+                new ArrayList<ListenableFuture<Map<String, AutoScalingGroup>>>();
+        int chunkSize = DefaultGeneralAwsHelper.MAX_AUTO_SCALING_GROUP_NAMES_PER_REQUEST;
+        for (int from = 0; from < names.size(); from += chunkSize) {
+            List<String> chunk = new ArrayList<String>(names.subList(from, Math.min(from + chunkSize, names.size())));
+            chunks.add(describeAutoScalingGroups(chunk, null, new HashMap<String, AutoScalingGroup>()));
+        }
+        return Futures.transform(Futures.allAsList(chunks), new MergeFunction<AutoScalingGroup>());
+    }
+
+    private ListenableFuture<Map<String, AutoScalingGroup>> describeAutoScalingGroups(final List<String> names,
+            final String nextToken, final Map<String, AutoScalingGroup> map) {
+        DescribeAutoScalingGroupsRequest request = new DescribeAutoScalingGroupsRequest();
+        request.setAutoScalingGroupNames(names);
+        request.setNextToken(nextToken);
+        AwsCall<DescribeAutoScalingGroupsRequest, DescribeAutoScalingGroupsResult> call =
+                new AwsCall<DescribeAutoScalingGroupsRequest, DescribeAutoScalingGroupsResult>();
+        return Futures.transformAsync(
+                call.bind(context.getAutoScalingAsyncClient().describeAutoScalingGroupsAsync(request, call)),
+                new AsyncFunction<DescribeAutoScalingGroupsResult, Map<String, AutoScalingGroup>>() {
+                    @Override
+                    public ListenableFuture<Map<String, AutoScalingGroup>> apply(
+                            DescribeAutoScalingGroupsResult result) {
+                        for (AutoScalingGroup group : result.getAutoScalingGroups()) {
+                            map.put(group.getAutoScalingGroupName(), group);
+                        }
+                        if (result.getNextToken() == null) {
+                            return Futures.immediateFuture(map);
+                        }
+                        return describeAutoScalingGroups(names, result.getNextToken(), map);
+                    }
+                });
+    }
+
+    @Override
+    public ListenableFuture<Map<String, LoadBalancerDescription>> getElasticLoadBalancersByName(
+            final Collection<String> loadBalancerNames) {
+        List<String> names = new ArrayList<String>(new LinkedHashSet<String>(loadBalancerNames));
+        List<ListenableFuture<Map<String, LoadBalancerDescription>>> chunks =
+                new ArrayList<ListenableFuture<Map<String, LoadBalancerDescription>>>();
+        int chunkSize = DefaultGeneralAwsHelper.MAX_LOAD_BALANCER_NAMES_PER_REQUEST;
+        for (int from = 0; from < names.size(); from += chunkSize) {
+            List<String> chunk = new ArrayList<String>(names.subList(from, Math.min(from + chunkSize, names.size())));
+            chunks.add(describeLoadBalancers(chunk, null, new HashMap<String, LoadBalancerDescription>()));
+        }
+        return Futures.transform(Futures.allAsList(chunks), new MergeFunction<LoadBalancerDescription>());
+    }
+
+    private ListenableFuture<Map<String, LoadBalancerDescription>> describeLoadBalancers(final List<String> names,
+            final String marker, final Map<String, LoadBalancerDescription> map) {
+        DescribeLoadBalancersRequest request = new DescribeLoadBalancersRequest();
+        request.setLoadBalancerNames(names);
+        request.setMarker(marker);
+        AwsCall<DescribeLoadBalancersRequest, DescribeLoadBalancersResult> call =
+                new AwsCall<DescribeLoadBalancersRequest, DescribeLoadBalancersResult>();
+        return Futures.transformAsync(
+                call.bind(context.getElasticLoadBalancingAsyncClient().describeLoadBalancersAsync(request, call)),
+                new AsyncFunction<DescribeLoadBalancersResult, Map<String, LoadBalancerDescription>>() {
+                    @Override
+                    public ListenableFuture<Map<String, LoadBalancerDescription>> apply(
+                            DescribeLoadBalancersResult result) {
+                        for (LoadBalancerDescription description : result.getLoadBalancerDescriptions()) {
+                            map.put(description.getLoadBalancerName(), description);
+                        }
+                        if (result.getNextMarker() == null) {
+                            return Futures.immediateFuture(map);
+                        }
+                        return describeLoadBalancers(names, result.getNextMarker(), map);
+                    }
+                });
+    }
+
+    @Override
+    public ListenableFuture<LoadBalancerDescription> getElasticLoadBalancer(final String loadBalancerName) {
+        DescribeLoadBalancersRequest request = new DescribeLoadBalancersRequest();
+        request.setLoadBalancerNames(Collections.singleton(loadBalancerName));
+        AwsCall<DescribeLoadBalancersRequest, DescribeLoadBalancersResult> call =
+                new AwsCall<DescribeLoadBalancersRequest, DescribeLoadBalancersResult>();
+        return Futures.transform(
+                call.bind(context.getElasticLoadBalancingAsyncClient().describeLoadBalancersAsync(request, call)),
+                new Function<DescribeLoadBalancersResult, LoadBalancerDescription>() {
+                    @Override
+                    public LoadBalancerDescription apply(DescribeLoadBalancersResult result) {
+                        List<LoadBalancerDescription> descriptions = result.getLoadBalancerDescriptions();
+                        return descriptions != null && descriptions.size() == 1 ? descriptions.get(0) : null;
+                    }
+                });
+    }
+
+    @Override
+    public ListenableFuture<Void> terminateViaAutoScaling(final String instanceId) {
+        logger.info("terminating instance " + instanceId);
+        TerminateInstanceInAutoScalingGroupRequest request = new TerminateInstanceInAutoScalingGroupRequest();
+        request.setInstanceId(instanceId);
+        request.setShouldDecrementDesiredCapacity(false);
+        AwsCall<TerminateInstanceInAutoScalingGroupRequest, TerminateInstanceInAutoScalingGroupResult> call =
+                new AwsCall<TerminateInstanceInAutoScalingGroupRequest, TerminateInstanceInAutoScalingGroupResult>();
+        return Futures.transform(
+                call.bind(context.getAutoScalingAsyncClient().terminateInstanceInAutoScalingGroupAsync(request, call)),
+                TO_VOID);
+    }
+
+    @Override
+    public ListenableFuture<Void> terminateViaEc2(final String instanceId) {
+        logger.info("terminating instance " + instanceId);
+        TerminateInstancesRequest request = new TerminateInstancesRequest(Collections.singletonList(instanceId));
+        AwsCall<TerminateInstancesRequest, TerminateInstancesResult> call =
+                new AwsCall<TerminateInstancesRequest, TerminateInstancesResult>();
+        return Futures.transform(call.bind(context.getEc2AsyncClient().terminateInstancesAsync(request, call)),
+                TO_VOID);
+    }
+
+    @Override
+    public ListenableFuture<Map<String, Ec2InstanceState>> terminateInstancesViaEc2(
+            final Collection<String> instanceIds) {
+        List<String> ids = new ArrayList<String>(new LinkedHashSet<String>(instanceIds));
+        List<ListenableFuture<Map<String, Ec2InstanceState>>> chunks =
+                new ArrayList<ListenableFuture<Map<String, Ec2InstanceState>>>();
+        for (int from = 0; from < ids.size(); from += DefaultGeneralAwsHelper.MAX_INSTANCE_IDS_PER_TERMINATE_REQUEST) {
+            List<String> chunk = ids.subList(from,
+                    Math.min(ids.size(), from + DefaultGeneralAwsHelper.MAX_INSTANCE_IDS_PER_TERMINATE_REQUEST));
+            chunks.add(new TerminateCall(new ArrayList<String>(chunk)).send());
+        }
+        return Futures.transform(Futures.allAsList(chunks), new MergeFunction<Ec2InstanceState>());
+    }
+
+    @Override
+    public ListenableFuture<String> registerImage(final String manifest, final String desc) {
+        RegisterImageRequest request = new RegisterImageRequest(manifest);
+        request.setDescription(desc);
+        AwsCall<RegisterImageRequest, RegisterImageResult> call =
+                new AwsCall<RegisterImageRequest, RegisterImageResult>();
+        return Futures.transform(call.bind(context.getEc2AsyncClient().registerImageAsync(request, call)),
+                new Function<RegisterImageResult, String>() {
+                    @Override
+                    public String apply(RegisterImageResult result) {
+                        return result.getImageId();
+                    }
+                });
+    }
+
+    @Override
+    public ListenableFuture<Void> removeInstancesFromLoadBalancer(final String loadBalancerName,
+            final Set<String> instanceIds) {
+        DeregisterInstancesFromLoadBalancerRequest request = new DeregisterInstancesFromLoadBalancerRequest();
+        request.setLoadBalancerName(loadBalancerName);
+        request.setInstances(toLoadBalancerInstances(instanceIds));
+        AwsCall<DeregisterInstancesFromLoadBalancerRequest, DeregisterInstancesFromLoadBalancerResult> call =
+                new AwsCall<DeregisterInstancesFromLoadBalancerRequest, DeregisterInstancesFromLoadBalancerResult>();
+        return Futures.transform(call.bind(context.getElasticLoadBalancingAsyncClient()
+                .deregisterInstancesFromLoadBalancerAsync(request, call)), TO_VOID);
+    }
+
+    @Override
+    public ListenableFuture<Map<String, ElasticLoadBalancingInstanceState>> getLoadBalancerInstanceHealth(
+            final String loadBalancerName, final Collection<String> instanceIds) {
+        DescribeInstanceHealthRequest request = new DescribeInstanceHealthRequest(loadBalancerName);
+        if (instanceIds != null) {
+            request.setInstances(toLoadBalancerInstances(instanceIds));
+        }
+        AwsCall<DescribeInstanceHealthRequest, DescribeInstanceHealthResult> call =
+                new AwsCall<DescribeInstanceHealthRequest, DescribeInstanceHealthResult>();
+        return Futures.transform(
+                call.bind(context.getElasticLoadBalancingAsyncClient().describeInstanceHealthAsync(request, call)),
+                new Function<DescribeInstanceHealthResult, Map<String, ElasticLoadBalancingInstanceState>>() {
+                    @Override
+                    public Map<String, ElasticLoadBalancingInstanceState> apply(DescribeInstanceHealthResult result) {
+                        Map<String, ElasticLoadBalancingInstanceState> stateByInstanceId =
+                                new HashMap<String, ElasticLoadBalancingInstanceState>();
+                        for (InstanceState state : result.getInstanceStates()) {
+                            stateByInstanceId.put(state.getInstanceId(),
+                                    ElasticLoadBalancingInstanceState.parse(state.getState()));
+                        }
+                        return stateByInstanceId;
+                    }
+                });
+    }
+
+    private static List<com.amazonaws.services.elasticloadbalancing.model.Instance> toLoadBalancerInstances(
+            final Collection<String> instanceIds) {
+        List<com.amazonaws.services.elasticloadbalancing.model.Instance> instances =
+                new ArrayList<com.amazonaws.services.elasticloadbalancing.model.Instance>(instanceIds.size());
+        for (String instanceId : instanceIds) {
+            instances.add(new com.amazonaws.services.elasticloadbalancing.model.Instance(instanceId));
+        }
+        return instances;
+    }
+
+    @Override
+    public ListenableFuture<Void> putTags(final Collection<String> resourceIds, final Map<String, String> tags) {
+        List<Tag> tagList = new ArrayList<Tag>(tags.size());
+        for (Map.Entry<String, String> tag : tags.entrySet()) {
+            tagList.add(new Tag(tag.getKey(), tag.getValue()));
+        }
+        CreateTagsRequest request = new CreateTagsRequest(new ArrayList<String>(resourceIds), tagList);
+        AwsCall<CreateTagsRequest, Void> call = new AwsCall<CreateTagsRequest, Void>();
+        return call.bind(context.getEc2AsyncClient().createTagsAsync(request, call));
+    }
+
+    @Override
+    public ListenableFuture<LaunchConfiguration> getAutoScalingLaunchConfiguration(final String autoScalingGroupName) {
+        return Futures.transformAsync(getAutoScalingGroup(autoScalingGroupName),
+                new AsyncFunction<AutoScalingGroup, LaunchConfiguration>() {
+                    @Override
+                    public ListenableFuture<LaunchConfiguration> apply(AutoScalingGroup asg) throws AbortException {
+                        if (asg == null) {
+                            throw new AbortException("no such auto scaling group: " + autoScalingGroupName);
+                        }
+                        DescribeLaunchConfigurationsRequest request = new DescribeLaunchConfigurationsRequest();
+                        request.setLaunchConfigurationNames(Collections.singleton(asg.getLaunchConfigurationName()));
+                        AwsCall<DescribeLaunchConfigurationsRequest, DescribeLaunchConfigurationsResult> call =
+                                new AwsCall<DescribeLaunchConfigurationsRequest, DescribeLaunchConfigurationsResult>();
+                        return Futures.transform(call.bind(context.getAutoScalingAsyncClient()
+                                .describeLaunchConfigurationsAsync(request, call)),
+                                new Function<DescribeLaunchConfigurationsResult, LaunchConfiguration>() {
+                                    @Override
+                                    public LaunchConfiguration apply(DescribeLaunchConfigurationsResult result)
+                                            throws AbortException {
+                                        List<LaunchConfiguration> configs = result.getLaunchConfigurations();
+                                        if (configs.isEmpty()) {
+                                            throw new AbortException("group exists but has no configuration: "
+                                                    + autoScalingGroupName);
+                                        }
+                                        return configs.get(0);
+                                    }
+                                });
+                    }
+                });
+    }
+}
@@ -1,5 +1,6 @@
 package io.magnum.awscommons;
 
+import io.magnum.awscommons.concurrent.DaemonThreads;
 import io.magnum.awscommons.retry.AbortException;
 
 import java.util.ArrayList;
@@ -7,14 +8,21 @@ import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.AmazonServiceException;
 import com.amazonaws.services.autoscaling.model.AutoScalingGroup;
 import com.amazonaws.services.autoscaling.model.DescribeAutoScalingGroupsRequest;
 import com.amazonaws.services.autoscaling.model.DescribeAutoScalingGroupsResult;
@@ -44,8 +52,10 @@ import com.amazonaws.services.ec2.model.DescribeImagesRequest;
 import com.amazonaws.services.ec2.model.DescribeImagesResult;
 import com.amazonaws.services.ec2.model.DescribeInstancesRequest;
 import com.amazonaws.services.ec2.model.DescribeInstancesResult;
+import com.amazonaws.services.ec2.model.Filter;
 import com.amazonaws.services.ec2.model.Image;
 import com.amazonaws.services.ec2.model.Instance;
+import com.amazonaws.services.ec2.model.InstanceStateChange;
 import com.amazonaws.services.ec2.model.RegisterImageRequest;
 import com.amazonaws.services.ec2.model.Reservation;
 import com.amazonaws.services.ec2.model.RunInstancesRequest;
@@ -69,10 +79,44 @@ public class DefaultGeneralAwsHelper implements GeneralAwsHelper {
 
     private final static Logger logger = LoggerFactory.getLogger(DefaultGeneralAwsHelper.class);
     
+    /**
+     * The most instance IDs sent in one DescribeInstances request; larger
+     * lookups are split into chunks of this size.
+     */
+    static final int MAX_INSTANCE_IDS_PER_REQUEST = 100;
+
+    /** The most instances asked for in one page of the listing */
+    static final int MAX_INSTANCES_PER_PAGE = 1000;
+
+    /** The most image IDs sent in one DescribeImages request */
+    static final int MAX_IMAGE_IDS_PER_REQUEST = 100;
+
+    /** The most group names sent in one DescribeAutoScalingGroups request */
+    static final int MAX_AUTO_SCALING_GROUP_NAMES_PER_REQUEST = 50;
+
+    /** The most load balancer names sent in one DescribeLoadBalancers request */
+    static final int MAX_LOAD_BALANCER_NAMES_PER_REQUEST = 20;
+
+    /** The most instance IDs sent in one TerminateInstances request */
+    static final int MAX_INSTANCE_IDS_PER_TERMINATE_REQUEST = 1000;
+
+    /** The error code EC2 answers with when a request names an instance it does not know */
+    static final String INSTANCE_NOT_FOUND_ERROR_CODE = "InvalidInstanceID.NotFound";
+
     private final AwsContext context;
+    private final ExecutorService executor;
 
     public DefaultGeneralAwsHelper(final AwsContext context) {
+        this(context, null);
+    }
+
+    /**
+     * @param executor runs the chunks of large lookups concurrently; if
+     * <code>null</code>, {@link DaemonThreads#sharedExecutor()} is used
+     */
+    public DefaultGeneralAwsHelper(final AwsContext context, final ExecutorService executor) {
         this.context = context;
+        this.executor = executor != null ? executor : DaemonThreads.sharedExecutor();
     }
     
     @Override
@@ -115,16 +159,92 @@ public class DefaultGeneralAwsHelper implements GeneralAwsHelper {
         return instances.get(instanceId);
     }
 
+    /**
+     * Looks up the instances in chunks of at most
+     * {@value #MAX_INSTANCE_IDS_PER_REQUEST} IDs, following each chunk's
+     * pages. The calling thread fetches the first chunk while the others are
+     * fetched concurrently on this helper's executor. The IDs are sent as an
+     * "instance-id" filter, so that an instance which does not exist, or is
+     * not visible yet, is left out of the map rather than failing the lookup.
+     */
     @Override
     public Map<String, Instance> getInstancesById(final Collection<String> instanceIds) {
-        Map<String, Instance> map = new HashMap<String, Instance>();
-        DescribeInstancesRequest request = new DescribeInstancesRequest().withInstanceIds(instanceIds);
-        DescribeInstancesResult result = context.getEc2Client().describeInstances(request);
-        for (Reservation reservation : result.getReservations()) {
-            for (Instance instance : reservation.getInstances()) {
-                map.put(instance.getInstanceId(), instance);
+        List<String> ids = new ArrayList<String>(new LinkedHashSet<String>(instanceIds));
+        if (ids.isEmpty()) {
+            // naming no instances would describe every instance in the account
+            return new HashMap<String, Instance>();
+        }
+        if (ids.size() <= MAX_INSTANCE_IDS_PER_REQUEST) {
+            return describeInstances(ids);
+        }
+
+        List<Future<Map<String, Instance>>> futures = new ArrayList<Future<Map<String, Instance>>>();
+        try {
+            for (int from = MAX_INSTANCE_IDS_PER_REQUEST; from < ids.size(); from += MAX_INSTANCE_IDS_PER_REQUEST) {
+                final List<String> chunk = ids.subList(from, Math.min(from + MAX_INSTANCE_IDS_PER_REQUEST, ids.size()));
+                futures.add(executor.submit(new Callable<Map<String, Instance>>() {
+                    @Override
+                    public Map<String, Instance> call() {
+                        return describeInstances(chunk);
+                    }
+                }));
+            }
+            Map<String, Instance> map = describeInstances(ids.subList(0, MAX_INSTANCE_IDS_PER_REQUEST));
+            for (Future<Map<String, Instance>> future : futures) {
+                map.putAll(future.get());
+            }
+            return map;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new AmazonClientException("Interrupted while describing " + ids.size() + " instances", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new AmazonClientException("Unable to describe " + ids.size() + " instances", cause);
+        } finally {
+            // a no-op once every chunk is done; otherwise one has failed, and
+            // the rest are no longer wanted
+            for (Future<Map<String, Instance>> future : futures) {
+                future.cancel(true);
             }
         }
+    }
+
+    @Override
+    public List<Instance> getInstances() {
+        // naming no instances describes them all
+        return new ArrayList<Instance>(describeInstances(Collections.<String>emptyList()).values());
+    }
+
+    @Override
+    public DescribeInstancesResult getInstancesPage(final String nextToken) {
+        return context.getEc2Client().describeInstances(new DescribeInstancesRequest()
+                .withNextToken(nextToken)
+                .withMaxResults(MAX_INSTANCES_PER_PAGE));
+    }
+
+    private Map<String, Instance> describeInstances(final List<String> instanceIds) {
+        Map<String, Instance> map = new HashMap<String, Instance>();
+        String nextToken = null;
+        do {
+            DescribeInstancesRequest request = new DescribeInstancesRequest().withNextToken(nextToken);
+            if (!instanceIds.isEmpty()) {
+                // naming the instances as IDs would fail the whole request
+                // with InvalidInstanceID.NotFound if any one is unknown
+                request.withFilters(new Filter("instance-id", new ArrayList<String>(instanceIds)));
+            }
+            DescribeInstancesResult result = context.getEc2Client().describeInstances(request);
+            for (Reservation reservation : result.getReservations()) {
+                for (Instance instance : reservation.getInstances()) {
+                    map.put(instance.getInstanceId(), instance);
+                }
+            }
+            nextToken = result.getNextToken();
+        } while (nextToken != null);
         return map;
     }
 
@@ -150,6 +270,28 @@ public class DefaultGeneralAwsHelper implements GeneralAwsHelper {
         return "available".equalsIgnoreCase(images.get(0).getState());
     }
 
+    /**
+     * Looks up the images in chunks of at most
+     * {@value #MAX_IMAGE_IDS_PER_REQUEST} IDs, sent as an "image-id" filter,
+     * so that an image which is not visible yet is left out of the map rather
+     * than failing the lookup.
+     */
+    @Override
+    public Map<String, String> getImageStates(final Collection<String> imageIds) {
+        Map<String, String> states = new HashMap<String, String>();
+        List<String> ids = new ArrayList<String>(new LinkedHashSet<String>(imageIds));
+        // an empty request would describe every image we can see
+        for (int from = 0; from < ids.size(); from += MAX_IMAGE_IDS_PER_REQUEST) {
+            List<String> chunk = new ArrayList<String>(ids.subList(from,
+                    Math.min(from + MAX_IMAGE_IDS_PER_REQUEST, ids.size())));
+            DescribeImagesRequest request = new DescribeImagesRequest().withFilters(new Filter("image-id", chunk));
+            for (Image image : context.getEc2Client().describeImages(request).getImages()) {
+                states.put(image.getImageId(), image.getState());
+            }
+        }
+        return states;
+    }
+
     @Override
     public String createStack(final String stackName, final String template, final List<Parameter> parameters) {
         CreateStackRequest request = new CreateStackRequest();
@@ -174,7 +316,19 @@ public class DefaultGeneralAwsHelper implements GeneralAwsHelper {
 
     @Override
     public List<Stack> getCloudFormationStacks() {
-        return context.getCloudFormationClient().describeStacks().getStacks();
+        List<Stack> stacks = new ArrayList<Stack>();
+        String nextToken = null;
+        do {
+            DescribeStacksResult page = getCloudFormationStacksPage(nextToken);
+            stacks.addAll(page.getStacks());
+            nextToken = page.getNextToken();
+        } while (nextToken != null);
+        return stacks;
+    }
+
+    @Override
+    public DescribeStacksResult getCloudFormationStacksPage(final String nextToken) {
+        return context.getCloudFormationClient().describeStacks(new DescribeStacksRequest().withNextToken(nextToken));
     }
 
     
@@ -186,7 +340,13 @@ public class DefaultGeneralAwsHelper implements GeneralAwsHelper {
         DescribeStacksRequest request = new DescribeStacksRequest();
         request.setStackName(stackName);
 
-        DescribeStacksResult response = cf.describeStacks(request);
+        DescribeStacksResult response;
+        try {
+            response = cf.describeStacks(request);
+        } catch (AmazonServiceException e) {
+            if (isStackNotFound(e)) return null;
+            throw e;
+        }
 
         List<Stack> stacks = response.getStacks();
         if (stacks != null && stacks.size() == 1) {
@@ -195,6 +355,16 @@ public class DefaultGeneralAwsHelper implements GeneralAwsHelper {
         return null;
     }
 
+    /**
+     * DescribeStacks by name fails with a ValidationError once the stack is
+     * gone instead of returning an empty list.
+     */
+    static boolean isStackNotFound(final Throwable e) {
+        return e instanceof AmazonServiceException
+                && "ValidationError".equals(((AmazonServiceException) e).getErrorCode())
+                && e.getMessage() != null && e.getMessage().contains("does not exist");
+    }
+
     @Override
     public String getCloudFormationStackTemplate(String stackName) throws AbortException {
         GetTemplateRequest request = new GetTemplateRequest();
@@ -268,6 +438,52 @@ public class DefaultGeneralAwsHelper implements GeneralAwsHelper {
         return groups.get(0);
     }
     
+    @Override
+    public Map<String, AutoScalingGroup> getAutoScalingGroupsByName(final Collection<String> autoScalingGroupNames) {
+        Map<String, AutoScalingGroup> groups = new HashMap<String, AutoScalingGroup>();
+        List<String> names = new ArrayList<String>(new LinkedHashSet<String>(autoScalingGroupNames));
+        for (int from = 0; from < names.size(); from += MAX_AUTO_SCALING_GROUP_NAMES_PER_REQUEST) {
+            List<String> chunk = names.subList(from,
+                    Math.min(from + MAX_AUTO_SCALING_GROUP_NAMES_PER_REQUEST, names.size()));
+            String nextToken = null;
+            do {
+                DescribeAutoScalingGroupsRequest request = new DescribeAutoScalingGroupsRequest();
+                request.setAutoScalingGroupNames(chunk);
+                request.setNextToken(nextToken);
+                DescribeAutoScalingGroupsResult result = context.getAutoScalingClient()
+                        .describeAutoScalingGroups(request);
+                for (AutoScalingGroup group : result.getAutoScalingGroups()) {
+                    groups.put(group.getAutoScalingGroupName(), group);
+                }
+                nextToken = result.getNextToken();
+            } while (nextToken != null);
+        }
+        return groups;
+    }
+
+    @Override
+    public Map<String, LoadBalancerDescription> getElasticLoadBalancersByName(
+            final Collection<String> loadBalancerNames) {
+        Map<String, LoadBalancerDescription> loadBalancers = new HashMap<String, LoadBalancerDescription>();
+        List<String> names = new ArrayList<String>(new LinkedHashSet<String>(loadBalancerNames));
+        for (int from = 0; from < names.size(); from += MAX_LOAD_BALANCER_NAMES_PER_REQUEST) {
+            List<String> chunk = names.subList(from, Math.min(from + MAX_LOAD_BALANCER_NAMES_PER_REQUEST, names.size()));
+            String marker = null;
+            do {
+                DescribeLoadBalancersRequest request = new DescribeLoadBalancersRequest();
+                request.setLoadBalancerNames(chunk);
+                request.setMarker(marker);
+                DescribeLoadBalancersResult result = context.getElasticLoadBalancingClient()
+                        .describeLoadBalancers(request);
+                for (LoadBalancerDescription description : result.getLoadBalancerDescriptions()) {
+                    loadBalancers.put(description.getLoadBalancerName(), description);
+                }
+                marker = result.getNextMarker();
+            } while (marker != null);
+        }
+        return loadBalancers;
+    }
+
     @Override
     public LoadBalancerDescription getElasticLoadBalancer(final String loadBalancerName) {
         DescribeLoadBalancersRequest request = new DescribeLoadBalancersRequest();
@@ -297,6 +513,64 @@ public class DefaultGeneralAwsHelper implements GeneralAwsHelper {
         // This request does not produce a result.
         context.getEc2Client().terminateInstances(request);
     }
+
+    @Override
+    public Map<String, Ec2InstanceState> terminateInstancesViaEc2(final Collection<String> instanceIds) {
+        List<String> ids = new ArrayList<String>(new LinkedHashSet<String>(instanceIds));
+        Map<String, Ec2InstanceState> states = new HashMap<String, Ec2InstanceState>();
+        for (int from = 0; from < ids.size(); from += MAX_INSTANCE_IDS_PER_TERMINATE_REQUEST) {
+            List<String> chunk = new ArrayList<String>(ids.subList(from,
+                    Math.min(ids.size(), from + MAX_INSTANCE_IDS_PER_TERMINATE_REQUEST)));
+            while (!chunk.isEmpty()) {
+                logger.info("terminating " + chunk.size() + " instances");
+                TerminateInstancesRequest request = new TerminateInstancesRequest(new ArrayList<String>(chunk));
+                try {
+                    for (InstanceStateChange change : context.getEc2Client().terminateInstances(request)
+                            .getTerminatingInstances()) {
+                        states.put(change.getInstanceId(), Ec2InstanceState.parse(change.getCurrentState().getName()));
+                    }
+                    break;
+                } catch (AmazonServiceException e) {
+                    // one unknown instance fails the whole request; send the rest again
+                    List<String> gone = getInstanceIdsNotFound(e, chunk);
+                    if (gone.isEmpty()) {
+                        throw e;
+                    }
+                    logger.info("instances " + gone + " are already gone");
+                    for (String id : gone) {
+                        states.put(id, Ec2InstanceState.TERMINATED);
+                    }
+                    chunk.removeAll(gone);
+                }
+            }
+        }
+        return states;
+    }
+
+    /**
+     * Returns those of the instance IDs which an InvalidInstanceID.NotFound
+     * error names, e.g. "The instance IDs 'i-1, i-2' do not exist"; empty
+     * for any other exception.
+     */
+    static List<String> getInstanceIdsNotFound(final Throwable e, final Collection<String> instanceIds) {
+        List<String> notFound = new ArrayList<String>();
+        if (!(e instanceof AmazonServiceException)
+                || !INSTANCE_NOT_FOUND_ERROR_CODE.equals(((AmazonServiceException) e).getErrorCode())) {
+            return notFound;
+        }
+        String message = e.getMessage();
+        int start = message == null ? -1 : message.indexOf('\'');
+        int end = message == null ? -1 : message.lastIndexOf('\'');
+        if (start < 0 || end <= start) {
+            return notFound;
+        }
+        for (String id : message.substring(start + 1, end).split(",")) {
+            if (instanceIds.contains(id.trim())) {
+                notFound.add(id.trim());
+            }
+        }
+        return notFound;
+    }
     
     @Override
     public String registerImage(final String manifest, final String desc) {
@@ -330,6 +604,7 @@ public class DefaultGeneralAwsHelper implements GeneralAwsHelper {
             for (String instanceId : instanceIds) {
                 instances.add(new com.amazonaws.services.elasticloadbalancing.model.Instance(instanceId));
             }
+            request.setInstances(instances);
         }
 
         Map<String, ElasticLoadBalancingInstanceState> stateByInstanceId = new HashMap<String, ElasticLoadBalancingInstanceState>();
@@ -0,0 +1,222 @@
+package io.magnum.awscommons;
+
+import io.magnum.awscommons.retry.AbortException;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A size-bounded, least-recently-used cache whose entries expire a fixed time
+ * after they were loaded. <code>null</code> values are cached like any other.
+ * <p>
+ * Loads run without holding the cache's lock. A load which overlaps an
+ * invalidation does not store its result, so a value fetched before a
+ * mutation cannot be cached after it.
+ *
+ * @author Yu Sun
+ */
+class ExpiringCache<K, V> {
+
+    /**
+     * Fetches the value of a key which is not cached.
+     */
+    interface Loader<K, V> {
+        V load(K key) throws AbortException;
+    }
+
+    /**
+     * Fetches the values of several keys which are not cached; keys missing
+     * from the result have no value.
+     */
+    interface BulkLoader<K, V> {
+        Map<K, V> loadAll(Collection<K> keys) throws AbortException;
+    }
+
+    /**
+     * A cached value; distinguishes a cached <code>null</code> from a miss.
+     */
+    static final class CacheEntry<V> {
+        final V value;
+        final long expiresNanos;
+
+        CacheEntry(V value, long expiresNanos) {
+            this.value = value;
+            this.expiresNanos = expiresNanos;
+        }
+    }
+
+    private final String name;
+    private final long ttlNanos;
+    private final int maxEntries;
+
+    /** Guarded by this */
+    private final LinkedHashMap<K, CacheEntry<V>> entries;
+    /** Incremented by every invalidation; guarded by this */
+    private long generation;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private final AtomicLong invalidations = new AtomicLong();
+
+    /**
+     * @param ttlNanos how long entries live; if 0, nothing is cached
+     * @param maxEntries the most entries kept; the least recently used is
+     * evicted to make room
+     */
+    ExpiringCache(String name, long ttlNanos, final int maxEntries) {
+        if (ttlNanos < 0) {
+            throw new IllegalArgumentException("ttl must be >= 0: " + ttlNanos);
+        }
+        if (maxEntries < 1) {
+            throw new IllegalArgumentException("maxEntries must be >= 1: " + maxEntries);
+        }
+        this.name = name;
+        this.ttlNanos = ttlNanos;
+        this.maxEntries = maxEntries;
+        this.entries = new LinkedHashMap<K, CacheEntry<V>>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<K, CacheEntry<V>> eldest) {
+                if (size() > ExpiringCache.this.maxEntries) {
+                    evictions.incrementAndGet();
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    boolean isEnabled() {
+        return ttlNanos > 0;
+    }
+
+    /**
+     * Returns the cached value of the key, loading and caching it on a miss.
+     */
+    V get(K key, Loader<K, V> loader) throws AbortException {
+        if (!isEnabled()) {
+            return loader.load(key);
+        }
+        final long loadGeneration;
+        synchronized (this) {
+            CacheEntry<V> entry = live(key);
+            if (entry != null) {
+                hits.incrementAndGet();
+                return entry.value;
+            }
+            loadGeneration = generation;
+        }
+        misses.incrementAndGet();
+        V value = loader.load(key);
+        put(key, value, loadGeneration);
+        return value;
+    }
+
+    /**
+     * Returns the values of the given keys, answering what it can from the
+     * cache and loading the rest with a single call to the loader. Keys
+     * without a value are absent from the result, and cached as
+     * <code>null</code>.
+     */
+    Map<K, V> getAll(Collection<K> keys, BulkLoader<K, V> loader) throws AbortException {
+        Map<K, V> result = new HashMap<K, V>();
+        List<K> missing = new ArrayList<K>();
+        final long loadGeneration = generation();
+        for (K key : keys) {
+            CacheEntry<V> entry = getIfPresent(key);
+            if (entry == null) {
+                missing.add(key);
+            } else if (entry.value != null) {
+                result.put(key, entry.value);
+            }
+        }
+        if (missing.isEmpty()) {
+            return result;
+        }
+        Map<K, V> loaded = loader.loadAll(missing);
+        for (K key : missing) {
+            put(key, loaded.get(key), loadGeneration);
+        }
+        result.putAll(loaded);
+        return result;
+    }
+
+    /**
+     * Returns the live entry for the key, or <code>null</code> on a miss;
+     * counts as a hit or a miss.
+     */
+    CacheEntry<V> getIfPresent(K key) {
+        if (!isEnabled()) {
+            return null;
+        }
+        CacheEntry<V> entry;
+        synchronized (this) {
+            entry = live(key);
+        }
+        (entry != null ? hits : misses).incrementAndGet();
+        return entry;
+    }
+
+    /**
+     * Returns the live entry for the key without counting a hit or miss.
+     */
+    synchronized CacheEntry<V> peek(K key) {
+        return live(key);
+    }
+
+    /** Must hold the lock */
+    private CacheEntry<V> live(K key) {
+        CacheEntry<V> entry = entries.get(key);
+        if (entry != null && entry.expiresNanos - System.nanoTime() <= 0) {
+            entries.remove(key);
+            return null;
+        }
+        return entry;
+    }
+
+    /**
+     * Returns the current generation, to be passed to
+     * {@link #put(Object, Object, long)} by a caller loading values itself.
+     */
+    synchronized long generation() {
+        return generation;
+    }
+
+    /**
+     * Caches a value loaded while the cache was at the given generation, unless
+     * something has been invalidated since.
+     */
+    synchronized void put(K key, V value, long loadGeneration) {
+        if (isEnabled() && loadGeneration == generation) {
+            entries.put(key, new CacheEntry<V>(value, System.nanoTime() + ttlNanos));
+        }
+    }
+
+    synchronized void invalidate(K key) {
+        generation++;
+        if (entries.remove(key) != null) {
+            invalidations.incrementAndGet();
+        }
+    }
+
+    synchronized void invalidateAll() {
+        generation++;
+        invalidations.addAndGet(entries.size());
+        entries.clear();
+    }
+
+    CacheStats getStats() {
+        int size;
+        synchronized (this) {
+            size = entries.size();
+        }
+        return new CacheStats(name, hits.get(), misses.get(), evictions.get(), invalidations.get(), size);
+    }
+}
@@ -0,0 +1,382 @@
+package io.magnum.awscommons;
+
+import io.magnum.awscommons.concurrent.DaemonThreads;
+import io.magnum.awscommons.retry.AbortException;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.amazonaws.services.ec2.model.DescribeInstancesResult;
+import com.amazonaws.services.ec2.model.Instance;
+import com.amazonaws.services.ec2.model.Reservation;
+import com.amazonaws.services.ec2.model.Tag;
+
+/**
+ * Keeps an in-memory inventory of every EC2 instance in our account, indexed
+ * so that questions such as "the running instances tagged X in zone Y" are
+ * answered without a DescribeInstances sweep each time.
+ * <p>
+ * Each refresh lists the instances a page at a time with
+ * {@link GeneralAwsHelper#getInstancesPage(String)}, so that a retrying
+ * helper retries only the page which failed rather than the whole sweep, and
+ * builds a new immutable {@link Snapshot}, indexed by state, tag,
+ * availability zone, image and Auto Scaling group, which then replaces the
+ * current one in a single write.
+ * Readers take no lock: each call to {@link #getSnapshot()} returns whichever
+ * version is current, and every question asked of that version is answered
+ * consistently, however many refreshes happen meanwhile.
+ * <p>
+ * Refreshes are made by {@link #refresh()}, or every interval once
+ * {@link #start()} has been called; a background refresh which fails is
+ * logged and leaves the current version in place. This class is thread-safe.
+ *
+ * @author Yu Sun
+ */
+public class FleetInventory {
+
+    private final static Logger logger = LoggerFactory.getLogger(FleetInventory.class);
+
+    /** The tag Auto Scaling puts on the instances it launches */
+    static final String AUTO_SCALING_GROUP_TAG = "aws:autoscaling:groupName";
+
+    private final GeneralAwsHelper awsHelper;
+    private final long refreshIntervalNanos;
+
+    /** Numbers the refreshes in the order they start listing */
+    private final AtomicLong refreshes = new AtomicLong();
+
+    private volatile Snapshot snapshot = new Snapshot(Collections.<Instance>emptyList(), 0, 0);
+
+    /** Guarded by this */
+    private ScheduledFuture<?> task;
+
+    public final static class Builder {
+        private final GeneralAwsHelper awsHelper;
+        private long refreshIntervalNanos = TimeUnit.MINUTES.toNanos(1);
+
+        public Builder(final GeneralAwsHelper awsHelper) {
+            if (awsHelper == null) {
+                throw new IllegalArgumentException("awsHelper cannot be null");
+            }
+            this.awsHelper = awsHelper;
+        }
+
+        public FleetInventory build() {
+            return new FleetInventory(this);
+        }
+
+        /**
+         * Sets how often the inventory is refreshed once started. Defaults to
+         * one minute.
+         */
+        public Builder withRefreshInterval(final long refreshInterval, final TimeUnit unit) {
+            if (refreshInterval <= 0) {
+                throw new IllegalArgumentException("refreshInterval must be > 0: " + refreshInterval);
+            }
+            this.refreshIntervalNanos = unit.toNanos(refreshInterval);
+            return this;
+        }
+    }
+
+    private FleetInventory(final Builder builder) {
+        this.awsHelper = builder.awsHelper;
+        this.refreshIntervalNanos = builder.refreshIntervalNanos;
+    }
+
+    /**
+     * Returns the current version of the inventory; empty until the first
+     * refresh.
+     */
+    public Snapshot getSnapshot() {
+        return snapshot;
+    }
+
+    /**
+     * Lists the instances now and makes them the current version.
+     *
+     * @return the new version
+     * @throws AbortException if the instances could not be listed; the
+     * current version is then kept
+     */
+    public Snapshot refresh() throws AbortException {
+        long sequence = refreshes.incrementAndGet();
+        long startedAt = System.currentTimeMillis();
+        Snapshot refreshed = new Snapshot(listInstances(), startedAt, sequence);
+        // refreshes may overlap; the one which started listing last wins,
+        // whatever order they finish in
+        synchronized (this) {
+            if (refreshed.sequence > snapshot.sequence) {
+                snapshot = refreshed;
+            }
+            return snapshot;
+        }
+    }
+
+    private List<Instance> listInstances() throws AbortException {
+        List<Instance> instances = new ArrayList<Instance>();
+        String nextToken = null;
+        do {
+            DescribeInstancesResult page = awsHelper.getInstancesPage(nextToken);
+            for (Reservation reservation : page.getReservations()) {
+                instances.addAll(reservation.getInstances());
+            }
+            nextToken = page.getNextToken();
+        } while (nextToken != null);
+        return instances;
+    }
+
+    /**
+     * Refreshes the inventory now and then every interval, in the background,
+     * until {@link #close()} is called.
+     */
+    public synchronized void start() {
+        if (task != null) {
+            return;
+        }
+        task = DaemonThreads.sharedScheduler().scheduleWithFixedDelay(DaemonThreads.onSharedExecutor(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    refresh();
+                } catch (AbortException | RuntimeException e) {
+                    logger.warn("Unable to refresh the fleet inventory", e);
+                }
+            }
+        }), 0, refreshIntervalNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Stops the background refreshes. The current version can still be read.
+     */
+    public synchronized void close() {
+        if (task != null) {
+            task.cancel(false);
+            task = null;
+        }
+    }
+
+    /**
+     * One version of the inventory, which never changes once built. The lists
+     * it returns are unmodifiable, and the SDK instances in them are shared,
+     * so callers must not modify them.
+     */
+    public static final class Snapshot {
+        private final long refreshedAt;
+        /** The number of the refresh which built this version; 0 for none */
+        final long sequence;
+        private final List<Instance> instances;
+        private final Map<String, Instance> byId;
+        private final Map<Ec2InstanceState, List<Instance>> byState;
+        private final Map<String, Map<String, List<Instance>>> byTag;
+        private final Map<String, List<Instance>> byZone;
+        private final Map<String, List<Instance>> byImage;
+        private final Map<String, List<Instance>> byAutoScalingGroup;
+
+        Snapshot(final List<Instance> instances, final long refreshedAt, final long sequence) {
+            this.refreshedAt = refreshedAt;
+            this.sequence = sequence;
+            Map<String, Instance> byId = new LinkedHashMap<String, Instance>();
+            Map<Ec2InstanceState, List<Instance>> byState = new EnumMap<Ec2InstanceState, List<Instance>>(
+                    Ec2InstanceState.class);
+            Map<String, Map<String, List<Instance>>> byTag = new HashMap<String, Map<String, List<Instance>>>();
+            Map<String, List<Instance>> byZone = new HashMap<String, List<Instance>>();
+            Map<String, List<Instance>> byImage = new HashMap<String, List<Instance>>();
+            Map<String, List<Instance>> byAutoScalingGroup = new HashMap<String, List<Instance>>();
+            for (Instance instance : instances) {
+                byId.put(instance.getInstanceId(), instance);
+                index(byState, stateOf(instance), instance);
+                if (instance.getPlacement() != null) {
+                    index(byZone, instance.getPlacement().getAvailabilityZone(), instance);
+                }
+                index(byImage, instance.getImageId(), instance);
+                for (Tag tag : instance.getTags()) {
+                    Map<String, List<Instance>> byValue = byTag.get(tag.getKey());
+                    if (byValue == null) {
+                        byValue = new HashMap<String, List<Instance>>();
+                        byTag.put(tag.getKey(), byValue);
+                    }
+                    index(byValue, tag.getValue(), instance);
+                    if (AUTO_SCALING_GROUP_TAG.equals(tag.getKey())) {
+                        index(byAutoScalingGroup, tag.getValue(), instance);
+                    }
+                }
+            }
+            this.instances = Collections.unmodifiableList(new ArrayList<Instance>(byId.values()));
+            this.byId = byId;
+            this.byState = freeze(byState);
+            Map<String, Map<String, List<Instance>>> frozenByTag = new HashMap<String, Map<String, List<Instance>>>();
+            for (Map.Entry<String, Map<String, List<Instance>>> entry : byTag.entrySet()) {
+                frozenByTag.put(entry.getKey(), freeze(entry.getValue()));
+            }
+            this.byTag = frozenByTag;
+            this.byZone = freeze(byZone);
+            this.byImage = freeze(byImage);
+            this.byAutoScalingGroup = freeze(byAutoScalingGroup);
+        }
+
+        /**
+         * Returns when the listing of the instances started, in milliseconds
+         * since the epoch; 0 if they never have been listed.
+         */
+        public long getRefreshedAt() {
+            return refreshedAt;
+        }
+
+        public int size() {
+            return byId.size();
+        }
+
+        /**
+         * Returns the instance with the ID, or <code>null</code> if there was
+         * none.
+         */
+        public Instance getInstance(final String instanceId) {
+            return byId.get(instanceId);
+        }
+
+        public List<Instance> getInstances() {
+            return instances;
+        }
+
+        public List<Instance> getInstancesInState(final Ec2InstanceState state) {
+            return lookup(byState, state);
+        }
+
+        /**
+         * Returns the instances whose tag has the value, or which have the tag
+         * at all if the value is <code>null</code>.
+         */
+        public List<Instance> getInstancesWithTag(final String key, final String value) {
+            Map<String, List<Instance>> byValue = byTag.get(key);
+            if (byValue == null) {
+                return Collections.emptyList();
+            } else if (value != null) {
+                return lookup(byValue, value);
+            }
+            List<Instance> instances = new ArrayList<Instance>();
+            for (List<Instance> tagged : byValue.values()) {
+                instances.addAll(tagged);
+            }
+            return Collections.unmodifiableList(instances);
+        }
+
+        public List<Instance> getInstancesInZone(final String availabilityZone) {
+            return lookup(byZone, availabilityZone);
+        }
+
+        public List<Instance> getInstancesOfImage(final String imageId) {
+            return lookup(byImage, imageId);
+        }
+
+        /**
+         * Returns the instances launched by the Auto Scaling group, as told by
+         * the tag Auto Scaling puts on them.
+         */
+        public List<Instance> getInstancesOfAutoScalingGroup(final String autoScalingGroupName) {
+            return lookup(byAutoScalingGroup, autoScalingGroupName);
+        }
+
+        /**
+         * Returns the instances which meet every criterion given, starting
+         * from the smallest index which applies.
+         *
+         * @param state the state, or <code>null</code> for any
+         * @param availabilityZone the zone, or <code>null</code> for any
+         * @param tags the tags the instances must have, with their values;
+         * <code>null</code> or empty for any
+         */
+        public List<Instance> find(final Ec2InstanceState state, final String availabilityZone,
+                final Map<String, String> tags) {
+            List<Instance> candidates = null;
+            if (state != null) {
+                candidates = smallest(candidates, getInstancesInState(state));
+            }
+            if (availabilityZone != null) {
+                candidates = smallest(candidates, getInstancesInZone(availabilityZone));
+            }
+            if (tags != null) {
+                for (Map.Entry<String, String> tag : tags.entrySet()) {
+                    candidates = smallest(candidates, getInstancesWithTag(tag.getKey(), tag.getValue()));
+                }
+            }
+            if (candidates == null) {
+                return getInstances();
+            }
+            List<Instance> found = new ArrayList<Instance>();
+            for (Instance instance : candidates) {
+                if ((state == null || state == stateOf(instance))
+                        && (availabilityZone == null || instance.getPlacement() != null
+                                && availabilityZone.equals(instance.getPlacement().getAvailabilityZone()))
+                        && hasTags(instance, tags)) {
+                    found.add(instance);
+                }
+            }
+            return Collections.unmodifiableList(found);
+        }
+
+        @Override
+        public String toString() {
+            return "Snapshot [refreshedAt=" + refreshedAt + ", instances=" + byId.size() + "]";
+        }
+
+        private static List<Instance> smallest(final List<Instance> a, final List<Instance> b) {
+            return a == null || b.size() < a.size() ? b : a;
+        }
+
+        private static boolean hasTags(final Instance instance, final Map<String, String> tags) {
+            if (tags == null || tags.isEmpty()) {
+                return true;
+            }
+            Map<String, String> instanceTags = new HashMap<String, String>();
+            for (Tag tag : instance.getTags()) {
+                instanceTags.put(tag.getKey(), tag.getValue());
+            }
+            for (Map.Entry<String, String> tag : tags.entrySet()) {
+                if (!instanceTags.containsKey(tag.getKey())
+                        || tag.getValue() != null && !tag.getValue().equals(instanceTags.get(tag.getKey()))) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private static Ec2InstanceState stateOf(final Instance instance) {
+            return instance.getState() == null ? null : Ec2InstanceState.parse(instance.getState().getName());
+        }
+
+        private static <K> void index(final Map<K, List<Instance>> index, final K key, final Instance instance) {
+            if (key == null) {
+                return;
+            }
+            List<Instance> instances = index.get(key);
+            if (instances == null) {
+                instances = new ArrayList<Instance>();
+                index.put(key, instances);
+            }
+            instances.add(instance);
+        }
+
+        private static <K> Map<K, List<Instance>> freeze(final Map<K, List<Instance>> index) {
+            for (Map.Entry<K, List<Instance>> entry : index.entrySet()) {
+                entry.setValue(Collections.unmodifiableList(entry.getValue()));
+            }
+            return index;
+        }
+
+        private static <K> List<Instance> lookup(final Map<K, List<Instance>> index, final K key) {
+            List<Instance> instances = index.get(key);
+            return instances == null ? Collections.<Instance>emptyList() : instances;
+        }
+    }
+}
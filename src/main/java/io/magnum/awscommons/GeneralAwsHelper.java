@@ -1,6 +1,8 @@
 package io.magnum.awscommons;
 
 import io.magnum.awscommons.retry.AbortException;
+import io.magnum.awscommons.retry.Idempotent;
+import io.magnum.awscommons.retry.RetryPolicy;
 
 import java.util.Collection;
 import java.util.List;
@@ -9,25 +11,63 @@ import java.util.Set;
 
 import com.amazonaws.services.autoscaling.model.AutoScalingGroup;
 import com.amazonaws.services.autoscaling.model.LaunchConfiguration;
+import com.amazonaws.services.cloudformation.model.DescribeStacksResult;
 import com.amazonaws.services.cloudformation.model.Parameter;
 import com.amazonaws.services.cloudformation.model.Stack;
 import com.amazonaws.services.cloudformation.model.StackResource;
+import com.amazonaws.services.ec2.model.DescribeInstancesResult;
 import com.amazonaws.services.ec2.model.Instance;
 import com.amazonaws.services.elasticloadbalancing.model.LoadBalancerDescription;
 
 /**
  * An interface whose implementations provide general AWS functionality.
+ * <p>
+ * Each method declares how long a {@link RetryingGeneralAwsHelperFactory}
+ * helper may retry it, overriding the limits of the helper's
+ * {@link io.magnum.awscommons.retry.RetryHelper}: read-only calls retry for
+ * up to {@link #DESCRIBE_DEADLINE_MILLIS}, and changes are tried at most
+ * {@link #MUTATION_MAX_TRIES} times, stack changes over a longer deadline
+ * than the rest. The helper's backoff and arbiter still apply unless a
+ * method names its own.
  *
  * @author Yu Sun
  */
 public interface GeneralAwsHelper {
 
+    /**
+     * How long a read-only call may keep retrying when made through a
+     * {@link RetryingGeneralAwsHelperFactory} helper. Each attempt normally
+     * answers in well under a second; one still failing after this long is
+     * better reported than retried.
+     */
+    long DESCRIBE_DEADLINE_MILLIS = 120000;
+
+    /**
+     * How long a stack creation or update may keep retrying; CloudFormation
+     * throttles these hard, and giving up on one is costly.
+     */
+    long STACK_CHANGE_DEADLINE_MILLIS = 900000;
+
+    /** How long any other change may keep retrying */
+    long MUTATION_DEADLINE_MILLIS = 300000;
+
+    /**
+     * The most attempts made at a change; a request which failed ambiguously
+     * may have taken effect, so changes are not retried indefinitely.
+     */
+    int MUTATION_MAX_TRIES = 5;
+
     /**
      * Returns a list of all of the auto-scaling groups in our account.
+     * <p>
+     * Every page is fetched within this one call, so a retrying helper
+     * retries a failure from the first page.
      * 
      * @return such a list; possibly empty, but never <code>null</code>
      * @throws AbortException if the request could not be completed
      */
+    @Idempotent
+    @RetryPolicy(deadlineMillis = DESCRIBE_DEADLINE_MILLIS)
     List<AutoScalingGroup> getAutoScalingGroups() throws AbortException;
 
     /**
@@ -40,6 +80,7 @@ public interface GeneralAwsHelper {
      * @return an instance
      * @throws AbortException if the request could not be completed
      */
+    @RetryPolicy(maxTries = MUTATION_MAX_TRIES, deadlineMillis = MUTATION_DEADLINE_MILLIS)
     Instance createInstance(final String imageId, final String instanceType, final List<String> securityGroups,
             final String keyName) throws AbortException;
 
@@ -49,6 +90,8 @@ public interface GeneralAwsHelper {
      * @return an instance or null if none could be found
      * @throws AbortException if the request could not be completed
      */
+    @Idempotent
+    @RetryPolicy(deadlineMillis = DESCRIBE_DEADLINE_MILLIS)
     Instance getInstanceById(final String instanceId) throws AbortException;
 
     /**
@@ -58,8 +101,39 @@ public interface GeneralAwsHelper {
      * @return such a map; possibly empty, but never <code>null</code>
      * @throws AbortException if the request could not be completed
      */
+    @Idempotent
+    @RetryPolicy(deadlineMillis = DESCRIBE_DEADLINE_MILLIS)
     Map<String, Instance> getInstancesById(final Collection<String> instanceIds) throws AbortException;
 
+    /**
+     * Returns every instance in our account, in any state, following the
+     * pages of the listing. To ask questions of the fleet repeatedly, use a
+     * {@link FleetInventory} rather than calling this each time.
+     * <p>
+     * Every page is fetched within this one call, so a retrying helper
+     * retries a failure from the first page; {@link #getInstancesPage(String)}
+     * fetches one page per call instead.
+     * 
+     * @return the instances; possibly empty, but never <code>null</code>
+     * @throws AbortException if the request could not be completed
+     */
+    @Idempotent
+    @RetryPolicy(deadlineMillis = DESCRIBE_DEADLINE_MILLIS)
+    List<Instance> getInstances() throws AbortException;
+
+    /**
+     * Returns one page of the instances in our account, in any state.
+     * 
+     * @param nextToken the token of the page to return, as given by the
+     * previous page; <code>null</code> for the first page
+     * @return the page, with the token of the next page, or <code>null</code>
+     * if this is the last
+     * @throws AbortException if the request could not be completed
+     */
+    @Idempotent
+    @RetryPolicy(deadlineMillis = DESCRIBE_DEADLINE_MILLIS)
+    DescribeInstancesResult getInstancesPage(final String nextToken) throws AbortException;
+
     /**
      * Creates a new Amazon Machine Image based upon the specified instance.
      * 
@@ -68,6 +142,7 @@ public interface GeneralAwsHelper {
      * @return an image Id
      * @throws AbortException if the request could not be completed
      */
+    @RetryPolicy(maxTries = MUTATION_MAX_TRIES, deadlineMillis = MUTATION_DEADLINE_MILLIS)
     String createImage(final String instanceId, final String name) throws AbortException;
 
     /**
@@ -75,6 +150,7 @@ public interface GeneralAwsHelper {
      * 
      * @param stackName
      */
+    @RetryPolicy(maxTries = MUTATION_MAX_TRIES, deadlineMillis = MUTATION_DEADLINE_MILLIS)
     void deleteStack(String stackName);
     
     /**
@@ -85,8 +161,23 @@ public interface GeneralAwsHelper {
      * @return true if and only if the image exists and has the available status
      * @throws AbortException if the request could not be completed
      */
+    @Idempotent
+    @RetryPolicy(deadlineMillis = DESCRIBE_DEADLINE_MILLIS)
     boolean isImageAvailable(final String imageId) throws AbortException;
 
+    /**
+     * Looks up the states of images by their IDs in one request, e.g.
+     * "pending", "available" or "failed".
+     * 
+     * @param imageIds the images
+     * @return a map from image ID to state of those images which exist;
+     * possibly empty, but never <code>null</code>
+     * @throws AbortException if the request could not be completed
+     */
+    @Idempotent
+    @RetryPolicy(deadlineMillis = DESCRIBE_DEADLINE_MILLIS)
+    Map<String, String> getImageStates(final Collection<String> imageIds) throws AbortException;
+
     /**
      * Creates a new CloudFormation stack.
      * 
@@ -96,6 +187,7 @@ public interface GeneralAwsHelper {
      * @return the Id of the new stack
      * @throws AbortException if the request could not be completed
      */
+    @RetryPolicy(maxTries = MUTATION_MAX_TRIES, deadlineMillis = STACK_CHANGE_DEADLINE_MILLIS)
     String createStack(final String stackName, final String template, final List<Parameter> parameters)
             throws AbortException;
 
@@ -108,17 +200,40 @@ public interface GeneralAwsHelper {
      * @return the Id of the updated stack
      * @throws AbortException if the request could not be completed
      */
+    @RetryPolicy(maxTries = MUTATION_MAX_TRIES, deadlineMillis = STACK_CHANGE_DEADLINE_MILLIS)
     String updateStack(final String stackName, final String template, final List<Parameter> parameters)
             throws AbortException;
 
     /**
      * Returns a list of all the Cloud Formation stacks in our account.
+     * <p>
+     * Every page is fetched within this one call, so a retrying helper
+     * retries a failure from the first page.
+     * {@link CloudFormationStackIterator#listStacks(GeneralAwsHelper)} fetches
+     * the pages with one call each instead.
      * 
      * @return such a list; possibly empty, but never <code>null</code>
      * @throws AbortException if unable to complete the request
      */
+    @Idempotent
+    @RetryPolicy(deadlineMillis = DESCRIBE_DEADLINE_MILLIS)
     List<Stack> getCloudFormationStacks() throws AbortException;
 
+    /**
+     * Returns one page of the Cloud Formation stacks in our account. Most
+     * callers want {@link #getCloudFormationStacks()}, or a
+     * {@link CloudFormationStackIterator} to process the stacks page by page.
+     * 
+     * @param nextToken the token of the page to return, as given by the
+     * previous page; <code>null</code> for the first page
+     * @return the page, with the token of the next page, or <code>null</code>
+     * if this is the last
+     * @throws AbortException if unable to complete the request
+     */
+    @Idempotent
+    @RetryPolicy(deadlineMillis = DESCRIBE_DEADLINE_MILLIS)
+    DescribeStacksResult getCloudFormationStacksPage(final String nextToken) throws AbortException;
+
     /**
      * Get a Cloud Formation stack with {@param stackName}.
      * 
@@ -126,6 +241,8 @@ public interface GeneralAwsHelper {
      * @return {@link Stack} if the stack is found, null otherwise
      * @throws AbortException if unable to complete the request
      */
+    @Idempotent
+    @RetryPolicy(deadlineMillis = DESCRIBE_DEADLINE_MILLIS)
     Stack getCloudFormationStack(final String stackName) throws AbortException;
 
     /**
@@ -135,6 +252,8 @@ public interface GeneralAwsHelper {
      * @return the template content
      * @throws AbortException if unable to complete the request
      */
+    @Idempotent
+    @RetryPolicy(deadlineMillis = DESCRIBE_DEADLINE_MILLIS)
     String getCloudFormationStackTemplate(final String stackName) throws AbortException;
     
     /**
@@ -147,6 +266,8 @@ public interface GeneralAwsHelper {
      *             if the more than one auto scaling group was found or the
      *             request could not otherwise be completed
      */
+    @Idempotent
+    @RetryPolicy(deadlineMillis = DESCRIBE_DEADLINE_MILLIS)
     AutoScalingGroup getCloudFormationStackAutoScalingGroup(final String stackName) throws AbortException;
 
     /**
@@ -160,6 +281,8 @@ public interface GeneralAwsHelper {
      *             if the more than one load balancer was found or the request
      *             could not otherwise be completed
      */
+    @Idempotent
+    @RetryPolicy(deadlineMillis = DESCRIBE_DEADLINE_MILLIS)
     LoadBalancerDescription getCloudFormationStackLoadBalancer(final String stackName) throws AbortException;
 
     /**
@@ -169,6 +292,8 @@ public interface GeneralAwsHelper {
      * @return list of {@link StackResource}s associated with the stack; possibly empty, but never <code>null</code>
      * @throws AbortException if the request could not be completed
      */
+    @Idempotent
+    @RetryPolicy(deadlineMillis = DESCRIBE_DEADLINE_MILLIS)
     List<StackResource> getCloudFormationStackResources(final String stackName) throws AbortException;
 
     /**
@@ -178,8 +303,24 @@ public interface GeneralAwsHelper {
      * @return the group, if such a group exists; otherwise, <code>null</code>
      * @throws AbortException if unable to complete the request
      */
+    @Idempotent
+    @RetryPolicy(deadlineMillis = DESCRIBE_DEADLINE_MILLIS)
     AutoScalingGroup getAutoScalingGroup(final String autoScalingGroupName) throws AbortException;
 
+    /**
+     * Retrieves auto scaling groups by name, in as few requests as the API
+     * allows.
+     * 
+     * @param autoScalingGroupNames the names of the groups to retrieve
+     * @return a map from name to group of those groups which exist; possibly
+     * empty, but never <code>null</code>
+     * @throws AbortException if unable to complete the request
+     */
+    @Idempotent
+    @RetryPolicy(deadlineMillis = DESCRIBE_DEADLINE_MILLIS)
+    Map<String, AutoScalingGroup> getAutoScalingGroupsByName(final Collection<String> autoScalingGroupNames)
+            throws AbortException;
+
     /**
      * Retrieves a specific load balancer by name.
      * 
@@ -188,14 +329,32 @@ public interface GeneralAwsHelper {
      * otherwise, <code>null</code>
      * @throws AbortException if unable to complete the request
      */
+    @Idempotent
+    @RetryPolicy(deadlineMillis = DESCRIBE_DEADLINE_MILLIS)
     LoadBalancerDescription getElasticLoadBalancer(final String loadBalancerName) throws AbortException;
 
+    /**
+     * Retrieves load balancers by name, in as few requests as the API allows.
+     * 
+     * @param loadBalancerNames the names of the load balancers to retrieve
+     * @return a map from name to load balancer; possibly empty, but never
+     * <code>null</code>
+     * @throws AbortException if unable to complete the request, including
+     * when any of the load balancers does not exist
+     */
+    @Idempotent
+    @RetryPolicy(deadlineMillis = DESCRIBE_DEADLINE_MILLIS)
+    Map<String, LoadBalancerDescription> getElasticLoadBalancersByName(final Collection<String> loadBalancerNames)
+            throws AbortException;
+
     /**
      * Attempts to terminate one instance via the Auto Scaling service.
      * 
      * @param instanceId the instance to be terminated
      * @throws AbortException if unable to complete the request
      */
+    @RetryPolicy(maxTries = MUTATION_MAX_TRIES, deadlineMillis = MUTATION_DEADLINE_MILLIS,
+            arbiter = AutoScalingTerminationArbiter.class)
     void terminateViaAutoScaling(final String instanceId) throws AbortException;
 
     /**
@@ -204,8 +363,28 @@ public interface GeneralAwsHelper {
      * @param instanceId the instance to be terminated
      * @throws AbortException if unable to complete the request
      */
+    @RetryPolicy(maxTries = MUTATION_MAX_TRIES, deadlineMillis = MUTATION_DEADLINE_MILLIS)
     void terminateViaEc2(final String instanceId) throws AbortException;
 
+    /**
+     * Terminates instances directly using EC2 APIs, in as few requests as
+     * the API allows. EC2 rejects a whole request naming an instance which
+     * does not exist, so such a request is sent again without the instances
+     * EC2 names as unknown, which are taken to be already gone.
+     * 
+     * @param instanceIds the instances to be terminated
+     * @return a map from instance ID to the state each instance is now in,
+     * e.g. {@link Ec2InstanceState#SHUTTING_DOWN}, or
+     * {@link Ec2InstanceState#TERMINATED} for those EC2 did not know; possibly
+     * empty, but never
+     * <code>null</code>
+     * @throws AbortException if unable to complete the request; instances in
+     * the requests sent before the failure may already be terminating
+     */
+    @RetryPolicy(maxTries = MUTATION_MAX_TRIES, deadlineMillis = MUTATION_DEADLINE_MILLIS)
+    Map<String, Ec2InstanceState> terminateInstancesViaEc2(final Collection<String> instanceIds)
+            throws AbortException;
+
     /**
      * Register bundle as AMI
      * 
@@ -214,6 +393,7 @@ public interface GeneralAwsHelper {
      * @return ami id
      * @throws AbortException if unable to complete the request
      */
+    @RetryPolicy(maxTries = MUTATION_MAX_TRIES, deadlineMillis = MUTATION_DEADLINE_MILLIS)
     String registerImage(final String manifest, final String desc) throws AbortException;
 
     /**
@@ -223,6 +403,7 @@ public interface GeneralAwsHelper {
      * @param instanceIds the IDs of the instances to be removed
      * @throws AbortException if unable to complete the request
      */
+    @RetryPolicy(maxTries = MUTATION_MAX_TRIES, deadlineMillis = MUTATION_DEADLINE_MILLIS)
     void removeInstancesFromLoadBalancer(final String loadBalancerName, final Set<String> instanceIds)
             throws AbortException;  
 
@@ -238,6 +419,8 @@ public interface GeneralAwsHelper {
      * @return such a map; possibly empty, but never <code>null</code>
      * @throws AbortException if unable to complete the request
      */
+    @Idempotent
+    @RetryPolicy(deadlineMillis = DESCRIBE_DEADLINE_MILLIS)
     Map<String, ElasticLoadBalancingInstanceState> getLoadBalancerInstanceHealth(final String loadBalancerName,
             final Collection<String> instanceIds) throws AbortException;
 
@@ -248,6 +431,7 @@ public interface GeneralAwsHelper {
      * @param tags the tags to be applied
      * @throws AbortException if unable to complete the request
      */
+    @RetryPolicy(maxTries = MUTATION_MAX_TRIES, deadlineMillis = MUTATION_DEADLINE_MILLIS)
     void putTags(final Collection<String> resourceIds, final Map<String, String> tags) throws AbortException;
 
     /**
@@ -260,6 +444,8 @@ public interface GeneralAwsHelper {
      * @throws AbortException if unable to complete the request, or if there
      * is no such auto scaling group
      */
+    @Idempotent
+    @RetryPolicy(deadlineMillis = DESCRIBE_DEADLINE_MILLIS)
     LaunchConfiguration getAutoScalingLaunchConfiguration(final String autoScalingGroupName) throws AbortException;
 
 }
\ No newline at end of file
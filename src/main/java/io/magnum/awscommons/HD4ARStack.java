@@ -1,7 +1,10 @@
 package io.magnum.awscommons;
 
+import io.magnum.awscommons.retry.AbortException;
+
 import java.util.List;
 
+import com.amazonaws.AmazonClientException;
 import com.amazonaws.services.autoscaling.model.AutoScalingGroup;
 import com.amazonaws.services.cloudformation.model.Output;
 import com.amazonaws.services.cloudformation.model.Parameter;
@@ -83,13 +86,56 @@ public class HD4ARStack implements Comparable<HD4ARStack> {
         }
     }
     
+    /**
+     * A stack's template, fetched on first use and then remembered. Stacks
+     * fetched again while unchanged can share one, so that it is fetched at
+     * most once. This class is thread-safe.
+     */
+    static final class LazyTemplate {
+        private final String stackName;
+        /** Fetches the template; null once it has been, or if it never will be */
+        private GeneralAwsHelper awsHelper;
+        private volatile String template;
+
+        private LazyTemplate(String stackName, GeneralAwsHelper awsHelper, String template) {
+            this.stackName = stackName;
+            this.awsHelper = awsHelper;
+            this.template = template;
+        }
+
+        /** A template to be fetched through the given helper when first needed */
+        static LazyTemplate of(String stackName, GeneralAwsHelper awsHelper) {
+            return new LazyTemplate(stackName, awsHelper, null);
+        }
+
+        /** A template already in hand, or <code>null</code> for none */
+        static LazyTemplate loaded(String template) {
+            return new LazyTemplate(null, null, template);
+        }
+
+        String get() throws AbortException {
+            String result = template;
+            if (result == null) {
+                synchronized (this) {
+                    result = template;
+                    if (result == null && awsHelper != null) {
+                        result = awsHelper.getCloudFormationStackTemplate(stackName);
+                        template = result;
+                        awsHelper = null;
+                    }
+                }
+            }
+            return result;
+        }
+    }
+
     private final Stack cloudFormationStack;
-    private final String template;
+    private final LazyTemplate template;
     private final List<StackResource> stackResources;
     private final AutoScalingGroup autoScalingGroup;    
     private final LoadBalancerDescription loadBalancer;    
 
-    HD4ARStack(Stack cloudFormationStack, String template, List<StackResource> stackResources,
+    HD4ARStack(Stack cloudFormationStack, LazyTemplate template, List<StackResource> stackResources,
             AutoScalingGroup autoScalingGroup, LoadBalancerDescription loadBalancer) {
         if (cloudFormationStack == null) throw new IllegalArgumentException("missing cloudFormationStack");
         if (template == null) throw new IllegalArgumentException("missing template");
@@ -106,7 +152,23 @@ public class HD4ARStack implements Comparable<HD4ARStack> {
         return cloudFormationStack;
     }
 
+    /**
+     * Returns the stack's template, fetching it on the first call.
+     *
+     * @return the template, or <code>null</code> if the stack was fetched by
+     * a {@link StackHelper} told not to load templates
+     * @throws AmazonClientException if the template could not be fetched
+     */
     public String getTemplate() {
+        try {
+            return template.get();
+        } catch (AbortException e) {
+            throw new AmazonClientException("Unable to fetch the template of stack "
+                    + cloudFormationStack.getStackName(), e);
+        }
+    }
+
+    LazyTemplate getLazyTemplate() {
         return template;
     }
     
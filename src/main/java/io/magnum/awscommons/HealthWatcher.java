@@ -0,0 +1,218 @@
+package io.magnum.awscommons;
+
+import io.magnum.awscommons.concurrent.DaemonThreads;
+import io.magnum.awscommons.retry.AbortException;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Watches the health of the instances behind load balancers, and tells
+ * subscribers when it changes, so that callers need not poll
+ * {@link GeneralAwsHelper#getLoadBalancerInstanceHealth(String, java.util.Collection)}
+ * themselves.
+ * <p>
+ * Each load balancer with at least one subscriber is polled once per
+ * interval, with one request for all of its instances, however many
+ * subscribers it has. The last states seen are kept, and subscribers are
+ * notified only of transitions: an instance's state changing, an instance
+ * appearing (from <code>null</code>), or an instance leaving the load
+ * balancer (to <code>null</code>). The first poll after a load balancer is
+ * first subscribed to reports each of its instances as appearing; a later
+ * subscriber is told only of later transitions, and can read the states
+ * already seen from {@link #getStates(String)}. A failed poll is logged and
+ * leaves the states as they were.
+ * <p>
+ * Load balancers are polled on {@link DaemonThreads#sharedExecutor()}, timed
+ * by {@link DaemonThreads#sharedScheduler()}; a poll still running when the
+ * next is due delays it. Listeners are called on the polling thread, so must
+ * not block. This class is thread-safe.
+ *
+ * @author Yu Sun
+ */
+public class HealthWatcher {
+
+    private final static Logger logger = LoggerFactory.getLogger(HealthWatcher.class);
+
+    /**
+     * Receives the transitions of the instances behind a load balancer.
+     */
+    public interface Listener {
+        /**
+         * Called when an instance's state has changed.
+         *
+         * @param previous the state last seen, or <code>null</code> if the
+         * instance was not behind the load balancer
+         * @param current the state now, or <code>null</code> if the instance
+         * is no longer behind the load balancer
+         */
+        void onTransition(String loadBalancerName, String instanceId, ElasticLoadBalancingInstanceState previous,
+                ElasticLoadBalancingInstanceState current);
+    }
+
+    private final GeneralAwsHelper awsHelper;
+    private final long intervalNanos;
+
+    /** Guarded by this */
+    private final Map<String, Watch> watches = new HashMap<String, Watch>();
+
+    private final AtomicLong polls = new AtomicLong();
+
+    public final static class Builder {
+        private final GeneralAwsHelper awsHelper;
+        private long intervalNanos = TimeUnit.SECONDS.toNanos(10);
+
+        public Builder(final GeneralAwsHelper awsHelper) {
+            if (awsHelper == null) {
+                throw new IllegalArgumentException("awsHelper cannot be null");
+            }
+            this.awsHelper = awsHelper;
+        }
+
+        public HealthWatcher build() {
+            return new HealthWatcher(this);
+        }
+
+        /**
+         * Sets how often each load balancer is polled. Defaults to 10
+         * seconds.
+         */
+        public Builder withInterval(final long interval, final TimeUnit unit) {
+            if (interval <= 0) {
+                throw new IllegalArgumentException("interval must be > 0: " + interval);
+            }
+            this.intervalNanos = unit.toNanos(interval);
+            return this;
+        }
+    }
+
+    private HealthWatcher(final Builder builder) {
+        this.awsHelper = builder.awsHelper;
+        this.intervalNanos = builder.intervalNanos;
+    }
+
+    /**
+     * Subscribes the listener to the transitions of the load balancer's
+     * instances, starting to poll it if it is not yet watched.
+     */
+    public synchronized void subscribe(final String loadBalancerName, final Listener listener) {
+        if (loadBalancerName == null || listener == null) {
+            throw new IllegalArgumentException("loadBalancerName and listener cannot be null");
+        }
+        Watch watch = watches.get(loadBalancerName);
+        if (watch == null) {
+            watch = new Watch(loadBalancerName);
+            watches.put(loadBalancerName, watch);
+            watch.listeners.add(listener);
+            watch.start();
+        } else {
+            watch.listeners.add(listener);
+        }
+    }
+
+    /**
+     * Unsubscribes the listener, and stops polling the load balancer if it
+     * was the last subscriber.
+     */
+    public synchronized void unsubscribe(final String loadBalancerName, final Listener listener) {
+        Watch watch = watches.get(loadBalancerName);
+        if (watch != null && watch.listeners.remove(listener) && watch.listeners.isEmpty()) {
+            watch.stop();
+            watches.remove(loadBalancerName);
+        }
+    }
+
+    /**
+     * Stops watching every load balancer.
+     */
+    public synchronized void close() {
+        for (Watch watch : watches.values()) {
+            watch.stop();
+        }
+        watches.clear();
+    }
+
+    /**
+     * Returns the states last seen of the instances behind the load
+     * balancer, by instance ID; empty if it is not watched or has not been
+     * polled yet.
+     */
+    public synchronized Map<String, ElasticLoadBalancingInstanceState> getStates(final String loadBalancerName) {
+        Watch watch = watches.get(loadBalancerName);
+        return watch == null ? Collections.<String, ElasticLoadBalancingInstanceState>emptyMap() : watch.states;
+    }
+
+    /**
+     * Returns the number of polls made, across all load balancers.
+     */
+    public long getPolls() {
+        return polls.get();
+    }
+
+    private class Watch implements Runnable {
+        final String loadBalancerName;
+        final List<Listener> listeners = new CopyOnWriteArrayList<Listener>();
+        /** Unmodifiable; replaced whole by each poll */
+        volatile Map<String, ElasticLoadBalancingInstanceState> states = Collections.emptyMap();
+        private ScheduledFuture<?> task;
+
+        Watch(final String loadBalancerName) {
+            this.loadBalancerName = loadBalancerName;
+        }
+
+        void start() {
+            task = DaemonThreads.sharedScheduler().scheduleWithFixedDelay(DaemonThreads.onSharedExecutor(this), 0,
+                    intervalNanos, TimeUnit.NANOSECONDS);
+        }
+
+        void stop() {
+            task.cancel(false);
+        }
+
+        @Override
+        public void run() {
+            Map<String, ElasticLoadBalancingInstanceState> current;
+            try {
+                polls.incrementAndGet();
+                current = awsHelper.getLoadBalancerInstanceHealth(loadBalancerName, null);
+            } catch (AbortException | RuntimeException e) {
+                logger.warn("Unable to poll the health of load balancer " + loadBalancerName, e);
+                return;
+            }
+            Map<String, ElasticLoadBalancingInstanceState> previous = states;
+            states = Collections.unmodifiableMap(new HashMap<String, ElasticLoadBalancingInstanceState>(current));
+
+            Set<String> instanceIds = new HashSet<String>(previous.keySet());
+            instanceIds.addAll(current.keySet());
+            for (String instanceId : instanceIds) {
+                ElasticLoadBalancingInstanceState before = previous.get(instanceId);
+                ElasticLoadBalancingInstanceState after = current.get(instanceId);
+                if (before != after) {
+                    notify(instanceId, before, after);
+                }
+            }
+        }
+
+        private void notify(final String instanceId, final ElasticLoadBalancingInstanceState previous,
+                final ElasticLoadBalancingInstanceState current) {
+            for (Listener listener : listeners) {
+                try {
+                    listener.onTransition(loadBalancerName, instanceId, previous, current);
+                } catch (RuntimeException e) {
+                    logger.warn("health listener threw an exception", e);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,203 @@
+package io.magnum.awscommons;
+
+import io.magnum.awscommons.concurrent.SettableFuture;
+import io.magnum.awscommons.retry.AbortException;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.amazonaws.services.ec2.model.Instance;
+
+/**
+ * Looks up EC2 instances one at a time on behalf of many threads, but
+ * combines the lookups which arrive close together into a single
+ * {@link GeneralAwsHelper#getInstancesById(java.util.Collection)} call.
+ * <p>
+ * The first lookup of a batch waits up to the batching window for others to
+ * join it; the batch is sent when the window closes or as soon as it holds
+ * the maximum number of distinct IDs, and every caller receives its own
+ * instance. If the batched call fails, every caller in the batch fails with
+ * it. No background threads are used: the first caller of each batch sends
+ * it. This class is thread-safe.
+ *
+ * @author Yu Sun
+ */
+public class InstanceBatchLoader {
+
+    private final GeneralAwsHelper awsHelper;
+    private final long windowNanos;
+    private final int maxBatchSize;
+
+    private final Object lock = new Object();
+    /** The batch still accepting lookups; guarded by lock */
+    private Batch open;
+
+    private final AtomicLong lookups = new AtomicLong();
+    private final AtomicLong batches = new AtomicLong();
+
+    private static class Batch {
+        final Map<String, SettableFuture<Instance>> futuresById = new LinkedHashMap<String, SettableFuture<Instance>>();
+    }
+
+    public final static class Builder {
+        private final GeneralAwsHelper awsHelper;
+        private long windowNanos = TimeUnit.MILLISECONDS.toNanos(10);
+        private int maxBatchSize = 100;
+
+        public Builder(final GeneralAwsHelper awsHelper) {
+            if (awsHelper == null) {
+                throw new IllegalArgumentException("awsHelper cannot be null");
+            }
+            this.awsHelper = awsHelper;
+        }
+
+        public InstanceBatchLoader build() {
+            return new InstanceBatchLoader(this);
+        }
+
+        /**
+         * Sets how long the first lookup of a batch waits for others to join
+         * it. Defaults to 10 milliseconds.
+         */
+        public Builder withWindow(final long window, final TimeUnit unit) {
+            if (window < 0) {
+                throw new IllegalArgumentException("window must be >= 0: " + window);
+            }
+            this.windowNanos = unit.toNanos(window);
+            return this;
+        }
+
+        /**
+         * Sets the most distinct instance IDs sent in one call. Defaults to
+         * 100.
+         */
+        public Builder withMaxBatchSize(final int maxBatchSize) {
+            if (maxBatchSize < 1) {
+                throw new IllegalArgumentException("maxBatchSize must be >= 1: " + maxBatchSize);
+            }
+            this.maxBatchSize = maxBatchSize;
+            return this;
+        }
+    }
+
+    private InstanceBatchLoader(final Builder builder) {
+        this.awsHelper = builder.awsHelper;
+        this.windowNanos = builder.windowNanos;
+        this.maxBatchSize = builder.maxBatchSize;
+    }
+
+    /**
+     * Looks up an instance by its ID, as part of a batch.
+     *
+     * @return the instance, or <code>null</code> if none could be found
+     * @throws AbortException if the batched request could not be completed,
+     * or if interrupted while waiting for it
+     */
+    public Instance getInstanceById(final String instanceId) throws AbortException {
+        lookups.incrementAndGet();
+        final Batch batch;
+        final SettableFuture<Instance> future;
+        final boolean sender;
+        synchronized (lock) {
+            sender = open == null;
+            if (sender) {
+                open = new Batch();
+            }
+            batch = open;
+            SettableFuture<Instance> existing = batch.futuresById.get(instanceId);
+            if (existing == null) {
+                existing = new SettableFuture<Instance>();
+                batch.futuresById.put(instanceId, existing);
+            }
+            future = existing;
+            if (batch.futuresById.size() >= maxBatchSize) {
+                open = null;
+                lock.notifyAll();
+            }
+        }
+        if (sender) {
+            boolean interrupted = awaitWindow(batch);
+            send(batch);
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        return await(future, instanceId);
+    }
+
+    /**
+     * Waits until the batch is full or its window has closed, then closes
+     * it. Returns whether the wait was interrupted; the batch is closed
+     * regardless, since the other callers in it depend on it being sent.
+     */
+    private boolean awaitWindow(final Batch batch) {
+        final long deadline = System.nanoTime() + windowNanos;
+        synchronized (lock) {
+            try {
+                long remaining;
+                while (open == batch && (remaining = deadline - System.nanoTime()) > 0) {
+                    TimeUnit.NANOSECONDS.timedWait(lock, remaining);
+                }
+                return false;
+            } catch (InterruptedException e) {
+                return true;
+            } finally {
+                if (open == batch) {
+                    open = null;
+                }
+            }
+        }
+    }
+
+    private void send(final Batch batch) {
+        batches.incrementAndGet();
+        Map<String, Instance> instances;
+        try {
+            instances = awsHelper.getInstancesById(new ArrayList<String>(batch.futuresById.keySet()));
+        } catch (AbortException | RuntimeException | Error e) {
+            for (SettableFuture<Instance> future : batch.futuresById.values()) {
+                future.setException(e);
+            }
+            return;
+        }
+        for (Map.Entry<String, SettableFuture<Instance>> entry : batch.futuresById.entrySet()) {
+            entry.getValue().set(instances.get(entry.getKey()));
+        }
+    }
+
+    private static Instance await(final SettableFuture<Instance> future, final String instanceId)
+            throws AbortException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new AbortException("Interrupted while waiting for the batch looking up " + instanceId, e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new AbortException("Unable to look up instance " + instanceId, cause);
+        }
+    }
+
+    /**
+     * Returns the number of lookups made through this loader.
+     */
+    public long getLookups() {
+        return lookups.get();
+    }
+
+    /**
+     * Returns the number of batched calls made to the underlying helper.
+     */
+    public long getBatches() {
+        return batches.get();
+    }
+}
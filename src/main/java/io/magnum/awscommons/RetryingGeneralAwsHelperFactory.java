@@ -1,13 +1,22 @@
 package io.magnum.awscommons;
 
+import io.magnum.awscommons.retry.AdaptiveRateLimiter;
 import io.magnum.awscommons.retry.AwsExceptionArbiter;
+import io.magnum.awscommons.retry.CircuitBreaker;
+import io.magnum.awscommons.retry.DecorrelatedJitterBackoffStrategy;
 import io.magnum.awscommons.retry.ExceptionArbiter;
+import io.magnum.awscommons.retry.HedgingPolicy;
+import io.magnum.awscommons.retry.RetryBudget;
 import io.magnum.awscommons.retry.RetryHelper;
+import io.magnum.awscommons.retry.RetryMetrics;
 import io.magnum.awscommons.retry.RetryableFactory;
 
 import java.lang.reflect.Method;
 import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
 
 /**
@@ -17,25 +26,213 @@ import java.util.Map;
 public class RetryingGeneralAwsHelperFactory {
 
     private final static ExceptionArbiter DEFAULT_ARBITER = new AwsExceptionArbiter();
-    
-    private final static Map<Method, ExceptionArbiter> METHOD_SPECIFIC_ARBITER;
+
+    /**
+     * Used when no {@link RetryHelper} is given: retries until success, but
+     * with jittered backoff so that throttled callers don't retry in lockstep.
+     */
+    public final static RetryHelper DEFAULT_RETRY_HELPER = new RetryHelper.Builder()
+            .withBackoff(new DecorrelatedJitterBackoffStrategy(100, 20000, TimeUnit.MILLISECONDS))
+            .build();
+
+    /**
+     * The retry budget shared by every helper built with a {@link Builder}
+     * which is not given one of its own: one retry per ten successful calls,
+     * with up to 100 retries banked.
+     */
+    public final static RetryBudget SHARED_RETRY_BUDGET = new RetryBudget(0.1, 100);
+
+    /**
+     * The AWS service each {@link GeneralAwsHelper} method calls, by method
+     * name; used to scope per-service rate limiters and circuit breakers.
+     * Methods which call more than one service are charged to the first.
+     */
+    final static Map<String, AwsEndpointBinding> SERVICE_BY_METHOD_NAME;
     static {
-        try {
-            Method method = GeneralAwsHelper.class.getMethod("terminateViaAutoScaling", String.class);
-            ExceptionArbiter arbiter = new AutoScalingTerminationArbiter(DEFAULT_ARBITER);
-            
-            METHOD_SPECIFIC_ARBITER = Collections.singletonMap(method, arbiter);
-        } catch(NoSuchMethodException e) {
-            throw new AssertionError(e);
+        Map<String, AwsEndpointBinding> map = new HashMap<String, AwsEndpointBinding>();
+        for (String name : new String[] { "createInstance", "getInstanceById", "getInstancesById", "getInstances",
+                "getInstancesPage", "createImage", "isImageAvailable", "getImageStates", "terminateViaEc2",
+                "terminateInstancesViaEc2", "registerImage", "putTags" }) {
+            map.put(name, AwsEndpointBinding.ELASTIC_COMPUTE_CLOUD);
+        }
+        for (String name : new String[] { "getAutoScalingGroups", "getAutoScalingGroup", "getAutoScalingGroupsByName",
+                "terminateViaAutoScaling", "getAutoScalingLaunchConfiguration" }) {
+            map.put(name, AwsEndpointBinding.AUTO_SCALING);
+        }
+        for (String name : new String[] { "deleteStack", "createStack", "updateStack", "getCloudFormationStacks",
+                "getCloudFormationStacksPage",
+                "getCloudFormationStack", "getCloudFormationStackTemplate", "getCloudFormationStackAutoScalingGroup",
+                "getCloudFormationStackLoadBalancer", "getCloudFormationStackResources" }) {
+            map.put(name, AwsEndpointBinding.CLOUD_FORMATION);
         }
+        for (String name : new String[] { "getElasticLoadBalancer", "getElasticLoadBalancersByName",
+                "removeInstancesFromLoadBalancer", "getLoadBalancerInstanceHealth" }) {
+            map.put(name, AwsEndpointBinding.ELASTIC_LOAD_BALANCING);
+        }
+        SERVICE_BY_METHOD_NAME = Collections.unmodifiableMap(map);
     }
-    
+
+    /**
+     * Creates a helper which retries as the given {@link RetryHelper} says,
+     * without a retry budget.
+     */
     public static GeneralAwsHelper newInstance(AwsContext context, RetryHelper retryHelper) {
         return newInstance(new DefaultGeneralAwsHelper(context), retryHelper);
     }
 
+    /**
+     * Creates a helper which retries as the given {@link RetryHelper} says,
+     * without a retry budget.
+     */
     public static GeneralAwsHelper newInstance(GeneralAwsHelper awsHelper, RetryHelper retryHelper) {
-        retryHelper = (retryHelper != null ? retryHelper : RetryHelper.RETRY_FOREVER);
-        return RetryableFactory.create(GeneralAwsHelper.class, awsHelper, retryHelper, DEFAULT_ARBITER, METHOD_SPECIFIC_ARBITER);
-    }    
+        return newInstance(awsHelper, retryHelper, null);
+    }
+
+    /**
+     * Creates a retrying helper which draws its retries from the given budget.
+     * Pass a dedicated {@link RetryBudget} to isolate this helper from the
+     * shared one, or <code>null</code> to retry without a budget.
+     */
+    public static GeneralAwsHelper newInstance(GeneralAwsHelper awsHelper, RetryHelper retryHelper,
+            RetryBudget retryBudget) {
+        return newInstance(awsHelper, retryHelper, retryBudget, null);
+    }
+
+    /**
+     * Creates a retrying helper whose calls are additionally guarded by the
+     * given {@link CircuitBreaker}, so that callers fail fast instead of
+     * retrying while AWS is unavailable.
+     */
+    public static GeneralAwsHelper newInstance(GeneralAwsHelper awsHelper, RetryHelper retryHelper,
+            RetryBudget retryBudget, CircuitBreaker circuitBreaker) {
+        return new Builder(awsHelper)
+                .withRetryHelper(retryHelper)
+                .withRetryBudget(retryBudget)
+                .withCircuitBreaker(circuitBreaker)
+                .build();
+    }
+
+    /**
+     * Builds a retrying {@link GeneralAwsHelper} when more than the basic
+     * options are needed, e.g. per-service rate limiting.
+     */
+    public final static class Builder {
+        private final GeneralAwsHelper awsHelper;
+        private RetryHelper retryHelper = DEFAULT_RETRY_HELPER;
+        private RetryBudget retryBudget = SHARED_RETRY_BUDGET;
+        private CircuitBreaker circuitBreaker;
+        private final Map<AwsEndpointBinding, CircuitBreaker> circuitBreakerByService =
+                new EnumMap<AwsEndpointBinding, CircuitBreaker>(AwsEndpointBinding.class);
+        private final Map<AwsEndpointBinding, AdaptiveRateLimiter> rateLimiterByService =
+                new EnumMap<AwsEndpointBinding, AdaptiveRateLimiter>(AwsEndpointBinding.class);
+        private HedgingPolicy hedgingPolicy;
+        private RetryMetrics metrics;
+
+        public Builder(final AwsContext context) {
+            this(new DefaultGeneralAwsHelper(context));
+        }
+
+        public Builder(final GeneralAwsHelper awsHelper) {
+            this.awsHelper = awsHelper;
+        }
+
+        public GeneralAwsHelper build() {
+            Map<Method, CircuitBreaker> circuitBreakers = new HashMap<Method, CircuitBreaker>();
+            Map<Method, AdaptiveRateLimiter> rateLimiters = new HashMap<Method, AdaptiveRateLimiter>();
+            for (Method method : GeneralAwsHelper.class.getMethods()) {
+                AwsEndpointBinding service = SERVICE_BY_METHOD_NAME.get(method.getName());
+                if (service == null) {
+                    continue;
+                }
+                if (circuitBreakerByService.containsKey(service)) {
+                    circuitBreakers.put(method, circuitBreakerByService.get(service));
+                }
+                if (rateLimiterByService.containsKey(service)) {
+                    rateLimiters.put(method, rateLimiterByService.get(service));
+                }
+            }
+            return new RetryableFactory.Builder<GeneralAwsHelper>(GeneralAwsHelper.class, awsHelper)
+                    .withRetryHelper(retryHelper)
+                    .withDefaultArbiter(DEFAULT_ARBITER)
+                    .withRetryBudget(retryBudget)
+                    .withCircuitBreaker(circuitBreaker)
+                    .withMethodSpecificCircuitBreakers(circuitBreakers)
+                    .withMethodSpecificRateLimiters(rateLimiters)
+                    .withHedging(hedgingPolicy)
+                    .withMetrics(metrics)
+                    .build();
+        }
+
+        /**
+         * Sets the retry logic; if <code>null</code>,
+         * {@link RetryingGeneralAwsHelperFactory#DEFAULT_RETRY_HELPER} is used.
+         */
+        public Builder withRetryHelper(final RetryHelper retryHelper) {
+            this.retryHelper = (retryHelper != null ? retryHelper : DEFAULT_RETRY_HELPER);
+            return this;
+        }
+
+        /**
+         * Sets the budget retries are drawn from; if <code>null</code>, retries
+         * are unbudgeted. Defaults to
+         * {@link RetryingGeneralAwsHelperFactory#SHARED_RETRY_BUDGET}.
+         */
+        public Builder withRetryBudget(final RetryBudget retryBudget) {
+            this.retryBudget = retryBudget;
+            return this;
+        }
+
+        /**
+         * Guards every call with the given breaker, unless a breaker has been
+         * set for the service the call uses.
+         */
+        public Builder withCircuitBreaker(final CircuitBreaker circuitBreaker) {
+            this.circuitBreaker = circuitBreaker;
+            return this;
+        }
+
+        public Builder withCircuitBreaker(final AwsEndpointBinding service, final CircuitBreaker circuitBreaker) {
+            circuitBreakerByService.put(service, circuitBreaker);
+            return this;
+        }
+
+        /**
+         * Makes calls to the given service wait on the given limiter.
+         */
+        public Builder withRateLimiter(final AwsEndpointBinding service, final AdaptiveRateLimiter rateLimiter) {
+            rateLimiterByService.put(service, rateLimiter);
+            return this;
+        }
+
+        /**
+         * Gives each service this helper uses its own
+         * {@link AdaptiveRateLimiter} with default settings, replacing any set
+         * with {@link #withRateLimiter(AwsEndpointBinding, AdaptiveRateLimiter)}.
+         */
+        public Builder withAdaptiveRateLimiting() {
+            for (AwsEndpointBinding service : SERVICE_BY_METHOD_NAME.values()) {
+                rateLimiterByService.put(service, new AdaptiveRateLimiter.Builder(service.name()).build());
+            }
+            return this;
+        }
+
+        /**
+         * Hedges the read-only describe calls, which are annotated
+         * {@link io.magnum.awscommons.retry.Idempotent}, according to the
+         * given policy. Off by default.
+         */
+        public Builder withHedging(final HedgingPolicy hedgingPolicy) {
+            this.hedgingPolicy = hedgingPolicy;
+            return this;
+        }
+
+        /**
+         * Records per-method call metrics in the given registry. Call
+         * {@link RetryMetrics#registerMBeans()} to publish them through JMX.
+         */
+        public Builder withMetrics(final RetryMetrics metrics) {
+            this.metrics = metrics;
+            return this;
+        }
+    }
 }
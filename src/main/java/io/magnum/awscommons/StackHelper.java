@@ -1,9 +1,19 @@
 package io.magnum.awscommons;
 
+import io.magnum.awscommons.concurrent.DaemonThreads;
 import io.magnum.awscommons.retry.AbortException;
 
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
 import com.amazonaws.services.autoscaling.model.AutoScalingGroup;
 import com.amazonaws.services.cloudformation.model.Stack;
@@ -12,63 +22,249 @@ import com.amazonaws.services.elasticloadbalancing.model.LoadBalancerDescription
 
 /**
  * A helper for fetching information about and creating {@link HD4ARStack}s.
+ * <p>
+ * {@link #getStacks()} fetches the templates and resources of the stacks
+ * concurrently, then resolves all of their auto scaling groups and load
+ * balancers with a few batched calls, rather than making four calls per
+ * stack one after another.
+ * <p>
+ * Templates are not fetched with the stacks: each is fetched when
+ * {@link HD4ARStack#getTemplate()} is first called, or never, if this helper
+ * was told not to load them.
  * 
  * @author Yu Sun
  */
 public class StackHelper {
-    
+
     private final GeneralAwsHelper awsHelper;
-        
+    private final ExecutorService executor;
+    private final boolean loadTemplates;
+
     public StackHelper(GeneralAwsHelper awsHelper) {
+        this(awsHelper, null);
+    }
+
+    /**
+     * @param executor runs the per-stack fetches of {@link #getStacks()},
+     * and so bounds how many are in flight; if <code>null</code>,
+     * {@link DaemonThreads#sharedExecutor()} is used
+     */
+    public StackHelper(GeneralAwsHelper awsHelper, ExecutorService executor) {
+        this(awsHelper, executor, true);
+    }
+
+    /**
+     * @param executor as for {@link #StackHelper(GeneralAwsHelper, ExecutorService)}
+     * @param loadTemplates whether {@link HD4ARStack#getTemplate()} fetches
+     * the template on first use; if <code>false</code>, it returns
+     * <code>null</code> and no template is ever fetched
+     */
+    public StackHelper(GeneralAwsHelper awsHelper, ExecutorService executor, boolean loadTemplates) {
         this.awsHelper = awsHelper;
+        this.executor = executor != null ? executor : DaemonThreads.sharedExecutor();
+        this.loadTemplates = loadTemplates;
     }
-       
+
     public List<HD4ARStack> getStacks() throws AbortException {
-        List<Stack> stacks = awsHelper.getCloudFormationStacks();
+        List<Stack> stacks = CloudFormationStackIterator.listStacks(awsHelper);
+        return convert(fetchAll(stacks));
+    }
 
-        final List<HD4ARStack> result = new ArrayList<HD4ARStack>(stacks.size());
-        for (final Stack stack : stacks) {
-            result.add(convert(stack));
+    /**
+     * Like {@link #getStacks()}, but reuses the template and resources of
+     * each stack in <code>previous</code> whose ID, status and last update
+     * time are unchanged; auto scaling groups and load balancers are always
+     * fetched afresh.
+     *
+     * @param previous stacks from an earlier call, by name
+     */
+    List<HD4ARStack> getStacks(final Map<String, HD4ARStack> previous) throws AbortException {
+        List<Stack> stacks = CloudFormationStackIterator.listStacks(awsHelper);
+        List<Stack> toFetch = new ArrayList<Stack>();
+        for (Stack stack : stacks) {
+            HD4ARStack known = previous.get(stack.getStackName());
+            if (known == null || !isSameVersion(known.getCloudFormationStack(), stack)) {
+                toFetch.add(stack);
+            }
         }
-        return result;
+        Iterator<StackDetails> fetched = fetchAll(toFetch).iterator();
+        List<StackDetails> detailsList = new ArrayList<StackDetails>(stacks.size());
+        for (Stack stack : stacks) {
+            HD4ARStack known = previous.get(stack.getStackName());
+            if (known == null || !isSameVersion(known.getCloudFormationStack(), stack)) {
+                detailsList.add(fetched.next());
+            } else {
+                detailsList.add(new StackDetails(stack, known.getLazyTemplate(), known.getStackResources()));
+            }
+        }
+        return convert(detailsList);
+    }
+
+    /**
+     * Returns whether two descriptions are of the same stack, unmodified
+     * between them.
+     */
+    static boolean isSameVersion(final Stack a, final Stack b) {
+        return equal(a.getStackId(), b.getStackId())
+                && equal(a.getStackStatus(), b.getStackStatus())
+                && equal(a.getLastUpdatedTime(), b.getLastUpdatedTime());
+    }
+
+    private static boolean equal(final Object a, final Object b) {
+        return a == null ? b == null : a.equals(b);
     }
       
     public HD4ARStack getStack(String stackName) throws AbortException {
         Stack stack = awsHelper.getCloudFormationStack(stackName);
         return stack != null ? convert(stack) : null;
     }
-       
+
     private HD4ARStack convert(Stack stack) throws AbortException {
-        String template = awsHelper.getCloudFormationStackTemplate(stack.getStackName());
+        StackDetails details = fetch(stack);
+        AutoScalingGroup group = details.autoScalingGroupName == null ? null
+                : awsHelper.getAutoScalingGroup(details.autoScalingGroupName);
+        LoadBalancerDescription loadBalancer = details.loadBalancerName == null ? null
+                : awsHelper.getElasticLoadBalancer(details.loadBalancerName);
+        return details.toStack(group, loadBalancer);
+    }
+
+    /**
+     * Builds the stacks from their details, resolving every auto scaling
+     * group and load balancer among them in batched calls.
+     */
+    private List<HD4ARStack> convert(final List<StackDetails> detailsList) throws AbortException {
+        Set<String> groupNames = new HashSet<String>();
+        Set<String> loadBalancerNames = new HashSet<String>();
+        for (StackDetails details : detailsList) {
+            if (details.autoScalingGroupName != null) {
+                groupNames.add(details.autoScalingGroupName);
+            }
+            if (details.loadBalancerName != null) {
+                loadBalancerNames.add(details.loadBalancerName);
+            }
+        }
+        Map<String, AutoScalingGroup> groups = groupNames.isEmpty()
+                ? Collections.<String, AutoScalingGroup>emptyMap()
+                : awsHelper.getAutoScalingGroupsByName(groupNames);
+        Map<String, LoadBalancerDescription> loadBalancers = loadBalancerNames.isEmpty()
+                ? Collections.<String, LoadBalancerDescription>emptyMap()
+                : awsHelper.getElasticLoadBalancersByName(loadBalancerNames);
+
+        final List<HD4ARStack> result = new ArrayList<HD4ARStack>(detailsList.size());
+        for (StackDetails details : detailsList) {
+            result.add(details.toStack(groups.get(details.autoScalingGroupName),
+                    loadBalancers.get(details.loadBalancerName)));
+        }
+        return result;
+    }
+
+    /**
+     * Fetches the details of every stack concurrently on this helper's
+     * executor, and returns them in the same order.
+     */
+    private List<StackDetails> fetchAll(final List<Stack> stacks) throws AbortException {
+        List<Future<StackDetails>> futures = new ArrayList<Future<StackDetails>>(stacks.size());
+        try {
+            for (final Stack stack : stacks) {
+                futures.add(executor.submit(new Callable<StackDetails>() {
+                    @Override
+                    public StackDetails call() throws AbortException {
+                        return fetch(stack);
+                    }
+                }));
+            }
+            List<StackDetails> detailsList = new ArrayList<StackDetails>(stacks.size());
+            for (Future<StackDetails> future : futures) {
+                detailsList.add(future.get());
+            }
+            return detailsList;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new AbortException("Interrupted while fetching " + stacks.size() + " stacks", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof AbortException) {
+                throw (AbortException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new AbortException(cause);
+        } finally {
+            // a no-op once every fetch is done; otherwise one has failed, and
+            // the rest are no longer wanted
+            for (Future<StackDetails> future : futures) {
+                future.cancel(true);
+            }
+        }
+    }
+
+    private StackDetails fetch(Stack stack) throws AbortException {
+        HD4ARStack.LazyTemplate template = newTemplate(stack.getStackName());
         
         // Resources
         List<StackResource> stackResources = awsHelper.getCloudFormationStackResources(stack.getStackName());
         
-        // AutoScalingGroup and LoadBalancer
-        AutoScalingGroup group = null;
-        LoadBalancerDescription loadBalancer = null;
-        for (final StackResource resource : stackResources) {
-            final AwsResourceType resourceType = AwsResourceType.parse(resource.getResourceType());
-            if (resourceType == null) continue; // ignore unknown resource types
-            final String physicalId = resource.getPhysicalResourceId();
-            switch (resourceType) {
-                case AUTOSCALING_GROUP:
-                    group = awsHelper.getAutoScalingGroup(physicalId);
-                    if(group == null) {
-                        throw new AbortException("AutoScaling could not find an auto-scaling group by the name of " + physicalId);
-                    }
-                    break;
-                case ELASTIC_LOAD_BALANCER:
-                    loadBalancer = awsHelper.getElasticLoadBalancer(physicalId);
-                    if(loadBalancer == null) {
-                        throw new AbortException("ElasticLoadBalancing could not find a load balancer by the name of " + physicalId);
-                    }
-                    break;
-                default: // uninteresting resource, ignore
-                    break;
+        return new StackDetails(stack, template, stackResources);
+    }
+
+    /**
+     * Returns the template of the named stack, to be fetched when first
+     * needed if this helper loads templates.
+     */
+    HD4ARStack.LazyTemplate newTemplate(String stackName) {
+        return loadTemplates ? HD4ARStack.LazyTemplate.of(stackName, awsHelper) : HD4ARStack.LazyTemplate.loaded(null);
+    }
+
+    /**
+     * What is known of a stack before its auto scaling group and load
+     * balancer are resolved.
+     */
+    private static class StackDetails {
+        final Stack stack;
+        final HD4ARStack.LazyTemplate template;
+        final List<StackResource> stackResources;
+        final String autoScalingGroupName;
+        final String loadBalancerName;
+
+        StackDetails(Stack stack, HD4ARStack.LazyTemplate template, List<StackResource> stackResources) {
+            this.stack = stack;
+            this.template = template;
+            this.stackResources = stackResources;
+
+            // AutoScalingGroup and LoadBalancer
+            String groupName = null;
+            String lbName = null;
+            for (final StackResource resource : stackResources) {
+                final AwsResourceType resourceType = AwsResourceType.parse(resource.getResourceType());
+                if (resourceType == null) continue; // ignore unknown resource types
+                final String physicalId = resource.getPhysicalResourceId();
+                switch (resourceType) {
+                    case AUTOSCALING_GROUP:
+                        groupName = physicalId;
+                        break;
+                    case ELASTIC_LOAD_BALANCER:
+                        lbName = physicalId;
+                        break;
+                    default: // uninteresting resource, ignore
+                        break;
+                }
             }
+            this.autoScalingGroupName = groupName;
+            this.loadBalancerName = lbName;
+        }
+
+        HD4ARStack toStack(AutoScalingGroup group, LoadBalancerDescription loadBalancer) throws AbortException {
+            if (autoScalingGroupName != null && group == null) {
+                throw new AbortException("AutoScaling could not find an auto-scaling group by the name of "
+                        + autoScalingGroupName);
+            }
+            if (loadBalancerName != null && loadBalancer == null) {
+                throw new AbortException("ElasticLoadBalancing could not find a load balancer by the name of "
+                        + loadBalancerName);
+            }
+            return new HD4ARStack(stack, template, stackResources, group, loadBalancer);
         }
-        
-        return new HD4ARStack(stack, template, stackResources, group, loadBalancer);
     }
 }
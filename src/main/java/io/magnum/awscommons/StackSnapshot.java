@@ -0,0 +1,290 @@
+package io.magnum.awscommons;
+
+import io.magnum.awscommons.concurrent.DaemonThreads;
+import io.magnum.awscommons.concurrent.ListenableFuture;
+import io.magnum.awscommons.concurrent.SettableFuture;
+import io.magnum.awscommons.retry.AbortException;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.amazonaws.services.autoscaling.model.AutoScalingGroup;
+import com.amazonaws.services.elasticloadbalancing.model.Instance;
+import com.amazonaws.services.elasticloadbalancing.model.LoadBalancerDescription;
+
+/**
+ * The most recently fetched {@link HD4ARStack}s, kept up to date by
+ * {@link #refresh()}.
+ * <p>
+ * A refresh lists the stacks, but re-fetches the template and resources only
+ * of those which are new or whose ID, status or last update time has
+ * changed; the others keep what was fetched before. Auto scaling groups and
+ * load balancers change without the stack being updated, so they are
+ * re-fetched for every stack, in batched calls.
+ * <p>
+ * A snapshot may be given a file to persist to. Each refresh then saves the
+ * stacks to it, and {@link #load()} reads them back, so that a restarted
+ * process can serve the last known stacks at once and revalidate them with
+ * {@link #refreshInBackground()}:
+ *
+ * <pre>
+ * StackSnapshot snapshot = new StackSnapshot(stackHelper, file);
+ * snapshot.load();
+ * snapshot.refreshInBackground();
+ * </pre>
+ *
+ * Since the loaded stacks keep their resources, the revalidating refresh
+ * fetches resources only for the stacks changed in the meantime.
+ * <p>
+ * Reads are lock-free and see the result of a whole refresh; refreshes are
+ * serialized. This class is thread-safe.
+ *
+ * @author Yu Sun
+ */
+public class StackSnapshot {
+
+    private final static Logger logger = LoggerFactory.getLogger(StackSnapshot.class);
+
+    private final StackHelper stackHelper;
+    private final File file;
+
+    /** Unmodifiable; replaced whole by each refresh */
+    private volatile Map<String, HD4ARStack> stacksByName = Collections.emptyMap();
+
+    public StackSnapshot(final StackHelper stackHelper) {
+        this(stackHelper, null);
+    }
+
+    /**
+     * @param file where the stacks are saved after each refresh and loaded
+     * from by {@link #load()}; if <code>null</code>, they are not persisted
+     */
+    public StackSnapshot(final StackHelper stackHelper, final File file) {
+        if (stackHelper == null) {
+            throw new IllegalArgumentException("stackHelper cannot be null");
+        }
+        this.stackHelper = stackHelper;
+        this.file = file;
+    }
+
+    /**
+     * Replaces the stacks with those last saved to this snapshot's file. If
+     * there is no file, or it cannot be read, the snapshot is left as it was
+     * and the reason logged.
+     *
+     * @return whether the stacks were loaded
+     */
+    public synchronized boolean load() {
+        if (file == null) {
+            return false;
+        }
+        List<HD4ARStack> stacks;
+        try (InputStream in = new GZIPInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            stacks = StackSnapshotFile.read(in, stackHelper);
+        } catch (FileNotFoundException e) {
+            logger.info("No stack snapshot at {}", file);
+            return false;
+        } catch (IOException e) {
+            logger.warn("Unable to load the stack snapshot at " + file, e);
+            return false;
+        }
+        Map<String, HD4ARStack> loaded = new TreeMap<String, HD4ARStack>();
+        for (HD4ARStack stack : stacks) {
+            loaded.put(stack.getCloudFormationStack().getStackName(), stack);
+        }
+        stacksByName = Collections.unmodifiableMap(loaded);
+        logger.info("Loaded {} stacks from {}", loaded.size(), file);
+        return true;
+    }
+
+    /**
+     * Fetches what has changed since the last refresh and returns how the
+     * stacks differ from before it. The first refresh reports every stack as
+     * added. If the refresh fails, the snapshot is left as it was.
+     */
+    public synchronized Diff refresh() throws AbortException {
+        Map<String, HD4ARStack> previous = stacksByName;
+        Map<String, HD4ARStack> current = new TreeMap<String, HD4ARStack>();
+        for (HD4ARStack stack : stackHelper.getStacks(previous)) {
+            current.put(stack.getCloudFormationStack().getStackName(), stack);
+        }
+
+        List<HD4ARStack> added = new ArrayList<HD4ARStack>();
+        List<HD4ARStack> changed = new ArrayList<HD4ARStack>();
+        List<HD4ARStack> removed = new ArrayList<HD4ARStack>();
+        for (HD4ARStack stack : current.values()) {
+            HD4ARStack before = previous.get(stack.getCloudFormationStack().getStackName());
+            if (before == null) {
+                added.add(stack);
+            } else if (!isUnchanged(before, stack)) {
+                changed.add(stack);
+            }
+        }
+        for (HD4ARStack stack : previous.values()) {
+            if (!current.containsKey(stack.getCloudFormationStack().getStackName())) {
+                removed.add(stack);
+            }
+        }
+
+        stacksByName = Collections.unmodifiableMap(current);
+        if (file != null) {
+            save(current);
+        }
+        return new Diff(added, removed, changed);
+    }
+
+    /**
+     * Runs {@link #refresh()} on {@link DaemonThreads#sharedExecutor()}, or
+     * on the calling thread while every thread of that is busy.
+     *
+     * @return a future of the refresh's diff
+     */
+    public ListenableFuture<Diff> refreshInBackground() {
+        final SettableFuture<Diff> future = new SettableFuture<Diff>();
+        DaemonThreads.sharedExecutor().execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    future.set(refresh());
+                } catch (AbortException | RuntimeException | Error e) {
+                    future.setException(e);
+                }
+            }
+        });
+        return future;
+    }
+
+    /**
+     * Writes the stacks to a temporary file beside this snapshot's file,
+     * then moves it into place, so that a reader never sees a partial
+     * file. A failure is logged rather than failing the refresh.
+     */
+    private void save(final Map<String, HD4ARStack> stacks) {
+        File temp = new File(file.getPath() + ".tmp");
+        try {
+            try (OutputStream out = new GZIPOutputStream(new BufferedOutputStream(new FileOutputStream(temp)))) {
+                StackSnapshotFile.write(stacks.values(), out);
+            }
+            Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            logger.warn("Unable to save the stack snapshot to " + file, e);
+            temp.delete();
+        }
+    }
+
+    /**
+     * Returns the stacks as of the last refresh, sorted by name.
+     */
+    public List<HD4ARStack> getStacks() {
+        return new ArrayList<HD4ARStack>(stacksByName.values());
+    }
+
+    /**
+     * Returns the named stack as of the last refresh, or <code>null</code>.
+     */
+    public HD4ARStack getStack(final String stackName) {
+        return stacksByName.get(stackName);
+    }
+
+    private static boolean isUnchanged(final HD4ARStack before, final HD4ARStack after) {
+        return StackHelper.isSameVersion(before.getCloudFormationStack(), after.getCloudFormationStack())
+                && groupInstanceIds(before.getAutoScalingGroup()).equals(groupInstanceIds(after.getAutoScalingGroup()))
+                && loadBalancerInstanceIds(before.getLoadBalancer())
+                        .equals(loadBalancerInstanceIds(after.getLoadBalancer()));
+    }
+
+    private static List<String> groupInstanceIds(final AutoScalingGroup group) {
+        List<String> ids = new ArrayList<String>();
+        if (group != null) {
+            for (com.amazonaws.services.autoscaling.model.Instance instance : group.getInstances()) {
+                ids.add(instance.getInstanceId());
+            }
+            Collections.sort(ids);
+        }
+        return ids;
+    }
+
+    private static List<String> loadBalancerInstanceIds(final LoadBalancerDescription loadBalancer) {
+        List<String> ids = new ArrayList<String>();
+        if (loadBalancer != null) {
+            for (Instance instance : loadBalancer.getInstances()) {
+                ids.add(instance.getInstanceId());
+            }
+            Collections.sort(ids);
+        }
+        return ids;
+    }
+
+    /**
+     * How the stacks changed in one refresh. A stack has changed if it was
+     * updated, its status changed, or the instances of its auto scaling
+     * group or load balancer changed.
+     */
+    public static final class Diff {
+        private final List<HD4ARStack> added;
+        private final List<HD4ARStack> removed;
+        private final List<HD4ARStack> changed;
+
+        Diff(List<HD4ARStack> added, List<HD4ARStack> removed, List<HD4ARStack> changed) {
+            this.added = Collections.unmodifiableList(added);
+            this.removed = Collections.unmodifiableList(removed);
+            this.changed = Collections.unmodifiableList(changed);
+        }
+
+        /** Returns the stacks which are new, as now fetched */
+        public List<HD4ARStack> getAdded() {
+            return added;
+        }
+
+        /** Returns the stacks which no longer exist, as last fetched */
+        public List<HD4ARStack> getRemoved() {
+            return removed;
+        }
+
+        /** Returns the stacks which have changed, as now fetched */
+        public List<HD4ARStack> getChanged() {
+            return changed;
+        }
+
+        public boolean isEmpty() {
+            return added.isEmpty() && removed.isEmpty() && changed.isEmpty();
+        }
+
+        @Override
+        public String toString() {
+            return getClass().getSimpleName() + " ["
+                    + "added=" + names(added)
+                    + ", removed=" + names(removed)
+                    + ", changed=" + names(changed)
+                    + "]";
+        }
+
+        private static List<String> names(final List<HD4ARStack> stacks) {
+            List<String> names = new ArrayList<String>(stacks.size());
+            for (HD4ARStack stack : stacks) {
+                names.add(stack.getCloudFormationStack().getStackName());
+            }
+            return names;
+        }
+    }
+}
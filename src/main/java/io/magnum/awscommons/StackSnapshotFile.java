@@ -0,0 +1,488 @@
+package io.magnum.awscommons;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.List;
+
+import com.amazonaws.services.autoscaling.model.AutoScalingGroup;
+import com.amazonaws.services.cloudformation.model.Output;
+import com.amazonaws.services.cloudformation.model.Parameter;
+import com.amazonaws.services.cloudformation.model.Stack;
+import com.amazonaws.services.cloudformation.model.StackResource;
+import com.amazonaws.services.cloudformation.model.Tag;
+import com.amazonaws.services.elasticloadbalancing.model.Instance;
+import com.amazonaws.services.elasticloadbalancing.model.LoadBalancerDescription;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+/**
+ * Writes {@link HD4ARStack}s as compact JSON with Jackson's streaming API,
+ * and reads them back.
+ * <p>
+ * Only what our callers use is kept: the stack's description, parameters,
+ * outputs and tags, its resources, and summaries of its auto scaling group
+ * and load balancer. Templates are not kept; a stack read back fetches its
+ * template on first use like any other. Fields that are not recognized are
+ * skipped when reading, so that fields may be added without breaking older
+ * readers.
+ *
+ * @author Yu Sun
+ */
+final class StackSnapshotFile {
+
+    /** The format written; a file of any other version is rejected */
+    static final int VERSION = 1;
+
+    private static final JsonFactory JSON_FACTORY = new JsonFactory();
+
+    private StackSnapshotFile() {
+    }
+
+    /**
+     * Writes the stacks to the stream, leaving it open.
+     */
+    static void write(final Collection<HD4ARStack> stacks, final OutputStream out) throws IOException {
+        JsonGenerator gen = JSON_FACTORY.createGenerator(out);
+        gen.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+        gen.writeStartObject();
+        gen.writeNumberField("version", VERSION);
+        gen.writeArrayFieldStart("stacks");
+        for (HD4ARStack stack : stacks) {
+            writeStack(gen, stack);
+        }
+        gen.writeEndArray();
+        gen.writeEndObject();
+        gen.close();
+    }
+
+    /**
+     * Reads back stacks written by {@link #write(Collection, OutputStream)}.
+     * Their templates are fetched as <code>stackHelper</code> would fetch
+     * them.
+     *
+     * @throws IOException if the stream could not be read, or does not hold
+     * stacks in the current format
+     */
+    static List<HD4ARStack> read(final InputStream in, final StackHelper stackHelper) throws IOException {
+        JsonParser parser = JSON_FACTORY.createParser(in);
+        try {
+            List<HD4ARStack> stacks = null;
+            expect(parser, parser.nextToken(), JsonToken.START_OBJECT);
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String field = parser.getCurrentName();
+                JsonToken token = parser.nextToken();
+                switch (field) {
+                    case "version":
+                        if (parser.getIntValue() != VERSION) {
+                            throw new JsonParseException("Unsupported version " + parser.getText(),
+                                    parser.getCurrentLocation());
+                        }
+                        break;
+                    case "stacks":
+                        expect(parser, token, JsonToken.START_ARRAY);
+                        stacks = new ArrayList<HD4ARStack>();
+                        while (parser.nextToken() != JsonToken.END_ARRAY) {
+                            stacks.add(readStack(parser, stackHelper));
+                        }
+                        break;
+                    default:
+                        parser.skipChildren();
+                        break;
+                }
+            }
+            if (stacks == null) {
+                throw new JsonParseException("No stacks", parser.getCurrentLocation());
+            }
+            return stacks;
+        } finally {
+            parser.close();
+        }
+    }
+
+    private static void writeStack(final JsonGenerator gen, final HD4ARStack hd4arStack) throws IOException {
+        Stack stack = hd4arStack.getCloudFormationStack();
+        gen.writeStartObject();
+        writeString(gen, "stackId", stack.getStackId());
+        writeString(gen, "stackName", stack.getStackName());
+        writeString(gen, "description", stack.getDescription());
+        writeString(gen, "stackStatus", stack.getStackStatus());
+        writeString(gen, "stackStatusReason", stack.getStackStatusReason());
+        writeDate(gen, "creationTime", stack.getCreationTime());
+        writeDate(gen, "lastUpdatedTime", stack.getLastUpdatedTime());
+        gen.writeArrayFieldStart("parameters");
+        for (Parameter parameter : stack.getParameters()) {
+            gen.writeStartObject();
+            writeString(gen, "key", parameter.getParameterKey());
+            writeString(gen, "value", parameter.getParameterValue());
+            gen.writeEndObject();
+        }
+        gen.writeEndArray();
+        gen.writeArrayFieldStart("outputs");
+        for (Output output : stack.getOutputs()) {
+            gen.writeStartObject();
+            writeString(gen, "key", output.getOutputKey());
+            writeString(gen, "value", output.getOutputValue());
+            writeString(gen, "description", output.getDescription());
+            gen.writeEndObject();
+        }
+        gen.writeEndArray();
+        gen.writeArrayFieldStart("tags");
+        for (Tag tag : stack.getTags()) {
+            gen.writeStartObject();
+            writeString(gen, "key", tag.getKey());
+            writeString(gen, "value", tag.getValue());
+            gen.writeEndObject();
+        }
+        gen.writeEndArray();
+
+        gen.writeArrayFieldStart("resources");
+        for (StackResource resource : hd4arStack.getStackResources()) {
+            gen.writeStartObject();
+            writeString(gen, "logicalId", resource.getLogicalResourceId());
+            writeString(gen, "physicalId", resource.getPhysicalResourceId());
+            writeString(gen, "type", resource.getResourceType());
+            writeString(gen, "status", resource.getResourceStatus());
+            writeDate(gen, "timestamp", resource.getTimestamp());
+            gen.writeEndObject();
+        }
+        gen.writeEndArray();
+
+        AutoScalingGroup group = hd4arStack.getAutoScalingGroup();
+        if (group != null) {
+            gen.writeObjectFieldStart("autoScalingGroup");
+            writeString(gen, "name", group.getAutoScalingGroupName());
+            writeString(gen, "launchConfigurationName", group.getLaunchConfigurationName());
+            writeInteger(gen, "minSize", group.getMinSize());
+            writeInteger(gen, "maxSize", group.getMaxSize());
+            writeInteger(gen, "desiredCapacity", group.getDesiredCapacity());
+            writeDate(gen, "createdTime", group.getCreatedTime());
+            writeStrings(gen, "availabilityZones", group.getAvailabilityZones());
+            writeStrings(gen, "loadBalancerNames", group.getLoadBalancerNames());
+            gen.writeArrayFieldStart("instances");
+            for (com.amazonaws.services.autoscaling.model.Instance instance : group.getInstances()) {
+                gen.writeStartObject();
+                writeString(gen, "id", instance.getInstanceId());
+                writeString(gen, "availabilityZone", instance.getAvailabilityZone());
+                writeString(gen, "lifecycleState", instance.getLifecycleState());
+                writeString(gen, "healthStatus", instance.getHealthStatus());
+                writeString(gen, "launchConfigurationName", instance.getLaunchConfigurationName());
+                gen.writeEndObject();
+            }
+            gen.writeEndArray();
+            gen.writeEndObject();
+        }
+
+        LoadBalancerDescription loadBalancer = hd4arStack.getLoadBalancer();
+        if (loadBalancer != null) {
+            gen.writeObjectFieldStart("loadBalancer");
+            writeString(gen, "name", loadBalancer.getLoadBalancerName());
+            writeString(gen, "dnsName", loadBalancer.getDNSName());
+            writeDate(gen, "createdTime", loadBalancer.getCreatedTime());
+            writeStrings(gen, "availabilityZones", loadBalancer.getAvailabilityZones());
+            gen.writeArrayFieldStart("instanceIds");
+            for (Instance instance : loadBalancer.getInstances()) {
+                gen.writeString(instance.getInstanceId());
+            }
+            gen.writeEndArray();
+            gen.writeEndObject();
+        }
+        gen.writeEndObject();
+    }
+
+    private static HD4ARStack readStack(final JsonParser parser, final StackHelper stackHelper) throws IOException {
+        expect(parser, parser.getCurrentToken(), JsonToken.START_OBJECT);
+        Stack stack = new Stack();
+        List<StackResource> resources = new ArrayList<StackResource>();
+        AutoScalingGroup group = null;
+        LoadBalancerDescription loadBalancer = null;
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.getCurrentName();
+            parser.nextToken();
+            switch (field) {
+                case "stackId":
+                    stack.setStackId(parser.getText());
+                    break;
+                case "stackName":
+                    stack.setStackName(parser.getText());
+                    break;
+                case "description":
+                    stack.setDescription(parser.getText());
+                    break;
+                case "stackStatus":
+                    stack.setStackStatus(parser.getText());
+                    break;
+                case "stackStatusReason":
+                    stack.setStackStatusReason(parser.getText());
+                    break;
+                case "creationTime":
+                    stack.setCreationTime(new Date(parser.getLongValue()));
+                    break;
+                case "lastUpdatedTime":
+                    stack.setLastUpdatedTime(new Date(parser.getLongValue()));
+                    break;
+                case "parameters":
+                    for (String[] pair : readKeyValues(parser)) {
+                        stack.getParameters().add(new Parameter().withParameterKey(pair[0]).withParameterValue(pair[1]));
+                    }
+                    break;
+                case "outputs":
+                    for (String[] pair : readKeyValues(parser)) {
+                        stack.getOutputs().add(new Output().withOutputKey(pair[0]).withOutputValue(pair[1])
+                                .withDescription(pair[2]));
+                    }
+                    break;
+                case "tags":
+                    for (String[] pair : readKeyValues(parser)) {
+                        stack.getTags().add(new Tag().withKey(pair[0]).withValue(pair[1]));
+                    }
+                    break;
+                case "resources":
+                    expect(parser, parser.getCurrentToken(), JsonToken.START_ARRAY);
+                    while (parser.nextToken() != JsonToken.END_ARRAY) {
+                        resources.add(readResource(parser));
+                    }
+                    break;
+                case "autoScalingGroup":
+                    group = readGroup(parser);
+                    break;
+                case "loadBalancer":
+                    loadBalancer = readLoadBalancer(parser);
+                    break;
+                default:
+                    parser.skipChildren();
+                    break;
+            }
+        }
+        if (stack.getStackName() == null) {
+            throw new JsonParseException("Stack without a name", parser.getCurrentLocation());
+        }
+        for (StackResource resource : resources) {
+            resource.setStackId(stack.getStackId());
+            resource.setStackName(stack.getStackName());
+        }
+        return new HD4ARStack(stack, stackHelper.newTemplate(stack.getStackName()), resources, group, loadBalancer);
+    }
+
+    private static StackResource readResource(final JsonParser parser) throws IOException {
+        expect(parser, parser.getCurrentToken(), JsonToken.START_OBJECT);
+        StackResource resource = new StackResource();
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.getCurrentName();
+            parser.nextToken();
+            switch (field) {
+                case "logicalId":
+                    resource.setLogicalResourceId(parser.getText());
+                    break;
+                case "physicalId":
+                    resource.setPhysicalResourceId(parser.getText());
+                    break;
+                case "type":
+                    resource.setResourceType(parser.getText());
+                    break;
+                case "status":
+                    resource.setResourceStatus(parser.getText());
+                    break;
+                case "timestamp":
+                    resource.setTimestamp(new Date(parser.getLongValue()));
+                    break;
+                default:
+                    parser.skipChildren();
+                    break;
+            }
+        }
+        return resource;
+    }
+
+    private static AutoScalingGroup readGroup(final JsonParser parser) throws IOException {
+        expect(parser, parser.getCurrentToken(), JsonToken.START_OBJECT);
+        AutoScalingGroup group = new AutoScalingGroup();
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.getCurrentName();
+            parser.nextToken();
+            switch (field) {
+                case "name":
+                    group.setAutoScalingGroupName(parser.getText());
+                    break;
+                case "launchConfigurationName":
+                    group.setLaunchConfigurationName(parser.getText());
+                    break;
+                case "minSize":
+                    group.setMinSize(parser.getIntValue());
+                    break;
+                case "maxSize":
+                    group.setMaxSize(parser.getIntValue());
+                    break;
+                case "desiredCapacity":
+                    group.setDesiredCapacity(parser.getIntValue());
+                    break;
+                case "createdTime":
+                    group.setCreatedTime(new Date(parser.getLongValue()));
+                    break;
+                case "availabilityZones":
+                    group.setAvailabilityZones(readStrings(parser));
+                    break;
+                case "loadBalancerNames":
+                    group.setLoadBalancerNames(readStrings(parser));
+                    break;
+                case "instances":
+                    expect(parser, parser.getCurrentToken(), JsonToken.START_ARRAY);
+                    while (parser.nextToken() != JsonToken.END_ARRAY) {
+                        group.getInstances().add(readGroupInstance(parser));
+                    }
+                    break;
+                default:
+                    parser.skipChildren();
+                    break;
+            }
+        }
+        return group;
+    }
+
+    private static com.amazonaws.services.autoscaling.model.Instance readGroupInstance(final JsonParser parser)
+            throws IOException {
+        expect(parser, parser.getCurrentToken(), JsonToken.START_OBJECT);
+        com.amazonaws.services.autoscaling.model.Instance instance = new com.amazonaws.services.autoscaling.model.Instance();
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.getCurrentName();
+            parser.nextToken();
+            switch (field) {
+                case "id":
+                    instance.setInstanceId(parser.getText());
+                    break;
+                case "availabilityZone":
+                    instance.setAvailabilityZone(parser.getText());
+                    break;
+                case "lifecycleState":
+                    instance.setLifecycleState(parser.getText());
+                    break;
+                case "healthStatus":
+                    instance.setHealthStatus(parser.getText());
+                    break;
+                case "launchConfigurationName":
+                    instance.setLaunchConfigurationName(parser.getText());
+                    break;
+                default:
+                    parser.skipChildren();
+                    break;
+            }
+        }
+        return instance;
+    }
+
+    private static LoadBalancerDescription readLoadBalancer(final JsonParser parser) throws IOException {
+        expect(parser, parser.getCurrentToken(), JsonToken.START_OBJECT);
+        LoadBalancerDescription loadBalancer = new LoadBalancerDescription();
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.getCurrentName();
+            parser.nextToken();
+            switch (field) {
+                case "name":
+                    loadBalancer.setLoadBalancerName(parser.getText());
+                    break;
+                case "dnsName":
+                    loadBalancer.setDNSName(parser.getText());
+                    break;
+                case "createdTime":
+                    loadBalancer.setCreatedTime(new Date(parser.getLongValue()));
+                    break;
+                case "availabilityZones":
+                    loadBalancer.setAvailabilityZones(readStrings(parser));
+                    break;
+                case "instanceIds":
+                    for (String instanceId : readStrings(parser)) {
+                        loadBalancer.getInstances().add(new Instance().withInstanceId(instanceId));
+                    }
+                    break;
+                default:
+                    parser.skipChildren();
+                    break;
+            }
+        }
+        return loadBalancer;
+    }
+
+    /**
+     * Reads an array of objects with "key", "value" and "description"
+     * fields, as triples in that order.
+     */
+    private static List<String[]> readKeyValues(final JsonParser parser) throws IOException {
+        expect(parser, parser.getCurrentToken(), JsonToken.START_ARRAY);
+        List<String[]> result = new ArrayList<String[]>();
+        while (parser.nextToken() != JsonToken.END_ARRAY) {
+            expect(parser, parser.getCurrentToken(), JsonToken.START_OBJECT);
+            String[] triple = new String[3];
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String field = parser.getCurrentName();
+                parser.nextToken();
+                switch (field) {
+                    case "key":
+                        triple[0] = parser.getText();
+                        break;
+                    case "value":
+                        triple[1] = parser.getText();
+                        break;
+                    case "description":
+                        triple[2] = parser.getText();
+                        break;
+                    default:
+                        parser.skipChildren();
+                        break;
+                }
+            }
+            result.add(triple);
+        }
+        return result;
+    }
+
+    private static List<String> readStrings(final JsonParser parser) throws IOException {
+        expect(parser, parser.getCurrentToken(), JsonToken.START_ARRAY);
+        List<String> result = new ArrayList<String>();
+        while (parser.nextToken() != JsonToken.END_ARRAY) {
+            result.add(parser.getText());
+        }
+        return result;
+    }
+
+    private static void expect(final JsonParser parser, final JsonToken actual, final JsonToken expected)
+            throws JsonParseException {
+        if (actual != expected) {
+            throw new JsonParseException("Expected " + expected + " but found " + actual, parser.getCurrentLocation());
+        }
+    }
+
+    private static void writeString(final JsonGenerator gen, final String name, final String value)
+            throws IOException {
+        if (value != null) {
+            gen.writeStringField(name, value);
+        }
+    }
+
+    private static void writeInteger(final JsonGenerator gen, final String name, final Integer value)
+            throws IOException {
+        if (value != null) {
+            gen.writeNumberField(name, value);
+        }
+    }
+
+    private static void writeDate(final JsonGenerator gen, final String name, final Date value) throws IOException {
+        if (value != null) {
+            gen.writeNumberField(name, value.getTime());
+        }
+    }
+
+    private static void writeStrings(final JsonGenerator gen, final String name, final List<String> values)
+            throws IOException {
+        gen.writeArrayFieldStart(name);
+        for (String value : values) {
+            gen.writeString(value);
+        }
+        gen.writeEndArray();
+    }
+}
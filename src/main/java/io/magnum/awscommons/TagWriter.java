@@ -0,0 +1,388 @@
+package io.magnum.awscommons;
+
+import io.magnum.awscommons.concurrent.DaemonThreads;
+import io.magnum.awscommons.concurrent.ListenableFuture;
+import io.magnum.awscommons.concurrent.SettableFuture;
+import io.magnum.awscommons.retry.AbortException;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Writes tags behind the callers of {@link #putTags(Collection, Map)},
+ * combining the writes made close together into few
+ * {@link GeneralAwsHelper#putTags(Collection, Map)} calls.
+ * <p>
+ * Writes are buffered until the oldest has waited the maximum delay, or the
+ * buffer holds the maximum number of pending tags, and are then flushed:
+ * <ul>
+ * <li>a tag written again before the flush is sent once, with its latest
+ * value;</li>
+ * <li>resources whose pending tags are the same are tagged in one call;</li>
+ * <li>calls are split so that none names more resources or tags than
+ * allowed.</li>
+ * </ul>
+ * Each write returns a future which completes once all of its tags have been
+ * written, by it or by a later write of the same tags, or fails with the
+ * exception of the first call which failed to write one of them. Flushes are
+ * sent on an executor by one task at a time, in order, so that a later value
+ * of a tag is never overwritten by an earlier one; the shared scheduler only
+ * times the delayed flush. This class is thread-safe.
+ *
+ * @author Yu Sun
+ */
+public class TagWriter {
+
+    private final GeneralAwsHelper awsHelper;
+    private final long maxDelayNanos;
+    private final int maxPendingTags;
+    private final int maxResourcesPerRequest;
+    private final int maxTagsPerRequest;
+    private final ExecutorService executor;
+
+    private final Object lock = new Object();
+    /** Pending tags by resource ID, then by key; guarded by lock */
+    private Map<String, Map<String, PendingTag>> pending = new LinkedHashMap<String, Map<String, PendingTag>>();
+    /** Guarded by lock */
+    private int pendingTags;
+    /** Whether the timed flush of the current buffer has been scheduled; guarded by lock */
+    private boolean flushScheduled;
+    /** Whether the buffer is to be sent by the sender; guarded by lock */
+    private boolean flushRequested;
+    /** Whether the sender is queued or running, so that at most one is; guarded by lock */
+    private boolean sending;
+    /** The futures of flush() calls, completed once the buffer they saw is sent; guarded by lock */
+    private List<SettableFuture<Void>> flushes = new ArrayList<SettableFuture<Void>>();
+
+    private final Runnable sender = new Runnable() {
+        @Override
+        public void run() {
+            sendRequested();
+        }
+    };
+
+    /** Run by the shared scheduler; hands the buffer to the sender rather than sending it */
+    private final Runnable timedFlush = new Runnable() {
+        @Override
+        public void run() {
+            boolean start;
+            synchronized (lock) {
+                start = requestFlush();
+            }
+            if (start) {
+                startSender();
+            }
+        }
+    };
+
+    private final AtomicLong writes = new AtomicLong();
+    private final AtomicLong requests = new AtomicLong();
+
+    /**
+     * One caller's write, complete once none of its tags remain unwritten.
+     */
+    private static class Write {
+        final SettableFuture<Void> future = new SettableFuture<Void>();
+        final AtomicInteger remaining = new AtomicInteger();
+
+        void written() {
+            if (remaining.decrementAndGet() == 0) {
+                future.set(null);
+            }
+        }
+    }
+
+    /**
+     * The latest value of one tag of one resource, and the writes waiting for
+     * it.
+     */
+    private static class PendingTag {
+        String value;
+        final List<Write> writes = new ArrayList<Write>(1);
+    }
+
+    public final static class Builder {
+        private final GeneralAwsHelper awsHelper;
+        private long maxDelayNanos = TimeUnit.MILLISECONDS.toNanos(200);
+        private int maxPendingTags = 1000;
+        private int maxResourcesPerRequest = 1000;
+        private int maxTagsPerRequest = 10;
+        private ExecutorService executor;
+
+        public Builder(final GeneralAwsHelper awsHelper) {
+            if (awsHelper == null) {
+                throw new IllegalArgumentException("awsHelper cannot be null");
+            }
+            this.awsHelper = awsHelper;
+        }
+
+        public TagWriter build() {
+            return new TagWriter(this);
+        }
+
+        /**
+         * Sets how long a write may wait to be flushed. Defaults to 200
+         * milliseconds.
+         */
+        public Builder withMaxDelay(final long maxDelay, final TimeUnit unit) {
+            if (maxDelay < 0) {
+                throw new IllegalArgumentException("maxDelay must be >= 0: " + maxDelay);
+            }
+            this.maxDelayNanos = unit.toNanos(maxDelay);
+            return this;
+        }
+
+        /**
+         * Sets how many tags, counted per resource, may be pending before
+         * they are flushed at once. Defaults to 1000.
+         */
+        public Builder withMaxPendingTags(final int maxPendingTags) {
+            if (maxPendingTags < 1) {
+                throw new IllegalArgumentException("maxPendingTags must be >= 1: " + maxPendingTags);
+            }
+            this.maxPendingTags = maxPendingTags;
+            return this;
+        }
+
+        /**
+         * Sets the most resources and the most tags named in one CreateTags
+         * call. Default to 1000 and 10.
+         */
+        public Builder withRequestLimits(final int maxResourcesPerRequest, final int maxTagsPerRequest) {
+            if (maxResourcesPerRequest < 1 || maxTagsPerRequest < 1) {
+                throw new IllegalArgumentException("limits must be >= 1: " + maxResourcesPerRequest + ", "
+                        + maxTagsPerRequest);
+            }
+            this.maxResourcesPerRequest = maxResourcesPerRequest;
+            this.maxTagsPerRequest = maxTagsPerRequest;
+            return this;
+        }
+
+        /**
+         * Sets the executor which sends the flushes. Defaults to
+         * {@link DaemonThreads#sharedExecutor()}.
+         */
+        public Builder withExecutor(final ExecutorService executor) {
+            this.executor = executor;
+            return this;
+        }
+    }
+
+    private TagWriter(final Builder builder) {
+        this.awsHelper = builder.awsHelper;
+        this.maxDelayNanos = builder.maxDelayNanos;
+        this.maxPendingTags = builder.maxPendingTags;
+        this.maxResourcesPerRequest = builder.maxResourcesPerRequest;
+        this.maxTagsPerRequest = builder.maxTagsPerRequest;
+        this.executor = builder.executor != null ? builder.executor : DaemonThreads.sharedExecutor();
+    }
+
+    /**
+     * Buffers the tags to be written to the resources.
+     *
+     * @return a future which completes once the tags have been written
+     */
+    public ListenableFuture<Void> putTags(final Collection<String> resourceIds, final Map<String, String> tags) {
+        writes.incrementAndGet();
+        Write write = new Write();
+        if (resourceIds.isEmpty() || tags.isEmpty()) {
+            write.future.set(null);
+            return write.future;
+        }
+        boolean start = false;
+        synchronized (lock) {
+            for (String resourceId : new HashSet<String>(resourceIds)) {
+                Map<String, PendingTag> resourceTags = pending.get(resourceId);
+                if (resourceTags == null) {
+                    resourceTags = new LinkedHashMap<String, PendingTag>();
+                    pending.put(resourceId, resourceTags);
+                }
+                for (Map.Entry<String, String> tag : tags.entrySet()) {
+                    PendingTag pendingTag = resourceTags.get(tag.getKey());
+                    if (pendingTag == null) {
+                        pendingTag = new PendingTag();
+                        resourceTags.put(tag.getKey(), pendingTag);
+                        pendingTags++;
+                    }
+                    // an earlier value is overwritten, and its writes wait for this one
+                    pendingTag.value = tag.getValue();
+                    pendingTag.writes.add(write);
+                    write.remaining.incrementAndGet();
+                }
+            }
+            if (pendingTags >= maxPendingTags) {
+                start = requestFlush();
+            } else if (!flushScheduled) {
+                flushScheduled = true;
+                DaemonThreads.sharedScheduler().schedule(timedFlush, maxDelayNanos, TimeUnit.NANOSECONDS);
+            }
+        }
+        if (start) {
+            startSender();
+        }
+        return write.future;
+    }
+
+    /**
+     * Sends the pending tags now rather than when they are due.
+     *
+     * @return a future which completes once they have been sent; whether
+     * each write succeeded is reported by its own future
+     */
+    public ListenableFuture<Void> flush() {
+        SettableFuture<Void> flushed = new SettableFuture<Void>();
+        boolean start;
+        synchronized (lock) {
+            flushes.add(flushed);
+            start = requestFlush();
+        }
+        if (start) {
+            startSender();
+        }
+        return flushed;
+    }
+
+    /**
+     * Marks the buffer to be sent, and returns whether the caller must start
+     * the sender, which it must do without holding lock. Must be called
+     * holding lock.
+     */
+    private boolean requestFlush() {
+        flushRequested = true;
+        if (sending) {
+            return false;
+        }
+        sending = true;
+        return true;
+    }
+
+    private void startSender() {
+        try {
+            executor.execute(sender);
+        } catch (RuntimeException e) {
+            synchronized (lock) {
+                sending = false;
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Sends the buffer for as long as flushes are requested.
+     */
+    private void sendRequested() {
+        while (true) {
+            Map<String, Map<String, PendingTag>> toSend;
+            List<SettableFuture<Void>> flushed;
+            synchronized (lock) {
+                if (!flushRequested) {
+                    sending = false;
+                    return;
+                }
+                flushRequested = false;
+                toSend = pending;
+                pending = new LinkedHashMap<String, Map<String, PendingTag>>();
+                pendingTags = 0;
+                flushScheduled = false;
+                flushed = flushes;
+                flushes = new ArrayList<SettableFuture<Void>>();
+            }
+            try {
+                send(toSend);
+            } finally {
+                for (SettableFuture<Void> future : flushed) {
+                    future.set(null);
+                }
+            }
+        }
+    }
+
+    private void send(final Map<String, Map<String, PendingTag>> toSend) {
+        // resources whose tags are the same can be tagged together
+        Map<Map<String, String>, List<String>> resourcesByTags = new LinkedHashMap<Map<String, String>, List<String>>();
+        for (Map.Entry<String, Map<String, PendingTag>> entry : toSend.entrySet()) {
+            Map<String, String> tags = new LinkedHashMap<String, String>();
+            for (Map.Entry<String, PendingTag> tag : entry.getValue().entrySet()) {
+                tags.put(tag.getKey(), tag.getValue().value);
+            }
+            List<String> resourceIds = resourcesByTags.get(tags);
+            if (resourceIds == null) {
+                resourceIds = new ArrayList<String>();
+                resourcesByTags.put(tags, resourceIds);
+            }
+            resourceIds.add(entry.getKey());
+        }
+
+        for (Map.Entry<Map<String, String>, List<String>> group : resourcesByTags.entrySet()) {
+            List<String> resourceIds = group.getValue();
+            List<Map<String, String>> tagChunks = chunk(group.getKey());
+            for (int from = 0; from < resourceIds.size(); from += maxResourcesPerRequest) {
+                List<String> resourceChunk = resourceIds.subList(from,
+                        Math.min(resourceIds.size(), from + maxResourcesPerRequest));
+                for (Map<String, String> tagChunk : tagChunks) {
+                    send(resourceChunk, tagChunk, toSend);
+                }
+            }
+        }
+    }
+
+    private List<Map<String, String>> chunk(final Map<String, String> tags) {
+        List<Map<String, String>> chunks = new ArrayList<Map<String, String>>();
+        Map<String, String> chunk = null;
+        for (Map.Entry<String, String> tag : tags.entrySet()) {
+            if (chunk == null || chunk.size() == maxTagsPerRequest) {
+                chunk = new LinkedHashMap<String, String>();
+                chunks.add(chunk);
+            }
+            chunk.put(tag.getKey(), tag.getValue());
+        }
+        return chunks;
+    }
+
+    private void send(final List<String> resourceIds, final Map<String, String> tags,
+            final Map<String, Map<String, PendingTag>> sent) {
+        List<Write> covered = new ArrayList<Write>();
+        for (String resourceId : resourceIds) {
+            Map<String, PendingTag> resourceTags = sent.get(resourceId);
+            for (String key : tags.keySet()) {
+                covered.addAll(resourceTags.get(key).writes);
+            }
+        }
+        requests.incrementAndGet();
+        try {
+            awsHelper.putTags(new ArrayList<String>(resourceIds), tags);
+        } catch (AbortException | RuntimeException | Error e) {
+            Set<Write> failed = new HashSet<Write>(covered);
+            for (Write write : failed) {
+                write.future.setException(e);
+            }
+            return;
+        }
+        for (Write write : covered) {
+            write.written();
+        }
+    }
+
+    /**
+     * Returns the number of writes made through this writer.
+     */
+    public long getWrites() {
+        return writes.get();
+    }
+
+    /**
+     * Returns the number of calls made to the underlying helper.
+     */
+    public long getRequests() {
+        return requests.get();
+    }
+}
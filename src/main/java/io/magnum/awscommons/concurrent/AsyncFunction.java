@@ -0,0 +1,14 @@
+package io.magnum.awscommons.concurrent;
+
+/**
+ * Starts an asynchronous step from the result of a future; see
+ * {@link Futures#transformAsync(ListenableFuture, AsyncFunction)}.
+ */
+public interface AsyncFunction<I, O> {
+
+    /**
+     * @return the future result of the step; never <code>null</code>
+     * @throws Exception to fail the transformed future with it
+     */
+    ListenableFuture<O> apply(I input) throws Exception;
+}
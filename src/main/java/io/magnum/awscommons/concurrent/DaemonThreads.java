@@ -0,0 +1,138 @@
+package io.magnum.awscommons.concurrent;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Creates the daemon threads used for background work in this library, and
+ * holds the two pools of them shared by every class that is not given its
+ * own, so that such work neither keeps the JVM alive nor leaves a pool of
+ * idle threads per class.
+ * <p>
+ * Idle threads of every pool created here time out after a minute.
+ *
+ * @author Yu Sun
+ */
+public final class DaemonThreads {
+
+    /** How long an idle thread is kept */
+    private static final long KEEP_ALIVE_SECONDS = 60;
+
+    /** The most threads of {@link #sharedExecutor()} */
+    public static final int SHARED_EXECUTOR_THREADS = 32;
+
+    /** The threads of {@link #sharedScheduler()} */
+    public static final int SHARED_SCHEDULER_THREADS = 8;
+
+    private DaemonThreads() {
+    }
+
+    /**
+     * Returns a factory of daemon threads named with the prefix and a count,
+     * as in "prefix-1".
+     */
+    public static ThreadFactory newThreadFactory(final String namePrefix) {
+        return new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, namePrefix + "-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+    }
+
+    /**
+     * Returns a new scheduler of the given number of daemon threads, from
+     * whose queue cancelled tasks are removed at once.
+     */
+    public static ScheduledThreadPoolExecutor newScheduler(final String namePrefix, final int threads) {
+        ScheduledThreadPoolExecutor scheduler = new ScheduledThreadPoolExecutor(threads,
+                newThreadFactory(namePrefix));
+        scheduler.setKeepAliveTime(KEEP_ALIVE_SECONDS, TimeUnit.SECONDS);
+        scheduler.allowCoreThreadTimeOut(true);
+        scheduler.setRemoveOnCancelPolicy(true);
+        return scheduler;
+    }
+
+    /**
+     * Returns the executor shared by the library's blocking fan-outs, such as
+     * large instance lookups and concurrent stack fetches, when the caller
+     * supplies none.
+     * <p>
+     * It has up to {@value #SHARED_EXECUTOR_THREADS} threads and no queue:
+     * once every thread is busy, a task is run by the thread submitting it.
+     * Tasks which themselves fan out on this executor and wait therefore can
+     * neither deadlock it nor queue without bound.
+     */
+    public static ExecutorService sharedExecutor() {
+        return ExecutorHolder.EXECUTOR;
+    }
+
+    /**
+     * Returns the scheduler shared by the library's periodic and delayed
+     * work, such as pollers and write-behind flushes, when the caller
+     * supplies none. It only times that work: a task which may block, such
+     * as one making AWS calls, must be wrapped with
+     * {@link #onSharedExecutor(Runnable)}, so that one stuck call does not
+     * delay every other timer.
+     */
+    public static ScheduledExecutorService sharedScheduler() {
+        return SchedulerHolder.SCHEDULER;
+    }
+
+    /**
+     * Returns a task which, each time it is run, hands the given one to
+     * {@link #sharedExecutor()}, for scheduling on {@link #sharedScheduler()}.
+     * A run made while the previous one has not finished is skipped, so a
+     * periodic task never overlaps itself however long it blocks. Once every
+     * thread of the executor is busy, the task runs on the scheduler's thread.
+     */
+    public static Runnable onSharedExecutor(final Runnable task) {
+        final AtomicBoolean running = new AtomicBoolean();
+        final Runnable guarded = new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    task.run();
+                } finally {
+                    running.set(false);
+                }
+            }
+        };
+        return new Runnable() {
+            @Override
+            public void run() {
+                if (!running.compareAndSet(false, true)) {
+                    return;
+                }
+                try {
+                    sharedExecutor().execute(guarded);
+                } catch (RuntimeException e) {
+                    running.set(false);
+                    throw e;
+                }
+            }
+        };
+    }
+
+    private static final class ExecutorHolder {
+        static final ExecutorService EXECUTOR = new ThreadPoolExecutor(0, SHARED_EXECUTOR_THREADS,
+                KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, new SynchronousQueue<Runnable>(),
+                newThreadFactory("aws-commons"), new ThreadPoolExecutor.CallerRunsPolicy());
+    }
+
+    private static final class SchedulerHolder {
+        static final ScheduledExecutorService SCHEDULER = newScheduler("aws-commons-scheduler",
+                SHARED_SCHEDULER_THREADS);
+    }
+}
@@ -0,0 +1,13 @@
+package io.magnum.awscommons.concurrent;
+
+/**
+ * Computes a value from the result of a future; see
+ * {@link Futures#transform(ListenableFuture, Function)}.
+ */
+public interface Function<I, O> {
+
+    /**
+     * @throws Exception to fail the transformed future with it
+     */
+    O apply(I input) throws Exception;
+}
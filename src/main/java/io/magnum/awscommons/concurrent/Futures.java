@@ -0,0 +1,201 @@
+package io.magnum.awscommons.concurrent;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Static methods for composing {@link ListenableFuture}s without blocking.
+ * <p>
+ * Functions run on the thread which completes the input future, so they
+ * should be quick and must not block. Cancelling a composed future cancels
+ * the futures it is waiting on.
+ */
+public final class Futures {
+
+    private Futures() {
+    }
+
+    public static <V> ListenableFuture<V> immediateFuture(final V value) {
+        SettableFuture<V> future = new SettableFuture<V>();
+        future.set(value);
+        return future;
+    }
+
+    public static <V> ListenableFuture<V> immediateFailedFuture(final Throwable exception) {
+        SettableFuture<V> future = new SettableFuture<V>();
+        future.setException(exception);
+        return future;
+    }
+
+    /**
+     * Returns a future of the function applied to the input's result. If the
+     * input fails, or the function throws, the returned future fails with
+     * the same exception.
+     */
+    public static <I, O> ListenableFuture<O> transform(final ListenableFuture<I> input,
+            final Function<? super I, ? extends O> function) {
+        final SettableFuture<O> output = new SettableFuture<O>();
+        input.addListener(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    output.set(function.apply(getDone(input)));
+                } catch (ExecutionException e) {
+                    output.setException(e.getCause());
+                } catch (CancellationException e) {
+                    output.cancel(false);
+                } catch (Exception | Error e) {
+                    output.setException(e);
+                }
+            }
+        });
+        cancelWith(output, input);
+        return output;
+    }
+
+    /**
+     * Returns a future of the result of the asynchronous step started by the
+     * function once the input has succeeded; use this to chain calls which
+     * depend on each other's results.
+     */
+    public static <I, O> ListenableFuture<O> transformAsync(final ListenableFuture<I> input,
+            final AsyncFunction<? super I, ? extends O> function) {
+        final SettableFuture<O> output = new SettableFuture<O>();
+        input.addListener(new Runnable() {
+            @Override
+            public void run() {
+                ListenableFuture<? extends O> next;
+                try {
+                    next = function.apply(getDone(input));
+                } catch (ExecutionException e) {
+                    output.setException(e.getCause());
+                    return;
+                } catch (CancellationException e) {
+                    output.cancel(false);
+                    return;
+                } catch (Exception | Error e) {
+                    output.setException(e);
+                    return;
+                }
+                propagate(next, output);
+            }
+        });
+        cancelWith(output, input);
+        return output;
+    }
+
+    /**
+     * Returns a future of the results of all the given futures, in order. It
+     * fails as soon as any of them fails, cancelling the rest.
+     */
+    public static <V> ListenableFuture<List<V>> allAsList(final List<? extends ListenableFuture<? extends V>> futures) {
+        final SettableFuture<List<V>> output = new SettableFuture<List<V>>();
+        if (futures.isEmpty()) {
+            output.set(Collections.<V>emptyList());
+            return output;
+        }
+        final List<V> values = new ArrayList<V>(Collections.<V>nCopies(futures.size(), null));
+        final AtomicInteger remaining = new AtomicInteger(futures.size());
+        for (int i = 0; i < futures.size(); i++) {
+            final int index = i;
+            final ListenableFuture<? extends V> future = futures.get(i);
+            future.addListener(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        V value = getDone(future);
+                        synchronized (values) {
+                            values.set(index, value);
+                        }
+                        if (remaining.decrementAndGet() == 0) {
+                            synchronized (values) {
+                                output.set(Collections.unmodifiableList(values));
+                            }
+                        }
+                    } catch (ExecutionException e) {
+                        output.setException(e.getCause());
+                    } catch (CancellationException e) {
+                        output.cancel(false);
+                    }
+                }
+            });
+        }
+        output.addListener(new Runnable() {
+            @Override
+            public void run() {
+                // a no-op for the futures already done
+                if (!isSucceeded(output)) {
+                    for (ListenableFuture<? extends V> future : futures) {
+                        future.cancel(true);
+                    }
+                }
+            }
+        });
+        return output;
+    }
+
+    /**
+     * Completes the target as the source completes, and cancels the source if
+     * the target is cancelled first.
+     */
+    private static <V> void propagate(final ListenableFuture<? extends V> source, final SettableFuture<V> target) {
+        source.addListener(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    target.set(getDone(source));
+                } catch (ExecutionException e) {
+                    target.setException(e.getCause());
+                } catch (CancellationException e) {
+                    target.cancel(false);
+                }
+            }
+        });
+        cancelWith(target, source);
+    }
+
+    private static void cancelWith(final ListenableFuture<?> output, final Future<?> input) {
+        output.addListener(new Runnable() {
+            @Override
+            public void run() {
+                if (output.isCancelled()) {
+                    input.cancel(true);
+                }
+            }
+        });
+    }
+
+    private static boolean isSucceeded(final Future<?> future) {
+        try {
+            getDone(future);
+            return true;
+        } catch (ExecutionException | CancellationException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Returns the result of a future which is known to be done.
+     */
+    private static <V> V getDone(final Future<V> future) throws ExecutionException {
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    return future.get();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
@@ -0,0 +1,20 @@
+package io.magnum.awscommons.concurrent;
+
+import java.util.concurrent.Future;
+
+/**
+ * A {@link Future} which can notify listeners when it completes, so that
+ * callers can chain work onto a result without blocking a thread on
+ * {@link #get()}.
+ */
+public interface ListenableFuture<V> extends Future<V> {
+
+    /**
+     * Registers a listener to be run once this future completes, whether
+     * successfully, exceptionally or by cancellation. If the future has already
+     * completed, the listener is run immediately on the calling thread;
+     * otherwise it runs on the thread that completes the future, so it should
+     * be quick and must not block.
+     */
+    void addListener(Runnable listener);
+}
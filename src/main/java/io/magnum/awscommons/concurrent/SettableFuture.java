@@ -0,0 +1,141 @@
+package io.magnum.awscommons.concurrent;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A {@link ListenableFuture} whose result is supplied by calling
+ * {@link #set(Object)} or {@link #setException(Throwable)}.
+ * <p>
+ * Only the first completion takes effect; later calls return
+ * <code>false</code>. This class is thread-safe.
+ */
+public class SettableFuture<V> implements ListenableFuture<V> {
+
+    private final static Logger logger = LoggerFactory.getLogger(SettableFuture.class);
+
+    private static final int PENDING = 0;
+    private static final int SUCCEEDED = 1;
+    private static final int FAILED = 2;
+    private static final int CANCELLED = 3;
+
+    private final CountDownLatch done = new CountDownLatch(1);
+
+    /** Guarded by this; becomes <code>null</code> once the listeners have run */
+    private List<Runnable> listeners = new ArrayList<Runnable>(2);
+
+    /** Guarded by this for writes; published to readers by {@link #done} */
+    private int state = PENDING;
+    private V value;
+    private Throwable exception;
+
+    /**
+     * Completes this future successfully.
+     * 
+     * @return true if and only if this call completed the future
+     */
+    public boolean set(V value) {
+        return complete(SUCCEEDED, value, null);
+    }
+
+    /**
+     * Completes this future exceptionally; {@link #get()} will throw an
+     * {@link ExecutionException} whose cause is the given throwable.
+     * 
+     * @return true if and only if this call completed the future
+     */
+    public boolean setException(Throwable exception) {
+        if (exception == null) {
+            throw new IllegalArgumentException("exception cannot be null");
+        }
+        return complete(FAILED, null, exception);
+    }
+
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        return complete(CANCELLED, null, null);
+    }
+
+    private boolean complete(int newState, V newValue, Throwable newException) {
+        List<Runnable> toRun;
+        synchronized (this) {
+            if (state != PENDING) {
+                return false;
+            }
+            state = newState;
+            value = newValue;
+            exception = newException;
+            toRun = listeners;
+            listeners = null;
+        }
+        done.countDown();
+        for (Runnable listener : toRun) {
+            runListener(listener);
+        }
+        return true;
+    }
+
+    @Override
+    public void addListener(Runnable listener) {
+        synchronized (this) {
+            if (listeners != null) {
+                listeners.add(listener);
+                return;
+            }
+        }
+        runListener(listener);
+    }
+
+    private static void runListener(Runnable listener) {
+        try {
+            listener.run();
+        } catch (RuntimeException e) {
+            logger.warn("future listener threw an exception", e);
+        }
+    }
+
+    @Override
+    public boolean isCancelled() {
+        return isDone() && state == CANCELLED;
+    }
+
+    @Override
+    public boolean isDone() {
+        return done.getCount() == 0;
+    }
+
+    @Override
+    public V get() throws InterruptedException, ExecutionException {
+        done.await();
+        return report();
+    }
+
+    @Override
+    public V get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException,
+            TimeoutException {
+        if (!done.await(timeout, unit)) {
+            throw new TimeoutException("future did not complete within " + timeout + " "
+                    + unit.toString().toLowerCase());
+        }
+        return report();
+    }
+
+    private V report() throws ExecutionException {
+        switch (state) {
+            case SUCCEEDED:
+                return value;
+            case FAILED:
+                throw new ExecutionException(exception);
+            default:
+                throw new CancellationException();
+        }
+    }
+}
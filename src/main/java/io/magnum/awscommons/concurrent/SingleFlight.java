@@ -0,0 +1,77 @@
+package io.magnum.awscommons.concurrent;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Coalesces concurrent calls for the same key: while a call for a key is in
+ * flight, further calls for that key wait for it and receive its result, or
+ * its exception, instead of making their own.
+ * <p>
+ * Nothing is remembered once a call completes, so a call never sees a result
+ * older than its own start. This class is thread-safe.
+ */
+public class SingleFlight<K, V> {
+
+    private final ConcurrentMap<K, SettableFuture<V>> inFlight = new ConcurrentHashMap<K, SettableFuture<V>>();
+    private final AtomicLong calls = new AtomicLong();
+    private final AtomicLong coalescedCalls = new AtomicLong();
+
+    /**
+     * Runs the loader, unless a call for the same key is already in flight,
+     * in which case its outcome is shared.
+     *
+     * @throws ExecutionException if this call waited for another which
+     * failed; its cause is the other call's exception, as thrown by its loader
+     * @throws InterruptedException if interrupted while waiting for another
+     * call
+     * @throws Exception whatever the loader throws, if this call ran it
+     */
+    public V call(final K key, final Callable<? extends V> loader) throws Exception {
+        calls.incrementAndGet();
+        SettableFuture<V> mine = new SettableFuture<V>();
+        SettableFuture<V> leader = inFlight.putIfAbsent(key, mine);
+        if (leader != null) {
+            coalescedCalls.incrementAndGet();
+            return leader.get();
+        }
+        V value;
+        try {
+            value = loader.call();
+        } catch (Exception | Error e) {
+            // removed before completing, so that no later call is handed a
+            // result it did not wait for
+            inFlight.remove(key, mine);
+            mine.setException(e);
+            throw e;
+        }
+        inFlight.remove(key, mine);
+        mine.set(value);
+        return value;
+    }
+
+    /**
+     * Returns the number of calls made through {@link #call(Object, Callable)}.
+     */
+    public long getCalls() {
+        return calls.get();
+    }
+
+    /**
+     * Returns the number of calls which shared the outcome of another rather
+     * than running their own loader.
+     */
+    public long getCoalescedCalls() {
+        return coalescedCalls.get();
+    }
+
+    /**
+     * Returns the number of keys with a call in flight.
+     */
+    public int getInFlightCount() {
+        return inFlight.size();
+    }
+}
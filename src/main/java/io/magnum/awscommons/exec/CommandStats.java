@@ -0,0 +1,122 @@
+package io.magnum.awscommons.exec;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Resource usage aggregated over every execution of one external program,
+ * e.g. all <code>s3cmd</code> invocations.
+ * <p>
+ * This class is thread-safe. Figures that could not be sampled for a given
+ * execution (see {@link ExecResult#isResourceUsageAvailable()}) do not
+ * contribute to the CPU, memory and I/O totals.
+ *
+ * @author Yu Sun
+ */
+public class CommandStats {
+
+    private final String commandName;
+    private final AtomicLong executions = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+    private final AtomicLong sampledExecutions = new AtomicLong();
+    private final AtomicLong totalWallTimeNanos = new AtomicLong();
+    private final AtomicLong maxWallTimeNanos = new AtomicLong();
+    private final AtomicLong totalUserCpuMillis = new AtomicLong();
+    private final AtomicLong totalSystemCpuMillis = new AtomicLong();
+    private final AtomicLong maxPeakRssBytes = new AtomicLong();
+    private final AtomicLong totalReadBytes = new AtomicLong();
+    private final AtomicLong totalWriteBytes = new AtomicLong();
+
+    CommandStats(String commandName) {
+        this.commandName = commandName;
+    }
+
+    void record(ExecResult result, boolean failed) {
+        executions.incrementAndGet();
+        if (failed) {
+            failures.incrementAndGet();
+        }
+        totalWallTimeNanos.addAndGet(result.getWallTimeNanos());
+        updateMax(maxWallTimeNanos, result.getWallTimeNanos());
+        if (result.isResourceUsageAvailable()) {
+            sampledExecutions.incrementAndGet();
+            totalUserCpuMillis.addAndGet(result.getUserCpuMillis());
+            totalSystemCpuMillis.addAndGet(result.getSystemCpuMillis());
+            updateMax(maxPeakRssBytes, result.getPeakRssBytes());
+            if (result.getReadBytes() != ExecResult.UNAVAILABLE) {
+                totalReadBytes.addAndGet(result.getReadBytes());
+            }
+            if (result.getWriteBytes() != ExecResult.UNAVAILABLE) {
+                totalWriteBytes.addAndGet(result.getWriteBytes());
+            }
+        }
+    }
+
+    private static void updateMax(AtomicLong max, long value) {
+        long current;
+        while (value > (current = max.get())) {
+            if (max.compareAndSet(current, value)) {
+                return;
+            }
+        }
+    }
+
+    public String getCommandName() {
+        return commandName;
+    }
+
+    public long getExecutions() {
+        return executions.get();
+    }
+
+    public long getFailures() {
+        return failures.get();
+    }
+
+    /** Returns the number of executions whose CPU, memory and I/O usage could be sampled */
+    public long getSampledExecutions() {
+        return sampledExecutions.get();
+    }
+
+    public long getTotalWallTimeNanos() {
+        return totalWallTimeNanos.get();
+    }
+
+    public long getMaxWallTimeNanos() {
+        return maxWallTimeNanos.get();
+    }
+
+    public long getTotalUserCpuMillis() {
+        return totalUserCpuMillis.get();
+    }
+
+    public long getTotalSystemCpuMillis() {
+        return totalSystemCpuMillis.get();
+    }
+
+    public long getMaxPeakRssBytes() {
+        return maxPeakRssBytes.get();
+    }
+
+    public long getTotalReadBytes() {
+        return totalReadBytes.get();
+    }
+
+    public long getTotalWriteBytes() {
+        return totalWriteBytes.get();
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + " ["
+                + "commandName=" + commandName
+                + ", executions=" + getExecutions()
+                + ", failures=" + getFailures()
+                + ", totalWallTimeMillis=" + getTotalWallTimeNanos() / 1000000L
+                + ", totalUserCpuMillis=" + getTotalUserCpuMillis()
+                + ", totalSystemCpuMillis=" + getTotalSystemCpuMillis()
+                + ", maxPeakRssBytes=" + getMaxPeakRssBytes()
+                + ", totalReadBytes=" + getTotalReadBytes()
+                + ", totalWriteBytes=" + getTotalWriteBytes()
+                + "]";
+    }
+}
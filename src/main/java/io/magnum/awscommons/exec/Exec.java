@@ -1,7 +1,12 @@
 package io.magnum.awscommons.exec;
 
 import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.IOException;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.logging.Logger;
 
 import org.apache.commons.exec.CommandLine;
@@ -31,6 +36,9 @@ public class Exec {
     /** The timeout of executing a command */
     private final int timeout;
 
+    /** Resource usage aggregated by program name, across all executions */
+    private static final ConcurrentMap<String, CommandStats> STATS = new ConcurrentHashMap<String, CommandStats>();
+
     public Exec(String command) {
         this(command, DEFAULT_SUCCESS_CDOE, DEFAULT_TIMEOUT);
     }
@@ -47,25 +55,39 @@ public class Exec {
 
     /**
      * Execute the command using Apache Commons Exec.
+     *
+     * @return the exit value, wall time and, on Linux, the CPU, memory and
+     *         I/O usage of the child process
      */
-    public void execute() throws ExecuteException, IOException {
+    public ExecResult execute() throws ExecuteException, IOException {
         CommandLine line = CommandLine.parse(command);
-        DefaultExecutor runner = new DefaultExecutor();
+        SamplingExecutor runner = new SamplingExecutor();
         ExecuteWatchdog watchdog = new ExecuteWatchdog(timeout);
         runner.setWatchdog(watchdog);
         runner.setExitValue(successCode);
         ByteArrayOutputStream out = new ByteArrayOutputStream();
         ByteArrayOutputStream err = new ByteArrayOutputStream();
         runner.setStreamHandler(new PumpStreamHandler(out, err));
+        final String commandName = new File(line.getExecutable()).getName();
+        final long startNanos = System.nanoTime();
+        int exitValue = -1;
+        boolean failed = true;
+        ExecResult result;
         try {
-            runner.execute(line);
+            exitValue = runner.execute(line);
+            failed = false;
         } catch (ExecuteException e) {
+            exitValue = e.getExitValue();
             log.warning("Failed to run " + command);
             throw e;
         } catch (IOException e) {
             log.warning("Failed to run " + command);
             throw e;
         } finally {
+            result = new ExecResult(command, commandName, exitValue,
+                    System.nanoTime() - startNanos, runner.stopSampling());
+            getOrCreateStats(commandName).record(result, failed);
+            log.fine("Resource usage: " + result);
             final String output = new String(out.toByteArray(), "UTF-8");
             if (!output.isEmpty()) {
                 log.info("STDOUT: " + output);
@@ -75,5 +97,53 @@ public class Exec {
                 log.warning("STDERR: " + error);
             }
         }
+        return result;
+    }
+
+    /**
+     * Returns the usage aggregated over every execution of the named program
+     * (e.g. <code>s3cmd</code>), or <code>null</code> if it has not been run.
+     */
+    public static CommandStats getCommandStats(String commandName) {
+        return STATS.get(commandName);
+    }
+
+    /**
+     * Returns the aggregated usage of every program run so far, keyed by
+     * program name.
+     */
+    public static Map<String, CommandStats> getAllCommandStats() {
+        return Collections.unmodifiableMap(STATS);
+    }
+
+    private static CommandStats getOrCreateStats(String commandName) {
+        CommandStats stats = STATS.get(commandName);
+        if (stats == null) {
+            STATS.putIfAbsent(commandName, new CommandStats(commandName));
+            stats = STATS.get(commandName);
+        }
+        return stats;
+    }
+
+    /**
+     * An executor which starts sampling the child's resource usage as soon as
+     * the child has been launched.
+     */
+    private static class SamplingExecutor extends DefaultExecutor {
+
+        private volatile ProcessResourceSampler sampler;
+
+        @SuppressWarnings("rawtypes")
+        @Override
+        protected Process launch(CommandLine command, Map env, File dir) throws IOException {
+            Process process = super.launch(command, env, dir);
+            sampler = ProcessResourceSampler.start(process);
+            return process;
+        }
+
+        ProcessResourceSampler.Sample stopSampling() {
+            ProcessResourceSampler current = sampler;
+            return current != null ? current.stop() : null;
+        }
     }
 }
@@ -0,0 +1,120 @@
+package io.magnum.awscommons.exec;
+
+/**
+ * The outcome of running an external process through {@link Exec}, including
+ * what the child process cost.
+ * <p>
+ * Wall time and the exit value are always available. The CPU, memory and I/O
+ * figures are read from <code>/proc</code> while the child is running, so they
+ * are only populated on Linux (see {@link #isResourceUsageAvailable()}) and
+ * may miss the last few milliseconds of the child's life.
+ *
+ * @author Yu Sun
+ */
+public class ExecResult {
+
+    /** The value returned by resource getters when nothing could be sampled */
+    public static final long UNAVAILABLE = -1L;
+
+    /** The command line that was executed */
+    private final String command;
+    /** The name of the executed program, used to aggregate metrics */
+    private final String commandName;
+    /** The exit value of the process */
+    private final int exitValue;
+    /** The elapsed wall time, in nanoseconds */
+    private final long wallTimeNanos;
+    /** CPU time spent in user mode, in milliseconds */
+    private final long userCpuMillis;
+    /** CPU time spent in kernel mode, in milliseconds */
+    private final long systemCpuMillis;
+    /** The peak resident set size, in bytes */
+    private final long peakRssBytes;
+    /** Bytes the process caused to be fetched from the storage layer */
+    private final long readBytes;
+    /** Bytes the process caused to be sent to the storage layer */
+    private final long writeBytes;
+
+    ExecResult(String command, String commandName, int exitValue, long wallTimeNanos,
+            ProcessResourceSampler.Sample usage) {
+        this.command = command;
+        this.commandName = commandName;
+        this.exitValue = exitValue;
+        this.wallTimeNanos = wallTimeNanos;
+        if (usage != null) {
+            this.userCpuMillis = usage.userCpuMillis;
+            this.systemCpuMillis = usage.systemCpuMillis;
+            this.peakRssBytes = usage.peakRssBytes;
+            this.readBytes = usage.readBytes;
+            this.writeBytes = usage.writeBytes;
+        } else {
+            this.userCpuMillis = UNAVAILABLE;
+            this.systemCpuMillis = UNAVAILABLE;
+            this.peakRssBytes = UNAVAILABLE;
+            this.readBytes = UNAVAILABLE;
+            this.writeBytes = UNAVAILABLE;
+        }
+    }
+
+    public String getCommand() {
+        return command;
+    }
+
+    public String getCommandName() {
+        return commandName;
+    }
+
+    public int getExitValue() {
+        return exitValue;
+    }
+
+    public long getWallTimeNanos() {
+        return wallTimeNanos;
+    }
+
+    public long getWallTimeMillis() {
+        return wallTimeNanos / 1000000L;
+    }
+
+    /**
+     * Returns true if and only if CPU, memory and I/O figures could be read for
+     * the child process.
+     */
+    public boolean isResourceUsageAvailable() {
+        return userCpuMillis != UNAVAILABLE;
+    }
+
+    public long getUserCpuMillis() {
+        return userCpuMillis;
+    }
+
+    public long getSystemCpuMillis() {
+        return systemCpuMillis;
+    }
+
+    public long getPeakRssBytes() {
+        return peakRssBytes;
+    }
+
+    public long getReadBytes() {
+        return readBytes;
+    }
+
+    public long getWriteBytes() {
+        return writeBytes;
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + " ["
+                + "command=" + command
+                + ", exitValue=" + exitValue
+                + ", wallTimeMillis=" + getWallTimeMillis()
+                + ", userCpuMillis=" + userCpuMillis
+                + ", systemCpuMillis=" + systemCpuMillis
+                + ", peakRssBytes=" + peakRssBytes
+                + ", readBytes=" + readBytes
+                + ", writeBytes=" + writeBytes
+                + "]";
+    }
+}
@@ -0,0 +1,199 @@
+package io.magnum.awscommons.exec;
+
+import io.magnum.awscommons.concurrent.DaemonThreads;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Periodically reads the resource usage of a running child process from
+ * <code>/proc/&lt;pid&gt;</code>.
+ * <p>
+ * The kernel discards a process's <code>/proc</code> entry as soon as the
+ * process is reaped, so the figures have to be sampled while it is still
+ * alive; the last successful sample is what gets reported.
+ *
+ * @author Yu Sun
+ */
+class ProcessResourceSampler {
+
+    private static Logger log = Logger.getLogger(ProcessResourceSampler.class.getName());
+
+    /** How often a running child process is sampled */
+    private static final long SAMPLE_INTERVAL_MILLIS = 50;
+    /** USER_HZ, the unit of the CPU times in /proc/[pid]/stat; 100 on every Linux platform we run on */
+    private static final long CLOCK_TICKS_PER_SECOND = 100;
+    /** The root of the proc filesystem */
+    private static final File PROC = new File("/proc");
+
+    /** One daemon thread is enough to sample every running child */
+    private static final ScheduledExecutorService SCHEDULER = Executors.newSingleThreadScheduledExecutor(
+            DaemonThreads.newThreadFactory("exec-resource-sampler"));
+
+    /**
+     * A point-in-time reading of a process's cumulative resource usage.
+     */
+    static class Sample {
+        final long userCpuMillis;
+        final long systemCpuMillis;
+        final long peakRssBytes;
+        final long readBytes;
+        final long writeBytes;
+
+        Sample(long userCpuMillis, long systemCpuMillis, long peakRssBytes, long readBytes, long writeBytes) {
+            this.userCpuMillis = userCpuMillis;
+            this.systemCpuMillis = systemCpuMillis;
+            this.peakRssBytes = peakRssBytes;
+            this.readBytes = readBytes;
+            this.writeBytes = writeBytes;
+        }
+    }
+
+    private final File procDir;
+    private final ScheduledFuture<?> task;
+    private volatile Sample lastSample;
+
+    private ProcessResourceSampler(long pid) {
+        this.procDir = new File(PROC, Long.toString(pid));
+        sample();
+        this.task = SCHEDULER.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                sample();
+            }
+        }, SAMPLE_INTERVAL_MILLIS, SAMPLE_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Starts sampling the specified process, or returns <code>null</code> if
+     * its usage cannot be read on this platform.
+     */
+    static ProcessResourceSampler start(Process process) {
+        if (!PROC.isDirectory()) {
+            return null;
+        }
+        Long pid = pidOf(process);
+        if (pid == null) {
+            return null;
+        }
+        return new ProcessResourceSampler(pid);
+    }
+
+    /**
+     * Stops sampling and returns the last sample taken, or <code>null</code>
+     * if no sample could be read.
+     */
+    Sample stop() {
+        task.cancel(false);
+        return lastSample;
+    }
+
+    private void sample() {
+        try {
+            Sample sample = read(procDir);
+            if (sample != null) {
+                lastSample = sample;
+            }
+        } catch (IOException e) {
+            // The process has most likely exited; keep the last sample.
+        } catch (RuntimeException e) {
+            log.log(Level.FINE, "Unable to parse resource usage in " + procDir, e);
+        }
+    }
+
+    /**
+     * Reads the cumulative usage of a process. CPU times include children the
+     * process has already waited for, so wrapper scripts are accounted for.
+     */
+    private static Sample read(File procDir) throws IOException {
+        String stat = readFirstLine(new File(procDir, "stat"));
+        if (stat == null) {
+            return null;
+        }
+        // The command name is in parentheses and may itself contain spaces,
+        // so parse from after the last closing parenthesis (field 3 onwards).
+        String[] fields = stat.substring(stat.lastIndexOf(')') + 2).split(" ");
+        long utime = Long.parseLong(fields[11]);
+        long stime = Long.parseLong(fields[12]);
+        long cutime = Long.parseLong(fields[13]);
+        long cstime = Long.parseLong(fields[14]);
+
+        long peakRssBytes = readKeyedValue(new File(procDir, "status"), "VmHWM:");
+        if (peakRssBytes != ExecResult.UNAVAILABLE) {
+            peakRssBytes *= 1024L; // reported in kB
+        }
+
+        long readBytes = ExecResult.UNAVAILABLE;
+        long writeBytes = ExecResult.UNAVAILABLE;
+        File io = new File(procDir, "io");
+        if (io.canRead()) {
+            readBytes = readKeyedValue(io, "read_bytes:");
+            writeBytes = readKeyedValue(io, "write_bytes:");
+        }
+
+        return new Sample(ticksToMillis(utime + cutime), ticksToMillis(stime + cstime),
+                peakRssBytes, readBytes, writeBytes);
+    }
+
+    private static long ticksToMillis(long ticks) {
+        return ticks * 1000L / CLOCK_TICKS_PER_SECOND;
+    }
+
+    private static String readFirstLine(File file) throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+        try {
+            return reader.readLine();
+        } finally {
+            reader.close();
+        }
+    }
+
+    private static long readKeyedValue(File file, String key) throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.startsWith(key)) {
+                    String value = line.substring(key.length()).trim();
+                    int space = value.indexOf(' ');
+                    return Long.parseLong(space < 0 ? value : value.substring(0, space));
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        return ExecResult.UNAVAILABLE;
+    }
+
+    /**
+     * Returns the operating system ID of the process, or <code>null</code> if
+     * it cannot be determined. <code>Process.pid()</code> only exists on Java 9
+     * and later; older UNIX runtimes keep the ID in a private field instead.
+     */
+    private static Long pidOf(Process process) {
+        try {
+            Method method = Process.class.getMethod("pid");
+            return ((Number) method.invoke(process)).longValue();
+        } catch (Exception e) {
+            // fall through to the pre-Java 9 implementation
+        }
+        try {
+            Field field = process.getClass().getDeclaredField("pid");
+            field.setAccessible(true);
+            return ((Number) field.get(process)).longValue();
+        } catch (Exception e) {
+            return null;
+        }
+    }
+}
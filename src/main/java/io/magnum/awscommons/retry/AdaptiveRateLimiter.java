@@ -0,0 +1,223 @@
+package io.magnum.awscommons.retry;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A client-side rate limiter whose rate adapts to throttling by the server
+ * (additive increase, multiplicative decrease).
+ * <p>
+ * Callers {@link #acquire()} a permit before each request; permits are spaced
+ * evenly at the current rate, with up to one second's worth banked while idle.
+ * Each successful request raises the rate so that it grows by
+ * <code>additiveIncrease</code> requests per second for every second of
+ * unthrottled traffic; each throttling error (as recognized by the throttle
+ * arbiter) multiplies it by <code>decreaseFactor</code>, at most once per
+ * cool-down so that a burst of throttled responses counts as one signal. The
+ * rate therefore settles just under the limit the service enforces instead of
+ * oscillating around it.
+ * <p>
+ * Use one limiter per AWS service. This class is thread-safe.
+ */
+public class AdaptiveRateLimiter {
+
+    private final static Logger logger = LoggerFactory.getLogger(AdaptiveRateLimiter.class);
+
+    private static final long NANOS_PER_SECOND = TimeUnit.SECONDS.toNanos(1);
+
+    private final String name;
+    private final double minRate;
+    private final double maxRate;
+    private final double additiveIncrease;
+    private final double decreaseFactor;
+    private final long cooldownNanos;
+    private final ExceptionArbiter throttleArbiter;
+
+    /** Requests per second; written under this, read without locking */
+    private volatile double rate;
+    /** Guarded by this */
+    private long lastDecreaseNanos;
+    /** The earliest time at which the next permit may be handed out */
+    private final AtomicLong nextFreeNanos = new AtomicLong(System.nanoTime());
+    private final AtomicLong throttleCount = new AtomicLong();
+
+    public final static class Builder {
+        private final String name;
+        private double initialRate = 50;
+        private double minRate = 1;
+        private double maxRate = 100;
+        private double additiveIncrease = 1;
+        private double decreaseFactor = 0.5;
+        private long cooldownNanos = TimeUnit.SECONDS.toNanos(1);
+        private ExceptionArbiter throttleArbiter = AwsThrottlingArbiter.INSTANCE;
+
+        public Builder(final String name) {
+            this.name = name;
+        }
+
+        public AdaptiveRateLimiter build() {
+            return new AdaptiveRateLimiter(this);
+        }
+
+        /**
+         * Sets the starting rate and the bounds it may move between, in
+         * requests per second. Defaults to 50, 1 and 100.
+         */
+        public Builder withRates(final double initialRate, final double minRate, final double maxRate) {
+            this.initialRate = initialRate;
+            this.minRate = minRate;
+            this.maxRate = maxRate;
+            return this;
+        }
+
+        /**
+         * Sets how many requests per second the rate grows by for each second
+         * of unthrottled traffic. Defaults to 1.
+         */
+        public Builder withAdditiveIncrease(final double additiveIncrease) {
+            this.additiveIncrease = additiveIncrease;
+            return this;
+        }
+
+        /**
+         * Sets the factor, between 0 and 1, the rate is multiplied by on
+         * throttling, and the minimum time between two decreases. Defaults to
+         * 0.5 and one second.
+         */
+        public Builder withDecrease(final double decreaseFactor, final long cooldown, final TimeUnit unit) {
+            this.decreaseFactor = decreaseFactor;
+            this.cooldownNanos = unit.toNanos(cooldown);
+            return this;
+        }
+
+        /**
+         * Sets the arbiter which recognizes throttling errors: an exception is
+         * treated as throttling if and only if the arbiter considers it
+         * retryable. Defaults to {@link AwsThrottlingArbiter#INSTANCE}.
+         */
+        public Builder withThrottleArbiter(final ExceptionArbiter throttleArbiter) {
+            this.throttleArbiter = throttleArbiter;
+            return this;
+        }
+    }
+
+    private AdaptiveRateLimiter(final Builder builder) {
+        if (builder.minRate <= 0 || builder.maxRate < builder.minRate) {
+            throw new IllegalArgumentException("rates must satisfy 0 < minRate <= maxRate: minRate="
+                    + builder.minRate + ", maxRate=" + builder.maxRate);
+        }
+        if (builder.initialRate < builder.minRate || builder.initialRate > builder.maxRate) {
+            throw new IllegalArgumentException("initialRate must be between minRate and maxRate: "
+                    + builder.initialRate);
+        }
+        if (builder.decreaseFactor <= 0 || builder.decreaseFactor >= 1) {
+            throw new IllegalArgumentException("decreaseFactor must be in (0, 1): " + builder.decreaseFactor);
+        }
+        if (builder.additiveIncrease < 0) {
+            throw new IllegalArgumentException("additiveIncrease must be >= 0: " + builder.additiveIncrease);
+        }
+        if (builder.throttleArbiter == null) {
+            throw new IllegalArgumentException("throttleArbiter cannot be null");
+        }
+        this.name = builder.name;
+        this.minRate = builder.minRate;
+        this.maxRate = builder.maxRate;
+        this.additiveIncrease = builder.additiveIncrease;
+        this.decreaseFactor = builder.decreaseFactor;
+        this.cooldownNanos = builder.cooldownNanos;
+        this.throttleArbiter = builder.throttleArbiter;
+        this.rate = builder.initialRate;
+        this.lastDecreaseNanos = System.nanoTime() - cooldownNanos;
+    }
+
+    /**
+     * Blocks until a request may be made at the current rate.
+     */
+    public void acquire() throws InterruptedException {
+        final long waitNanos = reserve();
+        if (waitNanos > 0) {
+            TimeUnit.NANOSECONDS.sleep(waitNanos);
+        }
+    }
+
+    /**
+     * Reserves the next permit and returns how long the caller must wait
+     * before using it.
+     */
+    long reserve() {
+        final long intervalNanos = (long) (NANOS_PER_SECOND / rate);
+        while (true) {
+            final long now = System.nanoTime();
+            final long next = nextFreeNanos.get();
+            // Bank at most one second's worth of permits while idle.
+            final long slot = Math.max(next, now - NANOS_PER_SECOND);
+            if (nextFreeNanos.compareAndSet(next, slot + intervalNanos)) {
+                return slot - now;
+            }
+        }
+    }
+
+    /**
+     * Records a request which was not throttled.
+     */
+    public void onSuccess() {
+        final double current = rate;
+        if (current < maxRate && additiveIncrease > 0) {
+            synchronized (this) {
+                rate = Math.min(maxRate, rate + additiveIncrease / rate);
+            }
+        }
+    }
+
+    /**
+     * Records a failed request, lowering the rate if the failure was
+     * throttling.
+     * 
+     * @return true if and only if the failure was throttling
+     */
+    public boolean onFailure(final Throwable t) {
+        if (!throttleArbiter.isRetryable(t)) {
+            return false;
+        }
+        throttleCount.incrementAndGet();
+        synchronized (this) {
+            final long now = System.nanoTime();
+            if (now - lastDecreaseNanos >= cooldownNanos) {
+                lastDecreaseNanos = now;
+                final double previous = rate;
+                rate = Math.max(minRate, previous * decreaseFactor);
+                logger.info("rate limiter " + name + " throttled; lowering rate from " + previous
+                        + " to " + rate + " requests per second");
+            }
+        }
+        return true;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Returns the current rate, in requests per second.
+     */
+    public double getRate() {
+        return rate;
+    }
+
+    /**
+     * Returns the number of throttling errors seen since this limiter was
+     * created.
+     */
+    public long getThrottleCount() {
+        return throttleCount.get();
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + " [name=" + name + ", rate=" + rate
+                + ", throttleCount=" + getThrottleCount() + "]";
+    }
+}
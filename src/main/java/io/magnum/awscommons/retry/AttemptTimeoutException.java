@@ -0,0 +1,15 @@
+package io.magnum.awscommons.retry;
+
+/**
+ * Thrown when a single attempt of a proxied call exceeds the attempt timeout
+ * declared by its {@link RetryPolicy}. The thread making the attempt is
+ * interrupted, though the attempt may run on if it ignores that, and the
+ * failure is always considered retryable.
+ */
+@SuppressWarnings("serial")
+public class AttemptTimeoutException extends RuntimeException {
+
+    public AttemptTimeoutException(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,59 @@
+package io.magnum.awscommons.retry;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+import com.amazonaws.AmazonServiceException;
+
+/**
+ * Treats AWS throttling errors, and only those, as retryable.
+ * <p>
+ * On its own this is the throttle detector for an
+ * {@link AdaptiveRateLimiter}; it can also be passed a delegate arbiter, in
+ * which case throttling errors are retryable and everything else is left to
+ * the delegate.
+ */
+public class AwsThrottlingArbiter implements ExceptionArbiter {
+
+    public static final AwsThrottlingArbiter INSTANCE = new AwsThrottlingArbiter(AlwaysAbortArbiter.INSTANCE);
+
+    /** Error codes which AWS services use to signal that a caller is over its request rate. */
+    static final Set<String> THROTTLING_ERROR_CODES = Collections.unmodifiableSet(new HashSet<String>(Arrays.asList(
+            "Throttling",
+            "ThrottlingException",
+            "ThrottledException",
+            "RequestThrottled",
+            "RequestThrottledException",
+            "RequestLimitExceeded",
+            "TooManyRequestsException",
+            "ProvisionedThroughputExceededException",
+            "SlowDown",
+            "PriorRequestNotComplete")));
+
+    private final ExceptionArbiter arbiter;
+
+    public AwsThrottlingArbiter(ExceptionArbiter arbiter) {
+        this.arbiter = arbiter;
+    }
+
+    @Override
+    public boolean isRetryable(Throwable t) {
+        return isThrottlingException(t) || arbiter.isRetryable(t);
+    }
+
+    /**
+     * Returns true if and only if the throwable is an AWS response telling us
+     * to slow down.
+     */
+    public static boolean isThrottlingException(Throwable t) {
+        if (!(t instanceof AmazonServiceException)) {
+            return false;
+        }
+        AmazonServiceException e = (AmazonServiceException) t;
+        return THROTTLING_ERROR_CODES.contains(e.getErrorCode())
+                || e.getStatusCode() == 429
+                || e.getStatusCode() == 503;
+    }
+}
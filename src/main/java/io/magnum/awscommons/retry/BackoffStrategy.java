@@ -0,0 +1,21 @@
+package io.magnum.awscommons.retry;
+
+/**
+ * Determines how long to wait before retrying a failed task.
+ * <p>
+ * Implementations must be thread-safe; a single instance is shared by every
+ * task run through a {@link RetryHelper}.
+ */
+public interface BackoffStrategy {
+
+    /**
+     * Returns the number of nanoseconds to wait before the next attempt.
+     * 
+     * @param failedAttempts the number of attempts that have failed so far;
+     * always at least 1
+     * @param previousDelayNanos the delay returned for the previous retry of
+     * the same task, or 0 if this is the first retry
+     * @return the delay in nanoseconds; never negative
+     */
+    long delayNanos(int failedAttempts, long previousDelayNanos);
+}
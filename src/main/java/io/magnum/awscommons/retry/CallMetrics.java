@@ -0,0 +1,257 @@
+package io.magnum.awscommons.retry;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counters and latency histograms for the calls made through one method of a
+ * proxy created by {@link RetryableFactory}.
+ * <p>
+ * A call is one invocation of the proxy; it is made up of one or more
+ * attempts, with backoff in between. A call which was refused before any
+ * attempt (by an open {@link CircuitBreaker}, or an interrupted wait for an
+ * {@link AdaptiveRateLimiter}) counts as a rejection, not a failure.
+ * <p>
+ * Recording is lock-free. Use {@link #snapshot()} for a consistent-enough
+ * copy of every figure, or read the live values through JMX.
+ */
+public class CallMetrics implements CallMetricsMXBean {
+
+    /** Calls with this many attempts or more share the last attempts bucket */
+    public static final int MAX_TRACKED_ATTEMPTS = 10;
+
+    private final String methodName;
+    private final AtomicLong successes = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+    private final AtomicLong rejections = new AtomicLong();
+    private final AtomicLong attempts = new AtomicLong();
+    private final AtomicLong backoffNanos = new AtomicLong();
+    private final AtomicLong totalCallLatencyNanos = new AtomicLong();
+    private final AtomicLongArray attemptsPerCall = new AtomicLongArray(MAX_TRACKED_ATTEMPTS);
+    private final LatencyHistogram callLatency = new LatencyHistogram();
+    private final LatencyHistogram attemptLatency = new LatencyHistogram();
+
+    CallMetrics(String methodName) {
+        this.methodName = methodName;
+    }
+
+    void recordAttempt(long latencyNanos) {
+        attempts.incrementAndGet();
+        attemptLatency.record(latencyNanos);
+    }
+
+    void recordCall(boolean succeeded, int attemptCount, long latencyNanos, long backoff) {
+        (succeeded ? successes : failures).incrementAndGet();
+        attemptsPerCall.incrementAndGet(Math.max(0, Math.min(attemptCount, MAX_TRACKED_ATTEMPTS) - 1));
+        totalCallLatencyNanos.addAndGet(latencyNanos);
+        callLatency.record(latencyNanos);
+        if (backoff > 0) {
+            backoffNanos.addAndGet(backoff);
+        }
+    }
+
+    void recordRejection() {
+        rejections.incrementAndGet();
+    }
+
+    /**
+     * Returns a copy of every figure. Figures are read one at a time, so a
+     * snapshot taken under load may be off by the calls in flight.
+     */
+    public Snapshot snapshot() {
+        long[] perCall = new long[MAX_TRACKED_ATTEMPTS];
+        for (int i = 0; i < perCall.length; i++) {
+            perCall[i] = attemptsPerCall.get(i);
+        }
+        return new Snapshot(methodName, successes.get(), failures.get(), rejections.get(), attempts.get(),
+                backoffNanos.get(), totalCallLatencyNanos.get(), perCall, callLatency.getCounts(),
+                attemptLatency.getCounts());
+    }
+
+    @Override
+    public String getMethodName() {
+        return methodName;
+    }
+
+    @Override
+    public long getCalls() {
+        return successes.get() + failures.get();
+    }
+
+    @Override
+    public long getSuccesses() {
+        return successes.get();
+    }
+
+    @Override
+    public long getFailures() {
+        return failures.get();
+    }
+
+    @Override
+    public long getRejections() {
+        return rejections.get();
+    }
+
+    @Override
+    public long getAttempts() {
+        return attempts.get();
+    }
+
+    @Override
+    public long getRetries() {
+        return Math.max(0L, getAttempts() - getCalls());
+    }
+
+    @Override
+    public double getMeanAttemptsPerCall() {
+        return snapshot().getMeanAttemptsPerCall();
+    }
+
+    @Override
+    public long getBackoffMillis() {
+        return backoffNanos.get() / 1000000L;
+    }
+
+    @Override
+    public double getMeanCallLatencyMillis() {
+        return snapshot().getMeanCallLatencyMillis();
+    }
+
+    @Override
+    public double getCallLatencyP50Millis() {
+        return LatencyHistogram.percentileMillis(callLatency.getCounts(), 0.50);
+    }
+
+    @Override
+    public double getCallLatencyP99Millis() {
+        return LatencyHistogram.percentileMillis(callLatency.getCounts(), 0.99);
+    }
+
+    @Override
+    public double getAttemptLatencyP50Millis() {
+        return LatencyHistogram.percentileMillis(attemptLatency.getCounts(), 0.50);
+    }
+
+    @Override
+    public double getAttemptLatencyP99Millis() {
+        return LatencyHistogram.percentileMillis(attemptLatency.getCounts(), 0.99);
+    }
+
+    @Override
+    public String toString() {
+        return snapshot().toString();
+    }
+
+    /**
+     * An immutable copy of the figures of one method.
+     */
+    public static final class Snapshot {
+        private final String methodName;
+        private final long successes;
+        private final long failures;
+        private final long rejections;
+        private final long attempts;
+        private final long backoffNanos;
+        private final long totalCallLatencyNanos;
+        private final long[] attemptsPerCall;
+        private final long[] callLatencyCounts;
+        private final long[] attemptLatencyCounts;
+
+        Snapshot(String methodName, long successes, long failures, long rejections, long attempts,
+                long backoffNanos, long totalCallLatencyNanos, long[] attemptsPerCall, long[] callLatencyCounts,
+                long[] attemptLatencyCounts) {
+            this.methodName = methodName;
+            this.successes = successes;
+            this.failures = failures;
+            this.rejections = rejections;
+            this.attempts = attempts;
+            this.backoffNanos = backoffNanos;
+            this.totalCallLatencyNanos = totalCallLatencyNanos;
+            this.attemptsPerCall = attemptsPerCall;
+            this.callLatencyCounts = callLatencyCounts;
+            this.attemptLatencyCounts = attemptLatencyCounts;
+        }
+
+        public String getMethodName() {
+            return methodName;
+        }
+
+        public long getCalls() {
+            return successes + failures;
+        }
+
+        public long getSuccesses() {
+            return successes;
+        }
+
+        public long getFailures() {
+            return failures;
+        }
+
+        public long getRejections() {
+            return rejections;
+        }
+
+        public long getAttempts() {
+            return attempts;
+        }
+
+        public long getRetries() {
+            return Math.max(0L, attempts - getCalls());
+        }
+
+        public long getBackoffNanos() {
+            return backoffNanos;
+        }
+
+        public double getMeanAttemptsPerCall() {
+            long calls = getCalls();
+            return calls == 0 ? 0.0 : (double) attempts / calls;
+        }
+
+        public double getMeanCallLatencyMillis() {
+            long calls = getCalls();
+            return calls == 0 ? 0.0 : totalCallLatencyNanos / 1e6 / calls;
+        }
+
+        /**
+         * Returns the number of calls which took each number of attempts:
+         * element <i>i</i> counts calls with <i>i + 1</i> attempts, and the
+         * last element also counts calls with more.
+         */
+        public long[] getAttemptsPerCall() {
+            return attemptsPerCall.clone();
+        }
+
+        /**
+         * Returns the given percentile of call latency, including retries and
+         * backoff, in milliseconds; accurate to within a factor of two.
+         */
+        public double getCallLatencyPercentileMillis(double percentile) {
+            return LatencyHistogram.percentileMillis(callLatencyCounts, percentile);
+        }
+
+        /**
+         * Returns the given percentile of the latency of single attempts, in
+         * milliseconds; accurate to within a factor of two.
+         */
+        public double getAttemptLatencyPercentileMillis(double percentile) {
+            return LatencyHistogram.percentileMillis(attemptLatencyCounts, percentile);
+        }
+
+        @Override
+        public String toString() {
+            return "CallMetrics [methodName=" + methodName
+                    + ", calls=" + getCalls()
+                    + ", successes=" + successes
+                    + ", failures=" + failures
+                    + ", rejections=" + rejections
+                    + ", attempts=" + attempts
+                    + ", backoffMillis=" + backoffNanos / 1000000L
+                    + ", meanCallLatencyMillis=" + getMeanCallLatencyMillis()
+                    + ", callLatencyP99Millis=" + getCallLatencyPercentileMillis(0.99)
+                    + "]";
+        }
+    }
+}
@@ -0,0 +1,35 @@
+package io.magnum.awscommons.retry;
+
+/**
+ * The JMX view of the {@link CallMetrics} of one proxied method.
+ */
+public interface CallMetricsMXBean {
+
+    String getMethodName();
+
+    long getCalls();
+
+    long getSuccesses();
+
+    long getFailures();
+
+    long getRejections();
+
+    long getAttempts();
+
+    long getRetries();
+
+    double getMeanAttemptsPerCall();
+
+    long getBackoffMillis();
+
+    double getMeanCallLatencyMillis();
+
+    double getCallLatencyP50Millis();
+
+    double getCallLatencyP99Millis();
+
+    double getAttemptLatencyP50Millis();
+
+    double getAttemptLatencyP99Millis();
+}
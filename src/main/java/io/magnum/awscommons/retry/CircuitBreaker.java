@@ -0,0 +1,269 @@
+package io.magnum.awscommons.retry;
+
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A circuit breaker which stops calls to a failing dependency.
+ * <p>
+ * While {@link State#CLOSED}, the outcomes of the last
+ * <code>windowSize</code> calls are recorded. Once at least
+ * <code>minimumCalls</code> have been recorded and either the failure rate or
+ * the slow-call rate reaches its threshold, the breaker trips to
+ * {@link State#OPEN} and rejects every call. After <code>openDuration</code>
+ * it becomes {@link State#HALF_OPEN} and lets
+ * <code>permittedHalfOpenCalls</code> probe calls through; if their failure
+ * and slow-call rates are under the thresholds it closes again, otherwise it
+ * re-opens.
+ * <p>
+ * A breaker may be shared by several methods, e.g. all the methods that use
+ * one AWS service. This class is thread-safe.
+ */
+public class CircuitBreaker {
+
+    private final static Logger logger = LoggerFactory.getLogger(CircuitBreaker.class);
+
+    public static enum State {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    private static final byte FAILED = 1;
+    private static final byte SLOW = 2;
+
+    private final String name;
+    private final int windowSize;
+    private final int minimumCalls;
+    private final double failureRateThreshold;
+    private final double slowCallRateThreshold;
+    private final long slowCallDurationNanos;
+    private final long openDurationNanos;
+    private final int permittedHalfOpenCalls;
+
+    // All guarded by this
+    private State state = State.CLOSED;
+    private final byte[] outcomes;
+    private int next;
+    private int recorded;
+    private int failures;
+    private int slowCalls;
+    private long openedAtNanos;
+    private int halfOpenPermitsIssued;
+    private long rejectedCalls;
+
+    public final static class Builder {
+        private final String name;
+        private int windowSize = 100;
+        private int minimumCalls = 20;
+        private double failureRateThreshold = 0.5;
+        private double slowCallRateThreshold = 1.0;
+        private long slowCallDurationNanos = TimeUnit.SECONDS.toNanos(10);
+        private long openDurationNanos = TimeUnit.SECONDS.toNanos(30);
+        private int permittedHalfOpenCalls = 5;
+
+        public Builder(final String name) {
+            this.name = name;
+        }
+
+        public CircuitBreaker build() {
+            return new CircuitBreaker(this);
+        }
+
+        /**
+         * Sets the number of most recent calls whose outcomes are considered,
+         * and the number that must have been recorded before the breaker
+         * can trip. Defaults to 100 and 20.
+         */
+        public Builder withWindow(final int windowSize, final int minimumCalls) {
+            this.windowSize = windowSize;
+            this.minimumCalls = minimumCalls;
+            return this;
+        }
+
+        /**
+         * Sets the fraction of failed calls, between 0 and 1, at which the
+         * breaker trips. Defaults to 0.5.
+         */
+        public Builder withFailureRateThreshold(final double failureRateThreshold) {
+            this.failureRateThreshold = failureRateThreshold;
+            return this;
+        }
+
+        /**
+         * Sets the fraction of calls slower than the given duration at which
+         * the breaker trips. Defaults to 1.0 of calls slower than 10 seconds.
+         */
+        public Builder withSlowCallThreshold(final double slowCallRateThreshold, final long slowCallDuration,
+                final TimeUnit unit) {
+            this.slowCallRateThreshold = slowCallRateThreshold;
+            this.slowCallDurationNanos = unit.toNanos(slowCallDuration);
+            return this;
+        }
+
+        /**
+         * Sets how long the breaker stays open before letting probe calls
+         * through. Defaults to 30 seconds.
+         */
+        public Builder withOpenDuration(final long openDuration, final TimeUnit unit) {
+            this.openDurationNanos = unit.toNanos(openDuration);
+            return this;
+        }
+
+        /**
+         * Sets the number of probe calls let through while half-open. Defaults
+         * to 5.
+         */
+        public Builder withPermittedHalfOpenCalls(final int permittedHalfOpenCalls) {
+            this.permittedHalfOpenCalls = permittedHalfOpenCalls;
+            return this;
+        }
+    }
+
+    private CircuitBreaker(final Builder builder) {
+        if (builder.windowSize < 1) {
+            throw new IllegalArgumentException("windowSize must be >= 1: " + builder.windowSize);
+        }
+        if (builder.minimumCalls < 1 || builder.minimumCalls > builder.windowSize) {
+            throw new IllegalArgumentException("minimumCalls must be between 1 and windowSize: " + builder.minimumCalls);
+        }
+        if (builder.failureRateThreshold <= 0 || builder.failureRateThreshold > 1) {
+            throw new IllegalArgumentException("failureRateThreshold must be in (0, 1]: " + builder.failureRateThreshold);
+        }
+        if (builder.slowCallRateThreshold <= 0 || builder.slowCallRateThreshold > 1) {
+            throw new IllegalArgumentException("slowCallRateThreshold must be in (0, 1]: " + builder.slowCallRateThreshold);
+        }
+        if (builder.permittedHalfOpenCalls < 1) {
+            throw new IllegalArgumentException("permittedHalfOpenCalls must be >= 1: " + builder.permittedHalfOpenCalls);
+        }
+        this.name = builder.name;
+        this.windowSize = builder.windowSize;
+        this.minimumCalls = builder.minimumCalls;
+        this.failureRateThreshold = builder.failureRateThreshold;
+        this.slowCallRateThreshold = builder.slowCallRateThreshold;
+        this.slowCallDurationNanos = builder.slowCallDurationNanos;
+        this.openDurationNanos = builder.openDurationNanos;
+        this.permittedHalfOpenCalls = builder.permittedHalfOpenCalls;
+        this.outcomes = new byte[windowSize];
+    }
+
+    /**
+     * Asks whether a call may proceed. Every permitted call must be followed by
+     * exactly one call to {@link #onSuccess(long)}, {@link #onFailure(long)} or
+     * {@link #releasePermission()}.
+     * 
+     * @return true if the call may proceed; false if it must be rejected
+     */
+    public synchronized boolean tryAcquirePermission() {
+        if (state == State.OPEN) {
+            if (System.nanoTime() - openedAtNanos < openDurationNanos) {
+                rejectedCalls++;
+                return false;
+            }
+            transitionTo(State.HALF_OPEN);
+        }
+        if (state == State.HALF_OPEN) {
+            if (halfOpenPermitsIssued >= permittedHalfOpenCalls) {
+                rejectedCalls++;
+                return false;
+            }
+            halfOpenPermitsIssued++;
+        }
+        return true;
+    }
+
+    /**
+     * Gives back a permission for a call that was not made after all, so that
+     * it neither counts as an outcome nor uses up a half-open probe.
+     */
+    public synchronized void releasePermission() {
+        if (state == State.HALF_OPEN && halfOpenPermitsIssued > 0) {
+            halfOpenPermitsIssued--;
+        }
+    }
+
+    /**
+     * Records a permitted call which completed normally.
+     */
+    public void onSuccess(final long durationNanos) {
+        record(durationNanos >= slowCallDurationNanos ? SLOW : 0);
+    }
+
+    /**
+     * Records a permitted call which failed.
+     */
+    public void onFailure(final long durationNanos) {
+        record((byte) (FAILED | (durationNanos >= slowCallDurationNanos ? SLOW : 0)));
+    }
+
+    private synchronized void record(final byte outcome) {
+        if (state == State.OPEN) {
+            // A call that was permitted before the breaker tripped; ignore it.
+            return;
+        }
+        if (recorded == windowSize) {
+            final byte evicted = outcomes[next];
+            if ((evicted & FAILED) != 0) failures--;
+            if ((evicted & SLOW) != 0) slowCalls--;
+        } else {
+            recorded++;
+        }
+        outcomes[next] = outcome;
+        next = (next + 1) % windowSize;
+        if ((outcome & FAILED) != 0) failures++;
+        if ((outcome & SLOW) != 0) slowCalls++;
+
+        if (state == State.HALF_OPEN) {
+            if (recorded >= permittedHalfOpenCalls) {
+                transitionTo(isOverThreshold() ? State.OPEN : State.CLOSED);
+            }
+        } else if (recorded >= minimumCalls && isOverThreshold()) {
+            transitionTo(State.OPEN);
+        }
+    }
+
+    private boolean isOverThreshold() {
+        return failures >= failureRateThreshold * recorded || slowCalls >= slowCallRateThreshold * recorded;
+    }
+
+    private void transitionTo(final State newState) {
+        logger.info("circuit breaker " + name + " changing from " + state + " to " + newState
+                + " (" + failures + " failures and " + slowCalls + " slow calls out of " + recorded + ")");
+        state = newState;
+        next = 0;
+        recorded = 0;
+        failures = 0;
+        slowCalls = 0;
+        halfOpenPermitsIssued = 0;
+        if (newState == State.OPEN) {
+            openedAtNanos = System.nanoTime();
+        }
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public synchronized State getState() {
+        return state;
+    }
+
+    /**
+     * Returns the number of calls rejected since this breaker was created.
+     */
+    public synchronized long getRejectedCalls() {
+        return rejectedCalls;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return getClass().getSimpleName() + " ["
+                + "name=" + name
+                + ", state=" + state
+                + ", failures=" + failures
+                + ", slowCalls=" + slowCalls
+                + ", recorded=" + recorded
+                + ", rejectedCalls=" + rejectedCalls
+                + "]";
+    }
+}
@@ -0,0 +1,13 @@
+package io.magnum.awscommons.retry;
+
+/**
+ * An exception indicating that a call was rejected without being attempted
+ * because its {@link CircuitBreaker} is open.
+ */
+@SuppressWarnings("serial")
+public class CircuitBreakerOpenException extends RuntimeException {
+
+    public CircuitBreakerOpenException(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,41 @@
+package io.magnum.awscommons.retry;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Grows the delay randomly from the previous delay rather than from the
+ * attempt number: <code>min(cap, random(base, previous * 3))</code>.
+ * <p>
+ * Like {@link FullJitterBackoffStrategy} this de-synchronizes clients, but
+ * it never waits less than the base delay.
+ */
+public class DecorrelatedJitterBackoffStrategy implements BackoffStrategy {
+
+    private final long baseNanos;
+    private final long capNanos;
+
+    public DecorrelatedJitterBackoffStrategy(long base, long cap, TimeUnit unit) {
+        if (base < 0 || cap < base) {
+            throw new IllegalArgumentException("base must be >= 0 and cap must be >= base: base=" + base
+                    + ", cap=" + cap);
+        }
+        this.baseNanos = unit.toNanos(base);
+        this.capNanos = unit.toNanos(cap);
+    }
+
+    @Override
+    public long delayNanos(int failedAttempts, long previousDelayNanos) {
+        long previous = Math.max(baseNanos, previousDelayNanos);
+        long ceiling = previous > capNanos / 3 ? capNanos : previous * 3;
+        if (ceiling <= baseNanos) {
+            return Math.min(capNanos, baseNanos);
+        }
+        return Math.min(capNanos, baseNanos + ThreadLocalRandom.current().nextLong(ceiling - baseNanos + 1));
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + " [baseNanos=" + baseNanos + ", capNanos=" + capNanos + "]";
+    }
+}
@@ -0,0 +1,49 @@
+package io.magnum.awscommons.retry;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Doubles the delay after every failed attempt, starting from a base delay,
+ * up to a per-attempt cap: <code>min(cap, base * 2^(failedAttempts - 1))</code>.
+ * <p>
+ * Every caller that fails at the same moment retries at the same moment, so
+ * prefer {@link FullJitterBackoffStrategy} or
+ * {@link DecorrelatedJitterBackoffStrategy} when many clients share a
+ * throttled dependency.
+ */
+public class ExponentialBackoffStrategy implements BackoffStrategy {
+
+    private final long baseNanos;
+    private final long capNanos;
+
+    public ExponentialBackoffStrategy(long base, long cap, TimeUnit unit) {
+        if (base < 0 || cap < base) {
+            throw new IllegalArgumentException("base must be >= 0 and cap must be >= base: base=" + base
+                    + ", cap=" + cap);
+        }
+        this.baseNanos = unit.toNanos(base);
+        this.capNanos = unit.toNanos(cap);
+    }
+
+    @Override
+    public long delayNanos(int failedAttempts, long previousDelayNanos) {
+        return exponentialDelayNanos(baseNanos, capNanos, failedAttempts);
+    }
+
+    /**
+     * Computes <code>min(cap, base * 2^(failedAttempts - 1))</code> without
+     * overflowing.
+     */
+    static long exponentialDelayNanos(long baseNanos, long capNanos, int failedAttempts) {
+        int shift = Math.max(0, failedAttempts - 1);
+        if (baseNanos == 0 || shift >= Long.numberOfLeadingZeros(baseNanos) - 1) {
+            return baseNanos == 0 ? 0 : capNanos;
+        }
+        return Math.min(capNanos, baseNanos << shift);
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + " [baseNanos=" + baseNanos + ", capNanos=" + capNanos + "]";
+    }
+}
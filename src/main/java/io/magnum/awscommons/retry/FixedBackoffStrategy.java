@@ -0,0 +1,28 @@
+package io.magnum.awscommons.retry;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Waits the same amount of time before every retry.
+ */
+public class FixedBackoffStrategy implements BackoffStrategy {
+
+    private final long delayNanos;
+
+    public FixedBackoffStrategy(long delay, TimeUnit unit) {
+        if (delay < 0) {
+            throw new IllegalArgumentException("delay must be >= 0: " + delay);
+        }
+        this.delayNanos = unit.toNanos(delay);
+    }
+
+    @Override
+    public long delayNanos(int failedAttempts, long previousDelayNanos) {
+        return delayNanos;
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + " [delayNanos=" + delayNanos + "]";
+    }
+}
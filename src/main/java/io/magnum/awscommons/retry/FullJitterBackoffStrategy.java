@@ -0,0 +1,37 @@
+package io.magnum.awscommons.retry;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Waits a uniformly random time between zero and the capped exponential
+ * delay: <code>random(0, min(cap, base * 2^(failedAttempts - 1)))</code>.
+ * <p>
+ * Spreading retries over the whole window keeps a fleet of clients that were
+ * throttled together from retrying in lockstep.
+ */
+public class FullJitterBackoffStrategy implements BackoffStrategy {
+
+    private final long baseNanos;
+    private final long capNanos;
+
+    public FullJitterBackoffStrategy(long base, long cap, TimeUnit unit) {
+        if (base < 0 || cap < base) {
+            throw new IllegalArgumentException("base must be >= 0 and cap must be >= base: base=" + base
+                    + ", cap=" + cap);
+        }
+        this.baseNanos = unit.toNanos(base);
+        this.capNanos = unit.toNanos(cap);
+    }
+
+    @Override
+    public long delayNanos(int failedAttempts, long previousDelayNanos) {
+        long ceiling = ExponentialBackoffStrategy.exponentialDelayNanos(baseNanos, capNanos, failedAttempts);
+        return ceiling == 0 ? 0 : ThreadLocalRandom.current().nextLong(ceiling + 1);
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + " [baseNanos=" + baseNanos + ", capNanos=" + capNanos + "]";
+    }
+}
@@ -0,0 +1,241 @@
+package io.magnum.awscommons.retry;
+
+import io.magnum.awscommons.concurrent.DaemonThreads;
+import io.magnum.awscommons.concurrent.SettableFuture;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Cuts tail latency of {@link Idempotent} methods by hedging: if an attempt
+ * has not answered within the method's observed latency percentile (p95 by
+ * default), a second, identical request is sent and the first response to
+ * arrive is used. The other request's result is discarded: it is not sent
+ * if it has not started, and is interrupted otherwise, but the SDK's
+ * blocking socket reads ignore interrupts, so a request already on the wire
+ * runs to completion and holds its thread until then.
+ * <p>
+ * Hedges are paid for from a {@link RetryBudget}-style token bucket, so that
+ * at most <code>maxHedgeRatio</code> of calls are hedged in the long run and
+ * a slow dependency never sees more than that much extra load. Until a
+ * method has enough latency samples, the initial delay is used.
+ * <p>
+ * Both requests run on the policy's executor while the caller waits, so a
+ * hedged method costs a thread hand-off even when no hedge is sent; only
+ * enable hedging for calls whose latency dwarfs that. Once the default
+ * executor is busy, a request runs on the calling thread instead, and a
+ * primary request run that way is never hedged. One policy may be
+ * shared by any number of proxies. This class is thread-safe.
+ */
+public class HedgingPolicy {
+
+    private final ExecutorService executor;
+    private final double percentile;
+    private final long minDelayNanos;
+    private final long initialDelayNanos;
+    private final RetryBudget hedgeBudget;
+    private final AtomicLong hedgesSent = new AtomicLong();
+    private final AtomicLong hedgesWon = new AtomicLong();
+
+    public final static class Builder {
+        private ExecutorService executor;
+        private double percentile = 0.95;
+        private long minDelayNanos = TimeUnit.MILLISECONDS.toNanos(50);
+        private long initialDelayNanos = TimeUnit.SECONDS.toNanos(1);
+        private double maxHedgeRatio = 0.05;
+        private int maxBurst = 10;
+
+        public HedgingPolicy build() {
+            return new HedgingPolicy(this);
+        }
+
+        /**
+         * Sets the executor requests run on. Defaults to
+         * {@link DaemonThreads#sharedExecutor()}, which is bounded.
+         */
+        public Builder withExecutor(final ExecutorService executor) {
+            this.executor = executor;
+            return this;
+        }
+
+        /**
+         * Sets the latency percentile after which a hedge is sent. Defaults
+         * to 0.95.
+         */
+        public Builder withPercentile(final double percentile) {
+            this.percentile = percentile;
+            return this;
+        }
+
+        /**
+         * Sets the shortest time to wait before hedging, however fast the
+         * method usually is. Defaults to 50 milliseconds.
+         */
+        public Builder withMinDelay(final long minDelay, final TimeUnit unit) {
+            this.minDelayNanos = unit.toNanos(minDelay);
+            return this;
+        }
+
+        /**
+         * Sets the time to wait before hedging while a method's latency is
+         * still unknown. Defaults to one second.
+         */
+        public Builder withInitialDelay(final long initialDelay, final TimeUnit unit) {
+            this.initialDelayNanos = unit.toNanos(initialDelay);
+            return this;
+        }
+
+        /**
+         * Sets the long-run fraction of calls that may be hedged, and the
+         * number of hedges that may be sent in a burst. Defaults to 0.05
+         * and 10.
+         */
+        public Builder withHedgeBudget(final double maxHedgeRatio, final int maxBurst) {
+            this.maxHedgeRatio = maxHedgeRatio;
+            this.maxBurst = maxBurst;
+            return this;
+        }
+    }
+
+    private HedgingPolicy(final Builder builder) {
+        if (builder.minDelayNanos < 0 || builder.initialDelayNanos < 0) {
+            throw new IllegalArgumentException("delays must be >= 0");
+        }
+        if (builder.maxHedgeRatio <= 0 || builder.maxHedgeRatio > 1) {
+            throw new IllegalArgumentException("maxHedgeRatio must be in (0, 1]: " + builder.maxHedgeRatio);
+        }
+        if (builder.percentile <= 0 || builder.percentile > 1) {
+            throw new IllegalArgumentException("percentile must be in (0, 1]: " + builder.percentile);
+        }
+        this.executor = builder.executor != null ? builder.executor : DaemonThreads.sharedExecutor();
+        this.percentile = builder.percentile;
+        this.minDelayNanos = builder.minDelayNanos;
+        this.initialDelayNanos = builder.initialDelayNanos;
+        this.hedgeBudget = new RetryBudget(builder.maxHedgeRatio, builder.maxBurst);
+    }
+
+    LatencyTracker newLatencyTracker() {
+        return new LatencyTracker(percentile);
+    }
+
+    /**
+     * Runs one attempt of a call, hedging it if it is slow.
+     *
+     * @return the result of whichever request succeeded first
+     * @throws Throwable the first failure, if every request sent failed
+     */
+    Object call(final Callable<Object> attempt, final LatencyTracker tracker) throws Throwable {
+        // Every attempt earns a fraction of a hedge.
+        hedgeBudget.onSuccess();
+        return new HedgedCall(attempt, tracker).run();
+    }
+
+    long hedgeDelayNanos(final LatencyTracker tracker) {
+        final long observed = tracker.getPercentileNanos();
+        return Math.max(minDelayNanos, observed < 0 ? initialDelayNanos : observed);
+    }
+
+    /**
+     * Returns the number of hedges sent.
+     */
+    public long getHedgesSent() {
+        return hedgesSent.get();
+    }
+
+    /**
+     * Returns the number of hedges which answered before the request they
+     * were hedging.
+     */
+    public long getHedgesWon() {
+        return hedgesWon.get();
+    }
+
+    /**
+     * Returns the number of hedges not sent because the hedge budget was
+     * spent.
+     */
+    public long getHedgesRejected() {
+        return hedgeBudget.getRetriesRejected();
+    }
+
+    /**
+     * The requests sent for one attempt. The first success completes the
+     * result; a failure only does once no other request is outstanding.
+     */
+    private final class HedgedCall {
+        private final Callable<Object> attempt;
+        private final LatencyTracker tracker;
+        private final SettableFuture<Object> result = new SettableFuture<Object>();
+        private final AtomicInteger outstanding = new AtomicInteger();
+        private final AtomicBoolean succeeded = new AtomicBoolean();
+        private final AtomicReference<Throwable> firstFailure = new AtomicReference<Throwable>();
+
+        HedgedCall(final Callable<Object> attempt, final LatencyTracker tracker) {
+            this.attempt = attempt;
+            this.tracker = tracker;
+        }
+
+        Object run() throws Throwable {
+            Future<?> primary = submit(false);
+            Future<?> hedge = null;
+            try {
+                try {
+                    return result.get(hedgeDelayNanos(tracker), TimeUnit.NANOSECONDS);
+                } catch (TimeoutException e) {
+                    if (hedgeBudget.tryAcquireRetry()) {
+                        hedgesSent.incrementAndGet();
+                        hedge = submit(true);
+                    }
+                }
+                return result.get();
+            } catch (ExecutionException e) {
+                throw e.getCause();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw e;
+            } finally {
+                result.cancel(false);
+                primary.cancel(true);
+                if (hedge != null) {
+                    hedge.cancel(true);
+                }
+            }
+        }
+
+        private Future<?> submit(final boolean isHedge) {
+            outstanding.incrementAndGet();
+            return executor.submit(new Runnable() {
+                @Override
+                public void run() {
+                    if (result.isDone()) {
+                        return;
+                    }
+                    final long startNanos = System.nanoTime();
+                    try {
+                        Object value = attempt.call();
+                        tracker.record(System.nanoTime() - startNanos);
+                        if (succeeded.compareAndSet(false, true)) {
+                            if (isHedge) {
+                                hedgesWon.incrementAndGet();
+                            }
+                            result.set(value);
+                        }
+                    } catch (Throwable t) {
+                        firstFailure.compareAndSet(null, t);
+                        if (outstanding.decrementAndGet() == 0) {
+                            result.setException(firstFailure.get());
+                        }
+                    }
+                }
+            });
+        }
+    }
+}
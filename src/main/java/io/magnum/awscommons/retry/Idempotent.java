@@ -0,0 +1,19 @@
+package io.magnum.awscommons.retry;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Marks an interface method as safe to call more than once concurrently for
+ * the same arguments, e.g. a read-only describe call. Proxies created by
+ * {@link RetryableFactory} with a {@link HedgingPolicy} only hedge methods
+ * carrying this annotation.
+ */
+@Documented
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.METHOD)
+public @interface Idempotent {
+}
@@ -0,0 +1,67 @@
+package io.magnum.awscommons.retry;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A lock-free histogram of latencies in power-of-two microsecond buckets:
+ * bucket 0 counts latencies under 1&micro;s and bucket <i>i</i> those in
+ * [2<sup>i-1</sup>, 2<sup>i</sup>) &micro;s, up to about 35 minutes.
+ * Percentiles are therefore accurate to within a factor of two, which is
+ * enough to tell a healthy call from a slow one.
+ */
+class LatencyHistogram {
+
+    static final int BUCKETS = 32;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+
+    void record(long latencyNanos) {
+        counts.incrementAndGet(bucketOf(latencyNanos));
+    }
+
+    static int bucketOf(long latencyNanos) {
+        final long micros = latencyNanos / 1000L;
+        return Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(Math.max(0L, micros)));
+    }
+
+    /**
+     * Returns the upper bound of a bucket, in microseconds.
+     */
+    static long upperBoundMicros(int bucket) {
+        return 1L << bucket;
+    }
+
+    /**
+     * Returns a copy of the bucket counts.
+     */
+    long[] getCounts() {
+        long[] copy = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            copy[i] = counts.get(i);
+        }
+        return copy;
+    }
+
+    /**
+     * Returns the upper bound, in milliseconds, of the bucket containing the
+     * given percentile of the counted latencies, or 0 if there are none.
+     */
+    static double percentileMillis(long[] counts, double percentile) {
+        long total = 0;
+        for (long count : counts) {
+            total += count;
+        }
+        if (total == 0) {
+            return 0.0;
+        }
+        final long rank = Math.max(1L, (long) Math.ceil(percentile * total));
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return upperBoundMicros(i) / 1000.0;
+            }
+        }
+        return upperBoundMicros(counts.length - 1) / 1000.0;
+    }
+}
@@ -0,0 +1,70 @@
+package io.magnum.awscommons.retry;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Estimates a latency percentile from the most recent samples of one method.
+ * <p>
+ * Samples go into a fixed-size ring without locking; the percentile is
+ * recomputed by whichever thread records every {@link #RECOMPUTE_EVERY}th
+ * sample, so reads are a single volatile load. A sample being written while
+ * the ring is copied may be missed, which is harmless for an estimate.
+ */
+class LatencyTracker {
+
+    /** The number of recent samples kept; a power of two */
+    static final int CAPACITY = 256;
+    /** How many samples are needed before a percentile is reported */
+    static final int MIN_SAMPLES = 20;
+    /** How often, in samples, the percentile is recomputed */
+    static final int RECOMPUTE_EVERY = 32;
+
+    private static final int MASK = CAPACITY - 1;
+
+    private final double percentile;
+    private final AtomicLongArray samples = new AtomicLongArray(CAPACITY);
+    private final AtomicLong count = new AtomicLong();
+    private volatile long percentileNanos = -1L;
+
+    /**
+     * @param percentile the percentile to estimate, e.g. 0.95
+     */
+    LatencyTracker(double percentile) {
+        if (percentile <= 0 || percentile > 1) {
+            throw new IllegalArgumentException("percentile must be in (0, 1]: " + percentile);
+        }
+        this.percentile = percentile;
+    }
+
+    void record(long latencyNanos) {
+        final long n = count.getAndIncrement() + 1;
+        samples.set((int) ((n - 1) & MASK), latencyNanos);
+        if (n == MIN_SAMPLES || (n > MIN_SAMPLES && n % RECOMPUTE_EVERY == 0)) {
+            recompute((int) Math.min(n, CAPACITY));
+        }
+    }
+
+    private void recompute(int size) {
+        long[] sorted = new long[size];
+        for (int i = 0; i < size; i++) {
+            sorted[i] = samples.get(i);
+        }
+        Arrays.sort(sorted);
+        int index = (int) Math.ceil(percentile * size) - 1;
+        percentileNanos = sorted[Math.max(0, index)];
+    }
+
+    /**
+     * Returns the estimated percentile, in nanoseconds, or -1 if too few
+     * samples have been recorded yet.
+     */
+    long getPercentileNanos() {
+        return percentileNanos;
+    }
+
+    long getSampleCount() {
+        return count.get();
+    }
+}
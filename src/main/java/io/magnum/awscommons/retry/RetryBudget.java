@@ -0,0 +1,124 @@
+package io.magnum.awscommons.retry;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A token bucket which limits retries to a fraction of successful calls, so
+ * that a browned-out dependency sees at most
+ * <code>(1 + tokensPerSuccess)</code> times its normal load rather than a
+ * multiple of it.
+ * <p>
+ * Every successful call deposits <code>tokensPerSuccess</code> tokens, up to
+ * <code>maxTokens</code>; every retry withdraws one. When the bucket is
+ * empty, retries are refused and the caller should fail fast. First attempts
+ * are never refused.
+ * <p>
+ * One budget may be shared by any number of proxies created by
+ * {@link RetryableFactory}; use one instance per AWS service to scope it
+ * per service. A proxy built with a {@link RetryMetrics} registry publishes
+ * its budget there too. This class is thread-safe and lock-free.
+ */
+public class RetryBudget implements RetryBudgetMXBean {
+
+    /** Tokens are stored in thousandths so that fractional deposits are exact enough. */
+    private static final long SCALE = 1000L;
+
+    private final long depositPerSuccess;
+    private final long capacity;
+    private final AtomicLong balance;
+    private final AtomicLong retriesPermitted = new AtomicLong();
+    private final AtomicLong retriesRejected = new AtomicLong();
+
+    /**
+     * @param tokensPerSuccess the number of retries each successful call
+     * earns, e.g. 0.1 to allow one retry per ten successes
+     * @param maxTokens the most retries that can be banked; the bucket starts
+     * full
+     */
+    public RetryBudget(double tokensPerSuccess, int maxTokens) {
+        if (tokensPerSuccess < 0) {
+            throw new IllegalArgumentException("tokensPerSuccess must be >= 0: " + tokensPerSuccess);
+        }
+        if (maxTokens < 1) {
+            throw new IllegalArgumentException("maxTokens must be >= 1: " + maxTokens);
+        }
+        this.depositPerSuccess = Math.round(tokensPerSuccess * SCALE);
+        this.capacity = maxTokens * SCALE;
+        this.balance = new AtomicLong(capacity);
+    }
+
+    /**
+     * Records a successful call, earning a fraction of a retry.
+     */
+    public void onSuccess() {
+        long current;
+        do {
+            current = balance.get();
+            if (current >= capacity) {
+                return;
+            }
+        } while (!balance.compareAndSet(current, Math.min(capacity, current + depositPerSuccess)));
+    }
+
+    /**
+     * Withdraws one retry from the budget.
+     * 
+     * @return true if the retry may proceed; false if the budget is spent
+     */
+    public boolean tryAcquireRetry() {
+        long current;
+        do {
+            current = balance.get();
+            if (current < SCALE) {
+                retriesRejected.incrementAndGet();
+                return false;
+            }
+        } while (!balance.compareAndSet(current, current - SCALE));
+        retriesPermitted.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * Gives back a retry which was withdrawn but not made after all.
+     */
+    void releaseRetry() {
+        long current;
+        do {
+            current = balance.get();
+        } while (!balance.compareAndSet(current, Math.min(capacity, current + SCALE)));
+        retriesPermitted.decrementAndGet();
+    }
+
+    /**
+     * Returns the number of retries currently available.
+     */
+    @Override
+    public double getAvailableTokens() {
+        return (double) balance.get() / SCALE;
+    }
+
+    @Override
+    public int getMaxTokens() {
+        return (int) (capacity / SCALE);
+    }
+
+    @Override
+    public long getRetriesPermitted() {
+        return retriesPermitted.get();
+    }
+
+    @Override
+    public long getRetriesRejected() {
+        return retriesRejected.get();
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + " ["
+                + "availableTokens=" + getAvailableTokens()
+                + ", maxTokens=" + getMaxTokens()
+                + ", retriesPermitted=" + getRetriesPermitted()
+                + ", retriesRejected=" + getRetriesRejected()
+                + "]";
+    }
+}
@@ -0,0 +1,15 @@
+package io.magnum.awscommons.retry;
+
+/**
+ * The JMX view of a {@link RetryBudget}.
+ */
+public interface RetryBudgetMXBean {
+
+    double getAvailableTokens();
+
+    int getMaxTokens();
+
+    long getRetriesPermitted();
+
+    long getRetriesRejected();
+}
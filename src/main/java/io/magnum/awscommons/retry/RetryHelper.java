@@ -1,6 +1,13 @@
 package io.magnum.awscommons.retry;
 
+import io.magnum.awscommons.concurrent.DaemonThreads;
+import io.magnum.awscommons.concurrent.ListenableFuture;
+import io.magnum.awscommons.concurrent.SettableFuture;
+
 import java.util.Date;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 
@@ -67,6 +74,12 @@ public class RetryHelper {
      */
     private final TimeUnit retryUnit;
 
+    /**
+     * The strategy that determines how long to wait in between retries; if
+     * <code>null</code>, there is no delay between retries.
+     */
+    private final BackoffStrategy backoff;
+
     
     public final static class Builder {
         private Long timeout;
@@ -75,12 +88,27 @@ public class RetryHelper {
         private Integer maxTries;
         private Long retryInterval;
         private TimeUnit retryUnit;
+        private BackoffStrategy backoff;
 
         public Builder() {
         }
 
+        /**
+         * Starts from the settings of an existing helper, so that some of
+         * them can be overridden. A retry interval is carried over as the
+         * equivalent {@link FixedBackoffStrategy}, so the copy may be given a
+         * different backoff.
+         */
+        public Builder(final RetryHelper base) {
+            this.timeout = base.timeout;
+            this.timeoutUnit = base.timeoutUnit;
+            this.deadlineNanos = base.deadlineNanos;
+            this.maxTries = base.maxTries;
+            this.backoff = base.backoff;
+        }
+
         public RetryHelper build() {
-            return new RetryHelper(timeout, timeoutUnit, deadlineNanos, maxTries, retryInterval, retryUnit);
+            return new RetryHelper(timeout, timeoutUnit, deadlineNanos, maxTries, retryInterval, retryUnit, backoff);
         }
 
         public Builder withTimeout(final long timeout, final TimeUnit timeoutUnit) {
@@ -104,12 +132,23 @@ public class RetryHelper {
             this.retryUnit = retryUnit;
             return this;
         }
+
+        /**
+         * Sets the strategy that determines the delay before each retry. This
+         * is an alternative to {@link #withRetryInterval(long, TimeUnit)},
+         * which is shorthand for a {@link FixedBackoffStrategy}.
+         */
+        public Builder withBackoff(final BackoffStrategy backoff) {
+            this.backoff = backoff;
+            return this;
+        }
     }
 
     private RetryHelper(final Long timeout, final TimeUnit timeoutUnit,
             final Long deadlineNanos,
             final Integer maxTries,
-            final Long retryInterval, final TimeUnit retryUnit) {
+            final Long retryInterval, final TimeUnit retryUnit,
+            final BackoffStrategy backoff) {
         
         if ( (timeout != null && timeoutUnit == null) || (timeout == null && timeoutUnit != null)) {
             throw new IllegalArgumentException(
@@ -121,6 +160,11 @@ public class RetryHelper {
                     "retryInterval and retryUnit must be either both specified or both null: retryInterval="
                     + retryInterval + ", retryUnit=" + retryUnit);
         }
+        if (retryInterval != null && backoff != null) {
+            throw new IllegalArgumentException(
+                    "retryInterval and backoff are mutually exclusive: retryInterval="
+                    + retryInterval + ", backoff=" + backoff);
+        }
         if (timeout != null && timeout < 0) {
             throw new IllegalArgumentException("timeout must be null or >= 0: " + timeout);
         }
@@ -137,6 +181,13 @@ public class RetryHelper {
         this.maxTries = maxTries;
         this.retryInterval = retryInterval;
         this.retryUnit = retryUnit;
+        if (backoff != null) {
+            this.backoff = backoff;
+        } else if (retryInterval != null) {
+            this.backoff = new FixedBackoffStrategy(retryInterval, retryUnit);
+        } else {
+            this.backoff = null;
+        }
     }
     
     private final static long utcMillisToSystemNanos(final long utcMillis) {
@@ -158,6 +209,55 @@ public class RetryHelper {
         return run(task, arbiter);
     }
 
+    public <T> ListenableFuture<T> runRetryableAsync(final Retryable<T> task) {
+        return runRetryableAsync(task, AlwaysAbortArbiter.INSTANCE);
+    }
+
+    public <T> ListenableFuture<T> runRetryableAsync(final Retryable<T> task, ExceptionArbiter arbiter) {
+        return runRetryableAsync(task, arbiter, AsyncSchedulerHolder.SCHEDULER);
+    }
+
+    /**
+     * Like {@link #runRetryableAsync(Retryable, ExceptionArbiter, ScheduledExecutorService, Executor)},
+     * with the attempts run on {@link DaemonThreads#sharedExecutor()}.
+     */
+    public <T> ListenableFuture<T> runRetryableAsync(final Retryable<T> task, final ExceptionArbiter arbiter,
+            final ScheduledExecutorService scheduler) {
+        return runRetryableAsync(task, arbiter, scheduler, DaemonThreads.sharedExecutor());
+    }
+
+    /**
+     * Like {@link #runRetryable(Retryable, ExceptionArbiter)}, but the calling
+     * thread never waits: the scheduler only times the delay before each
+     * attempt, and then hands the attempt to the executor, so that attempts
+     * which block do not hold up the timers of other tasks. The timeout,
+     * deadline, maxTries and arbiter are honored exactly as in the synchronous
+     * case.
+     * <p>
+     * An executor which runs tasks on the submitting thread once it is busy,
+     * such as the shared one, then runs the attempt on the scheduler's
+     * thread.
+     * <p>
+     * If the task does not succeed, the returned future fails with the
+     * {@link AbortException} that {@link #runRetryable} would have thrown.
+     * Cancelling the future prevents any further attempts.
+     */
+    public <T> ListenableFuture<T> runRetryableAsync(final Retryable<T> task, final ExceptionArbiter arbiter,
+            final ScheduledExecutorService scheduler, final Executor executor) {
+        if (task == null) {
+            throw new IllegalArgumentException("task cannot be null");
+        }
+        if (scheduler == null) {
+            throw new IllegalArgumentException("scheduler cannot be null");
+        }
+        if (executor == null) {
+            throw new IllegalArgumentException("executor cannot be null");
+        }
+        final AsyncRun<T> run = new AsyncRun<T>(task, arbiter, scheduler, executor, System.nanoTime());
+        run.schedule(0);
+        return run.future;
+    }
+
     /**
      * Calculates and returns the fewest number of nanoseconds that may elapse
      * before a timeout occurs.     
@@ -187,94 +287,265 @@ public class RetryHelper {
      */
     protected <T> T run(final Retryable<T> task, final ExceptionArbiter arbiter)
     		throws AbortException {
+        return run(task, arbiter, System.nanoTime(), null);
+    }
+
+    /**
+     * Continues retrying a task whose first attempt, started at
+     * <code>startNanos</code>, has already been made by the caller and failed
+     * with <code>firstFailure</code>. The outcome is exactly as if the whole
+     * task had been run by {@link #runRetryable(Retryable, ExceptionArbiter)};
+     * this lets callers make the first attempt on a cheaper path.
+     */
+    <T> T retryAfterFailure(final Retryable<T> task, final ExceptionArbiter arbiter, final long startNanos,
+            final Exception firstFailure) throws AbortException {
+        if (firstFailure == null) {
+            throw new IllegalArgumentException("firstFailure cannot be null");
+        }
+        return run(task, arbiter, startNanos, firstFailure);
+    }
+
+    private <T> T run(final Retryable<T> task, final ExceptionArbiter arbiter, final long startNanos,
+            final Exception firstFailure) throws AbortException {
         if (task == null) {
             throw new IllegalArgumentException("task cannot be null");
         }
 
         // Convenience conversions
-        final long startNanos = System.nanoTime();
-        final Long deadlineNanos;
-        if (timeout == null) {
-            // No deadline, run till we succeed or die trying
-            deadlineNanos = null;
-        } else {
-            // Deadline imposed, honor it.
-            deadlineNanos = startNanos + shortestTimeoutNanos();
-        }
-        final Long retryIntervalNanos;
-        if (retryInterval == null) {
-            retryIntervalNanos = null;
-        } else {
-            retryIntervalNanos = TimeUnit.MILLISECONDS.toNanos(retryInterval);
-        }
+        final Long deadlineNanos = deadlineNanosFor(startNanos);
+
+        int numTries = (firstFailure == null ? 0 : 1);
+        long delayNanos = 0;
+        Exception failure = firstFailure;
+        while (true) {
+            if (failure != null) {
+                handleFailure(failure, task, arbiter);
+                failure = null;
+
+                // We haven't returned and we haven't thrown an exception.
+                // Sleep and retry later.
+                // We do this outside of the try/catch around the attempt so
+                // that we can isolate any interrupted exception here.
+                delayNanos = (backoff == null ? 0 : backoff.delayNanos(numTries, delayNanos));
+                if ((maxTries == null || (numTries < maxTries)) && backoff != null) {
+                    final long delayMillis = TimeUnit.NANOSECONDS.toMillis(delayNanos);
+                    final Date nextRetryAt = new Date(System.currentTimeMillis() + delayMillis);
+                    logger.info("will retry in " + delayMillis + " milliseconds"
+                            + " (at approximately " + nextRetryAt + ")");
+                }
+
+                if ((deadlineNanos != null) && (System.nanoTime() + delayNanos >= deadlineNanos)) {
+                    // We will run out of time if we try to sleep again
+                    final long elapsedNanos = System.nanoTime() - startNanos;
+                    final String message = "task did not succeed after " + numTries
+                            + " attempts in " + elapsedNanos + "ns, and timeout will "
+                            + "elapse before the next attempt can be made; giving up: "
+                            + task.getDescription();
+                    throw new AbortException(message, new TimeoutException(message));
+                }
 
-        int numTries = 0;
-        while ((maxTries == null || numTries < maxTries) && (deadlineNanos == null || System.nanoTime() < deadlineNanos)) {
+                if ((maxTries == null || numTries < maxTries) && delayNanos > 0) {
+                    sleep(delayNanos, task);
+                }
+            }
+
+            if (!((maxTries == null || numTries < maxTries) && (deadlineNanos == null || System.nanoTime() < deadlineNanos))) {
+                break;
+            }
             numTries++;
             if (numTries > 1) {
                 logger.info("attempt #" + numTries + " of " + (maxTries == null ? "unlimited" : maxTries) + " for task: " + task.getDescription());
             }
             try {
                 return task.call();
-            } catch (RetryableException e) {                
-                logger.info("task failed but indicates that retry is acceptable: " + task.getDescription() + ": " + e.getMessage());
-            } catch (AbortException e) {
-                throw e;
             } catch (Exception e) {
-                if (arbiter.isRetryable(e)) {
-                    logger.info("task failed but exception class " + e.getClass().getName() + " was considered retryable: "+ task.getDescription(), e);
-                } else {
-                    throw new AbortException("unhandled exception raised in task, "
-                        + "assuming that retry is unacceptable: "
-                        + task.getDescription(), e);
+                failure = e;
+            }
+        }
+        final long endNanos = System.nanoTime();
+        final long elapsedNanos = endNanos - startNanos;
+        final String message = "task did not succeed after " + numTries
+                + " attempts in " + elapsedNanos + "ns; giving up: "
+                + task.getDescription();
+        throw new AbortException(message, new TimeoutException(message));
+    }
+
+    /**
+     * Returns normally if the failure may be retried; otherwise throws the
+     * {@link AbortException} that ends the task.
+     */
+    private static void handleFailure(final Exception e, final Retryable<?> task, final ExceptionArbiter arbiter)
+            throws AbortException {
+        if (e instanceof RetryableException) {
+            logger.info("task failed but indicates that retry is acceptable: " + task.getDescription() + ": " + e.getMessage());
+        } else if (e instanceof AbortException) {
+            throw (AbortException) e;
+        } else if (arbiter.isRetryable(e)) {
+            logger.info("task failed but exception class " + e.getClass().getName() + " was considered retryable: "+ task.getDescription(), e);
+        } else {
+            throw new AbortException("unhandled exception raised in task, "
+                + "assuming that retry is unacceptable: "
+                + task.getDescription(), e);
+        }
+    }
+
+    private static void sleep(final long delayNanos, final Retryable<?> task) throws AbortException {
+        final long wakeAtNanos = System.nanoTime() + delayNanos;
+        try {
+            long nanosRemaining = wakeAtNanos - System.nanoTime();
+            while (nanosRemaining > 0) {
+                // There's no simple way to sleep for x nanos; instead
+                // we have to sleep for x millis and y nanos.  Compute
+                // x and y here.
+                final long sleepMillis = TimeUnit.NANOSECONDS.toMillis(nanosRemaining); // truncates fractional milliseconds
+                final int sleepNanos = (int) (nanosRemaining - TimeUnit.MILLISECONDS.toNanos(sleepMillis)); // the fractional millisecond
+                Thread.sleep(sleepMillis, sleepNanos);
+                nanosRemaining = wakeAtNanos - System.nanoTime();
+            }
+        } catch (InterruptedException e) {
+            Thread.interrupted(); // clear flag because we aren't bubbling up the raw InterruptedException
+            throw new AbortException("interrupted while waiting to retry task " + task.getDescription(), e);
+        }
+    }
+
+    /**
+     * Returns the deadline for a task started at the given time, or
+     * <code>null</code> if it may run till it succeeds or dies trying.
+     */
+    private Long deadlineNanosFor(final long startNanos) {
+        if (timeout == null) {
+            return null;
+        }
+        return startNanos + shortestTimeoutNanos();
+    }
+
+    /**
+     * The state of one task being retried by
+     * {@link RetryHelper#runRetryableAsync}. Each attempt is a run of this
+     * object on the executor, handed to it by the scheduler once the delay
+     * has passed; a failed attempt schedules the next one instead of
+     * sleeping.
+     */
+    private final class AsyncRun<T> implements Runnable {
+        private final Retryable<T> task;
+        private final ExceptionArbiter arbiter;
+        private final ScheduledExecutorService scheduler;
+        private final Executor executor;
+        private final long startNanos;
+        private final Long deadlineNanos;
+        private final SettableFuture<T> future = new SettableFuture<T>();
+        private volatile ScheduledFuture<?> pending;
+        // Only touched by the attempt currently running; attempts never overlap.
+        private int numTries;
+        private long delayNanos;
+
+        AsyncRun(final Retryable<T> task, final ExceptionArbiter arbiter,
+                final ScheduledExecutorService scheduler, final Executor executor, final long startNanos) {
+            this.task = task;
+            this.arbiter = arbiter;
+            this.scheduler = scheduler;
+            this.executor = executor;
+            this.startNanos = startNanos;
+            this.deadlineNanos = deadlineNanosFor(startNanos);
+            future.addListener(new Runnable() {
+                @Override
+                public void run() {
+                    ScheduledFuture<?> next = pending;
+                    if (future.isCancelled() && next != null) {
+                        next.cancel(false);
+                    }
                 }
+            });
+        }
+
+        void schedule(final long delayNanos) {
+            try {
+                pending = scheduler.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        dispatch();
+                    }
+                }, delayNanos, TimeUnit.NANOSECONDS);
+            } catch (RuntimeException e) {
+                future.setException(new AbortException("unable to schedule attempt for task: "
+                        + task.getDescription(), e));
             }
+        }
 
-            // We haven't returned and we haven't thrown an exception.
-            // Sleep and retry later.
-            // We do this outside of our try/catch above so that we can
-            // isolate any interrupted exception here.
-            if ((maxTries == null || (numTries < maxTries)) && retryInterval != null) {
-                final Date nextRetryAt = new Date(System.currentTimeMillis() + retryUnit.toMillis(retryInterval));
-                logger.info("will retry in " + retryInterval + " " + retryUnit.toString().toLowerCase()
-                        + " (at approximately " + nextRetryAt + ")");
+        private void dispatch() {
+            if (future.isDone()) {
+                return;
+            }
+            try {
+                executor.execute(this);
+            } catch (RuntimeException e) {
+                future.setException(new AbortException("unable to run attempt for task: "
+                        + task.getDescription(), e));
+            }
+        }
+
+        @Override
+        public void run() {
+            if (future.isDone()) {
+                return;
+            }
+            if (!((maxTries == null || numTries < maxTries) && (deadlineNanos == null || System.nanoTime() < deadlineNanos))) {
+                giveUp();
+                return;
             }
 
-            if ((deadlineNanos != null) && (System.nanoTime() + retryIntervalNanos >= deadlineNanos)) {
-                // We will run out of time if we try to sleep again
+            numTries++;
+            if (numTries > 1) {
+                logger.info("attempt #" + numTries + " of " + (maxTries == null ? "unlimited" : maxTries) + " for task: " + task.getDescription());
+            }
+            try {
+                future.set(task.call());
+                return;
+            } catch (Exception e) {
+                try {
+                    handleFailure(e, task, arbiter);
+                } catch (AbortException abort) {
+                    future.setException(abort);
+                    return;
+                }
+            }
+
+            delayNanos = (backoff == null ? 0 : backoff.delayNanos(numTries, delayNanos));
+            if ((deadlineNanos != null) && (System.nanoTime() + delayNanos >= deadlineNanos)) {
                 final long elapsedNanos = System.nanoTime() - startNanos;
                 final String message = "task did not succeed after " + numTries
                         + " attempts in " + elapsedNanos + "ns, and timeout will "
                         + "elapse before the next attempt can be made; giving up: "
                         + task.getDescription();
-                throw new AbortException(message, new TimeoutException(message));
+                future.setException(new AbortException(message, new TimeoutException(message)));
+                return;
             }
-
-            if (retryInterval != null && retryInterval > 0) {
-                final long wakeAtNanos = System.nanoTime() + retryUnit.toNanos(retryInterval);
-                try {
-                    long nanosRemaining = wakeAtNanos - System.nanoTime();
-                    while (nanosRemaining > 0) {
-                        // There's no simple way to sleep for x nanos; instead
-                        // we have to sleep for x millis and y nanos.  Compute
-                        // x and y here.
-                        final long sleepMillis = TimeUnit.NANOSECONDS.toMillis(nanosRemaining); // truncates fractional milliseconds
-                        final int sleepNanos = (int) (nanosRemaining - TimeUnit.MILLISECONDS.toNanos(sleepMillis)); // the fractional millisecond
-                        Thread.sleep(sleepMillis, sleepNanos);
-                        nanosRemaining = wakeAtNanos - System.nanoTime();
-                    }
-                } catch (InterruptedException e) {
-                    Thread.interrupted(); // clear flag because we aren't bubbling up the raw InterruptedException
-                    throw new AbortException("interrupted while waiting to retry task " + task.getDescription(), e);
-                }
+            if (maxTries != null && numTries >= maxTries) {
+                giveUp();
+                return;
+            }
+            if (backoff != null) {
+                logger.info("will retry in " + TimeUnit.NANOSECONDS.toMillis(delayNanos) + " milliseconds");
             }
+            schedule(delayNanos);
+        }
+
+        private void giveUp() {
+            final long elapsedNanos = System.nanoTime() - startNanos;
+            final String message = "task did not succeed after " + numTries
+                    + " attempts in " + elapsedNanos + "ns; giving up: "
+                    + task.getDescription();
+            future.setException(new AbortException(message, new TimeoutException(message)));
         }
-        final long endNanos = System.nanoTime();
-        final long elapsedNanos = endNanos - startNanos;
-        final String message = "task did not succeed after " + numTries
-                + " attempts in " + elapsedNanos + "ns; giving up: "
-                + task.getDescription();
-        throw new AbortException(message, new TimeoutException(message));
+    }
+
+    /**
+     * Lazily creates the scheduler shared by asynchronous retries that don't
+     * supply their own. It only times the delays between attempts, so it
+     * needs few threads.
+     */
+    private static final class AsyncSchedulerHolder {
+        static final ScheduledExecutorService SCHEDULER = DaemonThreads.newScheduler("retry-helper-async", 2);
     }
 
     
@@ -301,4 +572,8 @@ public class RetryHelper {
     public TimeUnit getRetryUnit() {
         return retryUnit;
     }
+
+    public BackoffStrategy getBackoff() {
+        return backoff;
+    }
 }
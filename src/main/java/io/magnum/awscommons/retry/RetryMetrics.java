@@ -0,0 +1,202 @@
+package io.magnum.awscommons.retry;
+
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Method;
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.InstanceNotFoundException;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Collects the {@link CallMetrics} of every method of the proxies it is
+ * given to via {@link RetryableFactory.Builder#withMetrics(RetryMetrics)},
+ * keyed by <code>Interface#method</code>, along with the {@link RetryBudget}
+ * of each proxied interface that has one.
+ * <p>
+ * Once {@link #registerMBeans()} has been called, each method's metrics are
+ * also published to the platform MBean server as
+ * <code>io.magnum.awscommons.retry:type=CallMetrics,registry=&lt;name&gt;,method=&lt;Interface#method&gt;</code>,
+ * and each budget as
+ * <code>io.magnum.awscommons.retry:type=RetryBudget,registry=&lt;name&gt;,interface=&lt;Interface&gt;</code>.
+ * This class is thread-safe.
+ */
+public class RetryMetrics {
+
+    private final static Logger logger = LoggerFactory.getLogger(RetryMetrics.class);
+
+    static final String JMX_DOMAIN = "io.magnum.awscommons.retry";
+
+    private final String name;
+    private final ConcurrentMap<String, CallMetrics> metricsByMethod = new ConcurrentHashMap<String, CallMetrics>();
+    private final ConcurrentMap<String, RetryBudget> budgetsByInterface = new ConcurrentHashMap<String, RetryBudget>();
+    /** Guarded by this; <code>null</code> unless MBeans are registered */
+    private MBeanServer mbeanServer;
+
+    /**
+     * @param name identifies this registry in JMX
+     */
+    public RetryMetrics(String name) {
+        if (name == null) {
+            throw new IllegalArgumentException("name cannot be null");
+        }
+        this.name = name;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Returns the metrics of the given method, creating them if needed. Only
+     * called while building proxies, so it may as well be synchronized.
+     */
+    synchronized CallMetrics forMethod(Class<?> interfaze, Method method) {
+        final String key = interfaze.getSimpleName() + "#" + method.getName();
+        CallMetrics metrics = metricsByMethod.get(key);
+        if (metrics == null) {
+            metrics = new CallMetrics(key);
+            metricsByMethod.put(key, metrics);
+            if (mbeanServer != null) {
+                register(mbeanServer, metrics);
+            }
+        }
+        return metrics;
+    }
+
+    /**
+     * Records the budget the proxies of the given interface draw their retries
+     * from. A proxy of the same interface with a different budget is not
+     * recorded; give it a distinct registry.
+     */
+    synchronized void forBudget(Class<?> interfaze, RetryBudget budget) {
+        final String key = interfaze.getSimpleName();
+        RetryBudget existing = budgetsByInterface.get(key);
+        if (existing == budget) {
+            return;
+        } else if (existing != null) {
+            logger.warn("a different retry budget of " + key + " is already recorded in registry " + name
+                    + "; use a distinct registry name");
+            return;
+        }
+        budgetsByInterface.put(key, budget);
+        if (mbeanServer != null) {
+            register(mbeanServer, key, budget);
+        }
+    }
+
+    /**
+     * Returns the retry budget of the proxies of one interface, or
+     * <code>null</code> if none has been proxied with this registry and a
+     * budget.
+     */
+    public RetryBudget getRetryBudget(String interfaceSimpleName) {
+        return budgetsByInterface.get(interfaceSimpleName);
+    }
+
+    /**
+     * Returns the metrics of one method, or <code>null</code> if no call to it
+     * has been proxied with this registry.
+     */
+    public CallMetrics get(String interfaceSimpleName, String methodName) {
+        return metricsByMethod.get(interfaceSimpleName + "#" + methodName);
+    }
+
+    /**
+     * Returns a snapshot of every method's metrics, sorted by method.
+     */
+    public Map<String, CallMetrics.Snapshot> snapshot() {
+        Map<String, CallMetrics.Snapshot> snapshots = new TreeMap<String, CallMetrics.Snapshot>();
+        for (Map.Entry<String, CallMetrics> entry : metricsByMethod.entrySet()) {
+            snapshots.put(entry.getKey(), entry.getValue().snapshot());
+        }
+        return Collections.unmodifiableMap(snapshots);
+    }
+
+    /**
+     * Publishes the metrics of every method and every retry budget, including
+     * those of proxies built later, to the platform MBean server.
+     */
+    public synchronized void registerMBeans() {
+        if (mbeanServer != null) {
+            return;
+        }
+        mbeanServer = ManagementFactory.getPlatformMBeanServer();
+        for (CallMetrics metrics : metricsByMethod.values()) {
+            register(mbeanServer, metrics);
+        }
+        for (Map.Entry<String, RetryBudget> entry : budgetsByInterface.entrySet()) {
+            register(mbeanServer, entry.getKey(), entry.getValue());
+        }
+    }
+
+    /**
+     * Removes this registry's MBeans from the platform MBean server.
+     */
+    public synchronized void unregisterMBeans() {
+        MBeanServer server = mbeanServer;
+        if (server == null) {
+            return;
+        }
+        mbeanServer = null;
+        for (CallMetrics metrics : metricsByMethod.values()) {
+            try {
+                server.unregisterMBean(objectNameOf(metrics));
+            } catch (InstanceNotFoundException e) {
+                // never registered, or already removed
+            } catch (JMException e) {
+                logger.warn("unable to unregister metrics of " + metrics.getMethodName(), e);
+            }
+        }
+        for (String interfaceName : budgetsByInterface.keySet()) {
+            try {
+                server.unregisterMBean(budgetObjectNameOf(interfaceName));
+            } catch (InstanceNotFoundException e) {
+                // never registered, or already removed
+            } catch (JMException e) {
+                logger.warn("unable to unregister the retry budget of " + interfaceName, e);
+            }
+        }
+    }
+
+    ObjectName objectNameOf(CallMetrics metrics) throws JMException {
+        return new ObjectName(JMX_DOMAIN + ":type=CallMetrics,registry=" + ObjectName.quote(name)
+                + ",method=" + ObjectName.quote(metrics.getMethodName()));
+    }
+
+    ObjectName budgetObjectNameOf(String interfaceSimpleName) throws JMException {
+        return new ObjectName(JMX_DOMAIN + ":type=RetryBudget,registry=" + ObjectName.quote(name)
+                + ",interface=" + ObjectName.quote(interfaceSimpleName));
+    }
+
+    private void register(MBeanServer server, String interfaceName, RetryBudget budget) {
+        try {
+            server.registerMBean(budget, budgetObjectNameOf(interfaceName));
+        } catch (InstanceAlreadyExistsException e) {
+            logger.warn("the retry budget of " + interfaceName + " is already registered in JMX under registry "
+                    + name + "; use a distinct registry name");
+        } catch (JMException e) {
+            logger.warn("unable to register the retry budget of " + interfaceName, e);
+        }
+    }
+
+    private void register(MBeanServer server, CallMetrics metrics) {
+        try {
+            server.registerMBean(metrics, objectNameOf(metrics));
+        } catch (InstanceAlreadyExistsException e) {
+            logger.warn("metrics of " + metrics.getMethodName() + " are already registered in JMX under registry "
+                    + name + "; use a distinct registry name");
+        } catch (JMException e) {
+            logger.warn("unable to register metrics of " + metrics.getMethodName(), e);
+        }
+    }
+}
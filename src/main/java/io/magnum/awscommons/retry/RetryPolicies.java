@@ -0,0 +1,102 @@
+package io.magnum.awscommons.retry;
+
+import java.lang.reflect.Constructor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Turns {@link RetryPolicy} annotations into the objects the retry framework
+ * runs on.
+ */
+final class RetryPolicies {
+
+    private RetryPolicies() {
+    }
+
+    /**
+     * Returns the helper to retry a method with: the base helper, with
+     * whatever the policy overrides replaced.
+     */
+    static RetryHelper toRetryHelper(final RetryPolicy policy, final RetryHelper base) {
+        if (policy == null || (policy.maxTries() == 0 && policy.deadlineMillis() == 0
+                && policy.backoff() == RetryPolicy.Backoff.INHERIT)) {
+            return base;
+        }
+        RetryHelper.Builder builder = new RetryHelper.Builder(base);
+        if (policy.maxTries() != 0) {
+            builder.withMaxTries(policy.maxTries());
+        }
+        if (policy.deadlineMillis() != 0) {
+            builder.withTimeout(policy.deadlineMillis(), TimeUnit.MILLISECONDS);
+        }
+        if (policy.backoff() != RetryPolicy.Backoff.INHERIT) {
+            builder.withBackoff(toBackoffStrategy(policy));
+        }
+        return builder.build();
+    }
+
+    static BackoffStrategy toBackoffStrategy(final RetryPolicy policy) {
+        final long base = policy.backoffBaseMillis();
+        final long cap = policy.backoffCapMillis();
+        final TimeUnit unit = TimeUnit.MILLISECONDS;
+        switch (policy.backoff()) {
+            case NONE:
+                return null;
+            case FIXED:
+                return new FixedBackoffStrategy(base, unit);
+            case EXPONENTIAL:
+                return new ExponentialBackoffStrategy(base, cap, unit);
+            case FULL_JITTER:
+                return new FullJitterBackoffStrategy(base, cap, unit);
+            case DECORRELATED_JITTER:
+                return new DecorrelatedJitterBackoffStrategy(base, cap, unit);
+            default:
+                throw new IllegalArgumentException("no strategy for " + policy.backoff());
+        }
+    }
+
+    /**
+     * Returns the arbiter the policy names, or the default arbiter if it
+     * names none.
+     */
+    static ExceptionArbiter toArbiter(final RetryPolicy policy, final ExceptionArbiter defaultArbiter) {
+        if (policy == null || policy.arbiter() == ExceptionArbiter.class) {
+            return defaultArbiter;
+        }
+        final Class<? extends ExceptionArbiter> type = policy.arbiter();
+        try {
+            try {
+                Constructor<? extends ExceptionArbiter> constructor = type.getConstructor(ExceptionArbiter.class);
+                return constructor.newInstance(defaultArbiter);
+            } catch (NoSuchMethodException e) {
+                return type.getConstructor().newInstance();
+            }
+        } catch (Exception e) {
+            throw new IllegalArgumentException("cannot instantiate arbiter " + type.getName()
+                    + "; it needs a public constructor taking an ExceptionArbiter or no arguments", e);
+        }
+    }
+
+    /**
+     * Returns the attempt timeout the policy declares, in nanoseconds, or 0 if
+     * attempts are not timed.
+     */
+    static long attemptTimeoutNanos(final RetryPolicy policy) {
+        if (policy == null || policy.attemptTimeoutMillis() <= 0) {
+            return 0L;
+        }
+        return TimeUnit.MILLISECONDS.toNanos(policy.attemptTimeoutMillis());
+    }
+
+    /**
+     * Wraps an arbiter so that timed-out attempts are retried.
+     */
+    static ExceptionArbiter retryingAttemptTimeouts(final ExceptionArbiter arbiter) {
+        return new ExceptionArbiter() {
+
+            @Override
+            public boolean isRetryable(Throwable t) {
+                return t instanceof AttemptTimeoutException || arbiter.isRetryable(t);
+            }
+        };
+    }
+}
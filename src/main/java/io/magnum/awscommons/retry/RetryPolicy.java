@@ -0,0 +1,89 @@
+package io.magnum.awscommons.retry;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Declares how a method of an interface proxied by {@link RetryableFactory}
+ * is retried, overriding the proxy's {@link RetryHelper} and default arbiter
+ * for that method. Every element defaults to inheriting from the proxy.
+ * <p>
+ * An arbiter set for the method through
+ * {@link RetryableFactory.Builder#withMethodSpecificArbiters} takes precedence
+ * over {@link #arbiter()}.
+ */
+@Documented
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.METHOD)
+public @interface RetryPolicy {
+
+    /**
+     * The maximum number of attempts, including the first; 0 inherits.
+     */
+    int maxTries() default 0;
+
+    /**
+     * How long a single attempt may run before the thread making it is
+     * interrupted and the attempt fails with a (retryable)
+     * {@link AttemptTimeoutException}; 0, the default, means attempts are not
+     * timed.
+     * <p>
+     * A timed attempt runs on another thread, which costs a thread hop on
+     * every call. An attempt blocked in a socket read ignores the interrupt
+     * and keeps running while the call is retried, so do not use this to
+     * bound requests to AWS; set the client's socket timeout instead.
+     */
+    long attemptTimeoutMillis() default 0;
+
+    /**
+     * How long the whole call, including retries and backoff, may take before
+     * it is given up; 0 inherits the timeout of the proxy's {@link RetryHelper}.
+     */
+    long deadlineMillis() default 0;
+
+    /**
+     * The delay between attempts.
+     */
+    Backoff backoff() default Backoff.INHERIT;
+
+    /**
+     * The base delay of {@link #backoff()}, or the delay itself for
+     * {@link Backoff#FIXED}.
+     */
+    long backoffBaseMillis() default 100;
+
+    /**
+     * The longest delay of {@link #backoff()}; ignored for
+     * {@link Backoff#FIXED}.
+     */
+    long backoffCapMillis() default 20000;
+
+    /**
+     * The arbiter deciding which failures are retried;
+     * <code>ExceptionArbiter.class</code> inherits. The class must have a
+     * public constructor taking the proxy's default {@link ExceptionArbiter},
+     * to which it may defer, or a public no-argument constructor.
+     */
+    Class<? extends ExceptionArbiter> arbiter() default ExceptionArbiter.class;
+
+    /**
+     * The backoff strategies a policy can name.
+     */
+    enum Backoff {
+        /** Use the proxy's {@link RetryHelper}'s strategy */
+        INHERIT,
+        /** Retry immediately */
+        NONE,
+        /** See {@link FixedBackoffStrategy} */
+        FIXED,
+        /** See {@link ExponentialBackoffStrategy} */
+        EXPONENTIAL,
+        /** See {@link FullJitterBackoffStrategy} */
+        FULL_JITTER,
+        /** See {@link DecorrelatedJitterBackoffStrategy} */
+        DECORRELATED_JITTER
+    }
+}
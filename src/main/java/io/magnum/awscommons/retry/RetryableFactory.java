@@ -21,12 +21,144 @@ public class RetryableFactory {
         return create(interfaze, delegate, retryHelper, defaultArbiter, Collections.<Method, ExceptionArbiter>emptyMap());
     }
     
-    @SuppressWarnings("unchecked")
     public static <T, D extends T> T create(Class<T> interfaze, D delegate, RetryHelper retryHelper,
             ExceptionArbiter defaultArbiter, Map<Method, ExceptionArbiter> methodSpecificArbiter) {
-        
-        Class<?>[] interfaces = new Class<?>[] { interfaze };
-        InvocationHandler handler = new RetryingInvocationHandler(delegate, retryHelper, defaultArbiter, methodSpecificArbiter);
-        return (T) Proxy.newProxyInstance(delegate.getClass().getClassLoader(), interfaces, handler);
+        return create(interfaze, delegate, retryHelper, defaultArbiter, methodSpecificArbiter, null);
+    }
+
+    /**
+     * Like {@link #create(Class, Object, RetryHelper, ExceptionArbiter, Map)},
+     * but every retry must first be paid for from the given budget, which may
+     * be shared with other proxies. Once it is spent, calls fail fast with a
+     * {@link RetryFailedException} caused by the last failure.
+     * 
+     * @param retryBudget the budget to draw retries from; if <code>null</code>,
+     * retries are limited only by the {@link RetryHelper}
+     */
+    public static <T, D extends T> T create(Class<T> interfaze, D delegate, RetryHelper retryHelper,
+            ExceptionArbiter defaultArbiter, Map<Method, ExceptionArbiter> methodSpecificArbiter,
+            RetryBudget retryBudget) {
+        return new Builder<T>(interfaze, delegate)
+                .withRetryHelper(retryHelper)
+                .withDefaultArbiter(defaultArbiter)
+                .withMethodSpecificArbiters(methodSpecificArbiter)
+                .withRetryBudget(retryBudget)
+                .build();
+    }
+
+    /**
+     * Builds a retrying proxy when more than the basic options are needed.
+     */
+    public final static class Builder<T> {
+        private final Class<T> interfaze;
+        private final T delegate;
+        private RetryHelper retryHelper = RetryHelper.RUN_ONCE;
+        private ExceptionArbiter defaultArbiter = AlwaysAbortArbiter.INSTANCE;
+        private Map<Method, ExceptionArbiter> methodSpecificArbiters = Collections.emptyMap();
+        private RetryBudget retryBudget;
+        private CircuitBreaker defaultCircuitBreaker;
+        private Map<Method, CircuitBreaker> methodSpecificCircuitBreakers = Collections.emptyMap();
+        private AdaptiveRateLimiter defaultRateLimiter;
+        private Map<Method, AdaptiveRateLimiter> methodSpecificRateLimiters = Collections.emptyMap();
+        private HedgingPolicy hedgingPolicy;
+        private RetryMetrics metrics;
+
+        public Builder(final Class<T> interfaze, final T delegate) {
+            if (interfaze == null || !interfaze.isInterface()) {
+                throw new IllegalArgumentException("an interface is required: " + interfaze);
+            }
+            if (delegate == null) {
+                throw new IllegalArgumentException("delegate cannot be null");
+            }
+            this.interfaze = interfaze;
+            this.delegate = delegate;
+        }
+
+        @SuppressWarnings("unchecked")
+        public T build() {
+            Class<?>[] interfaces = new Class<?>[] { interfaze };
+            InvocationHandler handler = new RetryingInvocationHandler(interfaze, delegate, retryHelper, defaultArbiter,
+                    methodSpecificArbiters, retryBudget, defaultCircuitBreaker, methodSpecificCircuitBreakers,
+                    defaultRateLimiter, methodSpecificRateLimiters, hedgingPolicy, metrics);
+            return (T) Proxy.newProxyInstance(delegate.getClass().getClassLoader(), interfaces, handler);
+        }
+
+        public Builder<T> withRetryHelper(final RetryHelper retryHelper) {
+            this.retryHelper = retryHelper;
+            return this;
+        }
+
+        public Builder<T> withDefaultArbiter(final ExceptionArbiter defaultArbiter) {
+            this.defaultArbiter = defaultArbiter;
+            return this;
+        }
+
+        public Builder<T> withMethodSpecificArbiters(final Map<Method, ExceptionArbiter> methodSpecificArbiters) {
+            this.methodSpecificArbiters = methodSpecificArbiters;
+            return this;
+        }
+
+        /**
+         * Sets the budget that retries must be paid from; see {@link RetryBudget}.
+         */
+        public Builder<T> withRetryBudget(final RetryBudget retryBudget) {
+            this.retryBudget = retryBudget;
+            return this;
+        }
+
+        /**
+         * Guards every method without a method-specific breaker with the given
+         * {@link CircuitBreaker}. While it is open, calls fail immediately
+         * with a {@link RetryFailedException} caused by a
+         * {@link CircuitBreakerOpenException}. Only failures which the
+         * method's arbiter considers retryable count against the breaker.
+         */
+        public Builder<T> withCircuitBreaker(final CircuitBreaker defaultCircuitBreaker) {
+            this.defaultCircuitBreaker = defaultCircuitBreaker;
+            return this;
+        }
+
+        public Builder<T> withMethodSpecificCircuitBreakers(
+                final Map<Method, CircuitBreaker> methodSpecificCircuitBreakers) {
+            this.methodSpecificCircuitBreakers = methodSpecificCircuitBreakers;
+            return this;
+        }
+
+        /**
+         * Makes every method without a method-specific limiter wait on the
+         * given {@link AdaptiveRateLimiter} before each attempt, and feeds it
+         * the outcome of each attempt so that it backs off when throttled.
+         * Share one limiter among the methods that call the same service.
+         */
+        public Builder<T> withRateLimiter(final AdaptiveRateLimiter defaultRateLimiter) {
+            this.defaultRateLimiter = defaultRateLimiter;
+            return this;
+        }
+
+        public Builder<T> withMethodSpecificRateLimiters(
+                final Map<Method, AdaptiveRateLimiter> methodSpecificRateLimiters) {
+            this.methodSpecificRateLimiters = methodSpecificRateLimiters;
+            return this;
+        }
+
+        /**
+         * Hedges every method annotated {@link Idempotent} according to the
+         * given policy; see {@link HedgingPolicy}. Methods without the
+         * annotation are never hedged.
+         */
+        public Builder<T> withHedging(final HedgingPolicy hedgingPolicy) {
+            this.hedgingPolicy = hedgingPolicy;
+            return this;
+        }
+
+        /**
+         * Records the calls, attempts, backoff and latencies of every method
+         * in the given registry; see {@link CallMetrics}. One registry may be
+         * shared by several proxies.
+         */
+        public Builder<T> withMetrics(final RetryMetrics metrics) {
+            this.metrics = metrics;
+            return this;
+        }
     }
 }
@@ -1,87 +1,572 @@
 package io.magnum.awscommons.retry;
 
+import io.magnum.awscommons.concurrent.DaemonThreads;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
 import java.lang.reflect.InvocationHandler;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
+import java.lang.reflect.UndeclaredThrowableException;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 /**
  * An {@link InvocationHandler} implementation which wraps retry logic around
  * each method invocation.
- * 
+ * <p>
+ * Everything that depends only on the method (its arbiter, circuit breaker,
+ * description and a {@link MethodHandle} bound to the delegate) is computed
+ * once per method up front. The first attempt of every call is made directly
+ * and allocates nothing when it succeeds; the {@link RetryHelper} machinery is
+ * only engaged once an attempt has failed.
+ * <p>
+ * If a {@link HedgingPolicy} is given, each attempt of an {@link Idempotent}
+ * method is hedged according to it; other methods are never hedged.
+ * <p>
+ * A {@link RetryPolicy} on an interface method overrides the retry helper and
+ * default arbiter for that method. If it declares an attempt timeout, each
+ * attempt runs on a separate thread, which is interrupted once the timeout
+ * passes and the caller moves on. An attempt blocked in a socket read ignores
+ * the interrupt and runs on, so a request may still be in flight while it is
+ * retried; timeouts set on the underlying client are what end the request.
+ * Attempt threads are bounded, and once they are all busy, attempts run on the
+ * caller's thread untimed.
+ * <p>
+ * If a {@link RetryMetrics} registry is given, every call and attempt is
+ * recorded in the {@link CallMetrics} of its method, and the retry budget, if
+ * any, is published with them.
+ *
  * @author Yu Sun
  */
 class RetryingInvocationHandler implements InvocationHandler {
+
+    private static final Object[] NO_ARGS = new Object[0];
+
+    private static final MethodType SPREAD_TYPE = MethodType.methodType(Object.class, Object[].class);
+
     private final Object delegate;
     private final RetryHelper retryHelper;
     private final ExceptionArbiter defaultArbiter;
     private final Map<Method, ExceptionArbiter> methodSpecificArbiter;
-    
-    public RetryingInvocationHandler(Object delegate, RetryHelper retryHelper, ExceptionArbiter defaultArbiter,
-            Map<Method, ExceptionArbiter> methodSpecificArbiter) {
+    private final RetryBudget retryBudget;
+    private final CircuitBreaker defaultCircuitBreaker;
+    private final Map<Method, CircuitBreaker> methodSpecificCircuitBreaker;
+    private final AdaptiveRateLimiter defaultRateLimiter;
+    private final Map<Method, AdaptiveRateLimiter> methodSpecificRateLimiter;
+    private final HedgingPolicy hedgingPolicy;
+    private final RetryMetrics metrics;
+    private final Class<?> interfaze;
+
+    /**
+     * Invokers for the proxied interface's methods. Never modified after
+     * construction, so it can be read without synchronization.
+     */
+    private final Map<Method, MethodInvoker> invokers;
+
+    /**
+     * Invokers for methods not known up front, such as those declared by
+     * {@link Object}.
+     */
+    private final ConcurrentMap<Method, MethodInvoker> lateInvokers = new ConcurrentHashMap<Method, MethodInvoker>();
+
+    /**
+     * Invokers keyed by the {@link Method} instances the proxy actually passes
+     * in, which are the same on every call. Identity lookups avoid
+     * {@link Method#equals(Object)}; the map is copied on write, which happens
+     * at most once per method.
+     */
+    private volatile Map<Method, MethodInvoker> invokersByIdentity = new IdentityHashMap<Method, MethodInvoker>();
+
+    public RetryingInvocationHandler(Class<?> interfaze, Object delegate, RetryHelper retryHelper,
+            ExceptionArbiter defaultArbiter, Map<Method, ExceptionArbiter> methodSpecificArbiter,
+            RetryBudget retryBudget, CircuitBreaker defaultCircuitBreaker,
+            Map<Method, CircuitBreaker> methodSpecificCircuitBreaker, AdaptiveRateLimiter defaultRateLimiter,
+            Map<Method, AdaptiveRateLimiter> methodSpecificRateLimiter, HedgingPolicy hedgingPolicy,
+            RetryMetrics metrics) {
         this.delegate = delegate;
         this.retryHelper = retryHelper;
         this.defaultArbiter = defaultArbiter;
         this.methodSpecificArbiter = methodSpecificArbiter;
+        this.retryBudget = retryBudget;
+        this.defaultCircuitBreaker = defaultCircuitBreaker;
+        this.methodSpecificCircuitBreaker = methodSpecificCircuitBreaker;
+        this.defaultRateLimiter = defaultRateLimiter;
+        this.methodSpecificRateLimiter = methodSpecificRateLimiter;
+        this.hedgingPolicy = hedgingPolicy;
+        this.metrics = metrics;
+        this.interfaze = interfaze;
+        if (metrics != null && retryBudget != null) {
+            metrics.forBudget(interfaze, retryBudget);
+        }
+
+        Method[] methods = interfaze.getMethods();
+        this.invokers = new HashMap<Method, MethodInvoker>(methods.length * 2);
+        for (Method method : methods) {
+            invokers.put(method, newInvoker(method));
+        }
     }
-    
+
     @Override
     public Object invoke(Object proxy, Method method, Object[] args)
             throws Throwable {
+        MethodInvoker invoker = invokersByIdentity.get(method);
+        if (invoker == null) {
+            invoker = resolveInvoker(method);
+        }
+        return invoker.invoke(args != null ? args : NO_ARGS);
+    }
+
+    private MethodInvoker resolveInvoker(Method method) {
+        MethodInvoker invoker = invokers.get(method);
+        if (invoker == null) {
+            invoker = lateInvokers.get(method);
+            if (invoker == null) {
+                lateInvokers.putIfAbsent(method, newInvoker(method));
+                invoker = lateInvokers.get(method);
+            }
+        }
+        synchronized (this) {
+            Map<Method, MethodInvoker> copy = new IdentityHashMap<Method, MethodInvoker>(invokersByIdentity);
+            copy.put(method, invoker);
+            invokersByIdentity = copy;
+        }
+        return invoker;
+    }
+
+    private MethodInvoker newInvoker(Method method) {
+        RetryPolicy policy = method.getAnnotation(RetryPolicy.class);
         ExceptionArbiter arbiter = methodSpecificArbiter.get(method);
         if(arbiter == null) {
-            arbiter = defaultArbiter;
+            arbiter = RetryPolicies.toArbiter(policy, defaultArbiter);
+        }
+        long attemptTimeoutNanos = RetryPolicies.attemptTimeoutNanos(policy);
+        if(attemptTimeoutNanos > 0) {
+            arbiter = RetryPolicies.retryingAttemptTimeouts(arbiter);
         }
-        
-        Retryable<?> retryable = toRetryable(delegate, method, args);
-        ExceptionArbiter invocationTargetArbiter = toInvocationTargetArbiter(arbiter);
-        
+        CircuitBreaker circuitBreaker = methodSpecificCircuitBreaker.get(method);
+        if(circuitBreaker == null) {
+            circuitBreaker = defaultCircuitBreaker;
+        }
+        AdaptiveRateLimiter rateLimiter = methodSpecificRateLimiter.get(method);
+        if(rateLimiter == null) {
+            rateLimiter = defaultRateLimiter;
+        }
+        LatencyTracker latencyTracker = null;
+        if(hedgingPolicy != null && method.isAnnotationPresent(Idempotent.class)) {
+            latencyTracker = hedgingPolicy.newLatencyTracker();
+        }
+        return new MethodInvoker(method, toMethodHandle(delegate, method), RetryPolicies.toRetryHelper(policy,
+                retryHelper), arbiter, attemptTimeoutNanos, circuitBreaker, rateLimiter, latencyTracker,
+                metrics != null ? metrics.forMethod(interfaze, method) : null);
+    }
+
+    /**
+     * Returns a handle of type <code>(Object[])Object</code> which calls the
+     * method on the delegate, or <code>null</code> if one cannot be created and
+     * reflection must be used instead.
+     */
+    private static MethodHandle toMethodHandle(Object delegate, Method method) {
         try {
-            return retryHelper.runRetryable(retryable, invocationTargetArbiter);
-        } catch(AbortException e) {
-            throw new RetryFailedException(e.getCause());
+            MethodHandle handle;
+            try {
+                handle = MethodHandles.publicLookup().unreflect(method);
+            } catch (IllegalAccessException e) {
+                method.setAccessible(true);
+                handle = MethodHandles.lookup().unreflect(method);
+            }
+            return handle.bindTo(delegate)
+                    .asSpreader(Object[].class, method.getParameterTypes().length)
+                    .asType(SPREAD_TYPE);
+        } catch (Exception e) {
+            return null;
         }
     }
 
     private static ExceptionArbiter toInvocationTargetArbiter(final ExceptionArbiter delegate) {
         return new ExceptionArbiter() {
-            
+
             @Override
             public boolean isRetryable(Throwable e) {
                 if(InvocationTargetRuntimeException.class.isInstance(e)) {
                     return delegate.isRetryable(((InvocationTargetRuntimeException) e).getCause());
                 }
-                
+
                 return delegate.isRetryable(e);
             }
         };
     }
-    
-    private static Retryable<Object> toRetryable(final Object delegate, final Method method, final Object[] args) {
-        return new Retryable<Object>() {
-            @Override
-            public Object call() throws RetryableException, AbortException {
+
+    /**
+     * Everything needed to call one method of the delegate with retries.
+     */
+    private final class MethodInvoker {
+        private final Method method;
+        private final MethodHandle handle;
+        private final RetryHelper retryHelper;
+        private final ExceptionArbiter arbiter;
+        /** Zero if attempts are not timed */
+        private final long attemptTimeoutNanos;
+        private final ExceptionArbiter invocationTargetArbiter;
+        private final CircuitBreaker circuitBreaker;
+        private final AdaptiveRateLimiter rateLimiter;
+        /** Non-null if and only if attempts are hedged */
+        private final LatencyTracker latencyTracker;
+        private final CallMetrics callMetrics;
+        private final String description;
+        /** Clock reads are only needed for deadlines, slow-call detection and metrics */
+        private final boolean timed;
+
+        MethodInvoker(Method method, MethodHandle handle, RetryHelper retryHelper, ExceptionArbiter arbiter,
+                long attemptTimeoutNanos, CircuitBreaker circuitBreaker, AdaptiveRateLimiter rateLimiter,
+                LatencyTracker latencyTracker, CallMetrics callMetrics) {
+            this.method = method;
+            this.handle = handle;
+            this.retryHelper = retryHelper;
+            this.arbiter = arbiter;
+            this.attemptTimeoutNanos = attemptTimeoutNanos;
+            this.invocationTargetArbiter = toInvocationTargetArbiter(arbiter);
+            this.circuitBreaker = circuitBreaker;
+            this.rateLimiter = rateLimiter;
+            this.latencyTracker = latencyTracker;
+            this.callMetrics = callMetrics;
+            this.description = "Calling " + delegate.getClass().getCanonicalName() + "#" + method.getName();
+            this.timed = circuitBreaker != null || retryHelper.getTimeout() != null || callMetrics != null;
+        }
+
+        Object invoke(final Object[] args) {
+            if (circuitBreaker != null && !circuitBreaker.tryAcquirePermission()) {
+                if (callMetrics != null) {
+                    callMetrics.recordRejection();
+                }
+                throw new RetryFailedException(rejection());
+            }
+            if (rateLimiter != null) {
                 try {
-                    return method.invoke(delegate, args);
-                } catch (InvocationTargetException e) {
-                    throw new InvocationTargetRuntimeException(e);
-                } catch (Exception e) {
-                    throw new AbortException(e);
+                    rateLimiter.acquire();
+                } catch (InterruptedException e) {
+                    if (circuitBreaker != null) {
+                        circuitBreaker.releasePermission();
+                    }
+                    if (callMetrics != null) {
+                        callMetrics.recordRejection();
+                    }
+                    Thread.currentThread().interrupt();
+                    throw new RetryFailedException(e);
                 }
             }
-            
-            @Override
-            public String getDescription() {
-                return "Calling " + delegate.getClass().getCanonicalName() + "#" + method.getName();
+            final long startNanos = timed ? System.nanoTime() : 0L;
+            final Throwable failure;
+            final long failedAtNanos;
+            try {
+                Object result = callAttempt(args);
+                long endNanos = onSuccess(startNanos);
+                if (callMetrics != null) {
+                    callMetrics.recordCall(true, 1, endNanos - startNanos, 0L);
+                }
+                return result;
+            } catch (Throwable t) {
+                failedAtNanos = onFailure(t, startNanos);
+                failure = t;
             }
-        };
+
+            // The first attempt failed; hand over to the retry machinery.
+            RetryingCall retryable = new RetryingCall(this, args, failure, failedAtNanos);
+            boolean succeeded = false;
+            try {
+                retryable.reserveRetry(failure);
+                Object result = retryHelper.retryAfterFailure(retryable, invocationTargetArbiter,
+                        timed ? startNanos : System.nanoTime(),
+                        new InvocationTargetRuntimeException(failure));
+                succeeded = true;
+                return result;
+            } catch(AbortException e) {
+                throw new RetryFailedException(e.getCause());
+            } finally {
+                retryable.releaseUnusedRetry();
+                if (callMetrics != null) {
+                    callMetrics.recordCall(succeeded, retryable.attempts, System.nanoTime() - startNanos,
+                            retryable.backoffNanos);
+                }
+            }
+        }
+
+        /**
+         * Makes one attempt, timed and hedged as this method requires.
+         */
+        Object callAttempt(final Object[] args) throws Throwable {
+            if (attemptTimeoutNanos > 0) {
+                return callWithTimeout(args);
+            }
+            return callUntimed(args);
+        }
+
+        private Object callUntimed(final Object[] args) throws Throwable {
+            if (latencyTracker == null) {
+                return callDelegate(args);
+            }
+            return hedgingPolicy.call(new Attempt(this, args, true), latencyTracker);
+        }
+
+        private Object callWithTimeout(final Object[] args) throws Throwable {
+            Future<Object> future;
+            try {
+                future = AttemptExecutorHolder.EXECUTOR.submit(new Attempt(this, args, false));
+            } catch (RejectedExecutionException e) {
+                // every attempt thread is busy, most likely with attempts that
+                // timed out but ignored the interrupt; don't add to them
+                return callUntimed(args);
+            }
+            try {
+                return future.get(attemptTimeoutNanos, TimeUnit.NANOSECONDS);
+            } catch (TimeoutException e) {
+                future.cancel(true);
+                throw new AttemptTimeoutException(description + " timed out after "
+                        + TimeUnit.NANOSECONDS.toMillis(attemptTimeoutNanos) + " ms");
+            } catch (ExecutionException e) {
+                throw e.getCause();
+            } catch (InterruptedException e) {
+                future.cancel(true);
+                Thread.currentThread().interrupt();
+                throw e;
+            }
+        }
+
+        /**
+         * Calls the delegate, throwing exactly what the delegate throws.
+         */
+        Object callDelegate(final Object[] args) throws Throwable {
+            if (handle != null) {
+                return (Object) handle.invokeExact(args);
+            }
+            try {
+                return method.invoke(delegate, args);
+            } catch (InvocationTargetException e) {
+                throw e.getCause();
+            }
+        }
+
+        /**
+         * Records a successful attempt.
+         *
+         * @return the time the attempt ended, if this method is timed
+         */
+        long onSuccess(final long startNanos) {
+            final long endNanos = timed ? System.nanoTime() : 0L;
+            if (retryBudget != null) {
+                retryBudget.onSuccess();
+            }
+            if (rateLimiter != null) {
+                rateLimiter.onSuccess();
+            }
+            if (circuitBreaker != null) {
+                circuitBreaker.onSuccess(endNanos - startNanos);
+            }
+            if (callMetrics != null) {
+                callMetrics.recordAttempt(endNanos - startNanos);
+            }
+            return endNanos;
+        }
+
+        /**
+         * Records a failed attempt.
+         *
+         * @return the time the attempt ended, if this method is timed
+         */
+        long onFailure(final Throwable t, final long startNanos) {
+            final long endNanos = timed ? System.nanoTime() : 0L;
+            if (rateLimiter != null) {
+                rateLimiter.onFailure(t);
+            }
+            if (circuitBreaker != null) {
+                // Only transient failures say anything about the health of the dependency
+                if (arbiter.isRetryable(t)) {
+                    circuitBreaker.onFailure(endNanos - startNanos);
+                } else {
+                    circuitBreaker.onSuccess(endNanos - startNanos);
+                }
+            }
+            if (callMetrics != null) {
+                callMetrics.recordAttempt(endNanos - startNanos);
+            }
+            return endNanos;
+        }
+
+        CircuitBreakerOpenException rejection() {
+            return new CircuitBreakerOpenException("circuit breaker " + circuitBreaker.getName()
+                    + " is open; rejected " + description);
+        }
     }
-    
+
+    /**
+     * One attempt, for running on another thread.
+     */
+    private static final class Attempt implements Callable<Object> {
+        private final MethodInvoker invoker;
+        private final Object[] args;
+        /** Whether to call the delegate directly rather than hedging */
+        private final boolean direct;
+
+        Attempt(MethodInvoker invoker, Object[] args, boolean direct) {
+            this.invoker = invoker;
+            this.args = args;
+            this.direct = direct;
+        }
+
+        @Override
+        public Object call() throws Exception {
+            try {
+                return direct ? invoker.callDelegate(args) : invoker.callUntimed(args);
+            } catch (Exception | Error e) {
+                throw e;
+            } catch (Throwable t) {
+                throw new UndeclaredThrowableException(t);
+            }
+        }
+    }
+
+    /**
+     * Runs attempts which have a timeout. Bounded, because an attempt which
+     * ignores being interrupted keeps its thread after its caller has moved on.
+     */
+    private static final class AttemptExecutorHolder {
+        static final int MAX_THREADS = 32;
+        static final ExecutorService EXECUTOR = new ThreadPoolExecutor(0, MAX_THREADS, 60, TimeUnit.SECONDS,
+                new SynchronousQueue<Runnable>(), DaemonThreads.newThreadFactory("retry-attempt"));
+    }
+
+    /**
+     * The second and subsequent attempts of one call, each of which must be
+     * permitted by the circuit breaker and paid for from the retry budget.
+     * <p>
+     * Both are asked as soon as an attempt fails, before the {@link RetryHelper}
+     * backs off, so that a call which may not be retried fails at once rather
+     * than after sleeping. A retry reserved but never made, because the
+     * helper gave up, is handed back by {@link #releaseUnusedRetry()}.
+     */
+    private final class RetryingCall extends Retryable<Object> {
+        private final MethodInvoker invoker;
+        private final Object[] args;
+        private Throwable lastFailure;
+        /** The number of attempts made so far, including the first */
+        int attempts = 1;
+        /** The time spent between attempts; only measured for metrics */
+        long backoffNanos;
+        private long lastAttemptEndNanos;
+        /** Whether the next attempt has been permitted and paid for */
+        private boolean reserved;
+
+        RetryingCall(MethodInvoker invoker, Object[] args, Throwable firstFailure, long firstFailureNanos) {
+            this.invoker = invoker;
+            this.args = args;
+            this.lastFailure = firstFailure;
+            this.lastAttemptEndNanos = firstFailureNanos;
+        }
+
+        /**
+         * Reserves the attempt after the given failure, if the failure is one
+         * the helper would retry.
+         *
+         * @throws AbortException if the circuit breaker or the retry budget
+         * refuses the retry
+         */
+        void reserveRetry(Throwable failure) throws AbortException {
+            final Integer maxTries = invoker.retryHelper.getMaxTries();
+            if ((maxTries != null && attempts >= maxTries) || !invoker.arbiter.isRetryable(failure)) {
+                // the helper gives up without another attempt
+                return;
+            }
+            final CircuitBreaker circuitBreaker = invoker.circuitBreaker;
+            if (circuitBreaker != null && !circuitBreaker.tryAcquirePermission()) {
+                throw new AbortException("circuit breaker open: " + getDescription(), invoker.rejection());
+            }
+            if (retryBudget != null && !retryBudget.tryAcquireRetry()) {
+                if (circuitBreaker != null) {
+                    circuitBreaker.releasePermission();
+                }
+                throw new AbortException("retry budget exhausted: " + getDescription(), failure);
+            }
+            reserved = true;
+        }
+
+        /**
+         * Hands back a retry reserved for an attempt the helper did not make.
+         */
+        void releaseUnusedRetry() {
+            if (!reserved) {
+                return;
+            }
+            reserved = false;
+            if (invoker.circuitBreaker != null) {
+                invoker.circuitBreaker.releasePermission();
+            }
+            if (retryBudget != null) {
+                retryBudget.releaseRetry();
+            }
+        }
+
+        @Override
+        public Object call() throws RetryableException, AbortException {
+            if (invoker.callMetrics != null) {
+                backoffNanos += System.nanoTime() - lastAttemptEndNanos;
+            }
+            final CircuitBreaker circuitBreaker = invoker.circuitBreaker;
+            if (!reserved) {
+                // not reached while the helper retries only what the arbiter allows
+                reserveRetry(lastFailure);
+            }
+            reserved = false;
+            final AdaptiveRateLimiter rateLimiter = invoker.rateLimiter;
+            if (rateLimiter != null) {
+                try {
+                    rateLimiter.acquire();
+                } catch (InterruptedException e) {
+                    if (circuitBreaker != null) {
+                        circuitBreaker.releasePermission();
+                    }
+                    Thread.currentThread().interrupt();
+                    throw new AbortException("interrupted while waiting for rate limiter: " + getDescription(), e);
+                }
+            }
+            final long startNanos = invoker.timed ? System.nanoTime() : 0L;
+            attempts++;
+            try {
+                Object result = invoker.callAttempt(args);
+                invoker.onSuccess(startNanos);
+                return result;
+            } catch (Throwable t) {
+                lastAttemptEndNanos = invoker.onFailure(t, startNanos);
+                lastFailure = t;
+            }
+            // before the helper backs off, so that a refusal fails the call at once
+            reserveRetry(lastFailure);
+            throw new InvocationTargetRuntimeException(lastFailure);
+        }
+
+        @Override
+        public String getDescription() {
+            return invoker.description;
+        }
+    }
+
     @SuppressWarnings("serial")
     private static class InvocationTargetRuntimeException extends RuntimeException {
-        
-        public InvocationTargetRuntimeException(InvocationTargetException invocationTargetException) {
-            super(invocationTargetException.getCause());
+
+        public InvocationTargetRuntimeException(Throwable cause) {
+            super(cause);
         }
     }
 }
@@ -2,24 +2,40 @@ package io.magnum.awscommons.retry;
 
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 /**
  * Determines retryability of an exception
  * based upon a list of known retryable types.
+ * <p>
+ * The verdict depends only on the exception's class, so it is cached per
+ * class and the list of types is walked once for each class seen.
  */
 public class TypeAwareArbiter implements ExceptionArbiter {
 
     private final Collection<Class<? extends Exception>> retryableTypes;
+    private final ConcurrentMap<Class<?>, Boolean> verdicts = new ConcurrentHashMap<Class<?>, Boolean>();
     
     public TypeAwareArbiter(Collection<Class<? extends Exception>> retryableTypes) {
         this.retryableTypes = new ArrayList<Class<? extends Exception>>(retryableTypes);
     }
     
     @Override
-    public boolean isRetryable(Throwable e) {        
+    public boolean isRetryable(Throwable e) {
+        final Class<?> exceptionClass = e.getClass();
+        Boolean verdict = verdicts.get(exceptionClass);
+        if (verdict == null) {
+            verdict = isRetryableType(exceptionClass);
+            verdicts.putIfAbsent(exceptionClass, verdict);
+        }
+        return verdict;
+    }
+
+    private boolean isRetryableType(Class<?> exceptionClass) {
         // See if we can treat the exception as retryable
         for (Class<?> type : retryableTypes) {
-            if (type.isAssignableFrom(e.getClass())) {
+            if (type.isAssignableFrom(exceptionClass)) {
                 // We can consider this as a retryable exception
                 return true;
             }
@@ -0,0 +1,252 @@
+package io.magnum.awscommons;
+
+import io.magnum.awscommons.concurrent.ListenableFuture;
+import io.magnum.awscommons.retry.AbortException;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.services.cloudformation.AmazonCloudFormation;
+import com.amazonaws.services.cloudformation.model.DescribeStacksRequest;
+import com.amazonaws.services.cloudformation.model.DescribeStacksResult;
+import com.amazonaws.services.cloudformation.model.Stack;
+import com.amazonaws.services.ec2.AmazonEC2;
+import com.amazonaws.services.ec2.model.DescribeInstancesRequest;
+import com.amazonaws.services.ec2.model.DescribeInstancesResult;
+import com.amazonaws.services.ec2.model.Filter;
+import com.amazonaws.services.ec2.model.Instance;
+import com.amazonaws.services.ec2.model.InstanceState;
+import com.amazonaws.services.ec2.model.Reservation;
+
+public class AwsWaiterTest {
+
+    /**
+     * Serves instances, images and stacks in the states set in the maps, and
+     * counts the describe calls.
+     */
+    private static class StubHandler implements InvocationHandler {
+        final Map<String, String> instanceStates = new ConcurrentHashMap<String, String>();
+        final Map<String, String> imageStates = new ConcurrentHashMap<String, String>();
+        final Map<String, String> stackStatuses = new ConcurrentHashMap<String, String>();
+        final AtomicInteger calls = new AtomicInteger();
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) {
+            String name = method.getName();
+            calls.incrementAndGet();
+            if (name.equals("getInstancesById")) {
+                Map<String, Instance> instances = new HashMap<String, Instance>();
+                for (Object id : (Collection<?>) args[0]) {
+                    String state = instanceStates.get(id);
+                    if (state != null) {
+                        instances.put((String) id, new Instance().withInstanceId((String) id)
+                                .withState(new InstanceState().withName(state)));
+                    }
+                }
+                return instances;
+            } else if (name.equals("getImageStates")) {
+                Map<String, String> states = new HashMap<String, String>();
+                for (Object id : (Collection<?>) args[0]) {
+                    if (imageStates.containsKey(id)) {
+                        states.put((String) id, imageStates.get(id));
+                    }
+                }
+                return states;
+            } else if (name.equals("getCloudFormationStacksPage")) {
+                List<Stack> stacks = new ArrayList<Stack>();
+                for (Map.Entry<String, String> entry : stackStatuses.entrySet()) {
+                    stacks.add(new Stack().withStackName(entry.getKey()).withStackStatus(entry.getValue()));
+                }
+                return new DescribeStacksResult().withStacks(stacks);
+            } else if (name.equals("getCloudFormationStack")) {
+                String status = stackStatuses.get(args[0]);
+                return status == null ? null : new Stack().withStackName((String) args[0]).withStackStatus(status);
+            }
+            throw new UnsupportedOperationException(name);
+        }
+    }
+
+    private static AwsWaiter.Builder builder(StubHandler handler) {
+        GeneralAwsHelper helper = (GeneralAwsHelper) Proxy.newProxyInstance(GeneralAwsHelper.class.getClassLoader(),
+                new Class<?>[] { GeneralAwsHelper.class }, handler);
+        return new AwsWaiter.Builder(helper)
+                .withMinInterval(5, TimeUnit.MILLISECONDS)
+                .withMaxInterval(20, TimeUnit.MILLISECONDS);
+    }
+
+    @Test
+    public void testConcurrentWaitsShareDescribeCalls() throws Exception {
+        StubHandler stub = new StubHandler();
+        AwsWaiter waiter = builder(stub).build();
+        List<ListenableFuture<Instance>> futures = new ArrayList<ListenableFuture<Instance>>();
+        for (int i = 0; i < 500; i++) {
+            stub.instanceStates.put("i-" + i, "pending");
+            futures.add(waiter.waitForInstanceState("i-" + i, Ec2InstanceState.RUNNING));
+        }
+        Thread.sleep(50);
+        Assert.assertFalse(futures.get(0).isDone());
+        for (int i = 0; i < 500; i++) {
+            stub.instanceStates.put("i-" + i, "running");
+        }
+        for (int i = 0; i < 500; i++) {
+            Assert.assertEquals("i-" + i, futures.get(i).get(5, TimeUnit.SECONDS).getInstanceId());
+        }
+        // one call per poll, whatever the number of waits
+        Assert.assertEquals(waiter.getPolls(), stub.calls.get());
+        Assert.assertTrue("polls: " + waiter.getPolls(), waiter.getPolls() < 50);
+        Assert.assertEquals(0, waiter.getPendingCount());
+    }
+
+    @Test
+    public void testTerminatedInstanceFailsWait() throws Exception {
+        StubHandler stub = new StubHandler();
+        stub.instanceStates.put("i-1", "terminated");
+        try {
+            builder(stub).build().waitForInstanceState("i-1", Ec2InstanceState.RUNNING).get(5, TimeUnit.SECONDS);
+            Assert.fail();
+        } catch (ExecutionException e) {
+            Assert.assertTrue(e.getCause() instanceof AbortException);
+        }
+    }
+
+    @Test
+    public void testImageAndStackWaits() throws Exception {
+        StubHandler stub = new StubHandler();
+        stub.imageStates.put("ami-1", "available");
+        stub.stackStatuses.put("a", "CREATE_COMPLETE");
+        stub.stackStatuses.put("b", "ROLLBACK_COMPLETE");
+        AwsWaiter waiter = builder(stub).build();
+
+        ListenableFuture<Void> image = waiter.waitForImageAvailable("ami-1");
+        ListenableFuture<Stack> a = waiter.waitForStackStatus("a", "CREATE_COMPLETE", "UPDATE_COMPLETE");
+        ListenableFuture<Stack> b = waiter.waitForStackStatus("b", "CREATE_COMPLETE");
+        ListenableFuture<Stack> c = waiter.waitForStackStatus("c", "DELETE_COMPLETE");
+
+        image.get(5, TimeUnit.SECONDS);
+        Assert.assertEquals("CREATE_COMPLETE", a.get(5, TimeUnit.SECONDS).getStackStatus());
+        Assert.assertNull(c.get(5, TimeUnit.SECONDS));
+        try {
+            b.get(5, TimeUnit.SECONDS);
+            Assert.fail();
+        } catch (ExecutionException e) {
+            Assert.assertTrue(e.getCause().getMessage().contains("ROLLBACK_COMPLETE"));
+        }
+    }
+
+    /**
+     * Describes the instances in the map, failing any request which names
+     * an instance not in it by ID, as EC2 does.
+     */
+    private static class Ec2Handler implements InvocationHandler {
+        final Map<String, String> instanceStates = new ConcurrentHashMap<String, String>();
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) {
+            DescribeInstancesRequest request = (DescribeInstancesRequest) args[0];
+            List<String> ids = new ArrayList<String>(request.getInstanceIds());
+            for (String id : ids) {
+                if (!instanceStates.containsKey(id)) {
+                    AmazonServiceException e = new AmazonServiceException("The instance ID '" + id + "' does not exist");
+                    e.setErrorCode("InvalidInstanceID.NotFound");
+                    throw e;
+                }
+            }
+            for (Filter filter : request.getFilters()) {
+                ids.addAll(filter.getValues());
+            }
+            List<Instance> instances = new ArrayList<Instance>();
+            for (String id : ids) {
+                String state = instanceStates.get(id);
+                if (state != null) {
+                    instances.add(new Instance().withInstanceId(id).withState(new InstanceState().withName(state)));
+                }
+            }
+            return new DescribeInstancesResult().withReservations(new Reservation().withInstances(instances));
+        }
+    }
+
+    @Test
+    public void testInstanceNotVisibleYetDoesNotStallOthers() throws Exception {
+        Ec2Handler ec2 = new Ec2Handler();
+        ec2.instanceStates.put("i-1", "running");
+        GeneralAwsHelper helper = new DefaultGeneralAwsHelper(Stubs.context(
+                Stubs.stub(AmazonEC2.class, ec2, "describeInstances")));
+        AwsWaiter waiter = new AwsWaiter.Builder(helper)
+                .withMinInterval(5, TimeUnit.MILLISECONDS)
+                .withMaxInterval(20, TimeUnit.MILLISECONDS)
+                .build();
+
+        ListenableFuture<Instance> visible = waiter.waitForInstanceState("i-1", Ec2InstanceState.RUNNING);
+        ListenableFuture<Instance> fresh = waiter.waitForInstanceState("i-2", Ec2InstanceState.RUNNING);
+        Assert.assertEquals("i-1", visible.get(5, TimeUnit.SECONDS).getInstanceId());
+        Assert.assertFalse(fresh.isDone());
+
+        ec2.instanceStates.put("i-2", "running");
+        Assert.assertEquals("i-2", fresh.get(5, TimeUnit.SECONDS).getInstanceId());
+    }
+
+    /**
+     * Serves DescribeStacks by name, failing with a ValidationError for a
+     * stack that does not exist, as CloudFormation does once it is deleted.
+     */
+    private static class CloudFormationHandler implements InvocationHandler {
+        final Map<String, String> stackStatuses = new ConcurrentHashMap<String, String>();
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) {
+            String stackName = ((DescribeStacksRequest) args[0]).getStackName();
+            String status = stackStatuses.get(stackName);
+            if (status == null) {
+                AmazonServiceException e = new AmazonServiceException("Stack with id " + stackName + " does not exist");
+                e.setErrorCode("ValidationError");
+                throw e;
+            }
+            return new DescribeStacksResult().withStacks(new Stack().withStackName(stackName).withStackStatus(status));
+        }
+    }
+
+    @Test
+    public void testDeletedStackCompletesDeleteWait() throws Exception {
+        CloudFormationHandler cf = new CloudFormationHandler();
+        cf.stackStatuses.put("gone", "DELETE_IN_PROGRESS");
+        GeneralAwsHelper helper = new DefaultGeneralAwsHelper(Stubs.context(
+                Stubs.stub(AmazonCloudFormation.class, cf, "describeStacks")));
+        AwsWaiter waiter = new AwsWaiter.Builder(helper)
+                .withMinInterval(5, TimeUnit.MILLISECONDS)
+                .withMaxInterval(20, TimeUnit.MILLISECONDS)
+                .build();
+
+        ListenableFuture<Stack> deleted = waiter.waitForStackStatus("gone", "DELETE_COMPLETE");
+        Thread.sleep(30);
+        Assert.assertFalse(deleted.isDone());
+
+        cf.stackStatuses.remove("gone");
+        Assert.assertNull(deleted.get(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testWaitTimesOut() throws Exception {
+        StubHandler stub = new StubHandler();
+        AwsWaiter waiter = builder(stub).withTimeout(50, TimeUnit.MILLISECONDS).build();
+        try {
+            waiter.waitForImageAvailable("ami-missing").get(5, TimeUnit.SECONDS);
+            Assert.fail();
+        } catch (ExecutionException e) {
+            Assert.assertTrue(e.getCause().getMessage().contains("Timed out"));
+        }
+    }
+}
@@ -0,0 +1,85 @@
+package io.magnum.awscommons;
+
+import io.magnum.awscommons.retry.AbortException;
+import io.magnum.awscommons.retry.AdaptiveRateLimiter;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.amazonaws.AmazonServiceException;
+
+public class BulkTerminatorTest {
+
+    /**
+     * Accepts every termination, except of "i-gone", which Auto Scaling does
+     * not know, and "i-bad", which fails; the peak number of calls in flight
+     * is recorded.
+     */
+    private static class StubHandler implements InvocationHandler {
+        final AtomicInteger inFlight = new AtomicInteger();
+        final AtomicInteger maxInFlight = new AtomicInteger();
+        final AtomicInteger calls = new AtomicInteger();
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            calls.incrementAndGet();
+            int current = inFlight.incrementAndGet();
+            try {
+                while (true) {
+                    int max = maxInFlight.get();
+                    if (current <= max || maxInFlight.compareAndSet(max, current)) {
+                        break;
+                    }
+                }
+                Thread.sleep(5);
+                if (args[0].equals("i-gone")) {
+                    AmazonServiceException e = new AmazonServiceException(
+                            AutoScalingTerminationArbiter.INSTANCE_NOT_FOUND_MESSAGE_PREFIX + " i-gone");
+                    e.setErrorCode(AutoScalingTerminationArbiter.INSTANCE_NOT_FOUND_ERROR_CODE);
+                    // as a retrying helper reports a non-retryable failure
+                    throw new AbortException("unhandled exception raised in task", e);
+                } else if (args[0].equals("i-bad")) {
+                    AmazonServiceException e = new AmazonServiceException("Internal failure");
+                    e.setErrorCode("InternalFailure");
+                    throw e;
+                }
+                return null;
+            } finally {
+                inFlight.decrementAndGet();
+            }
+        }
+    }
+
+    @Test
+    public void testOutcomesPerInstance() throws Exception {
+        StubHandler stub = new StubHandler();
+        GeneralAwsHelper helper = Stubs.stub(GeneralAwsHelper.class, stub, "terminateViaAutoScaling");
+        AdaptiveRateLimiter rateLimiter = new AdaptiveRateLimiter.Builder("test").withRates(1000, 1, 1000).build();
+        BulkTerminator terminator = new BulkTerminator.Builder(helper).withRateLimiter(rateLimiter).build();
+
+        List<String> ids = new ArrayList<String>();
+        for (int i = 0; i < 30; i++) {
+            ids.add("i-" + i);
+        }
+        ids.addAll(Arrays.asList("i-gone", "i-bad", "i-0"));
+        Map<String, BulkTerminator.Outcome> outcomes = terminator.terminateViaAutoScaling(ids);
+
+        Assert.assertEquals(32, outcomes.size());
+        Assert.assertEquals(32, stub.calls.get());
+        Assert.assertEquals("i-0", outcomes.keySet().iterator().next());
+        Assert.assertEquals(BulkTerminator.Outcome.Status.TERMINATING, outcomes.get("i-29").getStatus());
+        Assert.assertEquals(BulkTerminator.Outcome.Status.NOT_FOUND, outcomes.get("i-gone").getStatus());
+        Assert.assertTrue(outcomes.get("i-gone").isSuccess());
+        Assert.assertEquals(BulkTerminator.Outcome.Status.FAILED, outcomes.get("i-bad").getStatus());
+        Assert.assertTrue(outcomes.get("i-bad").getException() instanceof AmazonServiceException);
+        Assert.assertTrue("max in flight: " + stub.maxInFlight.get(), stub.maxInFlight.get() > 1);
+    }
+}
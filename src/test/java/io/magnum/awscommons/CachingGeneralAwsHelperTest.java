@@ -0,0 +1,158 @@
+package io.magnum.awscommons;
+
+import io.magnum.awscommons.CachingGeneralAwsHelper.CachedType;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.amazonaws.services.autoscaling.model.AutoScalingGroup;
+import com.amazonaws.services.cloudformation.model.StackResource;
+import com.amazonaws.services.ec2.model.Instance;
+
+public class CachingGeneralAwsHelperTest {
+
+    /**
+     * Answers describe calls with fresh objects and counts the calls made to
+     * each method.
+     */
+    private static class StubHandler implements InvocationHandler {
+        final ConcurrentMap<String, AtomicInteger> calls = new ConcurrentHashMap<String, AtomicInteger>();
+
+        int calls(String methodName) {
+            AtomicInteger count = calls.get(methodName);
+            return count == null ? 0 : count.get();
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) {
+            calls.putIfAbsent(method.getName(), new AtomicInteger());
+            calls.get(method.getName()).incrementAndGet();
+            if (method.getName().equals("getAutoScalingGroup")) {
+                return new AutoScalingGroup().withAutoScalingGroupName((String) args[0]);
+            } else if (method.getName().equals("getInstanceById")) {
+                return new Instance().withInstanceId((String) args[0]);
+            } else if (method.getName().equals("getInstancesById")) {
+                Map<String, Instance> result = new HashMap<String, Instance>();
+                for (Object id : (Collection<?>) args[0]) {
+                    if (!"i-gone".equals(id)) {
+                        result.put((String) id, new Instance().withInstanceId((String) id));
+                    }
+                }
+                return result;
+            } else if (method.getName().equals("getCloudFormationStackResources")) {
+                return Arrays.asList(new StackResource()
+                        .withResourceType(AwsResourceType.AUTOSCALING_GROUP.getTypeString())
+                        .withPhysicalResourceId("asg-1"));
+            }
+            return null;
+        }
+    }
+
+    private StubHandler stub;
+    private GeneralAwsHelper delegate;
+
+    @Before
+    public void setUp() {
+        stub = new StubHandler();
+        delegate = (GeneralAwsHelper) Proxy.newProxyInstance(GeneralAwsHelper.class.getClassLoader(),
+                new Class<?>[] { GeneralAwsHelper.class }, stub);
+    }
+
+    @Test
+    public void testHitsAndExpiry() throws Exception {
+        CachingGeneralAwsHelper helper = new CachingGeneralAwsHelper.Builder(delegate)
+                .withTtl(CachedType.AUTO_SCALING_GROUP, 50, TimeUnit.MILLISECONDS)
+                .build();
+        AutoScalingGroup first = helper.getAutoScalingGroup("asg-1");
+        Assert.assertSame(first, helper.getAutoScalingGroup("asg-1"));
+        Assert.assertEquals(1, stub.calls("getAutoScalingGroup"));
+
+        Thread.sleep(80);
+        Assert.assertNotSame(first, helper.getAutoScalingGroup("asg-1"));
+        Assert.assertEquals(2, stub.calls("getAutoScalingGroup"));
+
+        CacheStats stats = helper.getCacheStats(CachedType.AUTO_SCALING_GROUP);
+        Assert.assertEquals(1, stats.getHits());
+        Assert.assertEquals(2, stats.getMisses());
+        Assert.assertEquals(1.0 / 3, stats.getHitRate(), 1e-9);
+    }
+
+    @Test
+    public void testSizeBound() throws Exception {
+        CachingGeneralAwsHelper helper = new CachingGeneralAwsHelper.Builder(delegate)
+                .withMaxEntries(CachedType.AUTO_SCALING_GROUP, 2)
+                .build();
+        helper.getAutoScalingGroup("a");
+        helper.getAutoScalingGroup("b");
+        helper.getAutoScalingGroup("a");
+        helper.getAutoScalingGroup("c");
+        helper.getAutoScalingGroup("a");
+        helper.getAutoScalingGroup("b");
+        // b was least recently used when c arrived
+        Assert.assertEquals(4, stub.calls("getAutoScalingGroup"));
+        CacheStats stats = helper.getCacheStats(CachedType.AUTO_SCALING_GROUP);
+        Assert.assertEquals(2, stats.getSize());
+        Assert.assertEquals(2, stats.getEvictions());
+    }
+
+    @Test
+    public void testStackMutationInvalidatesStackAndResources() throws Exception {
+        CachingGeneralAwsHelper helper = new CachingGeneralAwsHelper.Builder(delegate).build();
+        helper.getCloudFormationStackAutoScalingGroup("stack");
+        helper.getCloudFormationStackAutoScalingGroup("stack");
+        Assert.assertEquals(1, stub.calls("getCloudFormationStackResources"));
+        Assert.assertEquals(1, stub.calls("getAutoScalingGroup"));
+
+        helper.updateStack("stack", "{}", null);
+        helper.getCloudFormationStackAutoScalingGroup("stack");
+        Assert.assertEquals(2, stub.calls("getCloudFormationStackResources"));
+        Assert.assertEquals(2, stub.calls("getAutoScalingGroup"));
+        Assert.assertEquals(1, helper.getCacheStats(CachedType.AUTO_SCALING_GROUP).getInvalidations());
+    }
+
+    @Test
+    public void testInstanceInvalidation() throws Exception {
+        CachingGeneralAwsHelper helper = new CachingGeneralAwsHelper.Builder(delegate).build();
+        helper.getInstanceById("i-1");
+        helper.getAutoScalingGroup("asg-1");
+        helper.putTags(Collections.singleton("i-1"), Collections.singletonMap("k", "v"));
+        helper.getInstanceById("i-1");
+        Assert.assertEquals(2, stub.calls("getInstanceById"));
+
+        helper.terminateViaAutoScaling("i-1");
+        helper.getInstanceById("i-1");
+        helper.getAutoScalingGroup("asg-1");
+        Assert.assertEquals(3, stub.calls("getInstanceById"));
+        Assert.assertEquals(2, stub.calls("getAutoScalingGroup"));
+    }
+
+    @Test
+    public void testGetInstancesByIdFetchesOnlyMisses() throws Exception {
+        CachingGeneralAwsHelper helper = new CachingGeneralAwsHelper.Builder(delegate).build();
+        helper.getInstanceById("i-1");
+        Map<String, Instance> result = helper.getInstancesById(Arrays.asList("i-1", "i-2", "i-gone"));
+        Assert.assertEquals(2, result.size());
+        Assert.assertEquals(1, stub.calls("getInstancesById"));
+
+        // i-gone is remembered as missing
+        result = helper.getInstancesById(Arrays.asList("i-1", "i-2", "i-gone"));
+        Assert.assertEquals(2, result.size());
+        Assert.assertEquals(1, stub.calls("getInstancesById"));
+        Assert.assertNull(helper.getInstanceById("i-gone"));
+        Assert.assertEquals(1, stub.calls("getInstanceById"));
+    }
+}
@@ -0,0 +1,120 @@
+package io.magnum.awscommons;
+
+import io.magnum.awscommons.retry.AbortException;
+import io.magnum.awscommons.retry.FixedBackoffStrategy;
+import io.magnum.awscommons.retry.RetryHelper;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.cloudformation.model.DescribeStacksResult;
+import com.amazonaws.services.cloudformation.model.Stack;
+
+public class CloudFormationStackIteratorTest {
+
+    /**
+     * Serves three pages of two stacks, "s0" to "s5", whose statuses
+     * alternate between CREATE_COMPLETE and DELETE_FAILED. The page whose
+     * token is failOn always fails; the one whose token is failOnceOn fails
+     * the first time only.
+     */
+    private static class StubHandler implements InvocationHandler {
+        final List<String> tokens = new CopyOnWriteArrayList<String>();
+        volatile String failOn;
+        volatile String failOnceOn;
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            String token = (String) args[0];
+            tokens.add(String.valueOf(token));
+            if (token != null && token.equals(failOn)) {
+                throw new AbortException("page " + token + " failed");
+            }
+            if (token != null && token.equals(failOnceOn)) {
+                failOnceOn = null;
+                throw new AmazonClientException("page " + token + " failed");
+            }
+            int page = token == null ? 0 : Integer.parseInt(token);
+            List<Stack> stacks = new ArrayList<Stack>();
+            for (int i = page * 2; i < page * 2 + 2; i++) {
+                stacks.add(new Stack().withStackName("s" + i)
+                        .withStackStatus(i % 2 == 0 ? "CREATE_COMPLETE" : "DELETE_FAILED"));
+            }
+            return new DescribeStacksResult().withStacks(stacks)
+                    .withNextToken(page < 2 ? String.valueOf(page + 1) : null);
+        }
+    }
+
+    private static GeneralAwsHelper proxy(StubHandler handler) {
+        return Stubs.stub(GeneralAwsHelper.class, handler, "getCloudFormationStacksPage");
+    }
+
+    private static List<String> names(CloudFormationStackIterator stacks) {
+        List<String> names = new ArrayList<String>();
+        while (stacks.hasNext()) {
+            names.add(stacks.next().getStackName());
+        }
+        return names;
+    }
+
+    @Test
+    public void testIteratesEveryPage() throws Exception {
+        StubHandler stub = new StubHandler();
+        CloudFormationStackIterator stacks = new CloudFormationStackIterator(proxy(stub));
+
+        Assert.assertEquals("s0", stacks.next().getStackName());
+        // the second page is fetched while the first is processed
+        for (int i = 0; i < 100 && stub.tokens.size() < 2; i++) {
+            Thread.sleep(10);
+        }
+        Assert.assertEquals(Arrays.asList("null", "1"), stub.tokens);
+
+        Assert.assertEquals(Arrays.asList("s1", "s2", "s3", "s4", "s5"), names(stacks));
+        Assert.assertEquals(Arrays.asList("null", "1", "2"), stub.tokens);
+    }
+
+    @Test
+    public void testFiltersByStatus() throws Exception {
+        CloudFormationStackIterator stacks = new CloudFormationStackIterator(proxy(new StubHandler()),
+                "CREATE_COMPLETE");
+        Assert.assertEquals(Arrays.asList("s0", "s2", "s4"), names(stacks));
+    }
+
+    @Test
+    public void testFailedPageIsThrown() throws Exception {
+        StubHandler stub = new StubHandler();
+        stub.failOn = "1";
+        CloudFormationStackIterator stacks = new CloudFormationStackIterator(proxy(stub));
+        stacks.next();
+        stacks.next();
+        try {
+            stacks.hasNext();
+            Assert.fail();
+        } catch (AmazonClientException e) {
+            Assert.assertTrue(e.getCause() instanceof AbortException);
+        }
+        Assert.assertFalse(stacks.hasNext());
+    }
+
+    @Test
+    public void testListStacksRetriesOnlyTheFailedPage() throws Exception {
+        StubHandler stub = new StubHandler();
+        stub.failOnceOn = "1";
+        GeneralAwsHelper helper = RetryingGeneralAwsHelperFactory.newInstance(proxy(stub), new RetryHelper.Builder()
+                .withMaxTries(3)
+                .withBackoff(new FixedBackoffStrategy(10, TimeUnit.MILLISECONDS))
+                .build());
+
+        Assert.assertEquals(6, CloudFormationStackIterator.listStacks(helper).size());
+        Assert.assertEquals(Arrays.asList("null", "1", "1", "2"), stub.tokens);
+    }
+}
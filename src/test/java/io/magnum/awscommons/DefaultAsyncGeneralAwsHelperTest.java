@@ -0,0 +1,293 @@
+package io.magnum.awscommons;
+
+import io.magnum.awscommons.concurrent.ListenableFuture;
+import io.magnum.awscommons.concurrent.SettableFuture;
+import io.magnum.awscommons.retry.AbortException;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.AmazonWebServiceRequest;
+import com.amazonaws.handlers.AsyncHandler;
+import com.amazonaws.services.autoscaling.AmazonAutoScalingAsync;
+import com.amazonaws.services.autoscaling.model.AutoScalingGroup;
+import com.amazonaws.services.autoscaling.model.DescribeAutoScalingGroupsRequest;
+import com.amazonaws.services.autoscaling.model.DescribeAutoScalingGroupsResult;
+import com.amazonaws.services.cloudformation.AmazonCloudFormationAsync;
+import com.amazonaws.services.cloudformation.model.DescribeStackResourcesResult;
+import com.amazonaws.services.cloudformation.model.StackResource;
+import com.amazonaws.services.ec2.AmazonEC2Async;
+import com.amazonaws.services.ec2.model.DescribeInstancesRequest;
+import com.amazonaws.services.ec2.model.DescribeInstancesResult;
+import com.amazonaws.services.ec2.model.Instance;
+import com.amazonaws.services.ec2.model.Reservation;
+import com.amazonaws.services.ec2.model.TerminateInstancesRequest;
+
+public class DefaultAsyncGeneralAwsHelperTest {
+
+    private static final int PAGE_SIZE = 30;
+
+    /**
+     * Answers an async client's requests at once on the calling thread,
+     * through both the SDK callback and the returned future, as the SDK's
+     * clients do once a request completes.
+     */
+    private abstract static class AsyncClientHandler implements InvocationHandler {
+        final List<AmazonWebServiceRequest> requests = new CopyOnWriteArrayList<AmazonWebServiceRequest>();
+
+        abstract Object answer(AmazonWebServiceRequest request) throws Exception;
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            AmazonWebServiceRequest request = (AmazonWebServiceRequest) args[0];
+            AsyncHandler<AmazonWebServiceRequest, Object> handler = (AsyncHandler<AmazonWebServiceRequest, Object>) args[1];
+            requests.add(request);
+            SettableFuture<Object> future = new SettableFuture<Object>();
+            Object result;
+            try {
+                result = answer(request);
+            } catch (Exception e) {
+                handler.onError(e);
+                future.setException(e);
+                return future;
+            }
+            handler.onSuccess(request, result);
+            future.set(result);
+            return future;
+        }
+    }
+
+    /**
+     * Describes the instances named by filter, {@value #PAGE_SIZE} to a page,
+     * and fails requests naming "i-fail".
+     */
+    private static class Ec2Handler extends AsyncClientHandler {
+        @Override
+        Object answer(AmazonWebServiceRequest request) {
+            DescribeInstancesRequest describe = (DescribeInstancesRequest) request;
+            List<String> ids = describe.getFilters().get(0).getValues();
+            if (ids.contains("i-fail")) {
+                throw new AmazonServiceException("describe failed");
+            }
+            int from = describe.getNextToken() == null ? 0 : Integer.parseInt(describe.getNextToken());
+            int to = Math.min(from + PAGE_SIZE, ids.size());
+            List<Instance> instances = new ArrayList<Instance>();
+            for (String id : ids.subList(from, to)) {
+                instances.add(new Instance().withInstanceId(id));
+            }
+            return new DescribeInstancesResult()
+                    .withReservations(new Reservation().withInstances(instances))
+                    .withNextToken(to < ids.size() ? String.valueOf(to) : null);
+        }
+    }
+
+    /**
+     * Describes groups named "asg-N"; listing all returns "asg-0" to "asg-4",
+     * two to a page.
+     */
+    private static class AutoScalingHandler extends AsyncClientHandler {
+        @Override
+        Object answer(AmazonWebServiceRequest request) {
+            DescribeAutoScalingGroupsRequest describe = (DescribeAutoScalingGroupsRequest) request;
+            if (!describe.getAutoScalingGroupNames().isEmpty()) {
+                List<AutoScalingGroup> groups = new ArrayList<AutoScalingGroup>();
+                for (String name : describe.getAutoScalingGroupNames()) {
+                    groups.add(new AutoScalingGroup().withAutoScalingGroupName(name));
+                }
+                return new DescribeAutoScalingGroupsResult().withAutoScalingGroups(groups);
+            }
+            int from = describe.getNextToken() == null ? 0 : Integer.parseInt(describe.getNextToken());
+            int to = Math.min(from + 2, 5);
+            List<AutoScalingGroup> groups = new ArrayList<AutoScalingGroup>();
+            for (int i = from; i < to; i++) {
+                groups.add(new AutoScalingGroup().withAutoScalingGroupName("asg-" + i));
+            }
+            return new DescribeAutoScalingGroupsResult().withAutoScalingGroups(groups)
+                    .withNextToken(to < 5 ? String.valueOf(to) : null);
+        }
+    }
+
+    /**
+     * Describes every stack as having the given resources, or fails if there
+     * are none.
+     */
+    private static class CloudFormationHandler extends AsyncClientHandler {
+        private final List<StackResource> resources;
+
+        CloudFormationHandler(StackResource... resources) {
+            this.resources = Arrays.asList(resources);
+        }
+
+        @Override
+        Object answer(AmazonWebServiceRequest request) {
+            if (resources.isEmpty()) {
+                throw new AmazonServiceException("describe stack resources failed");
+            }
+            return new DescribeStackResourcesResult().withStackResources(resources);
+        }
+    }
+
+    private static DefaultAsyncGeneralAwsHelper helper(AsyncClientHandler ec2, AsyncClientHandler autoScaling,
+            AsyncClientHandler cloudFormation) {
+        return new DefaultAsyncGeneralAwsHelper(Stubs.context(
+                Stubs.stub(AmazonEC2Async.class, ec2, "describeInstancesAsync"),
+                Stubs.stub(AmazonAutoScalingAsync.class, autoScaling, "describeAutoScalingGroupsAsync"),
+                Stubs.stub(AmazonCloudFormationAsync.class, cloudFormation, "describeStackResourcesAsync")));
+    }
+
+    private static StackResource resource(AwsResourceType type, String physicalResourceId) {
+        return new StackResource().withResourceType(type.getTypeString()).withPhysicalResourceId(physicalResourceId);
+    }
+
+    private static Throwable failure(ListenableFuture<?> future) throws InterruptedException {
+        try {
+            future.get();
+            throw new AssertionError("expected the future to fail");
+        } catch (ExecutionException e) {
+            return e.getCause();
+        }
+    }
+
+    @Test
+    public void testInstancesAreChunkedPagedAndMerged() throws Exception {
+        Ec2Handler ec2 = new Ec2Handler();
+        List<String> ids = new ArrayList<String>();
+        for (int i = 0; i < 250; i++) {
+            ids.add("i-" + i);
+        }
+        ids.addAll(ids.subList(0, 50));
+        Map<String, Instance> instances = helper(ec2, null, null).getInstancesById(ids).get();
+
+        Assert.assertEquals(250, instances.size());
+        for (String id : ids) {
+            Assert.assertEquals(id, instances.get(id).getInstanceId());
+        }
+        Set<List<String>> chunks = new HashSet<List<String>>();
+        for (AmazonWebServiceRequest request : ec2.requests) {
+            chunks.add(((DescribeInstancesRequest) request).getFilters().get(0).getValues());
+        }
+        Assert.assertEquals(3, chunks.size());
+        Assert.assertEquals(4 + 4 + 2, ec2.requests.size());
+    }
+
+    @Test
+    public void testNoInstanceIdsMakesNoRequest() throws Exception {
+        Ec2Handler ec2 = new Ec2Handler();
+        Assert.assertTrue(helper(ec2, null, null).getInstancesById(Collections.<String>emptyList()).get().isEmpty());
+        Assert.assertTrue(ec2.requests.isEmpty());
+    }
+
+    @Test
+    public void testFailedChunkFailsLookup() throws Exception {
+        List<String> ids = new ArrayList<String>();
+        for (int i = 0; i < 150; i++) {
+            ids.add("i-" + i);
+        }
+        ids.add("i-fail");
+        Throwable failure = failure(helper(new Ec2Handler(), null, null).getInstancesById(ids));
+        Assert.assertTrue(failure instanceof AmazonServiceException);
+    }
+
+    /**
+     * Answers terminate requests as {@link DefaultGeneralAwsHelperTest.TerminateHandler}
+     * does.
+     */
+    private static class TerminateHandler extends AsyncClientHandler {
+        private final DefaultGeneralAwsHelperTest.TerminateHandler sync = new DefaultGeneralAwsHelperTest.TerminateHandler();
+
+        @Override
+        Object answer(AmazonWebServiceRequest request) throws Exception {
+            try {
+                return sync.invoke(null, null, new Object[] { request });
+            } catch (Throwable e) {
+                throw (Exception) e;
+            }
+        }
+    }
+
+    @Test
+    public void testUnknownInstancesAreTakenAsTerminated() throws Exception {
+        TerminateHandler ec2 = new TerminateHandler();
+        List<String> ids = new ArrayList<String>();
+        for (int i = 0; i < 1500; i++) {
+            ids.add(i == 1200 ? "i-gone-0" : "i-" + i);
+        }
+        Map<String, Ec2InstanceState> states = new DefaultAsyncGeneralAwsHelper(Stubs.context(
+                Stubs.stub(AmazonEC2Async.class, ec2, "terminateInstancesAsync"))).terminateInstancesViaEc2(ids).get();
+
+        Assert.assertEquals(1500, states.size());
+        Assert.assertEquals(Ec2InstanceState.SHUTTING_DOWN, states.get("i-0"));
+        Assert.assertEquals(Ec2InstanceState.TERMINATED, states.get("i-gone-0"));
+        Assert.assertEquals(3, ec2.requests.size());
+        Assert.assertEquals(499, ((TerminateInstancesRequest) ec2.requests.get(2)).getInstanceIds().size());
+    }
+
+    @Test
+    public void testAutoScalingGroupsArePaged() throws Exception {
+        AutoScalingHandler autoScaling = new AutoScalingHandler();
+        List<AutoScalingGroup> groups = helper(null, autoScaling, null).getAutoScalingGroups().get();
+
+        Assert.assertEquals(5, groups.size());
+        Assert.assertEquals("asg-4", groups.get(4).getAutoScalingGroupName());
+        Assert.assertEquals(3, autoScaling.requests.size());
+    }
+
+    @Test
+    public void testStackAutoScalingGroupIsLookedUp() throws Exception {
+        AutoScalingHandler autoScaling = new AutoScalingHandler();
+        AutoScalingGroup group = helper(null, autoScaling, new CloudFormationHandler(
+                resource(AwsResourceType.ELASTIC_LOAD_BALANCER, "elb-0"),
+                resource(AwsResourceType.AUTOSCALING_GROUP, "asg-7")))
+                .getCloudFormationStackAutoScalingGroup("stack").get();
+
+        Assert.assertEquals("asg-7", group.getAutoScalingGroupName());
+        Assert.assertEquals(1, autoScaling.requests.size());
+    }
+
+    @Test
+    public void testStackWithoutAutoScalingGroupHasNone() throws Exception {
+        AutoScalingHandler autoScaling = new AutoScalingHandler();
+        AutoScalingGroup group = helper(null, autoScaling, new CloudFormationHandler(
+                resource(AwsResourceType.ELASTIC_LOAD_BALANCER, "elb-0")))
+                .getCloudFormationStackAutoScalingGroup("stack").get();
+
+        Assert.assertNull(group);
+        Assert.assertTrue(autoScaling.requests.isEmpty());
+    }
+
+    @Test
+    public void testStackWithSeveralAutoScalingGroupsFails() throws Exception {
+        AutoScalingHandler autoScaling = new AutoScalingHandler();
+        Throwable failure = failure(helper(null, autoScaling, new CloudFormationHandler(
+                resource(AwsResourceType.AUTOSCALING_GROUP, "asg-1"),
+                resource(AwsResourceType.AUTOSCALING_GROUP, "asg-2")))
+                .getCloudFormationStackAutoScalingGroup("stack"));
+
+        Assert.assertTrue(failure instanceof AbortException);
+        Assert.assertTrue(autoScaling.requests.isEmpty());
+    }
+
+    @Test
+    public void testFailedResourceLookupFailsStackLookup() throws Exception {
+        AutoScalingHandler autoScaling = new AutoScalingHandler();
+        Throwable failure = failure(helper(null, autoScaling, new CloudFormationHandler())
+                .getCloudFormationStackAutoScalingGroup("stack"));
+
+        Assert.assertTrue(failure instanceof AmazonServiceException);
+        Assert.assertTrue(autoScaling.requests.isEmpty());
+    }
+}
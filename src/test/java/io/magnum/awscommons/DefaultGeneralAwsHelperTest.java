@@ -0,0 +1,278 @@
+package io.magnum.awscommons;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.services.ec2.AmazonEC2;
+import com.amazonaws.services.ec2.model.DescribeImagesRequest;
+import com.amazonaws.services.ec2.model.DescribeImagesResult;
+import com.amazonaws.services.ec2.model.DescribeInstancesRequest;
+import com.amazonaws.services.ec2.model.DescribeInstancesResult;
+import com.amazonaws.services.ec2.model.Filter;
+import com.amazonaws.services.ec2.model.Image;
+import com.amazonaws.services.ec2.model.Instance;
+import com.amazonaws.services.ec2.model.InstanceState;
+import com.amazonaws.services.ec2.model.InstanceStateChange;
+import com.amazonaws.services.ec2.model.Reservation;
+import com.amazonaws.services.ec2.model.TerminateInstancesRequest;
+import com.amazonaws.services.ec2.model.TerminateInstancesResult;
+
+public class DefaultGeneralAwsHelperTest {
+
+    private static final int PAGE_SIZE = 30;
+
+    /**
+     * Describes the instances named, {@value #PAGE_SIZE} to a page. As EC2
+     * does, fails requests naming an unknown "i-new-" instance by ID, and
+     * leaves it out when it is named by filter. Fails requests naming an
+     * "i-fail-" instance, and blocks those naming an "i-slow-" instance until
+     * interrupted, which, if awaitSlow is set, the request naming "i-0" waits
+     * to start.
+     */
+    private static class Ec2Handler implements InvocationHandler {
+        final List<List<String>> requests = new CopyOnWriteArrayList<List<String>>();
+        final CountDownLatch slowStarted = new CountDownLatch(1);
+        final CountDownLatch slowInterrupted = new CountDownLatch(1);
+        volatile boolean awaitSlow;
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            DescribeInstancesRequest request = (DescribeInstancesRequest) args[0];
+            List<String> ids = new ArrayList<String>(request.getInstanceIds());
+            for (String id : ids) {
+                if (id.startsWith("i-new-")) {
+                    AmazonServiceException e = new AmazonServiceException("The instance ID '" + id + "' does not exist");
+                    e.setErrorCode("InvalidInstanceID.NotFound");
+                    throw e;
+                }
+            }
+            for (Filter filter : request.getFilters()) {
+                Assert.assertEquals("instance-id", filter.getName());
+                for (String id : filter.getValues()) {
+                    if (!id.startsWith("i-new-")) {
+                        ids.add(id);
+                    }
+                }
+            }
+            requests.add(ids);
+            if (ids.contains("i-fail-0")) {
+                throw new AmazonServiceException("describe failed");
+            }
+            if (ids.contains("i-slow-0")) {
+                slowStarted.countDown();
+                try {
+                    Thread.sleep(TimeUnit.SECONDS.toMillis(10));
+                } catch (InterruptedException e) {
+                    slowInterrupted.countDown();
+                }
+                throw new AmazonClientException("interrupted");
+            }
+            if (awaitSlow && ids.contains("i-0")) {
+                // the calling thread's chunk; let the slow chunk start first
+                slowStarted.await(5, TimeUnit.SECONDS);
+            }
+
+            int from = request.getNextToken() == null ? 0 : Integer.parseInt(request.getNextToken());
+            int to = Math.min(from + PAGE_SIZE, ids.size());
+            List<Instance> instances = new ArrayList<Instance>();
+            for (String id : ids.subList(from, to)) {
+                instances.add(new Instance().withInstanceId(id));
+            }
+            return new DescribeInstancesResult()
+                    .withReservations(new Reservation().withInstances(instances))
+                    .withNextToken(to < ids.size() ? String.valueOf(to) : null);
+        }
+    }
+
+    private static DefaultGeneralAwsHelper helper(Ec2Handler handler, ExecutorService executor) {
+        AmazonEC2 ec2 = Stubs.stub(AmazonEC2.class, handler, "describeInstances");
+        return new DefaultGeneralAwsHelper(Stubs.context(ec2), executor);
+    }
+
+    private static List<String> ids(String prefix, int count) {
+        List<String> ids = new ArrayList<String>();
+        for (int i = 0; i < count; i++) {
+            ids.add(prefix + i);
+        }
+        return ids;
+    }
+
+    @Test
+    public void testNoIdsMakesNoRequest() {
+        Ec2Handler handler = new Ec2Handler();
+        Map<String, Instance> instances = helper(handler, null).getInstancesById(Collections.<String>emptyList());
+
+        Assert.assertTrue(instances.isEmpty());
+        Assert.assertTrue(handler.requests.isEmpty());
+    }
+
+    @Test
+    public void testUnknownInstancesAreLeftOut() {
+        Ec2Handler handler = new Ec2Handler();
+        Map<String, Instance> instances = helper(handler, null).getInstancesById(Arrays.asList("i-1", "i-new-1"));
+
+        Assert.assertEquals(Collections.singleton("i-1"), instances.keySet());
+        Assert.assertNull(helper(handler, null).getInstanceById("i-new-2"));
+    }
+
+    @Test
+    public void testUnknownImagesAreLeftOut() {
+        AmazonEC2 ec2 = Stubs.stub(AmazonEC2.class, new InvocationHandler() {
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) {
+                DescribeImagesRequest request = (DescribeImagesRequest) args[0];
+                if (!request.getImageIds().isEmpty()) {
+                    AmazonServiceException e = new AmazonServiceException("The image IDs do not exist");
+                    e.setErrorCode("InvalidAMIID.NotFound");
+                    throw e;
+                }
+                List<Image> images = new ArrayList<Image>();
+                for (Filter filter : request.getFilters()) {
+                    Assert.assertEquals("image-id", filter.getName());
+                    for (String id : filter.getValues()) {
+                        if (!id.startsWith("ami-new-")) {
+                            images.add(new Image().withImageId(id).withState("available"));
+                        }
+                    }
+                }
+                return new DescribeImagesResult().withImages(images);
+            }
+        }, "describeImages");
+        Map<String, String> states = new DefaultGeneralAwsHelper(Stubs.context(ec2))
+                .getImageStates(Arrays.asList("ami-1", "ami-new-1"));
+
+        Assert.assertEquals(Collections.singletonMap("ami-1", "available"), states);
+    }
+
+    @Test
+    public void testLookupIsChunkedDeduplicatedAndPaged() {
+        Ec2Handler handler = new Ec2Handler();
+        List<String> ids = ids("i-", 250);
+        ids.addAll(ids("i-", 50));
+        Map<String, Instance> instances = helper(handler, null).getInstancesById(ids);
+
+        Assert.assertEquals(250, instances.size());
+        for (String id : ids) {
+            Assert.assertEquals(id, instances.get(id).getInstanceId());
+        }
+        // three chunks, each asked for once per page
+        Set<List<String>> chunks = new HashSet<List<String>>(handler.requests);
+        Assert.assertEquals(3, chunks.size());
+        Set<String> requested = new HashSet<String>();
+        for (List<String> chunk : chunks) {
+            Assert.assertTrue(chunk.size() <= DefaultGeneralAwsHelper.MAX_INSTANCE_IDS_PER_REQUEST);
+            requested.addAll(chunk);
+        }
+        Assert.assertEquals(250, requested.size());
+        Assert.assertEquals(4 + 4 + 2, handler.requests.size());
+    }
+
+    @Test
+    public void testFailedChunkFailsLookupAndCancelsTheRest() throws Exception {
+        Ec2Handler handler = new Ec2Handler();
+        handler.awaitSlow = true;
+        List<String> ids = ids("i-", 100);
+        ids.addAll(ids("i-fail-", 100));
+        ids.addAll(ids("i-slow-", 100));
+        ExecutorService executor = Executors.newCachedThreadPool();
+        try {
+            helper(handler, executor).getInstancesById(ids);
+            Assert.fail("expected the failed chunk's exception");
+        } catch (AmazonServiceException e) {
+            Assert.assertTrue(e.getMessage(), e.getMessage().contains("describe failed"));
+        } finally {
+            executor.shutdown();
+        }
+        Assert.assertTrue(handler.slowInterrupted.await(5, TimeUnit.SECONDS));
+    }
+
+    /**
+     * Terminates the instances named unless any is an "i-gone-" instance, in
+     * which case, as EC2 does, fails the request naming every such instance.
+     */
+    static class TerminateHandler implements InvocationHandler {
+        final List<List<String>> requests = new CopyOnWriteArrayList<List<String>>();
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) {
+            List<String> ids = ((TerminateInstancesRequest) args[0]).getInstanceIds();
+            requests.add(ids);
+            List<String> gone = new ArrayList<String>();
+            for (String id : ids) {
+                if (id.startsWith("i-gone-")) {
+                    gone.add(id);
+                }
+            }
+            if (!gone.isEmpty()) {
+                String list = gone.toString();
+                AmazonServiceException e = new AmazonServiceException("The instance IDs '"
+                        + list.substring(1, list.length() - 1) + "' do not exist");
+                e.setErrorCode("InvalidInstanceID.NotFound");
+                throw e;
+            }
+            List<InstanceStateChange> changes = new ArrayList<InstanceStateChange>();
+            for (String id : ids) {
+                changes.add(new InstanceStateChange().withInstanceId(id)
+                        .withCurrentState(new InstanceState().withName("shutting-down")));
+            }
+            return new TerminateInstancesResult().withTerminatingInstances(changes);
+        }
+    }
+
+    @Test
+    public void testUnknownInstancesAreTakenAsTerminated() {
+        TerminateHandler handler = new TerminateHandler();
+        List<String> ids = ids("i-", 1500);
+        ids.set(10, "i-gone-0");
+        ids.set(1200, "i-gone-1");
+        ids.set(1300, "i-gone-2");
+        Map<String, Ec2InstanceState> states = new DefaultGeneralAwsHelper(Stubs.context(
+                Stubs.stub(AmazonEC2.class, handler, "terminateInstances"))).terminateInstancesViaEc2(ids);
+
+        Assert.assertEquals(1500, states.size());
+        Assert.assertEquals(Ec2InstanceState.SHUTTING_DOWN, states.get("i-0"));
+        Assert.assertEquals(Ec2InstanceState.SHUTTING_DOWN, states.get("i-1499"));
+        for (String id : Arrays.asList("i-gone-0", "i-gone-1", "i-gone-2")) {
+            Assert.assertEquals(Ec2InstanceState.TERMINATED, states.get(id));
+        }
+        // each chunk is sent again once, without its unknown instances
+        Assert.assertEquals(4, handler.requests.size());
+        Assert.assertEquals(999, handler.requests.get(1).size());
+        Assert.assertEquals(498, handler.requests.get(3).size());
+    }
+
+    @Test
+    public void testOtherTerminateFailuresAreThrown() {
+        AmazonEC2 ec2 = Stubs.stub(AmazonEC2.class, new InvocationHandler() {
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) {
+                AmazonServiceException e = new AmazonServiceException("The instance 'i-1' may not be terminated");
+                e.setErrorCode("OperationNotPermitted");
+                throw e;
+            }
+        }, "terminateInstances");
+        try {
+            new DefaultGeneralAwsHelper(Stubs.context(ec2)).terminateInstancesViaEc2(Arrays.asList("i-1"));
+            Assert.fail("expected the request's exception");
+        } catch (AmazonServiceException e) {
+            Assert.assertEquals("OperationNotPermitted", e.getErrorCode());
+        }
+    }
+}
@@ -0,0 +1,180 @@
+package io.magnum.awscommons;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.amazonaws.services.ec2.model.DescribeInstancesResult;
+import com.amazonaws.services.ec2.model.Instance;
+import com.amazonaws.services.ec2.model.InstanceState;
+import com.amazonaws.services.ec2.model.Placement;
+import com.amazonaws.services.ec2.model.Reservation;
+import com.amazonaws.services.ec2.model.Tag;
+
+public class FleetInventoryTest {
+
+    /**
+     * Answers getInstancesPage with the instances set, two to a page, the
+     * token being the index of the page's first instance. If hold is set, the
+     * next call for the first page clears it, counts down entered and waits
+     * for hold to be counted down before answering.
+     */
+    private static class StubHandler implements InvocationHandler {
+        final List<String> tokens = new CopyOnWriteArrayList<String>();
+        final CountDownLatch entered = new CountDownLatch(1);
+        volatile List<Instance> instances = Collections.emptyList();
+        volatile CountDownLatch hold;
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            String token = (String) args[0];
+            tokens.add(String.valueOf(token));
+            List<Instance> listed = instances;
+            CountDownLatch release = hold;
+            if (token == null && release != null) {
+                hold = null;
+                entered.countDown();
+                Assert.assertTrue(release.await(5, TimeUnit.SECONDS));
+            }
+            int from = token == null ? 0 : Integer.parseInt(token);
+            int to = Math.min(from + 2, listed.size());
+            return new DescribeInstancesResult()
+                    .withReservations(new Reservation().withInstances(listed.subList(from, to)))
+                    .withNextToken(to < listed.size() ? String.valueOf(to) : null);
+        }
+    }
+
+    private static FleetInventory inventory(StubHandler handler) {
+        GeneralAwsHelper helper = Stubs.stub(GeneralAwsHelper.class, handler, "getInstancesPage");
+        return new FleetInventory.Builder(helper).withRefreshInterval(10, TimeUnit.MILLISECONDS).build();
+    }
+
+    private static Instance instance(String id, Ec2InstanceState state, String zone, String imageId,
+            String... tagKeysAndValues) {
+        List<Tag> tags = new ArrayList<Tag>();
+        for (int i = 0; i < tagKeysAndValues.length; i += 2) {
+            tags.add(new Tag(tagKeysAndValues[i], tagKeysAndValues[i + 1]));
+        }
+        return new Instance().withInstanceId(id)
+                .withState(new InstanceState().withName(state.getStateString()))
+                .withPlacement(new Placement(zone))
+                .withImageId(imageId)
+                .withTags(tags);
+    }
+
+    private static Set<String> ids(List<Instance> instances) {
+        Set<String> ids = new HashSet<String>();
+        for (Instance instance : instances) {
+            ids.add(instance.getInstanceId());
+        }
+        return ids;
+    }
+
+    @Test
+    public void testIndexes() throws Exception {
+        StubHandler stub = new StubHandler();
+        stub.instances = Arrays.asList(
+                instance("i-1", Ec2InstanceState.RUNNING, "us-east-1a", "ami-1", "role", "web",
+                        FleetInventory.AUTO_SCALING_GROUP_TAG, "web-asg"),
+                instance("i-2", Ec2InstanceState.RUNNING, "us-east-1b", "ami-1", "role", "web",
+                        FleetInventory.AUTO_SCALING_GROUP_TAG, "web-asg"),
+                instance("i-3", Ec2InstanceState.STOPPED, "us-east-1a", "ami-2", "role", "db"),
+                instance("i-4", Ec2InstanceState.RUNNING, "us-east-1a", "ami-2"));
+        FleetInventory inventory = inventory(stub);
+        Assert.assertEquals(0, inventory.getSnapshot().size());
+
+        FleetInventory.Snapshot snapshot = inventory.refresh();
+        Assert.assertSame(snapshot, inventory.getSnapshot());
+        Assert.assertEquals(Arrays.asList("null", "2"), stub.tokens);
+        Assert.assertEquals(4, snapshot.size());
+        Assert.assertEquals("ami-2", snapshot.getInstance("i-3").getImageId());
+        Assert.assertNull(snapshot.getInstance("i-5"));
+        Assert.assertEquals(ids("i-1", "i-2", "i-4"), ids(snapshot.getInstancesInState(Ec2InstanceState.RUNNING)));
+        Assert.assertTrue(snapshot.getInstancesInState(Ec2InstanceState.PENDING).isEmpty());
+        Assert.assertEquals(ids("i-1", "i-2"), ids(snapshot.getInstancesWithTag("role", "web")));
+        Assert.assertEquals(ids("i-1", "i-2", "i-3"), ids(snapshot.getInstancesWithTag("role", null)));
+        Assert.assertEquals(ids("i-1", "i-3", "i-4"), ids(snapshot.getInstancesInZone("us-east-1a")));
+        Assert.assertEquals(ids("i-3", "i-4"), ids(snapshot.getInstancesOfImage("ami-2")));
+        Assert.assertEquals(ids("i-1", "i-2"), ids(snapshot.getInstancesOfAutoScalingGroup("web-asg")));
+
+        Map<String, String> tags = new HashMap<String, String>();
+        tags.put("role", "web");
+        Assert.assertEquals(ids("i-1"), ids(snapshot.find(Ec2InstanceState.RUNNING, "us-east-1a", tags)));
+        Assert.assertEquals(ids("i-1", "i-4"), ids(snapshot.find(Ec2InstanceState.RUNNING, "us-east-1a", null)));
+        Assert.assertEquals(4, snapshot.find(null, null, null).size());
+    }
+
+    @Test
+    public void testRefreshSwapsVersions() throws Exception {
+        StubHandler stub = new StubHandler();
+        stub.instances = Arrays.asList(instance("i-1", Ec2InstanceState.PENDING, "us-east-1a", "ami-1"));
+        FleetInventory inventory = inventory(stub);
+        FleetInventory.Snapshot first = inventory.refresh();
+
+        stub.instances = Arrays.asList(instance("i-1", Ec2InstanceState.RUNNING, "us-east-1a", "ami-1"),
+                instance("i-2", Ec2InstanceState.PENDING, "us-east-1a", "ami-1"));
+        inventory.start();
+        try {
+            long deadline = System.currentTimeMillis() + 5000;
+            while (inventory.getSnapshot().size() != 2 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(5);
+            }
+        } finally {
+            inventory.close();
+        }
+        FleetInventory.Snapshot second = inventory.getSnapshot();
+        Assert.assertEquals(2, second.size());
+        Assert.assertEquals(ids("i-1"), ids(second.getInstancesInState(Ec2InstanceState.RUNNING)));
+
+        // the earlier version is untouched
+        Assert.assertEquals(1, first.size());
+        Assert.assertEquals(ids("i-1"), ids(first.getInstancesInState(Ec2InstanceState.PENDING)));
+        Assert.assertTrue(first.getInstancesInState(Ec2InstanceState.RUNNING).isEmpty());
+    }
+
+    @Test
+    public void testLaterStartedRefreshWinsWhateverOrderTheyFinishIn() throws Exception {
+        final StubHandler stub = new StubHandler();
+        stub.instances = Arrays.asList(instance("i-1", Ec2InstanceState.PENDING, "us-east-1a", "ami-1"));
+        CountDownLatch hold = new CountDownLatch(1);
+        stub.hold = hold;
+        final FleetInventory inventory = inventory(stub);
+        FutureTask<FleetInventory.Snapshot> earlier = new FutureTask<FleetInventory.Snapshot>(
+                new Callable<FleetInventory.Snapshot>() {
+                    @Override
+                    public FleetInventory.Snapshot call() throws Exception {
+                        return inventory.refresh();
+                    }
+                });
+        new Thread(earlier).start();
+        Assert.assertTrue(stub.entered.await(5, TimeUnit.SECONDS));
+
+        // starts after the held refresh, but finishes first
+        stub.instances = Arrays.asList(instance("i-1", Ec2InstanceState.RUNNING, "us-east-1a", "ami-1"));
+        FleetInventory.Snapshot later = inventory.refresh();
+        hold.countDown();
+
+        Assert.assertSame(later, earlier.get(5, TimeUnit.SECONDS));
+        Assert.assertSame(later, inventory.getSnapshot());
+        Assert.assertEquals(ids("i-1"), ids(later.getInstancesInState(Ec2InstanceState.RUNNING)));
+    }
+
+    private static Set<String> ids(String... ids) {
+        return new HashSet<String>(Arrays.asList(ids));
+    }
+}
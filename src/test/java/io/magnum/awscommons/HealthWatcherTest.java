@@ -0,0 +1,145 @@
+package io.magnum.awscommons;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class HealthWatcherTest {
+
+    /**
+     * Answers getLoadBalancerInstanceHealth with the states set for each load
+     * balancer, counting the calls.
+     */
+    private static class StubHandler implements InvocationHandler {
+        final Map<String, Map<String, ElasticLoadBalancingInstanceState>> states = new ConcurrentHashMap<String, Map<String, ElasticLoadBalancingInstanceState>>();
+        final AtomicInteger calls = new AtomicInteger();
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            Assert.assertNull(args[1]);
+            calls.incrementAndGet();
+            Map<String, ElasticLoadBalancingInstanceState> lbStates = states.get(args[0]);
+            if (lbStates == null) {
+                throw new IllegalStateException("no such load balancer: " + args[0]);
+            }
+            return new HashMap<String, ElasticLoadBalancingInstanceState>(lbStates);
+        }
+
+        void set(String loadBalancerName, Object... idsAndStates) {
+            Map<String, ElasticLoadBalancingInstanceState> lbStates = new HashMap<String, ElasticLoadBalancingInstanceState>();
+            for (int i = 0; i < idsAndStates.length; i += 2) {
+                lbStates.put((String) idsAndStates[i], (ElasticLoadBalancingInstanceState) idsAndStates[i + 1]);
+            }
+            states.put(loadBalancerName, lbStates);
+        }
+    }
+
+    private static class RecordingListener implements HealthWatcher.Listener {
+        final BlockingQueue<String> transitions = new LinkedBlockingQueue<String>();
+
+        @Override
+        public void onTransition(String loadBalancerName, String instanceId,
+                ElasticLoadBalancingInstanceState previous, ElasticLoadBalancingInstanceState current) {
+            transitions.add(loadBalancerName + " " + instanceId + " " + previous + "->" + current);
+        }
+
+        String next() throws InterruptedException {
+            return transitions.poll(5, TimeUnit.SECONDS);
+        }
+    }
+
+    private static HealthWatcher watcher(StubHandler handler) {
+        GeneralAwsHelper helper = Stubs.stub(GeneralAwsHelper.class, handler, "getLoadBalancerInstanceHealth");
+        return new HealthWatcher.Builder(helper).withInterval(10, TimeUnit.MILLISECONDS).build();
+    }
+
+    @Test
+    public void testOnlyTransitionsAreReported() throws Exception {
+        StubHandler stub = new StubHandler();
+        stub.set("lb", "i-1", ElasticLoadBalancingInstanceState.OutOfService);
+        HealthWatcher watcher = watcher(stub);
+        RecordingListener listener = new RecordingListener();
+        watcher.subscribe("lb", listener);
+        try {
+            Assert.assertEquals("lb i-1 null->OutOfService", listener.next());
+
+            stub.set("lb", "i-1", ElasticLoadBalancingInstanceState.InService);
+            Assert.assertEquals("lb i-1 OutOfService->InService", listener.next());
+            Assert.assertEquals(ElasticLoadBalancingInstanceState.InService, watcher.getStates("lb").get("i-1"));
+
+            stub.set("lb");
+            Assert.assertEquals("lb i-1 InService->null", listener.next());
+
+            // the states no longer change, so several polls report nothing
+            int calls = stub.calls.get();
+            while (stub.calls.get() < calls + 3) {
+                Thread.sleep(5);
+            }
+            Assert.assertTrue(listener.transitions.isEmpty());
+        } finally {
+            watcher.close();
+        }
+    }
+
+    @Test
+    public void testSubscribersShareOnePoll() throws Exception {
+        StubHandler stub = new StubHandler();
+        HealthWatcher watcher = watcher(stub);
+        RecordingListener first = new RecordingListener();
+        RecordingListener second = new RecordingListener();
+        // polls fail until the load balancer exists, so both see its first states
+        watcher.subscribe("lb", first);
+        watcher.subscribe("lb", second);
+        try {
+            stub.set("lb", "i-1", ElasticLoadBalancingInstanceState.InService);
+            Assert.assertEquals("lb i-1 null->InService", first.next());
+            Assert.assertEquals("lb i-1 null->InService", second.next());
+
+            watcher.unsubscribe("lb", first);
+            stub.set("lb", "i-1", ElasticLoadBalancingInstanceState.Unknown);
+            Assert.assertEquals("lb i-1 InService->Unknown", second.next());
+            Assert.assertTrue(first.transitions.isEmpty());
+
+            watcher.unsubscribe("lb", second);
+            Assert.assertEquals(Collections.emptyMap(), watcher.getStates("lb"));
+        } finally {
+            watcher.close();
+        }
+    }
+
+    @Test
+    public void testFailuresAreContained() throws Exception {
+        StubHandler stub = new StubHandler();
+        HealthWatcher watcher = watcher(stub);
+        RecordingListener listener = new RecordingListener();
+        watcher.subscribe("lb", new HealthWatcher.Listener() {
+            @Override
+            public void onTransition(String loadBalancerName, String instanceId,
+                    ElasticLoadBalancingInstanceState previous, ElasticLoadBalancingInstanceState current) {
+                throw new IllegalStateException("listener failed");
+            }
+        });
+        watcher.subscribe("lb", listener);
+        // a load balancer which cannot be polled does not stop the others
+        watcher.subscribe("missing", listener);
+        try {
+            stub.set("lb", "i-1", ElasticLoadBalancingInstanceState.InService);
+            Assert.assertEquals("lb i-1 null->InService", listener.next());
+            stub.set("lb", "i-1", ElasticLoadBalancingInstanceState.OutOfService);
+            Assert.assertEquals("lb i-1 InService->OutOfService", listener.next());
+            Assert.assertTrue(watcher.getStates("missing").isEmpty());
+        } finally {
+            watcher.close();
+        }
+    }
+}
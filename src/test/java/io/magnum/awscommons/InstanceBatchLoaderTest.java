@@ -0,0 +1,129 @@
+package io.magnum.awscommons;
+
+import io.magnum.awscommons.retry.AbortException;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.amazonaws.services.ec2.model.Instance;
+
+public class InstanceBatchLoaderTest {
+
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+    private final List<Integer> batchSizes = Collections.synchronizedList(new ArrayList<Integer>());
+    private volatile boolean failing;
+
+    private final GeneralAwsHelper delegate = (GeneralAwsHelper) Proxy.newProxyInstance(
+            GeneralAwsHelper.class.getClassLoader(), new Class<?>[] { GeneralAwsHelper.class },
+            new InvocationHandler() {
+                @Override
+                public Object invoke(Object proxy, Method method, Object[] args) throws AbortException {
+                    Assert.assertEquals("getInstancesById", method.getName());
+                    Collection<?> ids = (Collection<?>) args[0];
+                    batchSizes.add(ids.size());
+                    if (failing) {
+                        throw new AbortException("down");
+                    }
+                    Map<String, Instance> result = new HashMap<String, Instance>();
+                    for (Object id : ids) {
+                        if (!"i-gone".equals(id)) {
+                            result.put((String) id, new Instance().withInstanceId((String) id));
+                        }
+                    }
+                    return result;
+                }
+            });
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    private List<Future<Instance>> lookUpConcurrently(final InstanceBatchLoader loader, List<String> ids) {
+        List<Future<Instance>> futures = new ArrayList<Future<Instance>>();
+        for (final String id : ids) {
+            futures.add(executor.submit(new Callable<Instance>() {
+                @Override
+                public Instance call() throws AbortException {
+                    return loader.getInstanceById(id);
+                }
+            }));
+        }
+        return futures;
+    }
+
+    private static List<String> ids(int count) {
+        List<String> ids = new ArrayList<String>();
+        for (int i = 0; i < count; i++) {
+            ids.add("i-" + i);
+        }
+        return ids;
+    }
+
+    @Test
+    public void testLookupsWithinWindowShareOneCall() throws Exception {
+        InstanceBatchLoader loader = new InstanceBatchLoader.Builder(delegate)
+                .withWindow(500, TimeUnit.MILLISECONDS)
+                .withMaxBatchSize(10)
+                .build();
+        List<String> ids = ids(9);
+        ids.add("i-gone");
+        List<Future<Instance>> futures = lookUpConcurrently(loader, ids);
+        for (int i = 0; i < 9; i++) {
+            Assert.assertEquals(ids.get(i), futures.get(i).get(5, TimeUnit.SECONDS).getInstanceId());
+        }
+        Assert.assertNull(futures.get(9).get(5, TimeUnit.SECONDS));
+        // the tenth ID filled the batch, so it was sent before the window closed
+        Assert.assertEquals(Collections.singletonList(10), batchSizes);
+        Assert.assertEquals(1, loader.getBatches());
+    }
+
+    @Test
+    public void testMaxBatchSize() throws Exception {
+        InstanceBatchLoader loader = new InstanceBatchLoader.Builder(delegate)
+                .withWindow(50, TimeUnit.MILLISECONDS)
+                .withMaxBatchSize(4)
+                .build();
+        List<Future<Instance>> futures = lookUpConcurrently(loader, ids(10));
+        for (Future<Instance> future : futures) {
+            Assert.assertNotNull(future.get(5, TimeUnit.SECONDS));
+        }
+        Assert.assertTrue(batchSizes.size() >= 3);
+        for (int size : batchSizes) {
+            Assert.assertTrue(size <= 4);
+        }
+    }
+
+    @Test
+    public void testFailureReachesEveryCaller() throws Exception {
+        failing = true;
+        InstanceBatchLoader loader = new InstanceBatchLoader.Builder(delegate)
+                .withWindow(100, TimeUnit.MILLISECONDS)
+                .build();
+        for (Future<Instance> future : lookUpConcurrently(loader, ids(3))) {
+            try {
+                future.get(5, TimeUnit.SECONDS);
+                Assert.fail();
+            } catch (ExecutionException e) {
+                Assert.assertTrue(e.getCause() instanceof AbortException);
+            }
+        }
+    }
+}
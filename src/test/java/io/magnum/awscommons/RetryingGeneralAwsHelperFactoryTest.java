@@ -0,0 +1,81 @@
+package io.magnum.awscommons;
+
+import io.magnum.awscommons.retry.FixedBackoffStrategy;
+import io.magnum.awscommons.retry.RetryFailedException;
+import io.magnum.awscommons.retry.RetryHelper;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.amazonaws.AmazonClientException;
+
+public class RetryingGeneralAwsHelperFactoryTest {
+
+    /**
+     * Fails every call with a retryable exception, counting them.
+     */
+    private static class FailingHandler implements InvocationHandler {
+        final AtomicInteger calls = new AtomicInteger();
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) {
+            calls.incrementAndGet();
+            throw new AmazonClientException("connection reset");
+        }
+    }
+
+    private static GeneralAwsHelper retrying(FailingHandler handler, RetryHelper retryHelper) {
+        GeneralAwsHelper helper = Stubs.stub(GeneralAwsHelper.class, handler, "getInstancesPage", "putTags",
+                "createStack");
+        return RetryingGeneralAwsHelperFactory.newInstance(helper, retryHelper);
+    }
+
+    @Test
+    public void testChangesAreTriedAtMostMutationMaxTries() throws Exception {
+        FailingHandler handler = new FailingHandler();
+        RetryHelper retryForever = new RetryHelper.Builder()
+                .withBackoff(new FixedBackoffStrategy(1, TimeUnit.MILLISECONDS))
+                .build();
+        GeneralAwsHelper helper = retrying(handler, retryForever);
+        try {
+            helper.putTags(Collections.singleton("i-1"), Collections.singletonMap("k", "v"));
+            Assert.fail("expected the change to be given up");
+        } catch (RetryFailedException e) {
+            // expected
+        }
+        Assert.assertEquals(GeneralAwsHelper.MUTATION_MAX_TRIES, handler.calls.get());
+
+        handler.calls.set(0);
+        try {
+            helper.createStack("stack", "{}", null);
+            Assert.fail("expected the change to be given up");
+        } catch (RetryFailedException e) {
+            // expected
+        }
+        Assert.assertEquals(GeneralAwsHelper.MUTATION_MAX_TRIES, handler.calls.get());
+    }
+
+    @Test
+    public void testDescribesGiveUpAtTheirDeadline() throws Exception {
+        FailingHandler handler = new FailingHandler();
+        // a retry after this long would miss the describe deadline
+        RetryHelper slowRetries = new RetryHelper.Builder()
+                .withBackoff(new FixedBackoffStrategy(GeneralAwsHelper.DESCRIBE_DEADLINE_MILLIS, TimeUnit.MILLISECONDS))
+                .build();
+        long startNanos = System.nanoTime();
+        try {
+            retrying(handler, slowRetries).getInstancesPage(null);
+            Assert.fail("expected the describe to be given up");
+        } catch (RetryFailedException e) {
+            // expected
+        }
+        Assert.assertEquals(1, handler.calls.get());
+        Assert.assertTrue(System.nanoTime() - startNanos < TimeUnit.SECONDS.toNanos(5));
+    }
+}
@@ -0,0 +1,143 @@
+package io.magnum.awscommons;
+
+import io.magnum.awscommons.retry.AbortException;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.amazonaws.services.autoscaling.model.AutoScalingGroup;
+import com.amazonaws.services.cloudformation.model.DescribeStacksResult;
+import com.amazonaws.services.cloudformation.model.Stack;
+import com.amazonaws.services.cloudformation.model.StackResource;
+import com.amazonaws.services.elasticloadbalancing.model.LoadBalancerDescription;
+
+public class StackHelperTest {
+
+    /**
+     * Serves <code>stackCount</code> stacks, each with an auto scaling group
+     * and a load balancer, and counts the calls made to each method.
+     */
+    private static class StubHandler implements InvocationHandler {
+        final int stackCount;
+        final ConcurrentMap<String, AtomicInteger> calls = new ConcurrentHashMap<String, AtomicInteger>();
+        volatile String missingGroup;
+
+        StubHandler(int stackCount) {
+            this.stackCount = stackCount;
+        }
+
+        int calls(String methodName) {
+            AtomicInteger count = calls.get(methodName);
+            return count == null ? 0 : count.get();
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) {
+            String name = method.getName();
+            calls.putIfAbsent(name, new AtomicInteger());
+            calls.get(name).incrementAndGet();
+            if (name.equals("getCloudFormationStacksPage")) {
+                List<Stack> stacks = new ArrayList<Stack>();
+                for (int i = 0; i < stackCount; i++) {
+                    stacks.add(new Stack().withStackName("stack-" + i));
+                }
+                return new DescribeStacksResult().withStacks(stacks);
+            } else if (name.equals("getCloudFormationStackTemplate")) {
+                return "{\"stack\": \"" + args[0] + "\"}";
+            } else if (name.equals("getCloudFormationStackResources")) {
+                return Arrays.asList(
+                        new StackResource().withResourceType(AwsResourceType.AUTOSCALING_GROUP.getTypeString())
+                                .withPhysicalResourceId(args[0] + "-asg"),
+                        new StackResource().withResourceType(AwsResourceType.ELASTIC_LOAD_BALANCER.getTypeString())
+                                .withPhysicalResourceId(args[0] + "-elb"),
+                        new StackResource().withResourceType("AWS::SQS::Queue").withPhysicalResourceId("queue"));
+            } else if (name.equals("getAutoScalingGroupsByName")) {
+                Map<String, AutoScalingGroup> groups = new HashMap<String, AutoScalingGroup>();
+                for (Object groupName : (Collection<?>) args[0]) {
+                    if (!groupName.equals(missingGroup)) {
+                        groups.put((String) groupName, new AutoScalingGroup().withAutoScalingGroupName((String) groupName));
+                    }
+                }
+                return groups;
+            } else if (name.equals("getElasticLoadBalancersByName")) {
+                Map<String, LoadBalancerDescription> loadBalancers = new HashMap<String, LoadBalancerDescription>();
+                for (Object lbName : (Collection<?>) args[0]) {
+                    loadBalancers.put((String) lbName, new LoadBalancerDescription().withLoadBalancerName((String) lbName));
+                }
+                return loadBalancers;
+            }
+            throw new UnsupportedOperationException(name);
+        }
+    }
+
+    private static GeneralAwsHelper proxy(StubHandler handler) {
+        return (GeneralAwsHelper) Proxy.newProxyInstance(GeneralAwsHelper.class.getClassLoader(),
+                new Class<?>[] { GeneralAwsHelper.class }, handler);
+    }
+
+    @Test
+    public void testGetStacksBatchesGroupsAndLoadBalancers() throws Exception {
+        StubHandler stub = new StubHandler(50);
+        List<HD4ARStack> stacks = new StackHelper(proxy(stub)).getStacks();
+
+        Assert.assertEquals(50, stacks.size());
+        Assert.assertEquals(0, stub.calls("getCloudFormationStackTemplate"));
+        for (int i = 0; i < stacks.size(); i++) {
+            HD4ARStack stack = stacks.get(i);
+            String name = "stack-" + i;
+            Assert.assertEquals(name, stack.getCloudFormationStack().getStackName());
+            Assert.assertEquals("{\"stack\": \"" + name + "\"}", stack.getTemplate());
+            Assert.assertEquals(3, stack.getStackResources().size());
+            Assert.assertEquals(name + "-asg", stack.getAutoScalingGroup().getAutoScalingGroupName());
+            Assert.assertEquals(name + "-elb", stack.getLoadBalancer().getLoadBalancerName());
+        }
+        Assert.assertEquals(50, stub.calls("getCloudFormationStackTemplate"));
+        Assert.assertEquals(1, stub.calls("getAutoScalingGroupsByName"));
+        Assert.assertEquals(1, stub.calls("getElasticLoadBalancersByName"));
+        Assert.assertEquals(0, stub.calls("getAutoScalingGroup"));
+    }
+
+    @Test
+    public void testTemplateIsFetchedOnce() throws Exception {
+        StubHandler stub = new StubHandler(1);
+        HD4ARStack stack = new StackHelper(proxy(stub)).getStacks().get(0);
+
+        Assert.assertEquals("{\"stack\": \"stack-0\"}", stack.getTemplate());
+        Assert.assertEquals("{\"stack\": \"stack-0\"}", stack.getTemplate());
+        Assert.assertEquals(1, stub.calls("getCloudFormationStackTemplate"));
+    }
+
+    @Test
+    public void testTemplatesCanBeSkipped() throws Exception {
+        StubHandler stub = new StubHandler(2);
+        List<HD4ARStack> stacks = new StackHelper(proxy(stub), null, false).getStacks();
+
+        Assert.assertNull(stacks.get(0).getTemplate());
+        Assert.assertEquals(0, stub.calls("getCloudFormationStackTemplate"));
+    }
+
+    @Test
+    public void testMissingGroupAborts() throws Exception {
+        StubHandler stub = new StubHandler(3);
+        stub.missingGroup = "stack-1-asg";
+        try {
+            new StackHelper(proxy(stub)).getStacks();
+            Assert.fail();
+        } catch (AbortException e) {
+            Assert.assertTrue(e.getMessage().contains("stack-1-asg"));
+        }
+    }
+}
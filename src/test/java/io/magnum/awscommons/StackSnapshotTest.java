@@ -0,0 +1,210 @@
+package io.magnum.awscommons;
+
+import java.io.File;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.amazonaws.services.autoscaling.model.AutoScalingGroup;
+import com.amazonaws.services.autoscaling.model.Instance;
+import com.amazonaws.services.cloudformation.model.DescribeStacksResult;
+import com.amazonaws.services.cloudformation.model.Stack;
+import com.amazonaws.services.cloudformation.model.StackResource;
+import com.amazonaws.services.elasticloadbalancing.model.LoadBalancerDescription;
+
+public class StackSnapshotTest {
+
+    /**
+     * Serves the stacks in <code>stacks</code>, each with an auto scaling
+     * group holding the instances in <code>groupInstances</code>, and counts
+     * the templates fetched for each stack.
+     */
+    private static class StubHandler implements InvocationHandler {
+        final Map<String, Stack> stacks = new TreeMap<String, Stack>();
+        final Map<String, List<String>> groupInstances = new HashMap<String, List<String>>();
+        final ConcurrentMap<String, AtomicInteger> templates = new ConcurrentHashMap<String, AtomicInteger>();
+        final AtomicInteger resourceCalls = new AtomicInteger();
+
+        void putStack(String name, String status, Date lastUpdated) {
+            stacks.put(name, new Stack().withStackName(name).withStackId("id-" + name)
+                    .withStackStatus(status).withLastUpdatedTime(lastUpdated));
+        }
+
+        int templates(String stackName) {
+            AtomicInteger count = templates.get(stackName);
+            return count == null ? 0 : count.get();
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) {
+            String name = method.getName();
+            if (name.equals("getCloudFormationStacksPage")) {
+                List<Stack> result = new ArrayList<Stack>();
+                for (Stack stack : stacks.values()) {
+                    // a fresh copy, as each call would return
+                    result.add(new Stack().withStackName(stack.getStackName()).withStackId(stack.getStackId())
+                            .withStackStatus(stack.getStackStatus()).withLastUpdatedTime(stack.getLastUpdatedTime()));
+                }
+                return new DescribeStacksResult().withStacks(result);
+            } else if (name.equals("getCloudFormationStackTemplate")) {
+                templates.putIfAbsent((String) args[0], new AtomicInteger());
+                templates.get(args[0]).incrementAndGet();
+                return "{}";
+            } else if (name.equals("getCloudFormationStackResources")) {
+                resourceCalls.incrementAndGet();
+                return Arrays.asList(
+                        new StackResource().withResourceType(AwsResourceType.AUTOSCALING_GROUP.getTypeString())
+                                .withPhysicalResourceId(args[0] + "-asg"),
+                        new StackResource().withResourceType(AwsResourceType.ELASTIC_LOAD_BALANCER.getTypeString())
+                                .withPhysicalResourceId(args[0] + "-elb"));
+            } else if (name.equals("getAutoScalingGroupsByName")) {
+                Map<String, AutoScalingGroup> groups = new HashMap<String, AutoScalingGroup>();
+                for (Object groupName : (Collection<?>) args[0]) {
+                    List<Instance> instances = new ArrayList<Instance>();
+                    List<String> ids = groupInstances.get(groupName);
+                    for (String id : ids == null ? Collections.<String>emptyList() : ids) {
+                        instances.add(new Instance().withInstanceId(id));
+                    }
+                    groups.put((String) groupName, new AutoScalingGroup()
+                            .withAutoScalingGroupName((String) groupName).withInstances(instances));
+                }
+                return groups;
+            } else if (name.equals("getElasticLoadBalancersByName")) {
+                Map<String, LoadBalancerDescription> loadBalancers = new HashMap<String, LoadBalancerDescription>();
+                for (Object lbName : (Collection<?>) args[0]) {
+                    loadBalancers.put((String) lbName, new LoadBalancerDescription().withLoadBalancerName((String) lbName));
+                }
+                return loadBalancers;
+            }
+            throw new UnsupportedOperationException(name);
+        }
+    }
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static StackSnapshot snapshot(StubHandler handler) {
+        return snapshot(handler, null);
+    }
+
+    private static StackSnapshot snapshot(StubHandler handler, File file) {
+        GeneralAwsHelper helper = (GeneralAwsHelper) Proxy.newProxyInstance(GeneralAwsHelper.class.getClassLoader(),
+                new Class<?>[] { GeneralAwsHelper.class }, handler);
+        return new StackSnapshot(new StackHelper(helper), file);
+    }
+
+    private static void readTemplates(StackSnapshot snapshot) {
+        for (HD4ARStack stack : snapshot.getStacks()) {
+            Assert.assertEquals("{}", stack.getTemplate());
+        }
+    }
+
+    private static List<String> names(List<HD4ARStack> stacks) {
+        List<String> names = new ArrayList<String>();
+        for (HD4ARStack stack : stacks) {
+            names.add(stack.getCloudFormationStack().getStackName());
+        }
+        return names;
+    }
+
+    @Test
+    public void testRefreshFetchesOnlyChangedStacks() throws Exception {
+        StubHandler stub = new StubHandler();
+        stub.putStack("a", "CREATE_COMPLETE", null);
+        stub.putStack("b", "CREATE_COMPLETE", null);
+        stub.putStack("c", "CREATE_COMPLETE", null);
+        StackSnapshot snapshot = snapshot(stub);
+
+        StackSnapshot.Diff diff = snapshot.refresh();
+        Assert.assertEquals(Arrays.asList("a", "b", "c"), names(diff.getAdded()));
+        Assert.assertTrue(diff.getRemoved().isEmpty());
+        Assert.assertTrue(diff.getChanged().isEmpty());
+        readTemplates(snapshot);
+
+        Assert.assertTrue(snapshot.refresh().isEmpty());
+        readTemplates(snapshot);
+        Assert.assertEquals(1, stub.templates("a"));
+
+        stub.putStack("b", "UPDATE_COMPLETE", new Date(1000L));
+        stub.stacks.remove("c");
+        stub.putStack("d", "CREATE_COMPLETE", null);
+        diff = snapshot.refresh();
+        Assert.assertEquals(Arrays.asList("d"), names(diff.getAdded()));
+        Assert.assertEquals(Arrays.asList("c"), names(diff.getRemoved()));
+        Assert.assertEquals(Arrays.asList("b"), names(diff.getChanged()));
+
+        readTemplates(snapshot);
+        Assert.assertEquals(1, stub.templates("a"));
+        Assert.assertEquals(2, stub.templates("b"));
+        Assert.assertEquals(1, stub.templates("d"));
+        Assert.assertEquals(Arrays.asList("a", "b", "d"), names(snapshot.getStacks()));
+        Assert.assertNull(snapshot.getStack("c"));
+    }
+
+    @Test
+    public void testGroupMembershipChangeIsReported() throws Exception {
+        StubHandler stub = new StubHandler();
+        stub.putStack("a", "CREATE_COMPLETE", null);
+        stub.groupInstances.put("a-asg", Arrays.asList("i-1"));
+        StackSnapshot snapshot = snapshot(stub);
+        snapshot.refresh();
+
+        stub.groupInstances.put("a-asg", Arrays.asList("i-1", "i-2"));
+        StackSnapshot.Diff diff = snapshot.refresh();
+        Assert.assertEquals(Arrays.asList("a"), names(diff.getChanged()));
+        Assert.assertEquals(2, snapshot.getStack("a").getAutoScalingGroup().getInstances().size());
+    }
+
+    @Test
+    public void testWarmStartFromFile() throws Exception {
+        File file = new File(folder.getRoot(), "stacks.json.gz");
+        StubHandler stub = new StubHandler();
+        stub.putStack("a", "CREATE_COMPLETE", null);
+        stub.putStack("b", "UPDATE_COMPLETE", new Date(1000L));
+        stub.groupInstances.put("a-asg", Arrays.asList("i-1", "i-2"));
+        snapshot(stub, file).refresh();
+        Assert.assertEquals(2, stub.resourceCalls.get());
+
+        StackSnapshot restarted = snapshot(stub, file);
+        Assert.assertTrue(restarted.load());
+        Assert.assertEquals(Arrays.asList("a", "b"), names(restarted.getStacks()));
+        HD4ARStack a = restarted.getStack("a");
+        Assert.assertEquals("id-a", a.getCloudFormationStack().getStackId());
+        Assert.assertEquals(2, a.getStackResources().size());
+        Assert.assertEquals("a-asg", a.getAutoScalingGroup().getAutoScalingGroupName());
+        Assert.assertEquals(2, a.getAutoScalingGroup().getInstances().size());
+        Assert.assertEquals("a-elb", a.getLoadBalancer().getLoadBalancerName());
+        Assert.assertEquals(new Date(1000L), restarted.getStack("b").getCloudFormationStack().getLastUpdatedTime());
+        Assert.assertEquals(2, stub.resourceCalls.get());
+
+        Assert.assertTrue(restarted.refreshInBackground().get().isEmpty());
+        Assert.assertEquals(2, stub.resourceCalls.get());
+        Assert.assertEquals("{}", restarted.getStack("a").getTemplate());
+    }
+
+    @Test
+    public void testUnreadableFileIsIgnored() throws Exception {
+        File file = folder.newFile("stacks.json.gz");
+        StackSnapshot snapshot = snapshot(new StubHandler(), file);
+        Assert.assertFalse(snapshot.load());
+        Assert.assertFalse(snapshot(new StubHandler(), new File(folder.getRoot(), "missing")).load());
+        Assert.assertTrue(snapshot.getStacks().isEmpty());
+    }
+}
@@ -0,0 +1,108 @@
+package io.magnum.awscommons;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+
+import com.amazonaws.auth.AWSCredentialsProvider;
+import com.amazonaws.auth.BasicAWSCredentials;
+import com.amazonaws.internal.StaticCredentialsProvider;
+import com.amazonaws.services.autoscaling.AmazonAutoScaling;
+import com.amazonaws.services.autoscaling.AmazonAutoScalingAsync;
+import com.amazonaws.services.cloudformation.AmazonCloudFormation;
+import com.amazonaws.services.cloudformation.AmazonCloudFormationAsync;
+import com.amazonaws.services.ec2.AmazonEC2;
+import com.amazonaws.services.ec2.AmazonEC2Async;
+import com.amazonaws.services.elasticloadbalancing.AmazonElasticLoadBalancing;
+import com.amazonaws.services.elasticloadbalancing.AmazonElasticLoadBalancingAsync;
+
+/**
+ * Stubs shared by the tests of this package.
+ */
+final class Stubs {
+
+    private Stubs() {
+    }
+
+    /**
+     * Returns a stub of the interface whose named methods are answered by
+     * the handler; any other method throws
+     * {@link UnsupportedOperationException}, so a test fails loudly when the
+     * code under test makes a call it did not expect.
+     */
+    static <T> T stub(final Class<T> type, final InvocationHandler handler, final String... methodNames) {
+        final List<String> answered = Arrays.asList(methodNames);
+        return type.cast(Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[] { type },
+                new InvocationHandler() {
+                    @Override
+                    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                        if (!answered.contains(method.getName())) {
+                            throw new UnsupportedOperationException(method.getName());
+                        }
+                        return handler.invoke(proxy, method, args);
+                    }
+                }));
+    }
+
+    /**
+     * Returns a context whose clients are the given stubs, each returned for
+     * the client interfaces it implements. Asking for any other client
+     * throws {@link UnsupportedOperationException}.
+     */
+    static AwsContext context(final Object... clients) {
+        AWSCredentialsProvider provider = new StaticCredentialsProvider(new BasicAWSCredentials("key", "secret"));
+        return new AwsContext(AwsRegion.us_east_1, provider, new AwsClientFactory(AwsRegion.us_east_1, provider) {
+            @Override
+            public AmazonEC2 newEc2Client() {
+                return client(AmazonEC2.class, clients);
+            }
+
+            @Override
+            public AmazonCloudFormation newCloudFormationClient() {
+                return client(AmazonCloudFormation.class, clients);
+            }
+
+            @Override
+            public AmazonElasticLoadBalancing newElasticLoadBalancingClient() {
+                return client(AmazonElasticLoadBalancing.class, clients);
+            }
+
+            @Override
+            public AmazonAutoScaling newAutoScalingClient() {
+                return client(AmazonAutoScaling.class, clients);
+            }
+
+            @Override
+            public AmazonEC2Async newEc2AsyncClient(ExecutorService executor) {
+                return client(AmazonEC2Async.class, clients);
+            }
+
+            @Override
+            public AmazonCloudFormationAsync newCloudFormationAsyncClient(ExecutorService executor) {
+                return client(AmazonCloudFormationAsync.class, clients);
+            }
+
+            @Override
+            public AmazonElasticLoadBalancingAsync newElasticLoadBalancingAsyncClient(ExecutorService executor) {
+                return client(AmazonElasticLoadBalancingAsync.class, clients);
+            }
+
+            @Override
+            public AmazonAutoScalingAsync newAutoScalingAsyncClient(ExecutorService executor) {
+                return client(AmazonAutoScalingAsync.class, clients);
+            }
+        });
+    }
+
+    private static <T> T client(final Class<T> type, final Object[] clients) {
+        for (Object client : clients) {
+            if (type.isInstance(client)) {
+                return type.cast(client);
+            }
+        }
+        throw new UnsupportedOperationException("no stub " + type.getSimpleName());
+    }
+}
@@ -0,0 +1,163 @@
+package io.magnum.awscommons;
+
+import io.magnum.awscommons.concurrent.ListenableFuture;
+import io.magnum.awscommons.retry.AbortException;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TagWriterTest {
+
+    /**
+     * Records each putTags call and the thread making it, fails those naming
+     * "i-bad", and blocks those naming "i-slow" until released.
+     */
+    private static class StubHandler implements InvocationHandler {
+        final List<Object[]> calls = new CopyOnWriteArrayList<Object[]>();
+        final List<String> threads = new CopyOnWriteArrayList<String>();
+        final CountDownLatch release = new CountDownLatch(1);
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            calls.add(args);
+            threads.add(Thread.currentThread().getName());
+            if (((Collection<?>) args[0]).contains("i-slow")) {
+                release.await(5, TimeUnit.SECONDS);
+            }
+            if (((Collection<?>) args[0]).contains("i-bad")) {
+                throw new AbortException("no such instance: i-bad");
+            }
+            return null;
+        }
+    }
+
+    private static TagWriter.Builder builder(StubHandler handler) {
+        GeneralAwsHelper helper = Stubs.stub(GeneralAwsHelper.class, handler, "putTags");
+        return new TagWriter.Builder(helper).withMaxDelay(20, TimeUnit.MILLISECONDS);
+    }
+
+    private static Map<String, String> tags(String... keysAndValues) {
+        Map<String, String> tags = new LinkedHashMap<String, String>();
+        for (int i = 0; i < keysAndValues.length; i += 2) {
+            tags.put(keysAndValues[i], keysAndValues[i + 1]);
+        }
+        return tags;
+    }
+
+    @Test
+    public void testSameTagsAreMerged() throws Exception {
+        StubHandler stub = new StubHandler();
+        TagWriter writer = builder(stub).build();
+        List<ListenableFuture<Void>> futures = new ArrayList<ListenableFuture<Void>>();
+        for (int i = 0; i < 100; i++) {
+            futures.add(writer.putTags(Collections.singletonList("i-" + i), tags("env", "prod", "role", "web")));
+        }
+        for (ListenableFuture<Void> future : futures) {
+            future.get(5, TimeUnit.SECONDS);
+        }
+        Assert.assertEquals(1, stub.calls.size());
+        Assert.assertEquals(100, ((Collection<?>) stub.calls.get(0)[0]).size());
+        Assert.assertEquals(1, writer.getRequests());
+        Assert.assertEquals(100, writer.getWrites());
+    }
+
+    @Test
+    public void testOverwriteSendsLatestValueOnce() throws Exception {
+        StubHandler stub = new StubHandler();
+        TagWriter writer = builder(stub).build();
+        ListenableFuture<Void> first = writer.putTags(Arrays.asList("i-1"), tags("Name", "a"));
+        ListenableFuture<Void> second = writer.putTags(Arrays.asList("i-1"), tags("Name", "b"));
+        first.get(5, TimeUnit.SECONDS);
+        second.get(5, TimeUnit.SECONDS);
+        Assert.assertEquals(1, stub.calls.size());
+        Assert.assertEquals(tags("Name", "b"), new HashMap<Object, Object>((Map<?, ?>) stub.calls.get(0)[1]));
+    }
+
+    @Test
+    public void testRequestsRespectLimits() throws Exception {
+        StubHandler stub = new StubHandler();
+        TagWriter writer = builder(stub).withRequestLimits(2, 1).build();
+        writer.putTags(Arrays.asList("i-1", "i-2", "i-3", "i-4", "i-5"), tags("a", "1", "b", "2"))
+                .get(5, TimeUnit.SECONDS);
+        Assert.assertEquals(6, stub.calls.size());
+        for (Object[] call : stub.calls) {
+            Assert.assertTrue(((Collection<?>) call[0]).size() <= 2);
+            Assert.assertEquals(1, ((Map<?, ?>) call[1]).size());
+        }
+    }
+
+    @Test
+    public void testFlushOnSizeAndFailure() throws Exception {
+        StubHandler stub = new StubHandler();
+        TagWriter writer = builder(stub).withMaxDelay(1, TimeUnit.HOURS).withMaxPendingTags(2).build();
+        ListenableFuture<Void> good = writer.putTags(Arrays.asList("i-1"), tags("a", "1"));
+        ListenableFuture<Void> bad = writer.putTags(Arrays.asList("i-bad"), tags("a", "2"));
+        good.get(5, TimeUnit.SECONDS);
+        try {
+            bad.get(5, TimeUnit.SECONDS);
+            Assert.fail();
+        } catch (ExecutionException e) {
+            Assert.assertTrue(e.getCause() instanceof AbortException);
+        }
+    }
+
+    @Test
+    public void testTimedFlushIsNotSentOnTheScheduler() throws Exception {
+        StubHandler stub = new StubHandler();
+        builder(stub).build().putTags(Arrays.asList("i-1"), tags("a", "1")).get(5, TimeUnit.SECONDS);
+        Assert.assertEquals(1, stub.threads.size());
+        Assert.assertFalse(stub.threads.get(0), stub.threads.get(0).startsWith("aws-commons-scheduler"));
+    }
+
+    @Test
+    public void testOneFlushIsQueuedWhileOneIsSent() throws Exception {
+        StubHandler stub = new StubHandler();
+        final AtomicInteger executed = new AtomicInteger();
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(0, 10, 1, TimeUnit.SECONDS,
+                new SynchronousQueue<Runnable>()) {
+            @Override
+            public void execute(Runnable command) {
+                executed.incrementAndGet();
+                super.execute(command);
+            }
+        };
+        try {
+            TagWriter writer = builder(stub).withMaxDelay(1, TimeUnit.HOURS).withMaxPendingTags(1)
+                    .withExecutor(executor).build();
+            List<ListenableFuture<Void>> futures = new ArrayList<ListenableFuture<Void>>();
+            futures.add(writer.putTags(Arrays.asList("i-slow"), tags("a", "1")));
+            for (int i = 0; i < 50; i++) {
+                futures.add(writer.putTags(Arrays.asList("i-" + i), tags("a", "1")));
+            }
+            stub.release.countDown();
+            for (ListenableFuture<Void> future : futures) {
+                future.get(5, TimeUnit.SECONDS);
+            }
+            // one sender took every flush requested while it was busy
+            Assert.assertEquals(1, executed.get());
+            Assert.assertTrue(stub.calls.size() <= 2);
+            writer.flush().get(5, TimeUnit.SECONDS);
+            Assert.assertEquals(2, executed.get());
+        } finally {
+            executor.shutdown();
+        }
+    }
+}
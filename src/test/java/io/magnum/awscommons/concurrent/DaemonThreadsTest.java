@@ -0,0 +1,94 @@
+package io.magnum.awscommons.concurrent;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class DaemonThreadsTest {
+
+    @Test
+    public void testThreadsAreNamedDaemons() {
+        ThreadFactory factory = DaemonThreads.newThreadFactory("test-pool");
+        Runnable noop = new Runnable() {
+            @Override
+            public void run() {
+            }
+        };
+        Thread first = factory.newThread(noop);
+        Thread second = factory.newThread(noop);
+
+        Assert.assertTrue(first.isDaemon());
+        Assert.assertEquals("test-pool-1", first.getName());
+        Assert.assertEquals("test-pool-2", second.getName());
+    }
+
+    @Test
+    public void testHandedOffTaskRunsOnTheExecutorAndNeverOverlaps() throws Exception {
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final AtomicInteger runs = new AtomicInteger();
+        final List<Thread> ranOn = new CopyOnWriteArrayList<Thread>();
+        Runnable task = DaemonThreads.onSharedExecutor(new Runnable() {
+            @Override
+            public void run() {
+                runs.incrementAndGet();
+                ranOn.add(Thread.currentThread());
+                started.countDown();
+                try {
+                    release.await(5, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        task.run();
+        Assert.assertTrue(started.await(5, TimeUnit.SECONDS));
+        // the first run is still blocked, so this one is skipped
+        task.run();
+        release.countDown();
+
+        Assert.assertEquals(1, runs.get());
+        Assert.assertNotSame(Thread.currentThread(), ranOn.get(0));
+        Assert.assertTrue(ranOn.get(0).getName().startsWith("aws-commons-"));
+    }
+
+    @Test
+    public void testSaturatedSharedExecutorRunsTasksOnTheCaller() throws Exception {
+        ExecutorService executor = DaemonThreads.sharedExecutor();
+        final CountDownLatch release = new CountDownLatch(1);
+        List<Future<?>> blockers = new ArrayList<Future<?>>();
+        try {
+            for (int i = 0; i < DaemonThreads.SHARED_EXECUTOR_THREADS; i++) {
+                blockers.add(executor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws InterruptedException {
+                        release.await(10, TimeUnit.SECONDS);
+                        return null;
+                    }
+                }));
+            }
+            Future<Thread> ranOn = executor.submit(new Callable<Thread>() {
+                @Override
+                public Thread call() {
+                    return Thread.currentThread();
+                }
+            });
+            Assert.assertSame(Thread.currentThread(), ranOn.get(0, TimeUnit.SECONDS));
+        } finally {
+            release.countDown();
+            for (Future<?> blocker : blockers) {
+                blocker.get();
+            }
+        }
+    }
+}
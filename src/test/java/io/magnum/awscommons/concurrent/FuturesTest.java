@@ -0,0 +1,82 @@
+package io.magnum.awscommons.concurrent;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class FuturesTest {
+
+    private static final Function<Integer, Integer> DOUBLE = new Function<Integer, Integer>() {
+        @Override
+        public Integer apply(Integer input) {
+            return input * 2;
+        }
+    };
+
+    @Test
+    public void testTransform() throws Exception {
+        SettableFuture<Integer> input = new SettableFuture<Integer>();
+        ListenableFuture<Integer> output = Futures.transform(input, DOUBLE);
+        Assert.assertFalse(output.isDone());
+        input.set(21);
+        Assert.assertEquals(Integer.valueOf(42), output.get());
+    }
+
+    @Test
+    public void testTransformAsyncChainsSteps() throws Exception {
+        SettableFuture<Integer> input = new SettableFuture<Integer>();
+        final SettableFuture<Integer> step = new SettableFuture<Integer>();
+        ListenableFuture<Integer> output = Futures.transformAsync(input, new AsyncFunction<Integer, Integer>() {
+            @Override
+            public ListenableFuture<Integer> apply(Integer value) {
+                return Futures.transform(step, DOUBLE);
+            }
+        });
+        input.set(1);
+        Assert.assertFalse(output.isDone());
+        step.set(5);
+        Assert.assertEquals(Integer.valueOf(10), output.get());
+    }
+
+    @Test
+    public void testFailurePropagates() throws Exception {
+        IllegalStateException failure = new IllegalStateException("down");
+        ListenableFuture<Integer> output = Futures.transform(Futures.<Integer>immediateFailedFuture(failure), DOUBLE);
+        try {
+            output.get();
+            Assert.fail();
+        } catch (ExecutionException e) {
+            Assert.assertSame(failure, e.getCause());
+        }
+    }
+
+    @Test
+    public void testCancellationPropagatesToInput() {
+        SettableFuture<Integer> input = new SettableFuture<Integer>();
+        ListenableFuture<Integer> output = Futures.transform(input, DOUBLE);
+        output.cancel(true);
+        Assert.assertTrue(input.isCancelled());
+    }
+
+    @Test
+    public void testAllAsList() throws Exception {
+        SettableFuture<Integer> first = new SettableFuture<Integer>();
+        SettableFuture<Integer> second = new SettableFuture<Integer>();
+        @SuppressWarnings("unchecked")
+        ListenableFuture<List<Integer>> all = Futures.allAsList(Arrays.asList(first, second));
+        second.set(2);
+        Assert.assertFalse(all.isDone());
+        first.set(1);
+        Assert.assertEquals(Arrays.asList(1, 2), all.get());
+
+        SettableFuture<Integer> pending = new SettableFuture<Integer>();
+        @SuppressWarnings("unchecked")
+        ListenableFuture<List<Integer>> failed = Futures.allAsList(Arrays.asList(pending,
+                Futures.<Integer>immediateFailedFuture(new IllegalStateException())));
+        Assert.assertTrue(failed.isDone());
+        Assert.assertTrue(pending.isCancelled());
+    }
+}
@@ -0,0 +1,106 @@
+package io.magnum.awscommons.concurrent;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class SingleFlightTest {
+
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * Starts <code>callers</code> concurrent calls for one key, whose loader
+     * blocks until all the others are waiting for it.
+     */
+    private List<Future<String>> callConcurrently(final SingleFlight<String, String> singleFlight,
+            final int callers, final Callable<String> loader) throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        final Callable<String> gatedLoader = new Callable<String>() {
+            @Override
+            public String call() throws Exception {
+                release.await();
+                return loader.call();
+            }
+        };
+        List<Future<String>> futures = new ArrayList<Future<String>>();
+        for (int i = 0; i < callers; i++) {
+            futures.add(executor.submit(new Callable<String>() {
+                @Override
+                public String call() throws Exception {
+                    return singleFlight.call("key", gatedLoader);
+                }
+            }));
+        }
+        long deadline = System.currentTimeMillis() + 5000;
+        while (singleFlight.getCoalescedCalls() < callers - 1 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        release.countDown();
+        return futures;
+    }
+
+    @Test
+    public void testConcurrentCallsShareOneLoad() throws Exception {
+        SingleFlight<String, String> singleFlight = new SingleFlight<String, String>();
+        final AtomicInteger loads = new AtomicInteger();
+        List<Future<String>> futures = callConcurrently(singleFlight, 8, new Callable<String>() {
+            @Override
+            public String call() {
+                return "value-" + loads.incrementAndGet();
+            }
+        });
+        for (Future<String> future : futures) {
+            Assert.assertEquals("value-1", future.get(5, TimeUnit.SECONDS));
+        }
+        Assert.assertEquals(1, loads.get());
+        Assert.assertEquals(7, singleFlight.getCoalescedCalls());
+        Assert.assertEquals(0, singleFlight.getInFlightCount());
+
+        // nothing is remembered afterwards
+        Assert.assertEquals("value-2", singleFlight.call("key", new Callable<String>() {
+            @Override
+            public String call() {
+                return "value-" + loads.incrementAndGet();
+            }
+        }));
+    }
+
+    @Test
+    public void testFailureIsShared() throws Exception {
+        SingleFlight<String, String> singleFlight = new SingleFlight<String, String>();
+        final IllegalStateException failure = new IllegalStateException("down");
+        List<Future<String>> futures = callConcurrently(singleFlight, 4, new Callable<String>() {
+            @Override
+            public String call() {
+                throw failure;
+            }
+        });
+        for (Future<String> future : futures) {
+            try {
+                future.get(5, TimeUnit.SECONDS);
+                Assert.fail();
+            } catch (ExecutionException e) {
+                // the leader sees the failure itself, followers see it wrapped
+                Throwable cause = e.getCause() instanceof ExecutionException ? e.getCause().getCause() : e.getCause();
+                Assert.assertSame(failure, cause);
+            }
+        }
+        Assert.assertEquals(0, singleFlight.getInFlightCount());
+    }
+}
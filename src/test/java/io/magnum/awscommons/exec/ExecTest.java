@@ -1,8 +1,10 @@
 package io.magnum.awscommons.exec;
 
+import java.io.File;
 import java.io.IOException;
 
 import org.apache.commons.exec.ExecuteException;
+import org.junit.Assert;
 import org.junit.Test;
 
 public class ExecTest {
@@ -21,4 +23,27 @@ public class ExecTest {
     public void textException() throws ExecuteException, IOException {
         new Exec("/this/will/cause/an/exception").execute();
     }
+
+    @Test
+    public void testResult() throws ExecuteException, IOException {
+        ExecResult result = new Exec("sleep 0.2").execute();
+        Assert.assertEquals(0, result.getExitValue());
+        Assert.assertEquals("sleep", result.getCommandName());
+        Assert.assertTrue(result.getWallTimeMillis() >= 200);
+        if (new File("/proc/self/stat").exists()) {
+            Assert.assertTrue(result.isResourceUsageAvailable());
+            Assert.assertTrue(result.getPeakRssBytes() > 0);
+        }
+    }
+
+    @Test
+    public void testCommandStats() throws ExecuteException, IOException {
+        CommandStats before = Exec.getCommandStats("true");
+        long executions = before == null ? 0 : before.getExecutions();
+        new Exec("true").execute();
+        new Exec("/bin/true").execute();
+        CommandStats stats = Exec.getCommandStats("true");
+        Assert.assertEquals(executions + 2, stats.getExecutions());
+        Assert.assertSame(stats, Exec.getAllCommandStats().get("true"));
+    }
 }
@@ -0,0 +1,118 @@
+package io.magnum.awscommons.retry;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.amazonaws.AmazonServiceException;
+
+public class AdaptiveRateLimiterTest {
+
+    private static AmazonServiceException throttled() {
+        AmazonServiceException e = new AmazonServiceException("Rate exceeded");
+        e.setErrorCode("Throttling");
+        e.setStatusCode(400);
+        return e;
+    }
+
+    @Test
+    public void testThrottleDetection() {
+        Assert.assertTrue(AwsThrottlingArbiter.isThrottlingException(throttled()));
+
+        AmazonServiceException slowDown = new AmazonServiceException("Slow down");
+        slowDown.setStatusCode(503);
+        Assert.assertTrue(AwsThrottlingArbiter.isThrottlingException(slowDown));
+
+        AmazonServiceException notFound = new AmazonServiceException("Not found");
+        notFound.setErrorCode("InvalidInstanceID.NotFound");
+        notFound.setStatusCode(400);
+        Assert.assertFalse(AwsThrottlingArbiter.isThrottlingException(notFound));
+        Assert.assertFalse(AwsThrottlingArbiter.isThrottlingException(new IllegalStateException()));
+    }
+
+    @Test
+    public void testMultiplicativeDecreaseOncePerCooldown() {
+        AdaptiveRateLimiter limiter = new AdaptiveRateLimiter.Builder("test")
+                .withRates(40, 1, 100)
+                .withDecrease(0.5, 1, TimeUnit.HOURS)
+                .build();
+        Assert.assertTrue(limiter.onFailure(throttled()));
+        Assert.assertEquals(20.0, limiter.getRate(), 0.0);
+        Assert.assertTrue(limiter.onFailure(throttled()));
+        Assert.assertEquals(20.0, limiter.getRate(), 0.0);
+        Assert.assertFalse(limiter.onFailure(new IllegalStateException()));
+        Assert.assertEquals(2, limiter.getThrottleCount());
+    }
+
+    @Test
+    public void testDecreaseIsBoundedByMinRate() {
+        AdaptiveRateLimiter limiter = new AdaptiveRateLimiter.Builder("test")
+                .withRates(2, 1, 100)
+                .withDecrease(0.1, 0, TimeUnit.NANOSECONDS)
+                .build();
+        limiter.onFailure(throttled());
+        limiter.onFailure(throttled());
+        Assert.assertEquals(1.0, limiter.getRate(), 0.0);
+    }
+
+    @Test
+    public void testAdditiveIncrease() {
+        AdaptiveRateLimiter limiter = new AdaptiveRateLimiter.Builder("test")
+                .withRates(10, 1, 12)
+                .withAdditiveIncrease(1)
+                .build();
+        // A second's worth of successes at 10/s raises the rate by about 1/s.
+        for (int i = 0; i < 10; i++) {
+            limiter.onSuccess();
+        }
+        Assert.assertEquals(11.0, limiter.getRate(), 0.1);
+        for (int i = 0; i < 1000; i++) {
+            limiter.onSuccess();
+        }
+        Assert.assertEquals(12.0, limiter.getRate(), 0.0);
+    }
+
+    @Test
+    public void testPermitsAreSpacedAtTheCurrentRate() {
+        AdaptiveRateLimiter limiter = new AdaptiveRateLimiter.Builder("test")
+                .withRates(10, 1, 10)
+                .build();
+        // Drain the permits banked while idle.
+        while (limiter.reserve() <= 0) {
+        }
+        long first = limiter.reserve();
+        long second = limiter.reserve();
+        Assert.assertEquals(TimeUnit.MILLISECONDS.toNanos(100), second - first, TimeUnit.MILLISECONDS.toNanos(5));
+    }
+
+    @Test
+    public void testProxyReportsThrottlingToLimiter() throws Exception {
+        final AtomicInteger calls = new AtomicInteger();
+        Callable<String> flaky = new Callable<String>() {
+            @Override
+            public String call() {
+                if (calls.incrementAndGet() < 3) {
+                    throw throttled();
+                }
+                return "ok";
+            }
+        };
+        AdaptiveRateLimiter limiter = new AdaptiveRateLimiter.Builder("test")
+                .withRates(100, 1, 100)
+                .withDecrease(0.5, 0, TimeUnit.NANOSECONDS)
+                .build();
+        @SuppressWarnings("unchecked")
+        Callable<String> proxy = new RetryableFactory.Builder<Callable>(Callable.class, flaky)
+                .withRetryHelper(RetryHelper.RETRY_FOREVER)
+                .withDefaultArbiter(AwsThrottlingArbiter.INSTANCE)
+                .withRateLimiter(limiter)
+                .build();
+        Assert.assertEquals("ok", proxy.call());
+        Assert.assertEquals(3, calls.get());
+        Assert.assertEquals(2, limiter.getThrottleCount());
+        Assert.assertTrue(limiter.getRate() < 30);
+    }
+}
@@ -0,0 +1,81 @@
+package io.magnum.awscommons.retry;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class BackoffStrategyTest {
+
+    private static final long MS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    @Test
+    public void testFixed() {
+        BackoffStrategy backoff = new FixedBackoffStrategy(5, TimeUnit.MILLISECONDS);
+        Assert.assertEquals(5 * MS, backoff.delayNanos(1, 0));
+        Assert.assertEquals(5 * MS, backoff.delayNanos(10, 5 * MS));
+    }
+
+    @Test
+    public void testExponential() {
+        BackoffStrategy backoff = new ExponentialBackoffStrategy(10, 100, TimeUnit.MILLISECONDS);
+        Assert.assertEquals(10 * MS, backoff.delayNanos(1, 0));
+        Assert.assertEquals(20 * MS, backoff.delayNanos(2, 0));
+        Assert.assertEquals(80 * MS, backoff.delayNanos(4, 0));
+        Assert.assertEquals(100 * MS, backoff.delayNanos(5, 0));
+        Assert.assertEquals(100 * MS, backoff.delayNanos(Integer.MAX_VALUE, 0));
+    }
+
+    @Test
+    public void testFullJitter() {
+        BackoffStrategy backoff = new FullJitterBackoffStrategy(10, 100, TimeUnit.MILLISECONDS);
+        for (int attempt = 1; attempt < 100; attempt++) {
+            long delay = backoff.delayNanos(attempt, 0);
+            Assert.assertTrue(delay >= 0);
+            Assert.assertTrue(delay <= Math.min(100, 10L << Math.min(attempt - 1, 20)) * MS);
+        }
+    }
+
+    @Test
+    public void testDecorrelatedJitter() {
+        BackoffStrategy backoff = new DecorrelatedJitterBackoffStrategy(10, 100, TimeUnit.MILLISECONDS);
+        long delay = 0;
+        for (int attempt = 1; attempt < 100; attempt++) {
+            long previous = delay;
+            delay = backoff.delayNanos(attempt, previous);
+            Assert.assertTrue(delay >= 10 * MS);
+            Assert.assertTrue(delay <= 100 * MS);
+            Assert.assertTrue(delay <= Math.max(10 * MS, previous) * 3);
+        }
+    }
+
+    @Test
+    public void testRetryHelperUsesBackoff() throws AbortException {
+        RetryHelper helper = new RetryHelper.Builder()
+                .withMaxTries(3)
+                .withBackoff(new FixedBackoffStrategy(20, TimeUnit.MILLISECONDS))
+                .build();
+        final int[] calls = new int[1];
+        long start = System.nanoTime();
+        String result = helper.runRetryable(new Retryable<String>() {
+            @Override
+            public String call() throws RetryableException {
+                if (++calls[0] < 3) {
+                    throw new RetryableException("not yet");
+                }
+                return "done";
+            }
+        });
+        Assert.assertEquals("done", result);
+        Assert.assertEquals(3, calls[0]);
+        Assert.assertTrue(System.nanoTime() - start >= 40 * MS);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testIntervalAndBackoffAreExclusive() {
+        new RetryHelper.Builder()
+                .withRetryInterval(1, TimeUnit.SECONDS)
+                .withBackoff(new FixedBackoffStrategy(1, TimeUnit.SECONDS))
+                .build();
+    }
+}
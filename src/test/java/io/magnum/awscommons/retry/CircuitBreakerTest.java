@@ -0,0 +1,114 @@
+package io.magnum.awscommons.retry;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class CircuitBreakerTest {
+
+    private static final long MS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    @Test
+    public void testTripsOnFailureRate() {
+        CircuitBreaker breaker = new CircuitBreaker.Builder("test")
+                .withWindow(10, 4)
+                .withFailureRateThreshold(0.5)
+                .build();
+        for (int i = 0; i < 3; i++) {
+            Assert.assertTrue(breaker.tryAcquirePermission());
+            breaker.onSuccess(MS);
+        }
+        Assert.assertTrue(breaker.tryAcquirePermission());
+        breaker.onFailure(MS);
+        Assert.assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+        Assert.assertTrue(breaker.tryAcquirePermission());
+        breaker.onFailure(MS);
+        Assert.assertTrue(breaker.tryAcquirePermission());
+        breaker.onFailure(MS);
+        Assert.assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+        Assert.assertFalse(breaker.tryAcquirePermission());
+        Assert.assertEquals(1, breaker.getRejectedCalls());
+    }
+
+    @Test
+    public void testTripsOnSlowCalls() {
+        CircuitBreaker breaker = new CircuitBreaker.Builder("test")
+                .withWindow(4, 4)
+                .withSlowCallThreshold(0.75, 100, TimeUnit.MILLISECONDS)
+                .build();
+        breaker.onSuccess(10 * MS);
+        breaker.onSuccess(200 * MS);
+        breaker.onSuccess(200 * MS);
+        breaker.onSuccess(200 * MS);
+        Assert.assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+    }
+
+    @Test
+    public void testHalfOpenProbes() throws InterruptedException {
+        CircuitBreaker breaker = new CircuitBreaker.Builder("test")
+                .withWindow(2, 2)
+                .withOpenDuration(20, TimeUnit.MILLISECONDS)
+                .withPermittedHalfOpenCalls(2)
+                .build();
+        breaker.onFailure(MS);
+        breaker.onFailure(MS);
+        Assert.assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+        Thread.sleep(30);
+
+        Assert.assertTrue(breaker.tryAcquirePermission());
+        Assert.assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+        Assert.assertTrue(breaker.tryAcquirePermission());
+        Assert.assertFalse(breaker.tryAcquirePermission());
+        breaker.onSuccess(MS);
+        breaker.onSuccess(MS);
+        Assert.assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+    }
+
+    @Test
+    public void testProxyRejectsWhileOpen() throws Exception {
+        final AtomicInteger calls = new AtomicInteger();
+        final AtomicBoolean healthy = new AtomicBoolean(false);
+        Callable<String> delegate = new Callable<String>() {
+            @Override
+            public String call() {
+                calls.incrementAndGet();
+                if (!healthy.get()) {
+                    throw new IllegalStateException("down");
+                }
+                return "up";
+            }
+        };
+        CircuitBreaker breaker = new CircuitBreaker.Builder("callable").withWindow(3, 3).build();
+        @SuppressWarnings("unchecked")
+        Callable<String> proxy = new RetryableFactory.Builder<Callable>(Callable.class, delegate)
+                .withRetryHelper(RetryHelper.RETRY_FOREVER)
+                .withDefaultArbiter(new ExceptionArbiter() {
+                    @Override
+                    public boolean isRetryable(Throwable t) {
+                        return true;
+                    }
+                })
+                .withCircuitBreaker(breaker)
+                .build();
+        try {
+            proxy.call();
+            Assert.fail("should have been rejected");
+        } catch (RetryFailedException e) {
+            Assert.assertTrue(e.getCause() instanceof CircuitBreakerOpenException);
+        }
+        Assert.assertEquals(3, calls.get());
+
+        healthy.set(true);
+        try {
+            proxy.call();
+            Assert.fail("should have been rejected");
+        } catch (RetryFailedException e) {
+            Assert.assertTrue(e.getCause() instanceof CircuitBreakerOpenException);
+        }
+        Assert.assertEquals(3, calls.get());
+    }
+}
@@ -0,0 +1,152 @@
+package io.magnum.awscommons.retry;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class HedgingPolicyTest {
+
+    public interface Lookup {
+        @Idempotent
+        String describe(String id);
+
+        String mutate(String id);
+    }
+
+    /**
+     * Answers the first call slowly and later calls immediately, recording
+     * whether the slow call was interrupted.
+     */
+    private static class SlowFirstLookup implements Lookup {
+        final AtomicInteger calls = new AtomicInteger();
+        final CountDownLatch interrupted = new CountDownLatch(1);
+
+        @Override
+        public String describe(String id) {
+            return respond(id);
+        }
+
+        @Override
+        public String mutate(String id) {
+            return respond(id);
+        }
+
+        private String respond(String id) {
+            if (calls.incrementAndGet() == 1) {
+                try {
+                    Thread.sleep(5000);
+                } catch (InterruptedException e) {
+                    interrupted.countDown();
+                    throw new IllegalStateException(e);
+                }
+                return "slow " + id;
+            }
+            return "fast " + id;
+        }
+    }
+
+    private static HedgingPolicy newPolicy(double maxHedgeRatio, int maxBurst) {
+        return new HedgingPolicy.Builder()
+                .withMinDelay(0, TimeUnit.MILLISECONDS)
+                .withInitialDelay(20, TimeUnit.MILLISECONDS)
+                .withHedgeBudget(maxHedgeRatio, maxBurst)
+                .build();
+    }
+
+    @Test
+    public void testLatencyTrackerPercentile() {
+        LatencyTracker tracker = new LatencyTracker(0.95);
+        for (int i = 1; i < LatencyTracker.MIN_SAMPLES; i++) {
+            tracker.record(i);
+        }
+        Assert.assertEquals(-1L, tracker.getPercentileNanos());
+        tracker.record(LatencyTracker.MIN_SAMPLES);
+        Assert.assertEquals(19L, tracker.getPercentileNanos());
+
+        tracker = new LatencyTracker(0.95);
+        for (int i = 1; i <= LatencyTracker.CAPACITY; i++) {
+            tracker.record(i);
+        }
+        Assert.assertEquals(244L, tracker.getPercentileNanos());
+    }
+
+    @Test
+    public void testSlowIdempotentCallIsHedged() {
+        SlowFirstLookup delegate = new SlowFirstLookup();
+        HedgingPolicy policy = newPolicy(1, 10);
+        Lookup proxy = new RetryableFactory.Builder<Lookup>(Lookup.class, delegate)
+                .withHedging(policy)
+                .build();
+
+        long start = System.nanoTime();
+        Assert.assertEquals("fast a", proxy.describe("a"));
+        Assert.assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(2));
+        Assert.assertEquals(1, policy.getHedgesSent());
+        Assert.assertEquals(1, policy.getHedgesWon());
+        try {
+            Assert.assertTrue("the losing request was not cancelled",
+                    delegate.interrupted.await(2, TimeUnit.SECONDS));
+        } catch (InterruptedException e) {
+            Assert.fail();
+        }
+    }
+
+    @Test
+    public void testMethodsNotMarkedIdempotentAreNotHedged() {
+        SlowFirstLookup delegate = new SlowFirstLookup() {
+            @Override
+            public String mutate(String id) {
+                calls.incrementAndGet();
+                return "once " + id;
+            }
+        };
+        HedgingPolicy policy = newPolicy(1, 10);
+        Lookup proxy = new RetryableFactory.Builder<Lookup>(Lookup.class, delegate)
+                .withHedging(policy)
+                .build();
+        Assert.assertEquals("once a", proxy.mutate("a"));
+        Assert.assertEquals(1, delegate.calls.get());
+        Assert.assertEquals(0, policy.getHedgesSent());
+    }
+
+    @Test
+    public void testHedgesAreLimitedByBudget() throws Throwable {
+        HedgingPolicy policy = newPolicy(0.01, 1);
+        LatencyTracker tracker = policy.newLatencyTracker();
+        Callable<Object> slow = new Callable<Object>() {
+            @Override
+            public Object call() throws Exception {
+                Thread.sleep(60);
+                return "done";
+            }
+        };
+        Assert.assertEquals("done", policy.call(slow, tracker));
+        Assert.assertEquals("done", policy.call(slow, tracker));
+        Assert.assertEquals(1, policy.getHedgesSent());
+        Assert.assertEquals(1, policy.getHedgesRejected());
+    }
+
+    @Test
+    public void testFailureIsReportedOnceEveryRequestFailed() {
+        HedgingPolicy policy = newPolicy(1, 10);
+        LatencyTracker tracker = policy.newLatencyTracker();
+        try {
+            policy.call(new Callable<Object>() {
+                @Override
+                public Object call() throws Exception {
+                    throw new IllegalArgumentException("bad request");
+                }
+            }, tracker);
+            Assert.fail();
+        } catch (IllegalArgumentException e) {
+            Assert.assertEquals("bad request", e.getMessage());
+        } catch (Throwable t) {
+            Assert.fail(t.toString());
+        }
+        Assert.assertEquals(0, policy.getHedgesSent());
+    }
+}
@@ -0,0 +1,113 @@
+package io.magnum.awscommons.retry;
+
+import java.lang.reflect.Method;
+import java.util.Collections;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class RetryBudgetTest {
+
+    @Test
+    public void testTokenAccounting() {
+        RetryBudget budget = new RetryBudget(0.5, 2);
+        Assert.assertEquals(2.0, budget.getAvailableTokens(), 0.0);
+        Assert.assertTrue(budget.tryAcquireRetry());
+        Assert.assertTrue(budget.tryAcquireRetry());
+        Assert.assertFalse(budget.tryAcquireRetry());
+        budget.onSuccess();
+        Assert.assertFalse(budget.tryAcquireRetry());
+        budget.onSuccess();
+        Assert.assertTrue(budget.tryAcquireRetry());
+        for (int i = 0; i < 10; i++) {
+            budget.onSuccess();
+        }
+        Assert.assertEquals(2.0, budget.getAvailableTokens(), 0.0);
+        Assert.assertEquals(3, budget.getRetriesPermitted());
+        Assert.assertEquals(2, budget.getRetriesRejected());
+    }
+
+    @Test
+    public void testProxyFailsFastWhenBudgetIsSpent() throws Exception {
+        final AtomicInteger calls = new AtomicInteger();
+        Callable<String> failing = new Callable<String>() {
+            @Override
+            public String call() {
+                calls.incrementAndGet();
+                throw new IllegalStateException("down");
+            }
+        };
+        RetryBudget budget = new RetryBudget(0.1, 3);
+        @SuppressWarnings("unchecked")
+        Callable<String> proxy = RetryableFactory.create(Callable.class, failing, RetryHelper.RETRY_FOREVER,
+                new AlwaysRetryArbiter(), Collections.<Method, ExceptionArbiter>emptyMap(), budget);
+        try {
+            proxy.call();
+            Assert.fail("should have failed fast");
+        } catch (RetryFailedException e) {
+            Assert.assertTrue(e.getCause() instanceof IllegalStateException);
+        }
+        Assert.assertEquals(4, calls.get());
+        Assert.assertEquals(0.0, budget.getAvailableTokens(), 0.0);
+    }
+
+    @Test
+    public void testSpentBudgetFailsWithoutBackingOff() throws Exception {
+        Callable<String> failing = new Callable<String>() {
+            @Override
+            public String call() {
+                throw new IllegalStateException("down");
+            }
+        };
+        RetryBudget budget = new RetryBudget(0.1, 1);
+        Assert.assertTrue(budget.tryAcquireRetry());
+        RetryHelper slow = new RetryHelper.Builder().withRetryInterval(10, TimeUnit.SECONDS).build();
+        @SuppressWarnings("unchecked")
+        Callable<String> proxy = RetryableFactory.create(Callable.class, failing, slow,
+                new AlwaysRetryArbiter(), Collections.<Method, ExceptionArbiter>emptyMap(), budget);
+        long startNanos = System.nanoTime();
+        try {
+            proxy.call();
+            Assert.fail("should have failed fast");
+        } catch (RetryFailedException e) {
+            Assert.assertTrue(e.getCause() instanceof IllegalStateException);
+        }
+        Assert.assertTrue(System.nanoTime() - startNanos < TimeUnit.SECONDS.toNanos(5));
+    }
+
+    @Test
+    public void testRetryNotMadeIsHandedBack() throws Exception {
+        final AtomicInteger calls = new AtomicInteger();
+        Callable<String> failing = new Callable<String>() {
+            @Override
+            public String call() {
+                calls.incrementAndGet();
+                throw new IllegalStateException("down");
+            }
+        };
+        RetryBudget budget = new RetryBudget(0.1, 5);
+        RetryHelper twice = new RetryHelper.Builder().withMaxTries(2).build();
+        @SuppressWarnings("unchecked")
+        Callable<String> proxy = RetryableFactory.create(Callable.class, failing, twice,
+                new AlwaysRetryArbiter(), Collections.<Method, ExceptionArbiter>emptyMap(), budget);
+        try {
+            proxy.call();
+            Assert.fail("should have given up");
+        } catch (RetryFailedException e) {
+            // expected
+        }
+        Assert.assertEquals(2, calls.get());
+        Assert.assertEquals(4.0, budget.getAvailableTokens(), 0.0);
+        Assert.assertEquals(1, budget.getRetriesPermitted());
+    }
+
+    private static class AlwaysRetryArbiter implements ExceptionArbiter {
+        @Override
+        public boolean isRetryable(Throwable t) {
+            return true;
+        }
+    }
+}
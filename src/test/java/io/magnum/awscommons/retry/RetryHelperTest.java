@@ -0,0 +1,163 @@
+package io.magnum.awscommons.retry;
+
+import io.magnum.awscommons.concurrent.DaemonThreads;
+import io.magnum.awscommons.concurrent.ListenableFuture;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class RetryHelperTest {
+
+    private static Retryable<String> failingTimes(final int failures, final AtomicInteger calls) {
+        return new Retryable<String>() {
+            @Override
+            public String call() throws RetryableException {
+                if (calls.incrementAndGet() <= failures) {
+                    throw new RetryableException("attempt " + calls.get());
+                }
+                return "done";
+            }
+        };
+    }
+
+    @Test
+    public void testAsyncSucceedsAfterRetries() throws Exception {
+        RetryHelper helper = new RetryHelper.Builder()
+                .withMaxTries(5)
+                .withBackoff(new FixedBackoffStrategy(10, TimeUnit.MILLISECONDS))
+                .build();
+        AtomicInteger calls = new AtomicInteger();
+        ListenableFuture<String> future = helper.runRetryableAsync(failingTimes(2, calls));
+        Assert.assertEquals("done", future.get(5, TimeUnit.SECONDS));
+        Assert.assertEquals(3, calls.get());
+    }
+
+    @Test
+    public void testAsyncHonorsMaxTries() throws Exception {
+        RetryHelper helper = new RetryHelper.Builder().withMaxTries(3).build();
+        AtomicInteger calls = new AtomicInteger();
+        ListenableFuture<String> future = helper.runRetryableAsync(failingTimes(10, calls));
+        try {
+            future.get(5, TimeUnit.SECONDS);
+            Assert.fail("should have given up");
+        } catch (ExecutionException e) {
+            Assert.assertTrue(e.getCause() instanceof AbortException);
+        }
+        Assert.assertEquals(3, calls.get());
+    }
+
+    @Test
+    public void testAsyncHonorsArbiter() throws Exception {
+        final AtomicInteger calls = new AtomicInteger();
+        ListenableFuture<String> future = RetryHelper.RETRY_FOREVER.runRetryableAsync(new Retryable<String>() {
+            @Override
+            public String call() {
+                calls.incrementAndGet();
+                throw new IllegalStateException("not retryable");
+            }
+        });
+        try {
+            future.get(5, TimeUnit.SECONDS);
+            Assert.fail("should have aborted");
+        } catch (ExecutionException e) {
+            Assert.assertTrue(e.getCause() instanceof AbortException);
+            Assert.assertTrue(e.getCause().getCause() instanceof IllegalStateException);
+        }
+        Assert.assertEquals(1, calls.get());
+    }
+
+    @Test
+    public void testAsyncHonorsTimeout() throws Exception {
+        RetryHelper helper = new RetryHelper.Builder()
+                .withTimeout(100, TimeUnit.MILLISECONDS)
+                .withBackoff(new FixedBackoffStrategy(30, TimeUnit.MILLISECONDS))
+                .build();
+        AtomicInteger calls = new AtomicInteger();
+        try {
+            helper.runRetryableAsync(failingTimes(Integer.MAX_VALUE, calls)).get(5, TimeUnit.SECONDS);
+            Assert.fail("should have timed out");
+        } catch (ExecutionException e) {
+            Assert.assertTrue(e.getCause() instanceof AbortException);
+        }
+        Assert.assertTrue(calls.get() >= 2 && calls.get() <= 4);
+    }
+
+    @Test
+    public void testAsyncAttemptsRunOnTheExecutorNotTheScheduler() throws Exception {
+        RetryHelper helper = new RetryHelper.Builder()
+                .withMaxTries(3)
+                .withBackoff(new FixedBackoffStrategy(10, TimeUnit.MILLISECONDS))
+                .build();
+        ScheduledExecutorService scheduler = DaemonThreads.newScheduler("test-timer", 1);
+        ExecutorService executor = Executors.newSingleThreadExecutor(DaemonThreads.newThreadFactory("test-attempt"));
+        final List<String> threads = new CopyOnWriteArrayList<String>();
+        final CountDownLatch release = new CountDownLatch(1);
+        try {
+            ListenableFuture<String> blocked = helper.runRetryableAsync(new Retryable<String>() {
+                @Override
+                public String call() throws AbortException {
+                    threads.add(Thread.currentThread().getName());
+                    try {
+                        release.await(5, TimeUnit.SECONDS);
+                    } catch (InterruptedException e) {
+                        throw new AbortException("interrupted", e);
+                    }
+                    return "blocked";
+                }
+            }, AlwaysAbortArbiter.INSTANCE, scheduler, executor);
+            // a blocked attempt holds the executor, but not the timer
+            final AtomicInteger fired = new AtomicInteger();
+            scheduler.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    fired.incrementAndGet();
+                }
+            }, 20, TimeUnit.MILLISECONDS).get(1, TimeUnit.SECONDS);
+            Assert.assertEquals(1, fired.get());
+            release.countDown();
+            Assert.assertEquals("blocked", blocked.get(5, TimeUnit.SECONDS));
+
+            final AtomicInteger calls = new AtomicInteger();
+            Assert.assertEquals("done", helper.runRetryableAsync(new Retryable<String>() {
+                final Retryable<String> failing = failingTimes(2, calls);
+
+                @Override
+                public String call() throws RetryableException, AbortException {
+                    threads.add(Thread.currentThread().getName());
+                    return failing.call();
+                }
+            }, AlwaysAbortArbiter.INSTANCE, scheduler, executor).get(5, TimeUnit.SECONDS));
+        } finally {
+            scheduler.shutdown();
+            executor.shutdown();
+        }
+        Assert.assertEquals(4, threads.size());
+        for (String thread : threads) {
+            Assert.assertTrue(thread, thread.startsWith("test-attempt-"));
+        }
+    }
+
+    @Test
+    public void testAsyncCancelStopsRetrying() throws Exception {
+        RetryHelper helper = new RetryHelper.Builder()
+                .withBackoff(new FixedBackoffStrategy(50, TimeUnit.MILLISECONDS))
+                .build();
+        AtomicInteger calls = new AtomicInteger();
+        ListenableFuture<String> future = helper.runRetryableAsync(failingTimes(Integer.MAX_VALUE, calls));
+        Thread.sleep(120);
+        Assert.assertTrue(future.cancel(false));
+        int callsAtCancel = calls.get();
+        Thread.sleep(150);
+        Assert.assertTrue(calls.get() <= callsAtCancel + 1);
+    }
+}
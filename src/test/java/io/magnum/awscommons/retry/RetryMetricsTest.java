@@ -0,0 +1,159 @@
+package io.magnum.awscommons.retry;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class RetryMetricsTest {
+
+    private static class AlwaysRetryArbiter implements ExceptionArbiter {
+        @Override
+        public boolean isRetryable(Throwable t) {
+            return true;
+        }
+    }
+
+    /**
+     * Fails the first <code>failures</code> calls of every three.
+     */
+    private static Callable<String> flaky(final int failures) {
+        final AtomicInteger calls = new AtomicInteger();
+        return new Callable<String>() {
+            @Override
+            public String call() {
+                if (calls.getAndIncrement() % 3 < failures) {
+                    throw new IllegalStateException("down");
+                }
+                return "ok";
+            }
+        };
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Callable<String> proxy(Callable<String> delegate, RetryHelper retryHelper,
+            RetryMetrics metrics) {
+        return new RetryableFactory.Builder<Callable>(Callable.class, delegate)
+                .withRetryHelper(retryHelper)
+                .withDefaultArbiter(new AlwaysRetryArbiter())
+                .withMetrics(metrics)
+                .build();
+    }
+
+    @Test
+    public void testHistogramBuckets() {
+        Assert.assertEquals(0, LatencyHistogram.bucketOf(999));
+        Assert.assertEquals(1, LatencyHistogram.bucketOf(1000));
+        Assert.assertEquals(10, LatencyHistogram.bucketOf(TimeUnit.MILLISECONDS.toNanos(1)));
+        Assert.assertEquals(LatencyHistogram.BUCKETS - 1, LatencyHistogram.bucketOf(Long.MAX_VALUE));
+
+        long[] counts = new long[LatencyHistogram.BUCKETS];
+        counts[10] = 99;
+        counts[21] = 1;
+        Assert.assertEquals(1.024, LatencyHistogram.percentileMillis(counts, 0.5), 0.0);
+        Assert.assertEquals(2097.152, LatencyHistogram.percentileMillis(counts, 1.0), 0.0);
+    }
+
+    @Test
+    public void testCallsAttemptsAndBackoff() throws Exception {
+        RetryMetrics metrics = new RetryMetrics("test");
+        RetryHelper retryHelper = new RetryHelper.Builder()
+                .withMaxTries(3)
+                .withRetryInterval(10, TimeUnit.MILLISECONDS)
+                .build();
+        Callable<String> proxy = proxy(flaky(2), retryHelper, metrics);
+        Assert.assertEquals("ok", proxy.call());
+        Assert.assertEquals("ok", proxy.call());
+
+        CallMetrics.Snapshot snapshot = metrics.snapshot().get("Callable#call");
+        Assert.assertNotNull(snapshot);
+        Assert.assertEquals(2, snapshot.getCalls());
+        Assert.assertEquals(2, snapshot.getSuccesses());
+        Assert.assertEquals(0, snapshot.getFailures());
+        Assert.assertEquals(6, snapshot.getAttempts());
+        Assert.assertEquals(4, snapshot.getRetries());
+        Assert.assertEquals(3.0, snapshot.getMeanAttemptsPerCall(), 0.0);
+        Assert.assertEquals(2, snapshot.getAttemptsPerCall()[2]);
+        Assert.assertTrue(snapshot.getBackoffNanos() >= TimeUnit.MILLISECONDS.toNanos(40));
+        Assert.assertTrue(snapshot.getCallLatencyPercentileMillis(0.5) >= 16);
+    }
+
+    @Test
+    public void testFailuresAndRejections() throws Exception {
+        RetryMetrics metrics = new RetryMetrics("test");
+        CircuitBreaker breaker = new CircuitBreaker.Builder("test")
+                .withWindow(2, 2)
+                .withFailureRateThreshold(0.5)
+                .build();
+        @SuppressWarnings("unchecked")
+        Callable<String> proxy = new RetryableFactory.Builder<Callable>(Callable.class, flaky(3))
+                .withRetryHelper(RetryHelper.RUN_ONCE)
+                .withDefaultArbiter(new AlwaysRetryArbiter())
+                .withCircuitBreaker(breaker)
+                .withMetrics(metrics)
+                .build();
+        for (int i = 0; i < 3; i++) {
+            try {
+                proxy.call();
+                Assert.fail();
+            } catch (RetryFailedException e) {
+                // expected
+            }
+        }
+        CallMetrics callMetrics = metrics.get("Callable", "call");
+        Assert.assertEquals(2, callMetrics.getFailures());
+        Assert.assertEquals(1, callMetrics.getRejections());
+        Assert.assertEquals(2, callMetrics.getAttempts());
+    }
+
+    @Test
+    public void testJmx() throws Exception {
+        RetryMetrics metrics = new RetryMetrics("jmx-test");
+        Callable<String> proxy = proxy(flaky(0), RetryHelper.RUN_ONCE, metrics);
+        metrics.registerMBeans();
+        try {
+            proxy.call();
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            Object calls = server.getAttribute(metrics.objectNameOf(metrics.get("Callable", "call")), "Calls");
+            Assert.assertEquals(1L, calls);
+        } finally {
+            metrics.unregisterMBeans();
+        }
+        Assert.assertFalse(ManagementFactory.getPlatformMBeanServer().isRegistered(
+                metrics.objectNameOf(metrics.get("Callable", "call"))));
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testRetryBudgetIsPublished() throws Exception {
+        RetryMetrics metrics = new RetryMetrics("budget-test");
+        RetryBudget budget = new RetryBudget(0.1, 5);
+        Callable<String> proxy = new RetryableFactory.Builder<Callable>(Callable.class, flaky(1))
+                .withRetryHelper(new RetryHelper.Builder().withMaxTries(3).build())
+                .withDefaultArbiter(new AlwaysRetryArbiter())
+                .withRetryBudget(budget)
+                .withMetrics(metrics)
+                .build();
+        Assert.assertSame(budget, metrics.getRetryBudget("Callable"));
+        metrics.registerMBeans();
+        try {
+            Assert.assertEquals("ok", proxy.call());
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = metrics.budgetObjectNameOf("Callable");
+            Assert.assertEquals(1L, server.getAttribute(name, "RetriesPermitted"));
+            Assert.assertEquals(0L, server.getAttribute(name, "RetriesRejected"));
+            Assert.assertEquals(4.1, (Double) server.getAttribute(name, "AvailableTokens"), 1e-9);
+            Assert.assertEquals(5, server.getAttribute(name, "MaxTokens"));
+        } finally {
+            metrics.unregisterMBeans();
+        }
+        Assert.assertFalse(ManagementFactory.getPlatformMBeanServer().isRegistered(
+                metrics.budgetObjectNameOf("Callable")));
+    }
+}
@@ -0,0 +1,161 @@
+package io.magnum.awscommons.retry;
+
+import io.magnum.awscommons.GeneralAwsHelper;
+
+import java.lang.reflect.Method;
+import java.util.Collections;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class RetryPolicyTest {
+
+    public interface Service {
+        @RetryPolicy(attemptTimeoutMillis = 100, maxTries = 3)
+        String stuckOnce();
+
+        @RetryPolicy(deadlineMillis = 300, backoff = RetryPolicy.Backoff.FIXED, backoffBaseMillis = 20)
+        String alwaysFails();
+
+        @RetryPolicy(arbiter = NeverRetryArbiter.class)
+        String failsOnce();
+
+        String inherits();
+    }
+
+    public static class NeverRetryArbiter implements ExceptionArbiter {
+        @Override
+        public boolean isRetryable(Throwable t) {
+            return false;
+        }
+    }
+
+    private static class AlwaysRetryArbiter implements ExceptionArbiter {
+        @Override
+        public boolean isRetryable(Throwable t) {
+            return true;
+        }
+    }
+
+    private static class FlakyService implements Service {
+        final AtomicInteger calls = new AtomicInteger();
+        final CountDownLatch interrupted = new CountDownLatch(1);
+
+        @Override
+        public String stuckOnce() {
+            if (calls.incrementAndGet() == 1) {
+                try {
+                    Thread.sleep(10000);
+                } catch (InterruptedException e) {
+                    interrupted.countDown();
+                    throw new IllegalStateException(e);
+                }
+            }
+            return "done";
+        }
+
+        @Override
+        public String alwaysFails() {
+            calls.incrementAndGet();
+            throw new IllegalStateException("down");
+        }
+
+        @Override
+        public String failsOnce() {
+            if (calls.incrementAndGet() == 1) {
+                throw new IllegalStateException("down");
+            }
+            return "done";
+        }
+
+        @Override
+        public String inherits() {
+            return failsOnce();
+        }
+    }
+
+    private static Service proxy(FlakyService delegate) {
+        return new RetryableFactory.Builder<Service>(Service.class, delegate)
+                .withRetryHelper(RetryHelper.RETRY_FOREVER)
+                .withDefaultArbiter(new AlwaysRetryArbiter())
+                .build();
+    }
+
+    @Test
+    public void testAttemptTimeoutInterruptsAndRetries() throws InterruptedException {
+        FlakyService delegate = new FlakyService();
+        long start = System.nanoTime();
+        Assert.assertEquals("done", proxy(delegate).stuckOnce());
+        Assert.assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(5));
+        Assert.assertEquals(2, delegate.calls.get());
+        Assert.assertTrue("the stuck attempt was not interrupted", delegate.interrupted.await(2, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testDeadlineOverridesRetryForever() {
+        FlakyService delegate = new FlakyService();
+        long start = System.nanoTime();
+        try {
+            proxy(delegate).alwaysFails();
+            Assert.fail();
+        } catch (RetryFailedException e) {
+            // expected
+        }
+        long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        Assert.assertTrue("took " + elapsedMillis + " ms", elapsedMillis >= 250 && elapsedMillis < 2000);
+        Assert.assertTrue(delegate.calls.get() > 2);
+    }
+
+    @Test
+    public void testAnnotatedArbiter() {
+        try {
+            proxy(new FlakyService()).failsOnce();
+            Assert.fail();
+        } catch (RetryFailedException e) {
+            Assert.assertTrue(e.getCause().getCause() instanceof IllegalStateException);
+        }
+        Assert.assertEquals("done", proxy(new FlakyService()).inherits());
+    }
+
+    @Test
+    public void testMethodSpecificArbiterTakesPrecedence() throws Exception {
+        Method failsOnce = Service.class.getMethod("failsOnce");
+        Service proxy = new RetryableFactory.Builder<Service>(Service.class, new FlakyService())
+                .withRetryHelper(RetryHelper.RETRY_FOREVER)
+                .withMethodSpecificArbiters(Collections.<Method, ExceptionArbiter>singletonMap(failsOnce,
+                        new AlwaysRetryArbiter()))
+                .build();
+        Assert.assertEquals("done", proxy.failsOnce());
+    }
+
+    @Test
+    public void testRetryHelperOverrides() throws Exception {
+        RetryHelper base = new RetryHelper.Builder()
+                .withMaxTries(5)
+                .withRetryInterval(1, TimeUnit.SECONDS)
+                .build();
+        RetryPolicy policy = Service.class.getMethod("alwaysFails").getAnnotation(RetryPolicy.class);
+        RetryHelper derived = RetryPolicies.toRetryHelper(policy, base);
+        Assert.assertEquals(Integer.valueOf(5), derived.getMaxTries());
+        Assert.assertEquals(Long.valueOf(300), derived.getTimeout());
+        Assert.assertTrue(derived.getBackoff() instanceof FixedBackoffStrategy);
+        Assert.assertEquals(TimeUnit.MILLISECONDS.toNanos(20), derived.getBackoff().delayNanos(1, 0));
+
+        Assert.assertSame(base, RetryPolicies.toRetryHelper(
+                Service.class.getMethod("failsOnce").getAnnotation(RetryPolicy.class), base));
+        Assert.assertSame(base, RetryPolicies.toRetryHelper(null, base));
+    }
+
+    @Test
+    public void testGeneralAwsHelperCallsAreNotTimedByDefault() {
+        // a timed attempt costs a thread hop, and AWS requests are bounded by
+        // the client's own timeouts instead
+        for (Method method : GeneralAwsHelper.class.getMethods()) {
+            Assert.assertEquals(method.getName(), 0L,
+                    RetryPolicies.attemptTimeoutNanos(method.getAnnotation(RetryPolicy.class)));
+        }
+    }
+}
@@ -0,0 +1,101 @@
+package io.magnum.awscommons.retry;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class RetryableFactoryTest {
+
+    public interface Service {
+        int add(int a, int b);
+
+        void fail(String message) throws AbortException;
+    }
+
+    private static class FlakyService implements Service {
+        final AtomicInteger calls = new AtomicInteger();
+        int failuresLeft;
+
+        @Override
+        public int add(int a, int b) {
+            calls.incrementAndGet();
+            if (failuresLeft-- > 0) {
+                throw new IllegalStateException("flaky");
+            }
+            return a + b;
+        }
+
+        @Override
+        public void fail(String message) throws AbortException {
+            calls.incrementAndGet();
+            throw new AbortException(message);
+        }
+    }
+
+    private static final ExceptionArbiter ILLEGAL_STATE_IS_RETRYABLE = new ExceptionArbiter() {
+        @Override
+        public boolean isRetryable(Throwable t) {
+            return t instanceof IllegalStateException;
+        }
+    };
+
+    @Test
+    public void testSuccessOnFirstAttempt() {
+        FlakyService delegate = new FlakyService();
+        Service proxy = RetryableFactory.create(Service.class, delegate, RetryHelper.RUN_ONCE);
+        Assert.assertEquals(5, proxy.add(2, 3));
+        Assert.assertEquals(1, delegate.calls.get());
+    }
+
+    @Test
+    public void testRetriesUntilSuccess() {
+        FlakyService delegate = new FlakyService();
+        delegate.failuresLeft = 2;
+        RetryHelper helper = new RetryHelper.Builder()
+                .withMaxTries(3)
+                .withRetryInterval(1, TimeUnit.MILLISECONDS)
+                .build();
+        Service proxy = RetryableFactory.create(Service.class, delegate, helper, ILLEGAL_STATE_IS_RETRYABLE);
+        Assert.assertEquals(5, proxy.add(2, 3));
+        Assert.assertEquals(3, delegate.calls.get());
+    }
+
+    @Test
+    public void testMaxTriesCountsFirstAttempt() {
+        FlakyService delegate = new FlakyService();
+        delegate.failuresLeft = 5;
+        RetryHelper helper = new RetryHelper.Builder().withMaxTries(3).build();
+        Service proxy = RetryableFactory.create(Service.class, delegate, helper, ILLEGAL_STATE_IS_RETRYABLE);
+        try {
+            proxy.add(2, 3);
+            Assert.fail("should have given up");
+        } catch (RetryFailedException e) {
+            // Expected
+        }
+        Assert.assertEquals(3, delegate.calls.get());
+    }
+
+    @Test
+    public void testNonRetryableFailureIsNotRetried() throws AbortException {
+        FlakyService delegate = new FlakyService();
+        Service proxy = RetryableFactory.create(Service.class, delegate, RetryHelper.RETRY_FOREVER,
+                ILLEGAL_STATE_IS_RETRYABLE);
+        try {
+            proxy.fail("boom");
+            Assert.fail("should have failed");
+        } catch (RetryFailedException e) {
+            Assert.assertEquals("boom", e.getCause().getCause().getMessage());
+        }
+        Assert.assertEquals(1, delegate.calls.get());
+    }
+
+    @Test
+    public void testObjectMethods() {
+        FlakyService delegate = new FlakyService();
+        Service proxy = RetryableFactory.create(Service.class, delegate, RetryHelper.RUN_ONCE);
+        Assert.assertEquals(delegate.hashCode(), proxy.hashCode());
+        Assert.assertEquals(delegate.toString(), proxy.toString());
+    }
+}
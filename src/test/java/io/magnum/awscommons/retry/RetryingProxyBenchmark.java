@@ -0,0 +1,158 @@
+package io.magnum.awscommons.retry;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Measures the per-call overhead of {@link RetryableFactory} proxies on the
+ * success path, against a direct call and against the original reflective
+ * dispatch ({@link LegacyInvocationHandler}).
+ * <p>
+ * Run with <code>mvn -Pbenchmarks test-compile</code> followed by this class's
+ * <code>main</code> method on the test classpath, or pass
+ * <code>-prof gc</code> to <code>org.openjdk.jmh.Main</code> to see
+ * allocation rates.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RetryingProxyBenchmark {
+
+    public interface Service {
+        String describe(String name);
+    }
+
+    private static class DefaultService implements Service {
+        @Override
+        public String describe(String name) {
+            return name;
+        }
+    }
+
+    private Service direct;
+    private Service legacyProxy;
+    private Service proxy;
+    private Service guardedProxy;
+    private String name;
+
+    @Setup
+    public void setUp() {
+        direct = new DefaultService();
+        ExceptionArbiter arbiter = new AwsExceptionArbiter();
+        legacyProxy = (Service) Proxy.newProxyInstance(Service.class.getClassLoader(),
+                new Class<?>[] { Service.class },
+                new LegacyInvocationHandler(direct, RetryHelper.RETRY_FOREVER, arbiter,
+                        Collections.<Method, ExceptionArbiter>emptyMap()));
+        proxy = RetryableFactory.create(Service.class, direct, RetryHelper.RETRY_FOREVER, arbiter);
+        guardedProxy = new RetryableFactory.Builder<Service>(Service.class, direct)
+                .withRetryHelper(RetryHelper.RETRY_FOREVER)
+                .withDefaultArbiter(arbiter)
+                .withRetryBudget(new RetryBudget(0.1, 100))
+                .withCircuitBreaker(new CircuitBreaker.Builder("benchmark").build())
+                .build();
+        name = "stack-" + System.nanoTime();
+    }
+
+    @Benchmark
+    public String direct() {
+        return direct.describe(name);
+    }
+
+    @Benchmark
+    public String legacyProxy() {
+        return legacyProxy.describe(name);
+    }
+
+    @Benchmark
+    public String proxy() {
+        return proxy.describe(name);
+    }
+
+    @Benchmark
+    public String proxyWithBudgetAndCircuitBreaker() {
+        return guardedProxy.describe(name);
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder().include(RetryingProxyBenchmark.class.getSimpleName()).build()).run();
+    }
+
+    /**
+     * The dispatch path RetryingInvocationHandler used before it precomputed
+     * per-method invokers: a map lookup, a new Retryable, arbiter wrapper and
+     * description closure, and Method.invoke on every call.
+     */
+    static class LegacyInvocationHandler implements InvocationHandler {
+        private final Object delegate;
+        private final RetryHelper retryHelper;
+        private final ExceptionArbiter defaultArbiter;
+        private final Map<Method, ExceptionArbiter> methodSpecificArbiter;
+
+        LegacyInvocationHandler(Object delegate, RetryHelper retryHelper, ExceptionArbiter defaultArbiter,
+                Map<Method, ExceptionArbiter> methodSpecificArbiter) {
+            this.delegate = delegate;
+            this.retryHelper = retryHelper;
+            this.defaultArbiter = defaultArbiter;
+            this.methodSpecificArbiter = methodSpecificArbiter;
+        }
+
+        @Override
+        public Object invoke(Object proxy, final Method method, final Object[] args) throws Throwable {
+            ExceptionArbiter arbiter = methodSpecificArbiter.get(method);
+            if (arbiter == null) {
+                arbiter = defaultArbiter;
+            }
+            final ExceptionArbiter target = arbiter;
+            Retryable<Object> retryable = new Retryable<Object>() {
+                @Override
+                public Object call() throws RetryableException, AbortException {
+                    try {
+                        return method.invoke(delegate, args);
+                    } catch (InvocationTargetException e) {
+                        throw new RuntimeException(e.getCause());
+                    } catch (Exception e) {
+                        throw new AbortException(e);
+                    }
+                }
+
+                @Override
+                public String getDescription() {
+                    return "Calling " + delegate.getClass().getCanonicalName() + "#" + method.getName();
+                }
+            };
+            ExceptionArbiter invocationTargetArbiter = new ExceptionArbiter() {
+                @Override
+                public boolean isRetryable(Throwable e) {
+                    return target.isRetryable(e.getCause() != null ? e.getCause() : e);
+                }
+            };
+            try {
+                return retryHelper.runRetryable(retryable, invocationTargetArbiter);
+            } catch (AbortException e) {
+                throw new RetryFailedException(e.getCause());
+            }
+        }
+    }
+}